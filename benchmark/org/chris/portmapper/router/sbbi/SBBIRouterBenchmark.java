@@ -0,0 +1,80 @@
+/**
+ *
+ */
+package org.chris.portmapper.router.sbbi;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sbbi.upnp.messages.ActionResponse;
+import net.sbbi.upnp.services.ServiceActionArgument;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.util.EncodingUtilities;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the work done by {@link SBBIRouter} for every port mapping:
+ * {@link PortMapping#create(ActionResponse)} and
+ * {@link EncodingUtilities#htmlEntityEncode(String)}.
+ *
+ * @author chris
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SBBIRouterBenchmark {
+
+	private static final String DESCRIPTION = "Web server & proxy <port 80>";
+
+	private final ActionResponse response = new MappingEntryResponse();
+
+	@Benchmark
+	public PortMapping createPortMapping() {
+		return PortMapping.create(response);
+	}
+
+	@Benchmark
+	public String htmlEntityEncode() {
+		return EncodingUtilities.htmlEntityEncode(DESCRIPTION);
+	}
+
+	/**
+	 * The response to <code>GetGenericPortMappingEntry</code> as returned by
+	 * SBBI.
+	 */
+	private static class MappingEntryResponse extends ActionResponse {
+		MappingEntryResponse() {
+			add(PortMapping.MAPPING_ENTRY_REMOTE_HOST, "");
+			add(PortMapping.MAPPING_ENTRY_EXTERNAL_PORT, "8080");
+			add(PortMapping.MAPPING_ENTRY_PROTOCOL, "TCP");
+			add(PortMapping.MAPPING_ENTRY_INTERNAL_PORT, "80");
+			add(PortMapping.MAPPING_ENTRY_INTERNAL_CLIENT, "192.168.1.23");
+			add(PortMapping.MAPPING_ENTRY_ENABLED, "1");
+			add(PortMapping.MAPPING_ENTRY_PORT_MAPPING_DESCRIPTION,
+					DESCRIPTION);
+			add(PortMapping.MAPPING_ENTRY_LEASE_DURATION, "0");
+		}
+
+		private void add(final String name, final String value) {
+			addResult(new Argument(name), value);
+		}
+	}
+
+	private static class Argument extends ServiceActionArgument {
+		Argument(final String name) {
+			this.name = name;
+			this.direction = DIRECTION_OUT;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Benchmarks for parsing the reply to a search request with
+ * {@link GatewayDiscover#parseMSearchReplay(ByteBuffer)} and the device
+ * description with {@link GatewayDeviceHandler}.
+ *
+ * @author chris
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DiscoveryBenchmark {
+
+	private static final byte[] SEARCH_REPLY = ("HTTP/1.1 200 OK\r\n"
+			+ "CACHE-CONTROL: max-age=1800\r\n"
+			+ "DATE: Sun, 18 Oct 2026 10:00:00 GMT\r\n" + "EXT:\r\n"
+			+ "LOCATION: http://192.168.1.1:49000/igddesc.xml\r\n"
+			+ "SERVER: Linux UPnP/1.0 AVM FRITZ!Box 7490\r\n"
+			+ "ST: urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n"
+			+ "USN: uuid:75802409-bccb-40e7-8e6c-fa095ecce13e::"
+			+ "urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n\r\n")
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] DESCRIPTION = ("<?xml version=\"1.0\"?>"
+			+ "<root xmlns=\"urn:schemas-upnp-org:device-1-0\">"
+			+ "<specVersion><major>1</major><minor>0</minor></specVersion>"
+			+ "<device>"
+			+ "<deviceType>urn:schemas-upnp-org:device:InternetGatewayDevice:1</deviceType>"
+			+ "<friendlyName>FRITZ!Box 7490</friendlyName>"
+			+ "<manufacturer>AVM Berlin</manufacturer>"
+			+ "<modelDescription>FRITZ!Box 7490</modelDescription>"
+			+ "<UDN>uuid:75802409-bccb-40e7-8e6c-fa095ecce13e</UDN>"
+			+ "<serviceList><service>"
+			+ "<serviceType>urn:schemas-any-com:service:Any:1</serviceType>"
+			+ "<serviceId>urn:any-com:serviceId:any1</serviceId>"
+			+ "<controlURL>/igdupnp/control/any</controlURL>"
+			+ "<eventSubURL>/igdupnp/control/any</eventSubURL>"
+			+ "<SCPDURL>/any.xml</SCPDURL>"
+			+ "</service></serviceList>"
+			+ "<deviceList><device>"
+			+ "<deviceType>urn:schemas-upnp-org:device:WANDevice:1</deviceType>"
+			+ "<serviceList><service>"
+			+ "<serviceType>urn:schemas-upnp-org:service:WANCommonInterfaceConfig:1</serviceType>"
+			+ "<serviceId>urn:upnp-org:serviceId:WANCommonIFC1</serviceId>"
+			+ "<controlURL>/igdupnp/control/WANCommonIFC1</controlURL>"
+			+ "<eventSubURL>/igdupnp/control/WANCommonIFC1</eventSubURL>"
+			+ "<SCPDURL>/igdicfgSCPD.xml</SCPDURL>"
+			+ "</service></serviceList>"
+			+ "<deviceList><device>"
+			+ "<deviceType>urn:schemas-upnp-org:device:WANConnectionDevice:1</deviceType>"
+			+ "<serviceList><service>"
+			+ "<serviceType>urn:schemas-upnp-org:service:WANIPConnection:1</serviceType>"
+			+ "<serviceId>urn:upnp-org:serviceId:WANIPConn1</serviceId>"
+			+ "<controlURL>/igdupnp/control/WANIPConn1</controlURL>"
+			+ "<eventSubURL>/igdupnp/control/WANIPConn1</eventSubURL>"
+			+ "<SCPDURL>/igdconnSCPD.xml</SCPDURL>"
+			+ "</service></serviceList>"
+			+ "</device></deviceList>"
+			+ "</device></deviceList>"
+			+ "<presentationURL>http://fritz.box</presentationURL>"
+			+ "</device></root>").getBytes(StandardCharsets.UTF_8);
+
+	private final GatewayDiscover discover = new GatewayDiscover();
+	private final ByteBuffer reply = ByteBuffer.wrap(SEARCH_REPLY);
+
+	@Benchmark
+	public GatewayDevice parseMSearchReplay() throws WeUPnPException {
+		return discover.parseMSearchReplay(reply);
+	}
+
+	@Benchmark
+	public GatewayDevice parseDescription() throws SAXException, IOException {
+		final GatewayDevice device = new GatewayDevice();
+		final XMLReader parser = XmlParsers.getXMLReader();
+		parser.setContentHandler(new GatewayDeviceHandler(device));
+		parser.parse(new InputSource(new ByteArrayInputStream(
+				DESCRIPTION)));
+		return device;
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Benchmarks for building the SOAP envelopes of AddPortMapping and
+ * GetGenericPortMappingEntry in
+ * {@link GatewayDevice#simpleUPnPcommand(String, String, String, Map)} and
+ * for parsing the response with {@link SoapResponseReader} and
+ * {@link NameValueHandler}. The envelopes are also built with the
+ * <code>StringBuffer</code> code that {@link SoapEnvelopeEncoder} replaced,
+ * see {@link #legacyEnvelope(String, String, Map)}.
+ *
+ * @author chris
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SoapBenchmark {
+
+	private static final String SERVICE = "urn:schemas-upnp-org:service:WANIPConnection:1";
+
+	static final byte[] RESPONSE = ("<?xml version=\"1.0\"?>\r\n"
+			+ "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+			+ "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+			+ "<s:Body><u:GetGenericPortMappingEntryResponse xmlns:u=\""
+			+ SERVICE
+			+ "\">"
+			+ "<NewRemoteHost></NewRemoteHost>"
+			+ "<NewExternalPort>8080</NewExternalPort>"
+			+ "<NewProtocol>TCP</NewProtocol>"
+			+ "<NewInternalPort>80</NewInternalPort>"
+			+ "<NewInternalClient>192.168.1.23</NewInternalClient>"
+			+ "<NewEnabled>1</NewEnabled>"
+			+ "<NewPortMappingDescription>Web server &amp; proxy</NewPortMappingDescription>"
+			+ "<NewLeaseDuration>0</NewLeaseDuration>"
+			+ "</u:GetGenericPortMappingEntryResponse></s:Body></s:Envelope>")
+			.getBytes(StandardCharsets.UTF_8);
+
+	private final Map<String, String> addArgs = new LinkedHashMap<>();
+	private final Map<String, String> getEntryArgs = new LinkedHashMap<>();
+	private final SoapEnvelopeEncoder.Buffer buffer = new SoapEnvelopeEncoder.Buffer();
+	private final SoapEnvelopeEncoder addEncoder = SoapEnvelopeEncoder
+			.getEncoder(SERVICE, "AddPortMapping");
+	private final SoapEnvelopeEncoder getEntryEncoder = SoapEnvelopeEncoder
+			.getEncoder(SERVICE, "GetGenericPortMappingEntry");
+
+	public SoapBenchmark() {
+		addArgs.put("NewRemoteHost", "");
+		addArgs.put("NewExternalPort", "8080");
+		addArgs.put("NewProtocol", "TCP");
+		addArgs.put("NewInternalPort", "80");
+		addArgs.put("NewInternalClient", "192.168.1.23");
+		addArgs.put("NewEnabled", "1");
+		addArgs.put("NewPortMappingDescription", "Web server and proxy");
+		addArgs.put("NewLeaseDuration", "0");
+		getEntryArgs.put("NewPortMappingIndex", "42");
+	}
+
+	@Benchmark
+	public int encodeAddPortMapping() {
+		buffer.reset();
+		addEncoder.encode(addArgs, buffer);
+		return buffer.length();
+	}
+
+	@Benchmark
+	public int encodeAddPortMappingLegacy() {
+		return legacyEnvelope(SERVICE, "AddPortMapping", addArgs).length;
+	}
+
+	@Benchmark
+	public int encodeGetGenericPortMappingEntry() {
+		buffer.reset();
+		getEntryEncoder.encode(getEntryArgs, buffer);
+		return buffer.length();
+	}
+
+	@Benchmark
+	public int encodeGetGenericPortMappingEntryLegacy() {
+		return legacyEnvelope(SERVICE, "GetGenericPortMappingEntry",
+				getEntryArgs).length;
+	}
+
+	@Benchmark
+	public Map<String, String> readResponse() throws XMLStreamException {
+		return SoapResponseReader.read(RESPONSE, 0, RESPONSE.length);
+	}
+
+	@Benchmark
+	public Map<String, String> parseResponseWithNameValueHandler()
+			throws SAXException, IOException {
+		final NameValueHandler handler = new NameValueHandler();
+		final XMLReader parser = XmlParsers.getXMLReader();
+		parser.setContentHandler(handler);
+		parser.parse(new InputSource(new ByteArrayInputStream(RESPONSE)));
+		return handler.getNameValue();
+	}
+
+	/**
+	 * Build the envelope like <code>simpleUPnPcommand</code> did before
+	 * {@link SoapEnvelopeEncoder} was introduced. The values are not escaped,
+	 * so the arguments of the benchmark must not contain markup.
+	 */
+	static byte[] legacyEnvelope(final String service, final String action,
+			final Map<String, String> args) {
+		final StringBuffer soapBody = new StringBuffer();
+
+		soapBody.append("<?xml version=\"1.0\"?>\r\n"
+				+ "<SOAP-ENV:Envelope "
+				+ "xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+				+ "SOAP-ENV:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+				+ "<SOAP-ENV:Body>" + "<m:" + action + " xmlns:m=\"" + service
+				+ "\">");
+
+		if (args != null && args.size() > 0) {
+			for (final String key : args.keySet()) {
+				soapBody.append("<" + key + ">" + args.get(key) + "</" + key
+						+ ">");
+			}
+		}
+
+		soapBody.append("</m:" + action + ">");
+		soapBody.append("</SOAP-ENV:Body></SOAP-ENV:Envelope>");
+		return soapBody.toString().getBytes();
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package org.chris.portmapper.loadtest;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.wetorrent.upnp.ActionMetrics;
+import org.wetorrent.upnp.ActionStats;
+
+/**
+ * The results of driving one backend: the calls, errors and latencies of each
+ * operation and the throughput.
+ *
+ * @author chris
+ */
+public class LoadReport {
+
+	private final String backend;
+	private final int routers;
+	private final int threads;
+	private final long elapsedNanos;
+	private final ActionMetrics metrics;
+
+	public LoadReport(final String backend, final int routers,
+			final int threads, final long elapsedNanos,
+			final ActionMetrics metrics) {
+		this.backend = backend;
+		this.routers = routers;
+		this.threads = threads;
+		this.elapsedNanos = elapsedNanos;
+		this.metrics = metrics;
+	}
+
+	public String getBackend() {
+		return backend;
+	}
+
+	public ActionMetrics getMetrics() {
+		return metrics;
+	}
+
+	public long getCalls() {
+		long calls = 0;
+		for (final ActionStats stats : metrics.getActions().values()) {
+			calls += stats.getCalls();
+		}
+		return calls;
+	}
+
+	public long getErrors() {
+		long errors = 0;
+		for (final ActionStats stats : metrics.getActions().values()) {
+			errors += stats.getErrors();
+		}
+		return errors;
+	}
+
+	/**
+	 * @return the number of operations per second.
+	 */
+	public double getThroughput() {
+		return getThroughput(getCalls());
+	}
+
+	private double getThroughput(final long calls) {
+		final double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+		return seconds > 0 ? calls / seconds : 0;
+	}
+
+	private static double getErrorRate(final long errors, final long calls) {
+		return calls > 0 ? 100.0 * errors / calls : 0;
+	}
+
+	/**
+	 * Print the report as a table.
+	 */
+	public void print(final PrintStream out) {
+		out.println(String.format(Locale.ROOT,
+				"Backend %s: %d routers, %d threads, %.1f s, %.1f ops/s, %.2f%% errors",
+				backend, routers, threads, elapsedNanos / 1e9,
+				getThroughput(), getErrorRate(getErrors(), getCalls())));
+		out.println(String.format(Locale.ROOT,
+				"  %-10s %8s %8s %7s %9s %9s %9s %9s %9s", "operation",
+				"calls", "errors", "error%", "ops/s", "p50 ms", "p90 ms",
+				"p99 ms", "max ms"));
+		for (final ActionStats stats : metrics.getActions().values()) {
+			out.println(String.format(Locale.ROOT,
+					"  %-10s %8d %8d %7.2f %9.1f %9.2f %9.2f %9.2f %9.2f",
+					stats.getAction(), stats.getCalls(), stats.getErrors(),
+					getErrorRate(stats.getErrors(), stats.getCalls()),
+					getThroughput(stats.getCalls()),
+					stats.getLatencyP50Millis(), stats.getLatencyP90Millis(),
+					stats.getLatencyP99Millis(), stats.getLatencyMaxMillis()));
+			if (!stats.getErrorsByCode().isEmpty()) {
+				out.println("             errors by code: "
+						+ stats.getErrorsByCode());
+			}
+		}
+	}
+
+	/**
+	 * Append the report as a JSON object.
+	 */
+	public void appendJson(final StringBuilder json) {
+		json.append("{\"backend\":\"").append(backend)
+				.append("\",\"routers\":").append(routers)
+				.append(",\"threads\":").append(threads)
+				.append(",\"elapsedMillis\":")
+				.append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos))
+				.append(",\"throughput\":").append(format(getThroughput()))
+				.append(",\"calls\":").append(getCalls())
+				.append(",\"errors\":").append(getErrors())
+				.append(",\"operations\":{");
+		boolean first = true;
+		for (final ActionStats stats : metrics.getActions().values()) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			json.append('"').append(stats.getAction()).append("\":{")
+					.append("\"calls\":").append(stats.getCalls())
+					.append(",\"errors\":").append(stats.getErrors())
+					.append(",\"throughput\":")
+					.append(format(getThroughput(stats.getCalls())))
+					.append(",\"latencyMillis\":{\"mean\":")
+					.append(format(stats.getLatencyMeanMillis()))
+					.append(",\"p50\":")
+					.append(format(stats.getLatencyP50Millis()))
+					.append(",\"p90\":")
+					.append(format(stats.getLatencyP90Millis()))
+					.append(",\"p99\":")
+					.append(format(stats.getLatencyP99Millis()))
+					.append(",\"max\":")
+					.append(format(stats.getLatencyMaxMillis()))
+					.append("},\"errorsByCode\":{");
+			boolean firstCode = true;
+			for (final Map.Entry<String, Long> entry : stats.getErrorsByCode()
+					.entrySet()) {
+				if (!firstCode) {
+					json.append(',');
+				}
+				firstCode = false;
+				json.append('"').append(entry.getKey()).append("\":")
+						.append(entry.getValue());
+			}
+			json.append("}}");
+		}
+		json.append("}}");
+	}
+
+	private static String format(final double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+}
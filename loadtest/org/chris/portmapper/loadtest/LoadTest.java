@@ -0,0 +1,402 @@
+/**
+ *
+ */
+package org.chris.portmapper.loadtest;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.chris.portmapper.igd.IgdSimulator;
+import org.chris.portmapper.igd.Latency;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.router.AbstractRouterFactory;
+import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.InstrumentedRouter;
+import org.chris.portmapper.router.RouterException;
+import org.chris.portmapper.router.sbbi.SBBIRouterFactory;
+import org.chris.portmapper.router.weupnp.WeUPnPRouterFactory;
+import org.chris.portmapper.util.NamedThreadFactory;
+import org.wetorrent.upnp.ActionMetrics;
+
+/**
+ * Drives a mixed workload of adding, listing and removing port mappings
+ * through the {@link IRouter} implementations against simulated gateways on
+ * the loopback interface and reports throughput, latency percentiles and
+ * error rates per backend.
+ * <p>
+ * Each backend is run on its own: the simulators are started, one router is
+ * connected to each of them with its location url and the worker threads
+ * pick a random router and operation until the duration has passed.
+ *
+ * @author chris
+ */
+public class LoadTest {
+
+	private static final String ADD = "add";
+	private static final String LIST = "list";
+	private static final String REMOVE = "remove";
+
+	private static final int FIRST_PORT = 20000;
+	private static final int LAST_PORT = 65000;
+
+	private int routerCount = 10;
+	private int threadCount = 16;
+	private long durationMillis = 30000;
+	private int initialMappings = 10;
+	private int tableSize = 1024;
+	private long medianLatencyMillis = 20;
+	private double errorProbability = 0.01;
+	private long seed = 42;
+	private final Map<String, Integer> mix = new LinkedHashMap<>();
+
+	public LoadTest() {
+		mix.put(ADD, 40);
+		mix.put(LIST, 20);
+		mix.put(REMOVE, 40);
+	}
+
+	public void setRouterCount(final int routerCount) {
+		this.routerCount = routerCount;
+	}
+
+	public void setThreadCount(final int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	public void setDurationMillis(final long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	public void setInitialMappings(final int initialMappings) {
+		this.initialMappings = initialMappings;
+	}
+
+	public void setTableSize(final int tableSize) {
+		this.tableSize = tableSize;
+	}
+
+	public void setMedianLatencyMillis(final long medianLatencyMillis) {
+		this.medianLatencyMillis = medianLatencyMillis;
+	}
+
+	public void setErrorProbability(final double errorProbability) {
+		this.errorProbability = errorProbability;
+	}
+
+	public void setSeed(final long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the share of each operation.
+	 *
+	 * @param mix
+	 *            the weights of the operations, e.g.
+	 *            <code>add=40,list=20,remove=40</code>.
+	 */
+	public void setMix(final String mix) {
+		final Map<String, Integer> newMix = new LinkedHashMap<>();
+		for (final String part : mix.split(",")) {
+			final String[] operationAndWeight = part.split("=");
+			final String operation = operationAndWeight[0].trim();
+			if (!operation.equals(ADD) && !operation.equals(LIST)
+					&& !operation.equals(REMOVE)) {
+				throw new IllegalArgumentException("Unknown operation '"
+						+ operation + "'");
+			}
+			newMix.put(operation, Integer.valueOf(operationAndWeight[1].trim()));
+		}
+		this.mix.clear();
+		this.mix.putAll(newMix);
+	}
+
+	/**
+	 * Run the workload against the routers created by the given factory.
+	 *
+	 * @param backend
+	 *            the name of the backend used in the report.
+	 * @param factory
+	 *            the factory connecting to the simulators.
+	 * @return the report.
+	 * @throws IOException
+	 *             if a simulator could not be started.
+	 * @throws RouterException
+	 *             if a router could not be connected.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the workers.
+	 */
+	public LoadReport run(final String backend,
+			final AbstractRouterFactory factory) throws IOException,
+			RouterException, InterruptedException {
+		final List<IgdSimulator> simulators = new ArrayList<>();
+		final List<Target> targets = new ArrayList<>();
+		try {
+			for (int i = 0; i < routerCount; i++) {
+				final IgdSimulator simulator = new IgdSimulator();
+				simulator.setFriendlyName("Simulated IGD " + i);
+				simulator.setSeed(seed + i);
+				simulator.setTableSize(tableSize);
+				simulator.setHttpThreads(Math.max(2, threadCount / 2));
+				simulator.setLatency(IgdSimulator.ALL_ACTIONS,
+						Latency.logNormal(medianLatencyMillis, 0.5));
+				simulator.injectHttpStatus(IgdSimulator.ALL_ACTIONS, 500,
+						errorProbability);
+				simulator.fill(initialMappings);
+				simulator.start();
+				simulators.add(simulator);
+				targets.add(new Target(factory.connect(simulator
+						.getLocationUrl())));
+			}
+			return drive(backend, targets);
+		} finally {
+			for (final Target target : targets) {
+				target.router.disconnect();
+			}
+			for (final IgdSimulator simulator : simulators) {
+				simulator.stop();
+			}
+		}
+	}
+
+	private LoadReport drive(final String backend, final List<Target> targets)
+			throws InterruptedException {
+		final ActionMetrics metrics = new ActionMetrics();
+		final ExecutorService executor = Executors.newFixedThreadPool(
+				threadCount, new NamedThreadFactory("loadtest-" + backend));
+		final CountDownLatch started = new CountDownLatch(1);
+		final long startNanos = System.nanoTime();
+		final long endNanos = startNanos
+				+ TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		for (int i = 0; i < threadCount; i++) {
+			final Random random = new Random(seed * 31 + i);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						started.await();
+					} catch (final InterruptedException e) {
+						return;
+					}
+					while (System.nanoTime() - endNanos < 0
+							&& !Thread.currentThread().isInterrupted()) {
+						execute(targets.get(random.nextInt(targets.size())),
+								nextOperation(random), metrics);
+					}
+				}
+			});
+		}
+		started.countDown();
+		executor.shutdown();
+		executor.awaitTermination(durationMillis + 60000,
+				TimeUnit.MILLISECONDS);
+		executor.shutdownNow();
+		return new LoadReport(backend, targets.size(), threadCount,
+				System.nanoTime() - startNanos, metrics);
+	}
+
+	private String nextOperation(final Random random) {
+		int total = 0;
+		for (final int weight : mix.values()) {
+			total += weight;
+		}
+		int value = random.nextInt(total);
+		for (final Map.Entry<String, Integer> entry : mix.entrySet()) {
+			value -= entry.getValue();
+			if (value < 0) {
+				return entry.getKey();
+			}
+		}
+		throw new IllegalStateException("Empty mix");
+	}
+
+	private static void execute(final Target target, final String operation,
+			final ActionMetrics metrics) {
+		final PortMapping mappingToRemove = operation.equals(REMOVE) ? target.added
+				.poll() : null;
+		final String executed = operation.equals(REMOVE)
+				&& mappingToRemove == null ? ADD : operation;
+		final long start = System.nanoTime();
+		try {
+			switch (executed) {
+			case ADD:
+				final int port = target.nextPort();
+				final PortMapping mapping = new PortMapping(Protocol.TCP, null,
+						port, "192.168.1.10", port, "Load test " + port);
+				target.router.addPortMapping(mapping);
+				target.added.add(mapping);
+				break;
+			case REMOVE:
+				target.router.removeMapping(mappingToRemove);
+				break;
+			default:
+				target.router.getPortMappings();
+			}
+			metrics.recordSuccess(executed, start);
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError(executed, start,
+					InstrumentedRouter.getErrorCode(e));
+		}
+	}
+
+	/**
+	 * A router with the mappings added by the workload.
+	 */
+	private static class Target {
+		private final IRouter router;
+		private final Queue<PortMapping> added = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger port = new AtomicInteger(FIRST_PORT);
+
+		Target(final IRouter router) {
+			this.router = router;
+		}
+
+		int nextPort() {
+			final int next = port.getAndIncrement();
+			if (next > LAST_PORT) {
+				port.compareAndSet(next + 1, FIRST_PORT);
+				return nextPort();
+			}
+			return next;
+		}
+	}
+
+	private static Options createOptions() {
+		final Options options = new Options();
+		options.addOption("n", "routers", true,
+				"number of simulated routers (default 10)");
+		options.addOption("t", "threads", true,
+				"number of worker threads (default 16)");
+		options.addOption("d", "duration", true,
+				"duration per backend in seconds (default 30)");
+		options.addOption("b", "backends", true,
+				"comma separated backends: weupnp, sbbi (default weupnp,sbbi)");
+		options.addOption("m", "mix", true,
+				"operation weights (default add=40,list=20,remove=40)");
+		options.addOption("l", "latency", true,
+				"median latency of the simulators in ms (default 20)");
+		options.addOption("e", "errors", true,
+				"probability of an HTTP 500 per request (default 0.01)");
+		options.addOption("i", "initial", true,
+				"initial mappings per router (default 10)");
+		options.addOption("s", "table-size", true,
+				"mappings a router can hold (default 1024)");
+		options.addOption("o", "output", true,
+				"file for the results as JSON");
+		options.addOption("h", "help", false, "print this help");
+		return options;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Options options = createOptions();
+		final CommandLine commandLine;
+		try {
+			commandLine = new PosixParser().parse(options, args);
+		} catch (final ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("LoadTest", options);
+			System.exit(1);
+			return;
+		}
+		if (commandLine.hasOption("h")) {
+			new HelpFormatter().printHelp("LoadTest", options);
+			return;
+		}
+		Logger.getRootLogger().setLevel(Level.WARN);
+		Logger.getLogger("org.chris.portmapper").removeAllAppenders();
+		Logger.getLogger("org.chris.portmapper").setLevel(Level.WARN);
+
+		final LoadTest loadTest = new LoadTest();
+		if (commandLine.hasOption("n")) {
+			loadTest.setRouterCount(Integer.parseInt(commandLine
+					.getOptionValue("n")));
+		}
+		if (commandLine.hasOption("t")) {
+			loadTest.setThreadCount(Integer.parseInt(commandLine
+					.getOptionValue("t")));
+		}
+		if (commandLine.hasOption("d")) {
+			loadTest.setDurationMillis(TimeUnit.SECONDS.toMillis(Long
+					.parseLong(commandLine.getOptionValue("d"))));
+		}
+		if (commandLine.hasOption("m")) {
+			loadTest.setMix(commandLine.getOptionValue("m"));
+		}
+		if (commandLine.hasOption("l")) {
+			loadTest.setMedianLatencyMillis(Long.parseLong(commandLine
+					.getOptionValue("l")));
+		}
+		if (commandLine.hasOption("e")) {
+			loadTest.setErrorProbability(Double.parseDouble(commandLine
+					.getOptionValue("e")));
+		}
+		if (commandLine.hasOption("i")) {
+			loadTest.setInitialMappings(Integer.parseInt(commandLine
+					.getOptionValue("i")));
+		}
+		if (commandLine.hasOption("s")) {
+			loadTest.setTableSize(Integer.parseInt(commandLine
+					.getOptionValue("s")));
+		}
+
+		final List<LoadReport> reports = new ArrayList<>();
+		for (final String backend : commandLine.getOptionValue("b",
+				"weupnp,sbbi").split(",")) {
+			final AbstractRouterFactory factory;
+			switch (backend.trim()) {
+			case "weupnp":
+				factory = new WeUPnPRouterFactory();
+				break;
+			case "sbbi":
+				factory = new SBBIRouterFactory();
+				break;
+			default:
+				System.err.println("Unknown backend '" + backend + "'");
+				System.exit(1);
+				return;
+			}
+			System.out.println("Running " + backend.trim() + "...");
+			final LoadReport report = loadTest.run(backend.trim(), factory);
+			report.print(System.out);
+			reports.add(report);
+		}
+
+		if (commandLine.hasOption("o")) {
+			final StringBuilder json = new StringBuilder("[");
+			for (int i = 0; i < reports.size(); i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				reports.get(i).appendJson(json);
+			}
+			json.append("]\n");
+			try (Writer writer = Files.newBufferedWriter(
+					Paths.get(commandLine.getOptionValue("o")),
+					StandardCharsets.UTF_8)) {
+				writer.write(json.toString());
+			}
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package org.chris.portmapper;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
@@ -21,10 +23,15 @@ import org.apache.log4j.WriterAppender;
 import org.chris.portmapper.gui.PortMapperView;
 import org.chris.portmapper.logging.LogMessageListener;
 import org.chris.portmapper.logging.LogMessageWriter;
+import org.chris.portmapper.metrics.MetricsPublisher;
 import org.chris.portmapper.model.PortMappingPreset;
 import org.chris.portmapper.router.AbstractRouterFactory;
+import org.chris.portmapper.router.CachingRouter;
 import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.InstrumentedRouter;
 import org.chris.portmapper.router.RouterException;
+import org.chris.portmapper.router.sbbi.SBBIRouter;
+import org.chris.portmapper.util.ConfigDirectory;
 import org.jdesktop.application.ResourceMap;
 import org.jdesktop.application.SingleFrameApplication;
 import org.jdesktop.application.utils.OSXAdapter;
@@ -39,7 +46,7 @@ public class PortMapperApp extends SingleFrameApplication {
 	 * The name of the system property which will be used as the directory where
 	 * all configuration files will be stored.
 	 */
-	private static final String CONFIG_DIR_PROPERTY_NAME = "portmapper.config.dir";
+	private static final String CONFIG_DIR_PROPERTY_NAME = ConfigDirectory.CONFIG_DIR_PROPERTY_NAME;
 
 	/**
 	 * The file name for the settings file.
@@ -49,6 +56,8 @@ public class PortMapperApp extends SingleFrameApplication {
 	private final Log logger = LogFactory.getLog(this.getClass());
 
 	private IRouter router;
+	private MetricsPublisher metricsPublisher;
+	private PropertyChangeListener entityEncodingListener;
 	private Settings settings;
 	private LogMessageWriter logWriter;
 
@@ -101,48 +110,23 @@ public class PortMapperApp extends SingleFrameApplication {
 	}
 
 	/**
-	 * Read the system property with name
-	 * {@link PortMapperApp#CONFIG_DIR_PROPERTY_NAME} and change the local
-	 * storage directory if the property is given and points to a writable
-	 * directory. If there is a directory named <code>PortMapperConf</code> in
-	 * the current directory, use this as the configuration directory.
+	 * Change the local storage directory to the directory determined by
+	 * {@link ConfigDirectory}, so that the command line uses the same
+	 * directory. Exit if the directory given with system property
+	 * {@link PortMapperApp#CONFIG_DIR_PROPERTY_NAME} can not be used.
 	 */
 	private void setCustomConfigDir() {
-		final String customConfigurationDir = System
-				.getProperty(CONFIG_DIR_PROPERTY_NAME);
-		final File portableAppConfigDir = new File("PortMapperConf");
-
-		// the property is set: check, if the given directory can be used
-		if (customConfigurationDir != null) {
-			final File dir = new File(customConfigurationDir);
-			if (!dir.isDirectory()) {
-				logger.error("Custom configuration directory '"
-						+ customConfigurationDir + "' is not a directory.");
-				System.exit(1);
-			}
-			if (!dir.canRead() || !dir.canWrite()) {
-				logger.error("Can not read or write to custom configuration directory '"
-						+ customConfigurationDir + "'.");
-				System.exit(1);
-			}
-			logger.info("Using custom configuration directory '"
-					+ dir.getAbsolutePath() + "'.");
-			getContext().getLocalStorage().setDirectory(dir);
-
-			// check, if the portable app directory exists and use this one
-		} else if (portableAppConfigDir.isDirectory()
-				&& portableAppConfigDir.canRead()
-				&& portableAppConfigDir.canWrite()) {
-			logger.info("Found portable app configuration directory '"
-					+ portableAppConfigDir.getAbsolutePath() + "'.");
-			getContext().getLocalStorage().setDirectory(portableAppConfigDir);
-
-			// use the default configuration directory
-		} else {
-			logger.info("Using default configuration directory '"
-					+ getContext().getLocalStorage().getDirectory()
-							.getAbsolutePath() + "'.");
+		final File dir;
+		try {
+			dir = ConfigDirectory.getDirectory();
+		} catch (final IOException e) {
+			logger.error(e.getMessage());
+			System.exit(1);
+			return;
 		}
+		logger.info("Using configuration directory '" + dir.getAbsolutePath()
+				+ "'.");
+		getContext().getLocalStorage().setDirectory(dir);
 	}
 
 	/**
@@ -228,6 +212,8 @@ public class PortMapperApp extends SingleFrameApplication {
 			logger.error("Could not create router factory", e);
 			return;
 		}
+		routerFactory.setConfigDirectory(getContext().getLocalStorage()
+				.getDirectory());
 		logger.info("Searching for routers...");
 
 		final Collection<IRouter> foundRouters = routerFactory.findRouters();
@@ -239,7 +225,7 @@ public class PortMapperApp extends SingleFrameApplication {
 
 		// One router found: use it.
 		if (foundRouters.size() == 1) {
-			router = foundRouters.iterator().next();
+			router = instrument(foundRouters.iterator().next());
 			logger.info("Connected to router " + router.getName());
 			this.getView().fireConnectionStateChange();
 			return;
@@ -261,10 +247,35 @@ public class PortMapperApp extends SingleFrameApplication {
 			return;
 		}
 
-		this.router = selectedRouter;
+		this.router = instrument(selectedRouter);
 		this.getView().fireConnectionStateChange();
 	}
 
+	/**
+	 * Apply the settings to the given router, record its metrics, publish them
+	 * via JMX and cache its port mappings.
+	 */
+	private IRouter instrument(final IRouter foundRouter) {
+		if (foundRouter instanceof SBBIRouter) {
+			final SBBIRouter sbbiRouter = (SBBIRouter) foundRouter;
+			sbbiRouter.setUseEntityEncoding(settings.isUseEntityEncoding());
+			entityEncodingListener = new PropertyChangeListener() {
+				@Override
+				public void propertyChange(final PropertyChangeEvent evt) {
+					sbbiRouter.setUseEntityEncoding((Boolean) evt.getNewValue());
+				}
+			};
+			settings.addPropertyChangeListener(
+					Settings.PROPERTY_USE_ENTITY_ENCODING,
+					entityEncodingListener);
+		}
+		final InstrumentedRouter instrumentedRouter = new InstrumentedRouter(
+				foundRouter);
+		metricsPublisher = new MetricsPublisher(instrumentedRouter);
+		metricsPublisher.publish();
+		return new CachingRouter(instrumentedRouter);
+	}
+
 	@SuppressWarnings("unchecked")
 	private AbstractRouterFactory createRouterFactory() throws RouterException {
 		Class<AbstractRouterFactory> routerFactoryClass;
@@ -304,6 +315,16 @@ public class PortMapperApp extends SingleFrameApplication {
 
 		this.router.disconnect();
 		this.router = null;
+		if (this.metricsPublisher != null) {
+			this.metricsPublisher.unpublish();
+			this.metricsPublisher = null;
+		}
+		if (this.entityEncodingListener != null) {
+			settings.removePropertyChangeListener(
+					Settings.PROPERTY_USE_ENTITY_ENCODING,
+					entityEncodingListener);
+			this.entityEncodingListener = null;
+		}
 		this.getView().fireConnectionStateChange();
 		return true;
 	}
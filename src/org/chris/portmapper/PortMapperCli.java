@@ -1,9 +1,21 @@
 package org.chris.portmapper;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -17,19 +29,35 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.Logger;
 import org.apache.log4j.WriterAppender;
+import org.chris.portmapper.batch.BatchFile;
+import org.chris.portmapper.batch.BatchOperation;
+import org.chris.portmapper.batch.BatchResult;
+import org.chris.portmapper.batch.BatchRunner;
+import org.chris.portmapper.daemon.ControlServer;
+import org.chris.portmapper.metrics.MetricsPublisher;
 import org.chris.portmapper.model.PortMapping;
 import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.reconcile.MappingFile;
+import org.chris.portmapper.reconcile.ReconcileResult;
+import org.chris.portmapper.reconcile.Reconciler;
 import org.chris.portmapper.router.AbstractRouterFactory;
+import org.chris.portmapper.router.FanOutResult;
 import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.InstrumentedRouter;
+import org.chris.portmapper.router.LeaseRenewalScheduler;
 import org.chris.portmapper.router.RouterException;
+import org.chris.portmapper.router.RouterFanOut;
 import org.chris.portmapper.router.dummy.DummyRouterFactory;
 import org.chris.portmapper.router.sbbi.SBBIRouterFactory;
 import org.chris.portmapper.router.weupnp.WeUPnPRouterFactory;
-import org.jdesktop.application.Application;
-import org.jdesktop.application.utils.AppHelper;
-import org.jdesktop.application.utils.PlatformType;
+import org.chris.portmapper.util.ConfigDirectory;
+import org.chris.portmapper.util.PhaseTimer;
 
 /**
+ * The command line interface. It does not load any Swing or application
+ * framework classes unless the graphical user interface is started, so that
+ * commands start quickly.
+ * 
  * @author chris
  * 
  */
@@ -46,15 +74,49 @@ public class PortMapperCli {
 	private static final String ADD_LOCALHOST_OPTION = "r";
 	private static final String UPNP_LIB_OPTION = "u";
 	private static final String ROUTER_INDEX_OPTION = "i";
+	private static final String RECONCILE_OPTION = "f";
+	private static final String LEASE_OPTION = "k";
+	private static final String BATCH_OPTION = "b";
+	private static final String CONTROL_SERVER_OPTION = "w";
+	private static final String TIMING_OPTION = "t";
+
+	/**
+	 * The interval for logging the renewal statistics in daemon mode.
+	 */
+	private static final long DAEMON_STATS_INTERVAL_MINUTES = 10;
+
+	/**
+	 * The deadline for adding or deleting forwardings on several routers.
+	 */
+	private static final long FAN_OUT_TIMEOUT_SECONDS = 60;
+
+	/**
+	 * The value of the router index option selecting all routers.
+	 */
+	private static final String ALL_ROUTERS = "all";
 
 	private final Options options;
 	private final CommandLineParser parser;
 	private String routerFactoryClassName = SBBIRouterFactory.class.getName();
 	private Integer routerIndex = null;
+	private List<Integer> routerIndexes = null;
+	private Integer leaseSeconds = null;
+	private final PhaseTimer timer;
+	private boolean printTiming = false;
 
 	public PortMapperCli() {
+		this(new PhaseTimer());
+	}
+
+	/**
+	 * @param timer
+	 *            the timer started at the beginning of the main method.
+	 */
+	public PortMapperCli(final PhaseTimer timer) {
+		this.timer = timer;
 		options = createOptions();
 		parser = new PosixParser();
+		timer.phase("initialization");
 	}
 
 	/**
@@ -97,6 +159,32 @@ public class PortMapperCli {
 		addLocalhost.setValueSeparator(' ');
 		addLocalhost.setType(String.class);
 
+		final Option reconcile = new Option(RECONCILE_OPTION,
+				useLongOpts ? "reconcile" : null, true,
+				"Change forwardings to the forwardings in the file");
+		reconcile.setArgs(1);
+		reconcile.setArgName("file");
+		reconcile.setType(String.class);
+
+		final Option batch = new Option(BATCH_OPTION,
+				useLongOpts ? "batch" : null, true,
+				"Execute the operations in the file, - for standard input");
+		batch.setArgs(1);
+		batch.setArgName("file");
+		batch.setType(String.class);
+
+		final Option controlServer = new Option(CONTROL_SERVER_OPTION,
+				useLongOpts ? "serve" : null, true,
+				"Serve the HTTP/JSON control API on the local port until "
+						+ "stopped");
+		controlServer.setArgs(1);
+		controlServer.setArgName("port");
+		controlServer.setType(Integer.class);
+
+		final Option timing = new Option(TIMING_OPTION, useLongOpts ? "timing"
+				: null, false,
+				"Print the duration of the startup phases to standard error");
+
 		final Option upnpLib = new Option(UPNP_LIB_OPTION,
 				useLongOpts ? "delete" : null, true, "UPnP library");
 		upnpLib.setArgs(1);
@@ -105,10 +193,20 @@ public class PortMapperCli {
 
 		final Option routerIndexOption = new Option(ROUTER_INDEX_OPTION,
 				useLongOpts ? "index" : null, true,
-				"Router index (if more than one is found)");
+				"Router index (if more than one is found). Add (-a) or delete "
+						+ "(-d) on several routers with a comma separated "
+						+ "list of indexes or '" + ALL_ROUTERS + "'");
 		routerIndexOption.setArgs(1);
 		routerIndexOption.setArgName("index");
-		routerIndexOption.setType(Integer.class);
+		routerIndexOption.setType(String.class);
+
+		final Option lease = new Option(LEASE_OPTION, useLongOpts ? "lease"
+				: null, true,
+				"Add forwardings (-a, -r, -f) with the given lease and keep "
+						+ "renewing them until stopped");
+		lease.setArgs(1);
+		lease.setArgName("seconds");
+		lease.setType(Integer.class);
 
 		final OptionGroup optionGroup = new OptionGroup();
 		optionGroup.setRequired(false);
@@ -119,10 +217,15 @@ public class PortMapperCli {
 		optionGroup.addOption(delete);
 		optionGroup.addOption(list);
 		optionGroup.addOption(status);
+		optionGroup.addOption(reconcile);
+		optionGroup.addOption(batch);
+		optionGroup.addOption(controlServer);
 
 		final Options allOptions = new Options();
 		allOptions.addOption(upnpLib);
 		allOptions.addOption(routerIndexOption);
+		allOptions.addOption(lease);
+		allOptions.addOption(timing);
 		allOptions.addOptionGroup(optionGroup);
 
 		return allOptions;
@@ -139,6 +242,8 @@ public class PortMapperCli {
 		}
 
 		initDummyLogAppender();
+		printTiming = commandLine.hasOption(TIMING_OPTION);
+		timer.phase("command line");
 
 		if (commandLine.hasOption(UPNP_LIB_OPTION)) {
 			this.routerFactoryClassName = commandLine
@@ -148,25 +253,77 @@ public class PortMapperCli {
 		}
 
 		if (commandLine.hasOption(ROUTER_INDEX_OPTION)) {
+			final String index = commandLine
+					.getOptionValue(ROUTER_INDEX_OPTION);
+			try {
+				if (index.equalsIgnoreCase(ALL_ROUTERS)) {
+					this.routerIndexes = new ArrayList<>();
+				} else if (index.contains(",")) {
+					this.routerIndexes = new ArrayList<>();
+					for (final String part : index.split(",")) {
+						this.routerIndexes.add(Integer.parseInt(part.trim()));
+					}
+				} else {
+					this.routerIndex = Integer.parseInt(index);
+				}
+			} catch (final NumberFormatException e) {
+				printHelp();
+				exit(1);
+			}
+			logger.info("Using router index " + index);
+		}
+
+		if (commandLine.hasOption(LEASE_OPTION)) {
 			try {
-				this.routerIndex = Integer.parseInt(commandLine
-						.getOptionValue(ROUTER_INDEX_OPTION));
+				this.leaseSeconds = Integer.parseInt(commandLine
+						.getOptionValue(LEASE_OPTION));
 			} catch (final NumberFormatException e) {
 				printHelp();
-				System.exit(1);
+				exit(1);
+			}
+			if (leaseSeconds < LeaseRenewalScheduler.MIN_LEASE_SECONDS) {
+				logger.error("Lease must be at least "
+						+ LeaseRenewalScheduler.MIN_LEASE_SECONDS + " seconds");
+				exit(1);
 			}
-			logger.info("Using router index " + this.routerIndex);
+			logger.info("Using lease of " + this.leaseSeconds + " seconds");
 		}
 
 		if (commandLine.hasOption(HELP_OPTION)) {
 			printHelp();
 			return;
 		}
+		if (routerIndexes != null) {
+			if (leaseSeconds != null
+					|| !(commandLine.hasOption(ADD_OPTION) || commandLine
+							.hasOption(DELETE_OPTION))) {
+				logger.error("Several routers can only be used with -"
+						+ ADD_OPTION + " or -" + DELETE_OPTION);
+				exit(1);
+				return;
+			}
+			try {
+				exit(runFanOut(commandLine) ? 0 : 1);
+			} catch (final RouterException e) {
+				logger.error("An error occured", e);
+				exit(1);
+			}
+			return;
+		}
 		try {
 			final IRouter router = connect();
 			if (router == null) {
 				logger.error("No router found: exit");
-				System.exit(1);
+				exit(1);
+				return;
+			}
+			if (leaseSeconds != null) {
+				final List<PortMapping> mappings = getDaemonPortForwardings(
+						router, commandLine);
+				if (mappings == null || !runDaemon(router, mappings)) {
+					router.disconnect();
+					exit(1);
+				}
 				return;
 			}
 			if (commandLine.hasOption(ADD_OPTION)) {
@@ -182,30 +339,59 @@ public class PortMapperCli {
 			} else if (commandLine.hasOption(ADD_LOCALHOST_OPTION)) {
 				addLocalhostPortForwardings(router,
 						commandLine.getOptionValues(ADD_LOCALHOST_OPTION));
+			} else if (commandLine.hasOption(RECONCILE_OPTION)) {
+				if (!reconcilePortForwardings(router,
+						commandLine.getOptionValue(RECONCILE_OPTION))) {
+					router.disconnect();
+					exit(1);
+					return;
+				}
+			} else if (commandLine.hasOption(CONTROL_SERVER_OPTION)) {
+				if (!runControlServer(router,
+						commandLine.getOptionValue(CONTROL_SERVER_OPTION))) {
+					router.disconnect();
+					exit(1);
+				}
+				return;
+			} else if (commandLine.hasOption(BATCH_OPTION)) {
+				if (!runBatch(router, commandLine.getOptionValue(BATCH_OPTION))) {
+					router.disconnect();
+					exit(1);
+					return;
+				}
 			} else {
 				router.disconnect();
 				System.err.println("Incorrect usage");
 				printHelp();
-				System.exit(1);
+				exit(1);
 				return;
 			}
+			timer.phase("command");
 			router.disconnect();
+			timer.phase("disconnect");
 		} catch (final RouterException e) {
 			logger.error("An error occured", e);
-			System.exit(1);
+			exit(1);
 			return;
 		}
-		System.exit(0);
+		exit(0);
+	}
+
+	/**
+	 * Print the duration of the startup phases if requested and exit.
+	 */
+	private void exit(final int status) {
+		if (printTiming) {
+			System.err.println(timer);
+		}
+		System.exit(status);
 	}
 
 	/**
 	 * @param args
 	 */
 	private void startGui(final String[] args) {
-		if (AppHelper.getPlatform() == PlatformType.OS_X) {
-			MacSetup.setupMac();
-		}
-		Application.launch(PortMapperApp.class, args);
+		PortMapperGuiStarter.start(args);
 	}
 
 	/**
@@ -215,24 +401,44 @@ public class PortMapperCli {
 	private void addLocalhostPortForwardings(final IRouter router,
 			final String[] optionValues) throws RouterException {
 
+		final List<PortMapping> mappings = createLocalhostPortForwardings(
+				router, optionValues);
+		if (mappings == null) {
+			return;
+		}
+		for (final PortMapping mapping : mappings) {
+			logger.info("Adding mapping " + mapping.getCompleteDescription());
+			router.addPortMapping(mapping);
+		}
+		printPortForwardings(router);
+	}
+
+	/**
+	 * @return the forwardings or <code>null</code> if the arguments are
+	 *         invalid.
+	 * @throws RouterException
+	 */
+	private List<PortMapping> createLocalhostPortForwardings(
+			final IRouter router, final String[] optionValues)
+			throws RouterException {
+
 		if (optionValues.length == 0 || optionValues.length % 2 != 0) {
 			logger.error("Invalid number of arguments for option "
 					+ ADD_LOCALHOST_OPTION);
-			return;
+			return null;
 		}
 
 		final String internalClient = router.getLocalHostAddress();
+		final List<PortMapping> mappings = new ArrayList<>();
 		for (int i = 0; i < optionValues.length; i += 2) {
 			final int port = Integer.parseInt(optionValues[i]);
 			final Protocol protocol = Protocol.valueOf(optionValues[i + 1]);
 			final String description = "PortMapper forwarding for " + protocol
 					+ "/" + internalClient + ":" + port;
-			final PortMapping mapping = new PortMapping(protocol, null, port,
-					internalClient, port, description);
-			logger.info("Adding mapping " + mapping.getCompleteDescription());
-			router.addPortMapping(mapping);
+			mappings.add(new PortMapping(protocol, null, port, internalClient,
+					port, description));
 		}
-		printPortForwardings(router);
+		return mappings;
 	}
 
 	/**
@@ -285,6 +491,277 @@ public class PortMapperCli {
 		printPortForwardings(router);
 	}
 
+	/**
+	 * Add or delete the forwardings of option -a or -d on all selected
+	 * routers at the same time and print the outcome for every router.
+	 *
+	 * @return <code>true</code> if all routers executed all changes.
+	 * @throws RouterException
+	 */
+	private boolean runFanOut(final CommandLine commandLine)
+			throws RouterException {
+		final List<IRouter> foundRouters = findRouters();
+		if (foundRouters == null) {
+			return false;
+		}
+		try {
+			final List<IRouter> routers = new ArrayList<>();
+			if (routerIndexes.isEmpty()) {
+				routers.addAll(foundRouters);
+			}
+			for (final int index : routerIndexes) {
+				if (index < 0 || index >= foundRouters.size()) {
+					logger.error("Index must be between 0 and "
+							+ (foundRouters.size() - 1));
+					return false;
+				}
+				routers.add(foundRouters.get(index));
+			}
+			if (routers.isEmpty()) {
+				logger.error("Found no router");
+				return false;
+			}
+			final RouterFanOut fanOut = new RouterFanOut(routers);
+			final FanOutResult result;
+			if (commandLine.hasOption(ADD_OPTION)) {
+				final PortMapping mapping = createPortForwarding(commandLine
+						.getOptionValues(ADD_OPTION));
+				logger.info("Adding mapping " + mapping + " to "
+						+ routers.size() + " routers");
+				result = fanOut.addPortMappings(
+						Collections.singletonList(mapping),
+						FAN_OUT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} else {
+				final String[] optionValues = commandLine
+						.getOptionValues(DELETE_OPTION);
+				if (optionValues.length == 0 || optionValues.length % 2 != 0) {
+					logger.error("Invalid number of arguments for option "
+							+ DELETE_OPTION);
+					return false;
+				}
+				final List<PortMapping> mappings = new ArrayList<>();
+				for (int i = 0; i < optionValues.length; i += 2) {
+					mappings.add(new PortMapping(Protocol
+							.valueOf(optionValues[i + 1]), null, Integer
+							.parseInt(optionValues[i]), null, 0, null));
+				}
+				logger.info("Deleting " + mappings.size() + " mappings from "
+						+ routers.size() + " routers");
+				result = fanOut.removePortMappings(mappings,
+						FAN_OUT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			}
+			timer.phase("command");
+			System.out.println(result);
+			return result.isSuccessful();
+		} finally {
+			for (final IRouter router : foundRouters) {
+				router.disconnect();
+			}
+			timer.phase("disconnect");
+		}
+	}
+
+	/**
+	 * Add and remove forwardings so that the router has the forwardings in the
+	 * given file, see {@link MappingFile} for the format.
+	 * 
+	 * @return <code>true</code> if all changes were successful.
+	 * @throws RouterException
+	 */
+	private boolean reconcilePortForwardings(final IRouter router,
+			final String fileName) throws RouterException {
+		final List<PortMapping> desired = readPortForwardings(router, fileName);
+		if (desired == null) {
+			return false;
+		}
+		final ReconcileResult result = new Reconciler(router)
+				.reconcile(desired);
+		for (final PortMapping mapping : result.getRemoved()) {
+			logger.info("Removed " + mapping.getCompleteDescription());
+		}
+		for (final PortMapping mapping : result.getAdded()) {
+			logger.info("Added " + mapping.getCompleteDescription());
+		}
+		for (final Map.Entry<PortMapping, Throwable> failure : result
+				.getFailed().entrySet()) {
+			logger.error("Failed " + failure.getKey().getCompleteDescription()
+					+ ": " + failure.getValue().getMessage());
+		}
+		logger.info(result.getUnchanged().size() + " forwardings unchanged, "
+				+ result.getRemoved().size() + " removed, "
+				+ result.getAdded().size() + " added, "
+				+ result.getFailed().size() + " failed");
+		return result.isSuccessful();
+	}
+
+	/**
+	 * Execute the operations in the given file, see {@link BatchFile} for the
+	 * format, and print the result of each operation to standard output.
+	 * 
+	 * @param fileName
+	 *            the name of the file or <code>-</code> for standard input.
+	 * @return <code>true</code> if all operations were successful.
+	 * @throws RouterException
+	 */
+	private boolean runBatch(final IRouter router, final String fileName)
+			throws RouterException {
+		final List<BatchOperation> operations;
+		try (Reader reader = "-".equals(fileName) ? new InputStreamReader(
+				System.in, StandardCharsets.UTF_8) : Files.newBufferedReader(
+				Paths.get(fileName), StandardCharsets.UTF_8)) {
+			operations = BatchFile.read(reader, router.getLocalHostAddress());
+		} catch (final IOException e) {
+			logger.error("Could not read operations from file " + fileName
+					+ ": " + e.getMessage());
+			return false;
+		}
+		int failed = 0;
+		for (final BatchResult result : new BatchRunner(router)
+				.run(operations)) {
+			System.out.println(result);
+			if (!result.isSuccessful()) {
+				failed++;
+			}
+		}
+		logger.info(operations.size() + " operations executed, " + failed
+				+ " failed");
+		return failed == 0;
+	}
+
+	/**
+	 * @return the forwardings or <code>null</code> if the file could not be
+	 *         read.
+	 * @throws RouterException
+	 */
+	private List<PortMapping> readPortForwardings(final IRouter router,
+			final String fileName) throws RouterException {
+		try (Reader reader = Files.newBufferedReader(Paths.get(fileName),
+				StandardCharsets.UTF_8)) {
+			return MappingFile.read(reader, router.getLocalHostAddress());
+		} catch (final IOException e) {
+			logger.error("Could not read forwardings from file " + fileName
+					+ ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Get the forwardings to keep alive in daemon mode.
+	 * 
+	 * @return the forwardings or <code>null</code> if the command line is
+	 *         invalid.
+	 * @throws RouterException
+	 */
+	private List<PortMapping> getDaemonPortForwardings(final IRouter router,
+			final CommandLine commandLine) throws RouterException {
+		if (commandLine.hasOption(ADD_OPTION)) {
+			final List<PortMapping> mappings = new ArrayList<>();
+			mappings.add(createPortForwarding(commandLine
+					.getOptionValues(ADD_OPTION)));
+			return mappings;
+		} else if (commandLine.hasOption(ADD_LOCALHOST_OPTION)) {
+			return createLocalhostPortForwardings(router,
+					commandLine.getOptionValues(ADD_LOCALHOST_OPTION));
+		} else if (commandLine.hasOption(RECONCILE_OPTION)) {
+			return readPortForwardings(router,
+					commandLine.getOptionValue(RECONCILE_OPTION));
+		}
+		logger.error("Option -" + LEASE_OPTION + " requires option -"
+				+ ADD_OPTION + ", -" + ADD_LOCALHOST_OPTION + " or -"
+				+ RECONCILE_OPTION);
+		return null;
+	}
+
+	/**
+	 * Add the forwardings with a finite lease and renew them until the
+	 * process is stopped. The forwardings are removed when the process exits.
+	 * 
+	 * @return <code>false</code> if no forwarding could be added, else the
+	 *         method does not return.
+	 */
+	private boolean runDaemon(final IRouter router,
+			final List<PortMapping> mappings) {
+		final MetricsPublisher publisher = publishMetrics(router);
+		final LeaseRenewalScheduler scheduler = new LeaseRenewalScheduler(
+				router, leaseSeconds);
+		if (publisher != null) {
+			publisher.publish(scheduler);
+		}
+		final List<PortMapping> failed = scheduler.addAll(mappings);
+		if (failed.size() == mappings.size()) {
+			logger.error("Could not add any forwarding: exit");
+			scheduler.stop(false);
+			return false;
+		}
+		scheduler.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("daemon-shutdown") {
+			@Override
+			public void run() {
+				logger.info("Stopping daemon: " + scheduler);
+				scheduler.stop(true);
+				router.disconnect();
+			}
+		});
+		logger.info("Renewing " + (mappings.size() - failed.size())
+				+ " forwardings every " + leaseSeconds
+				+ " seconds, stop with Ctrl-C");
+		while (true) {
+			try {
+				TimeUnit.MINUTES.sleep(DAEMON_STATS_INTERVAL_MINUTES);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return true;
+			}
+			logger.info(scheduler);
+			if (router instanceof InstrumentedRouter) {
+				logger.info(((InstrumentedRouter) router).getMetrics());
+			}
+		}
+	}
+
+	/**
+	 * Serve the {@link ControlServer} API on the given port of the loopback
+	 * interface until the process is stopped.
+	 * 
+	 * @return <code>false</code> if the server could not be started, else the
+	 *         method does not return.
+	 */
+	private boolean runControlServer(final IRouter router, final String port) {
+		final ControlServer server;
+		try {
+			server = new ControlServer(router, new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), Integer.parseInt(port)));
+			server.start();
+		} catch (final IOException | IllegalArgumentException e) {
+			logger.error("Could not start control server on port " + port
+					+ ": " + e.getMessage());
+			return false;
+		}
+		publishMetrics(router);
+		Runtime.getRuntime().addShutdownHook(new Thread("control-shutdown") {
+			@Override
+			public void run() {
+				server.stop();
+				router.disconnect();
+			}
+		});
+		logger.info("Serving control API on http://"
+				+ server.getAddress().getHostString() + ":"
+				+ server.getAddress().getPort() + "/, stop with Ctrl-C");
+		while (true) {
+			try {
+				TimeUnit.MINUTES.sleep(DAEMON_STATS_INTERVAL_MINUTES);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return true;
+			}
+			logger.info(server);
+			if (router instanceof InstrumentedRouter) {
+				logger.info(((InstrumentedRouter) router).getMetrics());
+			}
+		}
+	}
+
 	/**
 	 * @throws RouterException
 	 * 
@@ -300,6 +777,13 @@ public class PortMapperCli {
 	private void addPortForwarding(final IRouter router,
 			final String[] optionValues) throws RouterException {
 
+		final PortMapping mapping = createPortForwarding(optionValues);
+		logger.info("Adding mapping " + mapping);
+		router.addPortMapping(mapping);
+		printPortForwardings(router);
+	}
+
+	private PortMapping createPortForwarding(final String[] optionValues) {
 		final String remoteHost = null;
 		final String internalClient = optionValues[0];
 		final int internalPort = Integer.parseInt(optionValues[1]);
@@ -308,11 +792,8 @@ public class PortMapperCli {
 
 		final String description = "PortMapper " + protocol + "/"
 				+ internalClient + ":" + internalPort;
-		final PortMapping mapping = new PortMapping(protocol, remoteHost,
-				externalPort, internalClient, internalPort, description);
-		logger.info("Adding mapping " + mapping);
-		router.addPortMapping(mapping);
-		printPortForwardings(router);
+		return new PortMapping(protocol, remoteHost, externalPort,
+				internalClient, internalPort, description);
 	}
 
 	private void printHelp() {
@@ -324,6 +805,11 @@ public class PortMapperCli {
 		final String cmdLineSyntax = "java -jar PortMapper.jar";
 		final StringBuilder footer = new StringBuilder();
 		footer.append("Protocol is UDP or TCP\n");
+		footer.append("Batch file lines (-b):\n");
+		footer.append("- add protocol external_port internal_client internal_port [description]\n");
+		footer.append("- delete protocol external_port\n");
+		footer.append("- list\n");
+		footer.append("- status\n");
 		footer.append("UPnP library class names:\n");
 		footer.append("- ");
 		footer.append(SBBIRouterFactory.class.getName());
@@ -345,8 +831,11 @@ public class PortMapperCli {
 				|| commandLine.hasOption(ADD_LOCALHOST_OPTION)
 				|| commandLine.hasOption(ADD_OPTION)
 				|| commandLine.hasOption(STATUS_OPTION)
-				|| commandLine.hasOption(LIST_OPTION) || commandLine
-					.hasOption(DELETE_OPTION));
+				|| commandLine.hasOption(LIST_OPTION)
+				|| commandLine.hasOption(DELETE_OPTION)
+				|| commandLine.hasOption(RECONCILE_OPTION)
+				|| commandLine.hasOption(BATCH_OPTION) || commandLine
+					.hasOption(CONTROL_SERVER_OPTION));
 	}
 
 	@SuppressWarnings("resource")
@@ -413,6 +902,22 @@ public class PortMapperCli {
 	}
 
 	private IRouter connect() throws RouterException {
+		final List<IRouter> foundRouters = findRouters();
+		if (foundRouters == null) {
+			return null;
+		}
+		final IRouter router = selectRouter(foundRouters);
+		if (router == null) {
+			return null;
+		}
+		return new InstrumentedRouter(router);
+	}
+
+	/**
+	 * @return all routers found or <code>null</code> if the router factory
+	 *         could not be created.
+	 */
+	private List<IRouter> findRouters() throws RouterException {
 		AbstractRouterFactory routerFactory;
 		try {
 			routerFactory = createRouterFactory();
@@ -420,11 +925,34 @@ public class PortMapperCli {
 			logger.error("Could not create router factory", e);
 			return null;
 		}
+		try {
+			routerFactory.setConfigDirectory(ConfigDirectory.getDirectory());
+		} catch (final IOException e) {
+			logger.warn(e.getMessage() + " Cached routers are not used.");
+		}
+		timer.phase("router factory");
 		logger.info("Searching for routers...");
-
 		final List<IRouter> foundRouters = routerFactory.findRouters();
+		timer.phase("discovery");
+		return foundRouters;
+	}
 
-		return selectRouter(foundRouters);
+	/**
+	 * Publish the metrics of the router via JMX. This is only done for the
+	 * long running modes, because starting the platform MBean server takes
+	 * longer than most single commands.
+	 * 
+	 * @return the publisher or <code>null</code> if the router has no
+	 *         metrics.
+	 */
+	private MetricsPublisher publishMetrics(final IRouter router) {
+		if (!(router instanceof InstrumentedRouter)) {
+			return null;
+		}
+		final MetricsPublisher publisher = new MetricsPublisher(
+				(InstrumentedRouter) router);
+		publisher.publish();
+		return publisher;
 	}
 
 	/**
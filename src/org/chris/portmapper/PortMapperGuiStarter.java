@@ -0,0 +1,27 @@
+package org.chris.portmapper;
+
+import org.jdesktop.application.Application;
+import org.jdesktop.application.utils.AppHelper;
+import org.jdesktop.application.utils.PlatformType;
+
+/**
+ * Starts the graphical user interface. This is the only class used by the
+ * {@link PortMapperCli} that refers to the application framework, so that the
+ * command line interface does not load any Swing or application framework
+ * classes.
+ *
+ * @author chris
+ */
+class PortMapperGuiStarter {
+
+	private PortMapperGuiStarter() {
+		// only static methods
+	}
+
+	static void start(final String[] args) {
+		if (AppHelper.getPlatform() == PlatformType.OS_X) {
+			MacSetup.setupMac();
+		}
+		Application.launch(PortMapperApp.class, args);
+	}
+}
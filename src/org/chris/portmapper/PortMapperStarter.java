@@ -1,5 +1,7 @@
 package org.chris.portmapper;
 
+import org.chris.portmapper.util.PhaseTimer;
+
 /**
  * @author chris
  * @version $Id: PortMapperStarter.java 126 2013-08-04 15:18:04Z christoph $
@@ -10,7 +12,8 @@ public class PortMapperStarter {
 	 * @param args
 	 */
 	public static void main(final String[] args) {
-		final PortMapperCli cli = new PortMapperCli();
+		final PhaseTimer timer = new PhaseTimer();
+		final PortMapperCli cli = new PortMapperCli(timer);
 		cli.start(args);
 	}
 }
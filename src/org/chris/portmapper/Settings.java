@@ -22,6 +22,7 @@ public class Settings implements Serializable {
 	private static final long serialVersionUID = -1349121864190290050L;
 
 	public final static String PROPERTY_PORT_MAPPING_PRESETS = "presets";
+	public final static String PROPERTY_USE_ENTITY_ENCODING = "useEntityEncoding";
 
 	private List<PortMappingPreset> presets;
 	private boolean useEntityEncoding;
@@ -44,6 +45,12 @@ public class Settings implements Serializable {
 				.addPropertyChangeListener(property, listener);
 	}
 
+	public void removePropertyChangeListener(final String property,
+			final PropertyChangeListener listener) {
+		this.propertyChangeSupport.removePropertyChangeListener(property,
+				listener);
+	}
+
 	public List<PortMappingPreset> getPresets() {
 		return presets;
 	}
@@ -86,7 +93,11 @@ public class Settings implements Serializable {
 	}
 
 	public void setUseEntityEncoding(final boolean useEntityEncoding) {
+		final boolean oldUseEntityEncoding = this.useEntityEncoding;
 		this.useEntityEncoding = useEntityEncoding;
+		this.propertyChangeSupport.firePropertyChange(
+				PROPERTY_USE_ENTITY_ENCODING, oldUseEntityEncoding,
+				useEntityEncoding);
 	}
 
 	public String getLogLevel() {
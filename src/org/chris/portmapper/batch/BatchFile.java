@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package org.chris.portmapper.batch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.reconcile.MappingFile;
+
+/**
+ * Reads operations for a {@link BatchRunner} from a text file. Each line
+ * contains one operation:
+ *
+ * <pre>
+ * add protocol external_port internal_client internal_port [description]
+ * delete protocol external_port
+ * list
+ * status
+ * </pre>
+ *
+ * The arguments of <code>add</code> have the format of a {@link MappingFile}
+ * line, e.g. <code>add TCP 80 localhost 8080 Web server</code>. Empty lines
+ * and lines starting with <code>#</code> are ignored.
+ *
+ * @author chris
+ */
+public class BatchFile {
+
+	private BatchFile() {
+		// only static methods
+	}
+
+	/**
+	 * Read the operations.
+	 *
+	 * @param reader
+	 *            the reader for the file, is not closed.
+	 * @param localHostAddress
+	 *            the address used for internal client <code>localhost</code>.
+	 * @return the operations in the order of the file.
+	 * @throws IOException
+	 *             if the file could not be read or contains an invalid line.
+	 */
+	public static List<BatchOperation> read(final Reader reader,
+			final String localHostAddress) throws IOException {
+		final BufferedReader lines = new BufferedReader(reader);
+		final List<BatchOperation> operations = new ArrayList<>();
+		String line;
+		int lineNumber = 0;
+		while ((line = lines.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				operations.add(parse(lineNumber, line, localHostAddress));
+			} catch (final IllegalArgumentException e) {
+				throw new IOException("Invalid operation in line "
+						+ lineNumber + " '" + line + "': " + e.getMessage(), e);
+			}
+		}
+		return operations;
+	}
+
+	private static BatchOperation parse(final int lineNumber,
+			final String line, final String localHostAddress) {
+		final String[] fields = line.split("\\s+", 2);
+		final String command = fields[0].toLowerCase();
+		final String arguments = fields.length == 2 ? fields[1] : "";
+		switch (command) {
+		case "add":
+			return BatchOperation.add(lineNumber, line,
+					MappingFile.parse(arguments, localHostAddress));
+		case "delete":
+			final String[] deleteFields = arguments.split("\\s+");
+			if (deleteFields.length != 2) {
+				throw new IllegalArgumentException(
+						"expected protocol and external port");
+			}
+			return BatchOperation.delete(lineNumber, line,
+					Protocol.valueOf(deleteFields[0].toUpperCase()),
+					MappingFile.parsePort(deleteFields[1]));
+		case "list":
+			requireNoArguments(arguments);
+			return BatchOperation.list(lineNumber, line);
+		case "status":
+			requireNoArguments(arguments);
+			return BatchOperation.status(lineNumber, line);
+		default:
+			throw new IllegalArgumentException("unknown operation '"
+					+ fields[0] + "'");
+		}
+	}
+
+	private static void requireNoArguments(final String arguments) {
+		if (!arguments.isEmpty()) {
+			throw new IllegalArgumentException("expected no arguments");
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ *
+ */
+package org.chris.portmapper.batch;
+
+import java.util.Collection;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.RouterException;
+
+/**
+ * A single operation of a {@link BatchFile}.
+ *
+ * @author chris
+ */
+public class BatchOperation {
+
+	public enum Type {
+		ADD, DELETE, LIST, STATUS
+	}
+
+	private final int lineNumber;
+	private final String line;
+	private final Type type;
+	private final PortMapping mapping;
+	private final Protocol protocol;
+	private final int externalPort;
+
+	private BatchOperation(final int lineNumber, final String line,
+			final Type type, final PortMapping mapping,
+			final Protocol protocol, final int externalPort) {
+		this.lineNumber = lineNumber;
+		this.line = line;
+		this.type = type;
+		this.mapping = mapping;
+		this.protocol = protocol;
+		this.externalPort = externalPort;
+	}
+
+	static BatchOperation add(final int lineNumber, final String line,
+			final PortMapping mapping) {
+		return new BatchOperation(lineNumber, line, Type.ADD, mapping,
+				mapping.getProtocol(), mapping.getExternalPort());
+	}
+
+	static BatchOperation delete(final int lineNumber, final String line,
+			final Protocol protocol, final int externalPort) {
+		return new BatchOperation(lineNumber, line, Type.DELETE, null,
+				protocol, externalPort);
+	}
+
+	static BatchOperation list(final int lineNumber, final String line) {
+		return new BatchOperation(lineNumber, line, Type.LIST, null, null, 0);
+	}
+
+	static BatchOperation status(final int lineNumber, final String line) {
+		return new BatchOperation(lineNumber, line, Type.STATUS, null, null, 0);
+	}
+
+	/**
+	 * @return the number of the line in the file, starting with 1.
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	public String getLine() {
+		return line;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the mapping to add or <code>null</code> for other operations.
+	 */
+	public PortMapping getMapping() {
+		return mapping;
+	}
+
+	/**
+	 * Operations with the same key change the same mapping and must be
+	 * executed in the order of the file.
+	 *
+	 * @return the protocol and external port of the changed mapping or
+	 *         <code>null</code> if the operation does not change a single
+	 *         mapping but reads the state of the router.
+	 */
+	public String getKey() {
+		return protocol == null ? null : protocol.getName() + "/"
+				+ externalPort;
+	}
+
+	/**
+	 * Execute the operation.
+	 *
+	 * @param router
+	 *            the router.
+	 * @return a description of the outcome.
+	 * @throws RouterException
+	 *             if the operation failed.
+	 */
+	String execute(final IRouter router) throws RouterException {
+		switch (type) {
+		case ADD:
+			router.addPortMapping(mapping);
+			return "added " + mapping.getCompleteDescription();
+		case DELETE:
+			router.removePortMapping(protocol, null, externalPort);
+			return "deleted " + protocol + " " + externalPort;
+		case LIST:
+			return describe(router.getPortMappings());
+		case STATUS:
+			router.logRouterInfo();
+			return "router " + router.getName() + ", external IP "
+					+ router.getExternalIPAddress();
+		default:
+			throw new IllegalStateException("Unknown operation " + type);
+		}
+	}
+
+	private static String describe(final Collection<PortMapping> mappings) {
+		final StringBuilder b = new StringBuilder();
+		b.append(mappings.size()).append(" port forwardings");
+		for (final PortMapping mapping : mappings) {
+			b.append("\n\t").append(mapping.getCompleteDescription());
+		}
+		return b.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "line " + lineNumber + " '" + line + "'";
+	}
+}
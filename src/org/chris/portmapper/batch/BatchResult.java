@@ -0,0 +1,58 @@
+/**
+ *
+ */
+package org.chris.portmapper.batch;
+
+/**
+ * The outcome of a {@link BatchOperation}.
+ *
+ * @author chris
+ */
+public class BatchResult {
+
+	private final BatchOperation operation;
+	private final String description;
+	private final Throwable failure;
+
+	BatchResult(final BatchOperation operation, final String description,
+			final Throwable failure) {
+		this.operation = operation;
+		this.description = description;
+		this.failure = failure;
+	}
+
+	public BatchOperation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return what the operation did or <code>null</code> if it failed.
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * @return the cause of the failure or <code>null</code> if the operation
+	 *         was successful.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public boolean isSuccessful() {
+		return failure == null;
+	}
+
+	/**
+	 * @return the result as one or more lines starting with the line number of
+	 *         the operation and <code>OK</code> or <code>FAILED</code>.
+	 */
+	@Override
+	public String toString() {
+		return operation.getLineNumber() + "\t"
+				+ (isSuccessful() ? "OK" : "FAILED") + "\t"
+				+ operation.getLine() + "\t"
+				+ (isSuccessful() ? description : failure.getMessage());
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package org.chris.portmapper.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.reconcile.Reconciler;
+import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.RouterException;
+import org.chris.portmapper.util.NamedThreadFactory;
+
+/**
+ * Executes the operations of a {@link BatchFile} with one router connection.
+ * Independent operations are sent to the router concurrently, limited to a
+ * number of requests at the same time:
+ * <ul>
+ * <li>Operations changing the same mapping, see
+ * {@link BatchOperation#getKey()}, are executed one after the other in the
+ * order of the file.</li>
+ * <li>Operations reading the state of the router (<code>list</code>,
+ * <code>status</code>) see all changes of the lines before them and none of
+ * the lines after them.</li>
+ * </ul>
+ * A failed operation does not stop the following operations.
+ *
+ * @author chris
+ */
+public class BatchRunner {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final IRouter router;
+	private final int maxConcurrentRequests;
+
+	public BatchRunner(final IRouter router) {
+		this(router, Reconciler.DEFAULT_MAX_CONCURRENT_REQUESTS);
+	}
+
+	/**
+	 * @param router
+	 *            the router to use.
+	 * @param maxConcurrentRequests
+	 *            the maximum number of requests sent to the router at the
+	 *            same time.
+	 */
+	public BatchRunner(final IRouter router, final int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException(
+					"Need at least one concurrent request but got "
+							+ maxConcurrentRequests);
+		}
+		this.router = router;
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * Execute the given operations.
+	 *
+	 * @param operations
+	 *            the operations in the order of the file.
+	 * @return the results in the order of the operations.
+	 * @throws RouterException
+	 *             if the current thread was interrupted while waiting for the
+	 *             router. Failed operations are reported in the results.
+	 */
+	public List<BatchResult> run(final List<BatchOperation> operations)
+			throws RouterException {
+		logger.info("Executing " + operations.size()
+				+ " operations with router " + router.getName());
+		if (operations.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final BatchResult[] results = new BatchResult[operations.size()];
+		final ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(maxConcurrentRequests, operations.size()),
+				new NamedThreadFactory("batch-" + router.getName()));
+		try {
+			// A stage is a sequence of either changing or reading operations.
+			// All operations of a stage are finished before the next stage
+			// starts.
+			final Map<Object, List<Integer>> stage = new LinkedHashMap<>();
+			boolean readingStage = false;
+			for (int i = 0; i < operations.size(); i++) {
+				final String key = operations.get(i).getKey();
+				final boolean reading = key == null;
+				if (reading != readingStage) {
+					execute(stage, operations, results, executor);
+					stage.clear();
+					readingStage = reading;
+				}
+				// reading operations are independent of each other
+				final Object group = reading ? Integer.valueOf(i) : key;
+				List<Integer> indexes = stage.get(group);
+				if (indexes == null) {
+					indexes = new ArrayList<>();
+					stage.put(group, indexes);
+				}
+				indexes.add(i);
+			}
+			execute(stage, operations, results, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+		return Arrays.asList(results);
+	}
+
+	private void execute(final Map<Object, List<Integer>> stage,
+			final List<BatchOperation> operations,
+			final BatchResult[] results, final ExecutorService executor)
+			throws RouterException {
+		final List<Future<?>> futures = new ArrayList<>();
+		for (final List<Integer> indexes : stage.values()) {
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (final int index : indexes) {
+						results[index] = execute(operations.get(index));
+					}
+				}
+			}));
+		}
+		for (final Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RouterException(
+						"Interrupted while waiting for router", e);
+			} catch (final ExecutionException e) {
+				throw new IllegalStateException("Batch operation failed",
+						e.getCause());
+			}
+		}
+	}
+
+	private BatchResult execute(final BatchOperation operation) {
+		try {
+			final String description = operation.execute(router);
+			logger.debug("Executed " + operation + ": " + description);
+			return new BatchResult(operation, description, null);
+		} catch (final RouterException | RuntimeException e) {
+			logger.warn("Could not execute " + operation + ": "
+					+ e.getMessage(), e);
+			return new BatchResult(operation, null, e);
+		}
+	}
+}
@@ -0,0 +1,539 @@
+/**
+ *
+ */
+package org.chris.portmapper.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.reconcile.MappingFile;
+import org.chris.portmapper.router.AsyncRouterAdapter;
+import org.chris.portmapper.router.CachingRouter;
+import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.RouterEventListener;
+import org.chris.portmapper.router.RouterException;
+import org.chris.portmapper.util.NamedThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP/JSON API for controlling a router from other processes on the
+ * host, so that they do not need to start a
+ * {@link org.chris.portmapper.PortMapperCli} for every change:
+ *
+ * <pre>
+ * GET    /mappings                           list the mappings
+ * GET    /mappings?refresh=true              list the mappings of the router
+ * POST   /mappings                           add a mapping, see below
+ * DELETE /mappings/{protocol}/{externalPort} delete a mapping
+ * GET    /external-ip                        the external IP address
+ * GET    /status                             the router and server statistics
+ * </pre>
+ *
+ * A mapping is added with an object like
+ *
+ * <pre>
+ * {"protocol": "TCP", "externalPort": 8080, "internalClient": "localhost",
+ *  "internalPort": 80, "description": "Web", "leaseDuration": 3600}
+ * </pre>
+ *
+ * Only <code>protocol</code> and <code>externalPort</code> are required, the
+ * internal client defaults to the local host, the internal port to the
+ * external port.
+ * <p>
+ * The router stays connected while the server is running. Its mappings are
+ * cached by a {@link CachingRouter} that is kept up to date with the events
+ * of the router, as is the external IP address.
+ * <p>
+ * The server only answers requests whose <code>Host</code> header names the
+ * loopback address and the port of the server, so that a web page can not
+ * reach it by DNS rebinding, and it only accepts mappings with content type
+ * <code>application/json</code>, which browsers do not send across origins
+ * without a preflight request.
+ * <p>
+ * Requests are executed by a bounded pool of threads. When all threads are
+ * busy and the queue is full, requests are rejected with status 503. Changes
+ * of the mappings are sent to the router one after the other.
+ *
+ * @author chris
+ */
+public class ControlServer {
+
+	/**
+	 * The default number of threads executing the requests.
+	 */
+	public static final int DEFAULT_THREADS = AsyncRouterAdapter.DEFAULT_THREADS;
+
+	/**
+	 * The default number of requests waiting for a thread.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+
+	private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+	private static final String JSON_MEDIA_TYPE = "application/json";
+	private static final String[] LOOPBACK_HOSTS = { "127.0.0.1", "localhost",
+			"[::1]" };
+	private static final int MAX_REQUEST_SIZE = 64 * 1024;
+	private static final String MAPPINGS_PATH = "/mappings";
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final CachingRouter router;
+	private final InetSocketAddress address;
+	private final int threads;
+	private final int queueSize;
+
+	/**
+	 * Guards the changes of the mappings.
+	 */
+	private final Object writeLock = new Object();
+	private final RouterEventListener eventListener = new ExternalIPAddressListener();
+	private volatile String externalIPAddress;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private long startedAtMillis;
+	private volatile int port;
+
+	private HttpServer server;
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Create a new server with {@link #DEFAULT_THREADS} and
+	 * {@link #DEFAULT_QUEUE_SIZE}.
+	 *
+	 * @param router
+	 *            the connected router.
+	 * @param address
+	 *            the address to listen on, port <code>0</code> chooses a free
+	 *            port.
+	 */
+	public ControlServer(final IRouter router, final InetSocketAddress address) {
+		this(router, address, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param router
+	 *            the connected router, wrapped in a {@link CachingRouter}
+	 *            unless it already is one.
+	 * @param address
+	 *            the address to listen on, port <code>0</code> chooses a free
+	 *            port.
+	 * @param threads
+	 *            the number of threads executing the requests.
+	 * @param queueSize
+	 *            the number of requests waiting for a thread.
+	 */
+	public ControlServer(final IRouter router,
+			final InetSocketAddress address, final int threads,
+			final int queueSize) {
+		if (threads < 1 || queueSize < 1) {
+			throw new IllegalArgumentException(
+					"Need at least one thread and queue entry but got "
+							+ threads + " and " + queueSize);
+		}
+		this.router = router instanceof CachingRouter ? (CachingRouter) router
+				: new CachingRouter(router);
+		this.address = address;
+		this.threads = threads;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Start listening for requests. The mappings are fetched from the router
+	 * before, so that the first request is answered from the cache.
+	 *
+	 * @throws IOException
+	 *             if the server could not listen on the address.
+	 */
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("Server already started");
+		}
+		router.addRouterEventListener(eventListener);
+		try {
+			router.getPortMappings();
+			externalIPAddress = router.getExternalIPAddress();
+		} catch (final RouterException e) {
+			logger.warn("Could not fetch the state of router "
+					+ router.getName() + ": " + e.getMessage(), e);
+		}
+
+		executor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueSize), new NamedThreadFactory("control"));
+		try {
+			server = HttpServer.create(address, 0);
+		} catch (final IOException e) {
+			executor.shutdownNow();
+			router.removeRouterEventListener(eventListener);
+			throw e;
+		}
+		// the dispatcher thread only hands the requests over to the executor
+		server.setExecutor(null);
+		server.createContext("/", new DispatchingHandler(executor));
+		port = server.getAddress().getPort();
+		server.start();
+		startedAtMillis = System.currentTimeMillis();
+		logger.info("Control server for router " + router.getName()
+				+ " listening on " + getAddress());
+	}
+
+	/**
+	 * Stop the server and wait for the running requests to finish. The router
+	 * is not disconnected.
+	 */
+	public synchronized void stop() {
+		if (server == null) {
+			return;
+		}
+		// new requests are rejected while the running requests finish
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (final InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		server.stop(0);
+		router.removeRouterEventListener(eventListener);
+		server = null;
+		executor = null;
+		logger.info("Control server for router " + router.getName()
+				+ " stopped: " + this);
+	}
+
+	/**
+	 * @return the address the server listens on or <code>null</code> if it is
+	 *         not running.
+	 */
+	public synchronized InetSocketAddress getAddress() {
+		return server != null ? server.getAddress() : null;
+	}
+
+	public CachingRouter getRouter() {
+		return router;
+	}
+
+	private class DispatchingHandler implements HttpHandler {
+		private final ThreadPoolExecutor executor;
+
+		DispatchingHandler(final ThreadPoolExecutor executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			requests.incrementAndGet();
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						execute(exchange);
+					}
+				});
+			} catch (final RejectedExecutionException e) {
+				rejected.incrementAndGet();
+				logger.debug("Rejecting " + exchange.getRequestMethod() + " "
+						+ exchange.getRequestURI() + ": too many requests");
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				sendError(exchange, 503, "Too many requests");
+			}
+		}
+	}
+
+	private void execute(final HttpExchange exchange) {
+		try {
+			handle(exchange);
+		} catch (final IllegalArgumentException e) {
+			sendError(exchange, 400, e.getMessage());
+		} catch (final RouterException e) {
+			failed.incrementAndGet();
+			logger.warn("Request " + exchange.getRequestMethod() + " "
+					+ exchange.getRequestURI() + " failed: " + e.getMessage(),
+					e);
+			sendError(exchange, 502, e.getMessage());
+		} catch (final IOException | RuntimeException e) {
+			failed.incrementAndGet();
+			logger.error("Request " + exchange.getRequestMethod() + " "
+					+ exchange.getRequestURI() + " failed", e);
+			sendError(exchange, 500, "Internal error");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException,
+			RouterException {
+		final String method = exchange.getRequestMethod();
+		final URI uri = exchange.getRequestURI();
+		final String path = uri.getPath();
+		if (!isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+			logger.warn("Rejecting " + method + " " + uri + " for host "
+					+ exchange.getRequestHeaders().getFirst("Host"));
+			sendError(exchange, 403, "Forbidden host");
+			return;
+		}
+		if (path.equals(MAPPINGS_PATH)) {
+			if (method.equals("GET")) {
+				final boolean refresh = "refresh=true".equals(uri
+						.getRawQuery());
+				sendJson(exchange, 200, toJson(refresh ? router.revalidate()
+						: router.getPortMappings()));
+			} else if (method.equals("POST")) {
+				if (!isJson(exchange.getRequestHeaders().getFirst(
+						"Content-Type"))) {
+					sendError(exchange, 415, "Expected content type "
+							+ JSON_MEDIA_TYPE);
+					return;
+				}
+				final PortMapping mapping = parseMapping(readBody(exchange));
+				synchronized (writeLock) {
+					router.addPortMapping(mapping);
+				}
+				logger.info("Added " + mapping.getCompleteDescription());
+				sendJson(exchange, 201, toJson(new StringBuilder(), mapping)
+						.toString());
+			} else {
+				sendMethodNotAllowed(exchange, "GET, POST");
+			}
+		} else if (path.startsWith(MAPPINGS_PATH + "/")) {
+			if (!method.equals("DELETE")) {
+				sendMethodNotAllowed(exchange, "DELETE");
+				return;
+			}
+			final String[] key = path.substring(MAPPINGS_PATH.length() + 1)
+					.split("/");
+			if (key.length != 2) {
+				sendError(exchange, 404,
+						"Expected /mappings/{protocol}/{externalPort}");
+				return;
+			}
+			final Protocol protocol = Protocol.getProtocol(key[0]);
+			final int externalPort = MappingFile.parsePort(key[1]);
+			synchronized (writeLock) {
+				router.removePortMapping(protocol, null, externalPort);
+			}
+			logger.info("Deleted mapping " + protocol + " " + externalPort);
+			exchange.sendResponseHeaders(204, -1);
+		} else if (path.equals("/external-ip")) {
+			if (!method.equals("GET")) {
+				sendMethodNotAllowed(exchange, "GET");
+				return;
+			}
+			final StringBuilder b = new StringBuilder("{\"externalIPAddress\":");
+			Json.quote(b, getExternalIPAddress()).append('}');
+			sendJson(exchange, 200, b.toString());
+		} else if (path.equals("/status")) {
+			if (!method.equals("GET")) {
+				sendMethodNotAllowed(exchange, "GET");
+				return;
+			}
+			sendJson(exchange, 200, getStatus());
+		} else {
+			sendError(exchange, 404, "Unknown path " + path);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the given value of the <code>Host</code>
+	 *         header is a loopback address with the port of this server.
+	 */
+	private boolean isLoopbackHost(final String host) {
+		if (host == null) {
+			return false;
+		}
+		for (final String loopbackHost : LOOPBACK_HOSTS) {
+			if (host.equalsIgnoreCase(loopbackHost + ":" + port)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isJson(final String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		final int parameters = contentType.indexOf(';');
+		return (parameters >= 0 ? contentType.substring(0, parameters)
+				: contentType).trim().equalsIgnoreCase(JSON_MEDIA_TYPE);
+	}
+
+	private String getExternalIPAddress() throws RouterException {
+		String address = externalIPAddress;
+		if (address == null) {
+			address = router.getExternalIPAddress();
+			externalIPAddress = address;
+		}
+		return address;
+	}
+
+	private String getStatus() throws RouterException {
+		final StringBuilder b = new StringBuilder("{\"router\":");
+		Json.quote(b, router.getName());
+		b.append(",\"internalHost\":");
+		Json.quote(b, router.getInternalHostName());
+		b.append(",\"externalIPAddress\":");
+		Json.quote(b, getExternalIPAddress());
+		b.append(",\"mappings\":").append(router.getPortMappings().size());
+		b.append(",\"cacheValid\":").append(router.isCacheValid());
+		b.append(",\"cacheHits\":").append(router.getCacheHits());
+		b.append(",\"cacheMisses\":").append(router.getCacheMisses());
+		b.append(",\"requests\":").append(requests.get());
+		b.append(",\"rejected\":").append(rejected.get());
+		b.append(",\"failed\":").append(failed.get());
+		b.append(",\"uptimeSeconds\":").append(
+				(System.currentTimeMillis() - startedAtMillis) / 1000);
+		return b.append('}').toString();
+	}
+
+	private PortMapping parseMapping(final String body) throws RouterException {
+		final Map<String, String> values = Json.parseObject(body);
+		final String protocol = values.get("protocol");
+		final String externalPort = values.get("externalPort");
+		if (protocol == null || externalPort == null) {
+			throw new IllegalArgumentException(
+					"protocol and externalPort are required");
+		}
+		String internalClient = values.get("internalClient");
+		if (internalClient == null
+				|| MappingFile.LOCALHOST.equalsIgnoreCase(internalClient)) {
+			internalClient = router.getLocalHostAddress();
+		}
+		final String internalPort = values.get("internalPort");
+		final String description = values.get("description");
+		final PortMapping mapping = new PortMapping(
+				Protocol.getProtocol(protocol), null,
+				MappingFile.parsePort(externalPort), internalClient,
+				MappingFile.parsePort(internalPort != null ? internalPort
+						: externalPort),
+				description != null ? description
+						: MappingFile.DEFAULT_DESCRIPTION);
+		final String leaseDuration = values.get("leaseDuration");
+		return leaseDuration != null ? mapping.withLeaseDuration(Long
+				.parseLong(leaseDuration)) : mapping;
+	}
+
+	private static String toJson(final Collection<PortMapping> mappings) {
+		final StringBuilder b = new StringBuilder("[");
+		for (final PortMapping mapping : mappings) {
+			if (b.length() > 1) {
+				b.append(',');
+			}
+			toJson(b, mapping);
+		}
+		return b.append(']').toString();
+	}
+
+	private static StringBuilder toJson(final StringBuilder b,
+			final PortMapping mapping) {
+		b.append("{\"protocol\":");
+		Json.quote(b, mapping.getProtocol().getName());
+		b.append(",\"remoteHost\":");
+		Json.quote(b, mapping.getRemoteHost());
+		b.append(",\"externalPort\":").append(mapping.getExternalPort());
+		b.append(",\"internalClient\":");
+		Json.quote(b, mapping.getInternalClient());
+		b.append(",\"internalPort\":").append(mapping.getInternalPort());
+		b.append(",\"description\":");
+		Json.quote(b, mapping.getDescription());
+		b.append(",\"enabled\":").append(mapping.isEnabled());
+		b.append(",\"leaseDuration\":").append(mapping.getLeaseDuration());
+		return b.append('}');
+	}
+
+	private static String readBody(final HttpExchange exchange)
+			throws IOException {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		try (InputStream in = exchange.getRequestBody()) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+				if (body.size() > MAX_REQUEST_SIZE) {
+					throw new IllegalArgumentException("Request is too large");
+				}
+			}
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private void sendMethodNotAllowed(final HttpExchange exchange,
+			final String allowedMethods) {
+		exchange.getResponseHeaders().set("Allow", allowedMethods);
+		sendError(exchange, 405, "Method " + exchange.getRequestMethod()
+				+ " not allowed");
+	}
+
+	private void sendError(final HttpExchange exchange, final int status,
+			final String message) {
+		final StringBuilder b = new StringBuilder("{\"error\":");
+		Json.quote(b, message).append('}');
+		try {
+			sendJson(exchange, status, b.toString());
+		} catch (final IOException e) {
+			logger.debug("Could not send error " + status + ": "
+					+ e.getMessage());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void sendJson(final HttpExchange exchange,
+			final int status, final String json) throws IOException {
+		final byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private class ExternalIPAddressListener implements RouterEventListener {
+		@Override
+		public void portMappingsChanged(final IRouter changedRouter,
+				final int numberOfEntries) {
+			// the caching router invalidates its mappings
+		}
+
+		@Override
+		public void externalIPAddressChanged(final IRouter changedRouter,
+				final String newExternalIPAddress) {
+			externalIPAddress = newExternalIPAddress;
+		}
+
+		@Override
+		public void connectionStatusChanged(final IRouter changedRouter,
+				final String connectionStatus) {
+			// not needed
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[ControlServer: requests " + requests.get() + ", rejected "
+				+ rejected.get() + ", failed " + failed.get() + "]";
+	}
+}
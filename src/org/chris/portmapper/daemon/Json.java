@@ -0,0 +1,219 @@
+/**
+ *
+ */
+package org.chris.portmapper.daemon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The little JSON support needed by the {@link ControlServer}: quoting
+ * strings and parsing a flat object whose values are strings, numbers,
+ * booleans or <code>null</code>.
+ *
+ * @author chris
+ */
+class Json {
+
+	private final String text;
+	private int position;
+
+	private Json(final String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Append the given value as a JSON string.
+	 *
+	 * @param b
+	 *            the builder to append to.
+	 * @param value
+	 *            the value, <code>null</code> is appended as JSON
+	 *            <code>null</code>.
+	 * @return the builder.
+	 */
+	static StringBuilder quote(final StringBuilder b, final String value) {
+		if (value == null) {
+			return b.append("null");
+		}
+		b.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				b.append("\\\"");
+				break;
+			case '\\':
+				b.append("\\\\");
+				break;
+			case '\n':
+				b.append("\\n");
+				break;
+			case '\r':
+				b.append("\\r");
+				break;
+			case '\t':
+				b.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					b.append(String.format("\\u%04x", (int) c));
+				} else {
+					b.append(c);
+				}
+			}
+		}
+		return b.append('"');
+	}
+
+	/**
+	 * Parse a JSON object without nested objects or arrays.
+	 *
+	 * @param text
+	 *            the JSON text.
+	 * @return the values by name, numbers and booleans as their text,
+	 *         <code>null</code> as <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             if the text is not such an object.
+	 */
+	static Map<String, String> parseObject(final String text) {
+		final Json json = new Json(text);
+		final Map<String, String> values = json.readObject();
+		json.skipWhitespace();
+		if (json.position != text.length()) {
+			throw json.error("unexpected content after object");
+		}
+		return values;
+	}
+
+	private Map<String, String> readObject() {
+		final Map<String, String> values = new LinkedHashMap<>();
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			position++;
+			return values;
+		}
+		while (true) {
+			skipWhitespace();
+			final String name = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			values.put(name, readValue());
+			skipWhitespace();
+			final char c = next();
+			if (c == '}') {
+				return values;
+			}
+			if (c != ',') {
+				throw error("expected ',' or '}'");
+			}
+		}
+	}
+
+	private String readValue() {
+		final char c = peek();
+		if (c == '"') {
+			return readString();
+		}
+		if (c == '{' || c == '[') {
+			throw error("nested objects and arrays are not supported");
+		}
+		final int start = position;
+		while (position < text.length() && isLiteralChar(text.charAt(position))) {
+			position++;
+		}
+		final String literal = text.substring(start, position);
+		if (literal.equals("null")) {
+			return null;
+		}
+		if (literal.equals("true") || literal.equals("false")
+				|| literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+			return literal;
+		}
+		throw error("invalid value '" + literal + "'");
+	}
+
+	private static boolean isLiteralChar(final char c) {
+		return Character.isLetterOrDigit(c) || c == '-' || c == '+' || c == '.';
+	}
+
+	private String readString() {
+		expect('"');
+		final StringBuilder b = new StringBuilder();
+		while (true) {
+			final char c = next();
+			if (c == '"') {
+				return b.toString();
+			}
+			if (c != '\\') {
+				b.append(c);
+				continue;
+			}
+			final char escaped = next();
+			switch (escaped) {
+			case 'b':
+				b.append('\b');
+				break;
+			case 'f':
+				b.append('\f');
+				break;
+			case 'n':
+				b.append('\n');
+				break;
+			case 'r':
+				b.append('\r');
+				break;
+			case 't':
+				b.append('\t');
+				break;
+			case 'u':
+				if (position + 4 > text.length()) {
+					throw error("invalid unicode escape");
+				}
+				try {
+					b.append((char) Integer.parseInt(
+							text.substring(position, position + 4), 16));
+				} catch (final NumberFormatException e) {
+					throw error("invalid unicode escape");
+				}
+				position += 4;
+				break;
+			default:
+				b.append(escaped);
+			}
+		}
+	}
+
+	private void skipWhitespace() {
+		while (position < text.length()
+				&& Character.isWhitespace(text.charAt(position))) {
+			position++;
+		}
+	}
+
+	private void expect(final char expected) {
+		if (next() != expected) {
+			throw error("expected '" + expected + "'");
+		}
+	}
+
+	private char peek() {
+		if (position >= text.length()) {
+			throw error("unexpected end");
+		}
+		return text.charAt(position);
+	}
+
+	private char next() {
+		final char c = peek();
+		position++;
+		return c;
+	}
+
+	private IllegalArgumentException error(final String message) {
+		return new IllegalArgumentException("Invalid JSON at position "
+				+ position + ": " + message);
+	}
+}
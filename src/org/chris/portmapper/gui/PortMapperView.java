@@ -37,6 +37,9 @@ import org.apache.commons.logging.LogFactory;
 import org.chris.portmapper.PortMapperApp;
 import org.chris.portmapper.model.PortMapping;
 import org.chris.portmapper.model.PortMappingPreset;
+import org.chris.portmapper.reconcile.ReconcileResult;
+import org.chris.portmapper.reconcile.Reconciler;
+import org.chris.portmapper.router.CachingRouter;
 import org.chris.portmapper.router.IRouter;
 import org.chris.portmapper.router.RouterException;
 import org.jdesktop.application.Action;
@@ -301,24 +304,40 @@ public class PortMapperView extends FrameView {
 		updatePortMappings();
 	}
 
-	private void addMapping(final Collection<PortMapping> portMappings) {
+	/**
+	 * Add the mappings that the router does not have yet and remove mappings
+	 * with the same description that are not in the given mappings.
+	 */
+	private void applyMappings(final Collection<PortMapping> portMappings) {
 		final IRouter router = app.getRouter();
 		if (router == null) {
 			return;
 		}
 
 		try {
-			router.addPortMappings(portMappings);
-			logger.info(portMappings.size()
-					+ " port mapping added successfully");
+			final ReconcileResult result = new Reconciler(router)
+					.reconcile(portMappings);
+			logger.info(result.getAdded().size() + " port mappings added, "
+					+ result.getRemoved().size() + " removed, "
+					+ result.getUnchanged().size() + " unchanged");
+			if (!result.isSuccessful()) {
+				final Throwable cause = result.getFailed().values().iterator()
+						.next();
+				JOptionPane.showMessageDialog(this.getFrame(),
+						result.getFailed().size()
+								+ " port mappings could not be changed.\n"
+								+ cause.getMessage(),
+						"Error adding port mapping",
+						JOptionPane.WARNING_MESSAGE);
+			}
 		} catch (final RouterException e) {
-			logger.error("Could not add port mapping", e);
+			logger.error("Could not get port mappings", e);
 			JOptionPane.showMessageDialog(this.getFrame(),
-					"The port mapping could not be added.\n" + e.getMessage(),
+					"The port mappings could not be added.\n" + e.getMessage(),
 					"Error adding port mapping", JOptionPane.WARNING_MESSAGE);
 		}
 
-		this.updatePortMappings();
+		this.showPortMappings();
 	}
 
 	@Action(name = ACTION_REMOVE_MAPPINGS, enabledProperty = PROPERTY_MAPPING_SELECTED)
@@ -336,7 +355,7 @@ public class PortMapperView extends FrameView {
 			logger.info("Mapping was removed successfully: " + mapping);
 		}
 		if (selectedMappings.size() > 0) {
-			updatePortMappings();
+			showPortMappings();
 		}
 	}
 
@@ -371,6 +390,19 @@ public class PortMapperView extends FrameView {
 
 	@Action(name = ACTION_UPDATE_PORT_MAPPINGS, enabledProperty = PROPERTY_ROUTER_CONNECTED)
 	public void updatePortMappings() {
+		final IRouter router = app.getRouter();
+		if (router instanceof CachingRouter) {
+			// the user wants to see the current mappings of the router
+			((CachingRouter) router).invalidate();
+		}
+		showPortMappings();
+	}
+
+	/**
+	 * Show the mappings of the router, using the cached mappings if they are
+	 * still valid.
+	 */
+	private void showPortMappings() {
 		final IRouter router = app.getRouter();
 		if (router == null) {
 			this.tableModel.setMappings(Collections.<PortMapping> emptyList());
@@ -400,9 +432,9 @@ public class PortMapperView extends FrameView {
 						PortMapperApp.getResourceMap().getString(
 								"messages.error"), JOptionPane.ERROR_MESSAGE);
 			} else {
-				logger.info("Adding port mappings for preset "
+				logger.info("Applying port mappings for preset "
 						+ selectedItem.toString());
-				addMapping(selectedItem.getPortMappings(localHostAddress));
+				applyMappings(selectedItem.getPortMappings(localHostAddress));
 			}
 		}
 	}
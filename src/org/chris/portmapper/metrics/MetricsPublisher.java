@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package org.chris.portmapper.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.router.InstrumentedRouter;
+import org.chris.portmapper.router.LeaseRenewalScheduler;
+import org.wetorrent.upnp.ActionMetrics;
+import org.wetorrent.upnp.ActionStats;
+
+/**
+ * Publishes the metrics of an {@link InstrumentedRouter} as MXBeans, one for
+ * every router method and every SOAP action, named e.g.
+ * <code>org.chris.portmapper:type=SoapAction,router="FRITZ!Box",action="AddPortMapping"</code>
+ * . Actions called for the first time after {@link #publish()} are published
+ * when they are called. The renewals of a {@link LeaseRenewalScheduler} for
+ * the router can be published as well.
+ *
+ * @author chris
+ */
+public class MetricsPublisher {
+
+	/**
+	 * The domain of the published MXBeans.
+	 */
+	public static final String DOMAIN = "org.chris.portmapper";
+	static final String TYPE_ROUTER_METHOD = "RouterMethod";
+	static final String TYPE_SOAP_ACTION = "SoapAction";
+	static final String TYPE_LEASE_RENEWAL = "LeaseRenewal";
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final InstrumentedRouter router;
+	private final MBeanServer server;
+	private final List<ObjectName> names = new ArrayList<>();
+	private final List<Registration> registrations = new ArrayList<>();
+	private boolean published;
+
+	/**
+	 * Create a publisher using the platform MBean server.
+	 *
+	 * @param router
+	 *            the router whose metrics to publish.
+	 */
+	public MetricsPublisher(final InstrumentedRouter router) {
+		this(router, ManagementFactory.getPlatformMBeanServer());
+	}
+
+	public MetricsPublisher(final InstrumentedRouter router,
+			final MBeanServer server) {
+		this.router = router;
+		this.server = server;
+	}
+
+	/**
+	 * Register the MXBeans of all called actions and of all actions called
+	 * from now on.
+	 */
+	public synchronized void publish() {
+		if (published) {
+			return;
+		}
+		published = true;
+		listen(router.getMetrics(), TYPE_ROUTER_METHOD);
+		final ActionMetrics protocolMetrics = router.getProtocolMetrics();
+		if (protocolMetrics != null) {
+			listen(protocolMetrics, TYPE_SOAP_ACTION);
+		}
+	}
+
+	/**
+	 * Register the MXBean of the given scheduler renewing the leases of the
+	 * mappings of the router. Does nothing if the metrics are not published.
+	 *
+	 * @param scheduler
+	 *            the scheduler whose renewals to publish.
+	 */
+	public synchronized void publish(final LeaseRenewalScheduler scheduler) {
+		if (!published) {
+			return;
+		}
+		try {
+			final ObjectName name = new ObjectName(DOMAIN + ":type="
+					+ TYPE_LEASE_RENEWAL + ",router="
+					+ ObjectName.quote(String.valueOf(router.getName())));
+			server.registerMBean(scheduler, name);
+			names.add(name);
+			logger.debug("Registered MXBean " + name);
+		} catch (final JMException e) {
+			logger.warn("Could not register metrics of lease renewals", e);
+		}
+	}
+
+	/**
+	 * Unregister all MXBeans registered by this publisher.
+	 */
+	public synchronized void unpublish() {
+		if (!published) {
+			return;
+		}
+		published = false;
+		for (final Registration registration : registrations) {
+			registration.metrics.removeListener(registration);
+		}
+		registrations.clear();
+		for (final ObjectName name : names) {
+			try {
+				server.unregisterMBean(name);
+			} catch (final JMException e) {
+				logger.debug("Could not unregister MXBean " + name, e);
+			}
+		}
+		names.clear();
+	}
+
+	private void listen(final ActionMetrics metrics, final String type) {
+		final Registration registration = new Registration(metrics, type);
+		registrations.add(registration);
+		metrics.addListener(registration);
+	}
+
+	synchronized void register(final String type, final ActionStats stats) {
+		if (!published) {
+			return;
+		}
+		try {
+			final ObjectName name = getObjectName(type, router.getName(),
+					stats.getAction());
+			server.registerMBean(stats, name);
+			names.add(name);
+			logger.debug("Registered MXBean " + name);
+		} catch (final JMException e) {
+			logger.warn("Could not register metrics of action "
+					+ stats.getAction(), e);
+		}
+	}
+
+	static ObjectName getObjectName(final String type,
+			final String routerName, final String action)
+			throws JMException {
+		return new ObjectName(DOMAIN + ":type=" + type + ",router="
+				+ ObjectName.quote(String.valueOf(routerName)) + ",action="
+				+ ObjectName.quote(action));
+	}
+
+	/**
+	 * Registers the actions of one {@link ActionMetrics}.
+	 */
+	private class Registration implements ActionMetrics.Listener {
+		private final ActionMetrics metrics;
+		private final String type;
+
+		Registration(final ActionMetrics metrics, final String type) {
+			this.metrics = metrics;
+			this.type = type;
+		}
+
+		@Override
+		public void actionAdded(final ActionStats stats) {
+			register(type, stats);
+		}
+	}
+}
@@ -42,6 +42,14 @@ public class PortMapping implements Cloneable {
 			final int externalPort, final String internalClient,
 			final int internalPort, final String description,
 			final boolean enabled) {
+		this(protocol, remoteHost, externalPort, internalClient, internalPort,
+				description, enabled, -1);
+	}
+
+	private PortMapping(final Protocol protocol, final String remoteHost,
+			final int externalPort, final String internalClient,
+			final int internalPort, final String description,
+			final boolean enabled, final long leaseDuration) {
 		super();
 		this.protocol = protocol;
 		this.remoteHost = remoteHost;
@@ -50,7 +58,7 @@ public class PortMapping implements Cloneable {
 		this.internalPort = internalPort;
 		this.description = description;
 		this.enabled = enabled;
-		this.leaseDuration = -1;
+		this.leaseDuration = leaseDuration;
 	}
 
 	private PortMapping(final ActionResponse response) {
@@ -83,12 +91,28 @@ public class PortMapping implements Cloneable {
 	}
 
 	/**
-	 * @return the leaseDuration
+	 * @return the leaseDuration in seconds, <code>0</code> for a permanent
+	 *         mapping or <code>-1</code> if unknown.
 	 */
 	public long getLeaseDuration() {
 		return leaseDuration;
 	}
 
+	/**
+	 * Create a copy of this mapping with the given lease duration. The router
+	 * removes the mapping when the lease expires.
+	 * 
+	 * @param leaseDuration
+	 *            the lease duration in seconds or <code>0</code> for a
+	 *            permanent mapping.
+	 * @return the new mapping.
+	 */
+	public PortMapping withLeaseDuration(final long leaseDuration) {
+		return new PortMapping(protocol, remoteHost, externalPort,
+				internalClient, internalPort, description, enabled,
+				leaseDuration);
+	}
+
 	public int getExternalPort() {
 		return externalPort;
 	}
@@ -146,7 +170,7 @@ public class PortMapping implements Cloneable {
 	public Object clone() {
 		final PortMapping clonedMapping = new PortMapping(protocol, remoteHost,
 				externalPort, internalClient, internalPort, description,
-				enabled);
+				enabled, leaseDuration);
 		return clonedMapping;
 	}
 }
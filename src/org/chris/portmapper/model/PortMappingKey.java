@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package org.chris.portmapper.model;
+
+/**
+ * Identifies a port mapping on a router: a router has at most one mapping for
+ * each combination of protocol, remote host and external port. A
+ * <code>null</code> remote host is the same as an empty remote host, as both
+ * mean "any host".
+ *
+ * @author chris
+ */
+public class PortMappingKey {
+
+	private final Protocol protocol;
+	private final String remoteHost;
+	private final int externalPort;
+
+	public PortMappingKey(final Protocol protocol, final String remoteHost,
+			final int externalPort) {
+		this.protocol = protocol;
+		this.remoteHost = remoteHost == null ? "" : remoteHost;
+		this.externalPort = externalPort;
+	}
+
+	public static PortMappingKey of(final PortMapping mapping) {
+		return new PortMappingKey(mapping.getProtocol(),
+				mapping.getRemoteHost(), mapping.getExternalPort());
+	}
+
+	public Protocol getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * @return the remote host or an empty string for any host.
+	 */
+	public String getRemoteHost() {
+		return remoteHost;
+	}
+
+	public int getExternalPort() {
+		return externalPort;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = protocol == null ? 0 : protocol.hashCode();
+		result = 31 * result + remoteHost.hashCode();
+		return 31 * result + externalPort;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof PortMappingKey)) {
+			return false;
+		}
+		final PortMappingKey other = (PortMappingKey) obj;
+		return protocol == other.protocol && externalPort == other.externalPort
+				&& remoteHost.equals(other.remoteHost);
+	}
+
+	@Override
+	public String toString() {
+		return protocol + " " + remoteHost + ":" + externalPort;
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package org.chris.portmapper.reconcile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+
+/**
+ * Reads desired mappings from a text file. Each line contains one mapping:
+ *
+ * <pre>
+ * protocol external_port internal_client internal_port [description]
+ * </pre>
+ *
+ * e.g. <code>TCP 80 192.168.1.2 8080 Web server</code>. The internal client
+ * <code>localhost</code> is replaced with the address of the local host. Empty
+ * lines and lines starting with <code>#</code> are ignored. Mappings without
+ * description get the description <code>PortMapper</code>.
+ *
+ * @author chris
+ */
+public class MappingFile {
+
+	public static final String LOCALHOST = "localhost";
+	public static final String DEFAULT_DESCRIPTION = "PortMapper";
+
+	private MappingFile() {
+		// only static methods
+	}
+
+	/**
+	 * Read the mappings.
+	 *
+	 * @param reader
+	 *            the reader for the file, is not closed.
+	 * @param localHostAddress
+	 *            the address used for internal client <code>localhost</code>.
+	 * @return the mappings in the order of the file.
+	 * @throws IOException
+	 *             if the file could not be read or contains an invalid line.
+	 */
+	public static List<PortMapping> read(final Reader reader,
+			final String localHostAddress) throws IOException {
+		final BufferedReader lines = new BufferedReader(reader);
+		final List<PortMapping> mappings = new ArrayList<>();
+		String line;
+		int lineNumber = 0;
+		while ((line = lines.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				mappings.add(parse(line, localHostAddress));
+			} catch (final IllegalArgumentException e) {
+				throw new IOException("Invalid mapping in line " + lineNumber
+						+ " '" + line + "': " + e.getMessage(), e);
+			}
+		}
+		return mappings;
+	}
+
+	/**
+	 * Parse a single mapping line.
+	 *
+	 * @param line
+	 *            the line without comment.
+	 * @param localHostAddress
+	 *            the address used for internal client <code>localhost</code>.
+	 * @return the mapping.
+	 * @throws IllegalArgumentException
+	 *             if the line is invalid.
+	 */
+	public static PortMapping parse(final String line,
+			final String localHostAddress) {
+		final String[] fields = line.split("\\s+", 5);
+		if (fields.length < 4) {
+			throw new IllegalArgumentException("expected at least 4 fields");
+		}
+		final Protocol protocol = Protocol.valueOf(fields[0].toUpperCase());
+		final int externalPort = parsePort(fields[1]);
+		String internalClient = fields[2];
+		if (LOCALHOST.equalsIgnoreCase(internalClient)) {
+			if (localHostAddress == null) {
+				throw new IllegalArgumentException(
+						"address of local host is unknown");
+			}
+			internalClient = localHostAddress;
+		}
+		final int internalPort = parsePort(fields[3]);
+		final String description = fields.length == 5 ? fields[4]
+				: DEFAULT_DESCRIPTION;
+		return new PortMapping(protocol, null, externalPort, internalClient,
+				internalPort, description);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the value is not a port number between 1 and 65535.
+	 */
+	public static int parsePort(final String value) {
+		final int port = Integer.parseInt(value);
+		if (port < 1 || port > 65535) {
+			throw new IllegalArgumentException("invalid port " + port);
+		}
+		return port;
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package org.chris.portmapper.reconcile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.PortMappingKey;
+
+/**
+ * The changes needed to bring the mappings of a router to a desired state.
+ * Mappings are matched by their {@link PortMappingKey}. A desired mapping is
+ * <ul>
+ * <li>unchanged if the router has a mapping with the same key, internal
+ * client, internal port and description,</li>
+ * <li>added if the router has no mapping with the same key or a mapping to
+ * the same internal client (the router overwrites it),</li>
+ * <li>added after removing the current mapping if the router has a mapping
+ * with the same key to another internal client, as routers refuse to
+ * overwrite it.</li>
+ * </ul>
+ * Mappings of the router that are not desired are only removed if they have
+ * the description of a desired mapping, i.e. if they were created from the
+ * same preset. Mappings of other applications are never removed.
+ *
+ * @author chris
+ */
+public class ReconcilePlan {
+
+	private final List<PortMapping> toRemove;
+	private final List<PortMapping> toAdd;
+	private final List<PortMapping> unchanged;
+
+	private ReconcilePlan(final List<PortMapping> toRemove,
+			final List<PortMapping> toAdd, final List<PortMapping> unchanged) {
+		this.toRemove = Collections.unmodifiableList(toRemove);
+		this.toAdd = Collections.unmodifiableList(toAdd);
+		this.unchanged = Collections.unmodifiableList(unchanged);
+	}
+
+	/**
+	 * Compare the desired mappings with the current mappings of a router.
+	 *
+	 * @param desired
+	 *            the desired mappings. If several mappings have the same key,
+	 *            the last one is used.
+	 * @param current
+	 *            the current mappings of the router.
+	 * @return the plan.
+	 */
+	public static ReconcilePlan create(final Collection<PortMapping> desired,
+			final Collection<PortMapping> current) {
+		final Map<PortMappingKey, PortMapping> desiredByKey = new LinkedHashMap<>();
+		final Set<String> managedDescriptions = new HashSet<>();
+		for (final PortMapping mapping : desired) {
+			desiredByKey.put(PortMappingKey.of(mapping), mapping);
+			if (mapping.getDescription() != null) {
+				managedDescriptions.add(mapping.getDescription());
+			}
+		}
+		final Map<PortMappingKey, PortMapping> currentByKey = new LinkedHashMap<>();
+		for (final PortMapping mapping : current) {
+			currentByKey.put(PortMappingKey.of(mapping), mapping);
+		}
+
+		final List<PortMapping> toRemove = new ArrayList<>();
+		final List<PortMapping> toAdd = new ArrayList<>();
+		final List<PortMapping> unchanged = new ArrayList<>();
+		for (final Map.Entry<PortMappingKey, PortMapping> entry : currentByKey
+				.entrySet()) {
+			if (!desiredByKey.containsKey(entry.getKey())
+					&& managedDescriptions.contains(entry.getValue()
+							.getDescription())) {
+				toRemove.add(entry.getValue());
+			}
+		}
+		for (final Map.Entry<PortMappingKey, PortMapping> entry : desiredByKey
+				.entrySet()) {
+			final PortMapping wanted = entry.getValue();
+			final PortMapping existing = currentByKey.get(entry.getKey());
+			if (existing == null) {
+				toAdd.add(wanted);
+			} else if (isSame(wanted, existing)) {
+				unchanged.add(existing);
+			} else {
+				if (!equal(wanted.getInternalClient(),
+						existing.getInternalClient())) {
+					toRemove.add(existing);
+				}
+				toAdd.add(wanted);
+			}
+		}
+		return new ReconcilePlan(toRemove, toAdd, unchanged);
+	}
+
+	private static boolean isSame(final PortMapping wanted,
+			final PortMapping existing) {
+		return equal(wanted.getInternalClient(), existing.getInternalClient())
+				&& wanted.getInternalPort() == existing.getInternalPort()
+				&& equal(wanted.getDescription(), existing.getDescription())
+				&& existing.isEnabled();
+	}
+
+	private static boolean equal(final String a, final String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * @return the mappings to remove before adding {@link #getToAdd()}.
+	 */
+	public List<PortMapping> getToRemove() {
+		return toRemove;
+	}
+
+	public List<PortMapping> getToAdd() {
+		return toAdd;
+	}
+
+	/**
+	 * @return the current mappings that are already as desired.
+	 */
+	public List<PortMapping> getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return <code>true</code> if the router already has the desired
+	 *         mappings.
+	 */
+	public boolean isEmpty() {
+		return toRemove.isEmpty() && toAdd.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "[ReconcilePlan: remove " + toRemove.size() + ", add "
+				+ toAdd.size() + ", unchanged " + unchanged.size() + "]";
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package org.chris.portmapper.reconcile;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.chris.portmapper.model.PortMapping;
+
+/**
+ * The changes made by {@link Reconciler#reconcile(java.util.Collection)}.
+ *
+ * @author chris
+ */
+public class ReconcileResult {
+
+	private final List<PortMapping> removed;
+	private final List<PortMapping> added;
+	private final List<PortMapping> unchanged;
+	private final Map<PortMapping, Throwable> failed;
+
+	ReconcileResult(final List<PortMapping> removed,
+			final List<PortMapping> added, final List<PortMapping> unchanged,
+			final Map<PortMapping, Throwable> failed) {
+		this.removed = Collections.unmodifiableList(removed);
+		this.added = Collections.unmodifiableList(added);
+		this.unchanged = Collections.unmodifiableList(unchanged);
+		this.failed = Collections.unmodifiableMap(failed);
+	}
+
+	public List<PortMapping> getRemoved() {
+		return removed;
+	}
+
+	public List<PortMapping> getAdded() {
+		return added;
+	}
+
+	public List<PortMapping> getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return the mappings that could not be removed or added with the cause
+	 *         of the failure.
+	 */
+	public Map<PortMapping, Throwable> getFailed() {
+		return failed;
+	}
+
+	public boolean isSuccessful() {
+		return failed.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "[ReconcileResult: removed " + removed.size() + ", added "
+				+ added.size() + ", unchanged " + unchanged.size()
+				+ ", failed " + failed.size() + "]";
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ *
+ */
+package org.chris.portmapper.reconcile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.PortMappingPreset;
+import org.chris.portmapper.router.AsyncRouterAdapter;
+import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.RouterException;
+import org.chris.portmapper.util.NamedThreadFactory;
+
+/**
+ * Brings the mappings of a router to a desired state with as few requests as
+ * possible: the current mappings are fetched once, compared with the desired
+ * mappings by a {@link ReconcilePlan} and only the differences are sent to
+ * the router. The removals and then the additions are sent concurrently,
+ * limited to a number of requests at the same time.
+ *
+ * @author chris
+ */
+public class Reconciler {
+
+	/**
+	 * The default number of requests sent to the router at the same time.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = AsyncRouterAdapter.DEFAULT_THREADS;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final IRouter router;
+	private final int maxConcurrentRequests;
+
+	public Reconciler(final IRouter router) {
+		this(router, DEFAULT_MAX_CONCURRENT_REQUESTS);
+	}
+
+	/**
+	 * @param router
+	 *            the router to change.
+	 * @param maxConcurrentRequests
+	 *            the maximum number of requests sent to the router at the
+	 *            same time.
+	 */
+	public Reconciler(final IRouter router, final int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException(
+					"Need at least one concurrent request but got "
+							+ maxConcurrentRequests);
+		}
+		this.router = router;
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * Get the mappings of the given presets.
+	 *
+	 * @param presets
+	 *            the presets.
+	 * @param localHostAddress
+	 *            the address used for presets without internal client.
+	 * @return the mappings of all presets.
+	 */
+	public static List<PortMapping> getPortMappings(
+			final Collection<PortMappingPreset> presets,
+			final String localHostAddress) {
+		final List<PortMapping> mappings = new ArrayList<>();
+		for (final PortMappingPreset preset : presets) {
+			mappings.addAll(preset.getPortMappings(localHostAddress));
+		}
+		return mappings;
+	}
+
+	/**
+	 * Compare the desired mappings with the current mappings of the router
+	 * without changing anything.
+	 *
+	 * @param desired
+	 *            the desired mappings.
+	 * @return the changes that {@link #reconcile(Collection)} would make.
+	 * @throws RouterException
+	 *             if the current mappings could not be fetched.
+	 */
+	public ReconcilePlan plan(final Collection<PortMapping> desired)
+			throws RouterException {
+		return ReconcilePlan.create(desired, router.getPortMappings());
+	}
+
+	/**
+	 * Change the mappings of the router to the desired mappings as described
+	 * by {@link ReconcilePlan}.
+	 *
+	 * @param desired
+	 *            the desired mappings.
+	 * @return the changes that were made.
+	 * @throws RouterException
+	 *             if the current mappings could not be fetched. Failed
+	 *             changes are reported in the result.
+	 */
+	public ReconcileResult reconcile(final Collection<PortMapping> desired)
+			throws RouterException {
+		return execute(plan(desired));
+	}
+
+	/**
+	 * Execute the given plan.
+	 *
+	 * @param plan
+	 *            the plan created for the router.
+	 * @return the changes that were made.
+	 */
+	public ReconcileResult execute(final ReconcilePlan plan) {
+		logger.info("Reconciling mappings of router " + router.getName()
+				+ ": " + plan);
+		final List<PortMapping> removed = new ArrayList<>();
+		final List<PortMapping> added = new ArrayList<>();
+		final Map<PortMapping, Throwable> failed = new LinkedHashMap<>();
+		if (plan.isEmpty()) {
+			return new ReconcileResult(removed, added, plan.getUnchanged(),
+					failed);
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(maxConcurrentRequests, Math.max(plan.getToRemove()
+						.size(), plan.getToAdd().size())),
+				new NamedThreadFactory("reconcile-" + router.getName()));
+		final AsyncRouterAdapter asyncRouter = new AsyncRouterAdapter(router,
+				executor);
+		try {
+			// remove first, so that changed mappings can be added again
+			final Map<PortMapping, Future<Void>> removals = new LinkedHashMap<>();
+			for (final PortMapping mapping : plan.getToRemove()) {
+				removals.put(mapping, asyncRouter.removeMapping(mapping, null));
+			}
+			await(removals, removed, failed);
+
+			final Map<PortMapping, Future<Void>> additions = new LinkedHashMap<>();
+			for (final PortMapping mapping : plan.getToAdd()) {
+				additions.put(mapping, asyncRouter.addPortMapping(mapping, null));
+			}
+			await(additions, added, failed);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		final ReconcileResult result = new ReconcileResult(removed, added,
+				plan.getUnchanged(), failed);
+		logger.info("Reconciled mappings of router " + router.getName() + ": "
+				+ result);
+		return result;
+	}
+
+	private void await(final Map<PortMapping, Future<Void>> operations,
+			final List<PortMapping> succeeded,
+			final Map<PortMapping, Throwable> failed) {
+		for (final Map.Entry<PortMapping, Future<Void>> operation : operations
+				.entrySet()) {
+			try {
+				AsyncRouterAdapter.await(operation.getValue());
+				succeeded.add(operation.getKey());
+			} catch (final RouterException | RuntimeException e) {
+				logger.warn("Could not change mapping "
+						+ operation.getKey().getCompleteDescription() + ": "
+						+ e.getMessage(), e);
+				failed.put(operation.getKey(), e);
+			}
+		}
+	}
+}
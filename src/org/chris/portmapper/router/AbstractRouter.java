@@ -7,9 +7,12 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.wetorrent.upnp.ActionMetrics;
 
 /**
  * This is the abstract super class for all routers.
@@ -23,6 +26,13 @@ public abstract class AbstractRouter implements IRouter {
 
 	private final String name;
 
+	private final List<RouterEventListener> eventListeners = new CopyOnWriteArrayList<>();
+	/**
+	 * Guards starting and stopping the event sources.
+	 */
+	private final Object eventLock = new Object();
+	private RouterEventPoller poller;
+
 	public AbstractRouter(final String name) {
 		this.name = name;
 	}
@@ -108,6 +118,119 @@ public abstract class AbstractRouter implements IRouter {
 		return localHostIP;
 	}
 
+	@Override
+	public void addRouterEventListener(final RouterEventListener listener) {
+		synchronized (eventLock) {
+			eventListeners.add(listener);
+			if (eventListeners.size() == 1) {
+				startEvents();
+			}
+		}
+	}
+
+	@Override
+	public void removeRouterEventListener(final RouterEventListener listener) {
+		synchronized (eventLock) {
+			if (eventListeners.remove(listener) && eventListeners.isEmpty()) {
+				stopEvents();
+			}
+		}
+	}
+
+	/**
+	 * Start sending events to the listeners, called when the first listener
+	 * is added. The default implementation polls the router, routers that
+	 * support eventing override this.
+	 */
+	protected void startEvents() {
+		startPolling();
+	}
+
+	/**
+	 * Stop sending events to the listeners, called when the last listener is
+	 * removed or the router is disconnected.
+	 */
+	protected void stopEvents() {
+		synchronized (eventLock) {
+			if (poller != null) {
+				poller.stop();
+				poller = null;
+			}
+		}
+	}
+
+	/**
+	 * Stop the event sources when disconnecting from the router. The
+	 * listeners stay registered.
+	 */
+	protected void disconnectEvents() {
+		synchronized (eventLock) {
+			if (!eventListeners.isEmpty()) {
+				stopEvents();
+			}
+		}
+	}
+
+	/**
+	 * Poll the router for changes if there are listeners, e.g. when the
+	 * router stopped sending events.
+	 */
+	protected void startPolling() {
+		synchronized (eventLock) {
+			if (poller == null && !eventListeners.isEmpty()) {
+				poller = new RouterEventPoller(this);
+				poller.start();
+			}
+		}
+	}
+
+	protected void firePortMappingsChanged(final int numberOfEntries) {
+		logger.debug("Port mappings of router " + name + " changed: "
+				+ numberOfEntries + " entries");
+		for (final RouterEventListener listener : eventListeners) {
+			try {
+				listener.portMappingsChanged(this, numberOfEntries);
+			} catch (final RuntimeException e) {
+				logger.error("Router event listener failed", e);
+			}
+		}
+	}
+
+	protected void fireExternalIPAddressChanged(final String externalIPAddress) {
+		logger.debug("External IP address of router " + name + " changed to "
+				+ externalIPAddress);
+		for (final RouterEventListener listener : eventListeners) {
+			try {
+				listener.externalIPAddressChanged(this, externalIPAddress);
+			} catch (final RuntimeException e) {
+				logger.error("Router event listener failed", e);
+			}
+		}
+	}
+
+	protected void fireConnectionStatusChanged(final String connectionStatus) {
+		logger.debug("Connection status of router " + name + " changed to "
+				+ connectionStatus);
+		for (final RouterEventListener listener : eventListeners) {
+			try {
+				listener.connectionStatusChanged(this, connectionStatus);
+			} catch (final RuntimeException e) {
+				logger.error("Router event listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of calls, the errors and the latencies of the protocol
+	 * actions sent to the router, e.g. the SOAP actions.
+	 * 
+	 * @return the statistics of the actions or <code>null</code> if this
+	 *         router does not record them.
+	 */
+	public ActionMetrics getProtocolMetrics() {
+		return null;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -3,8 +3,10 @@
  */
 package org.chris.portmapper.router;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -20,6 +22,8 @@ public abstract class AbstractRouterFactory {
 
 	private final Log logger = LogFactory.getLog(this.getClass());
 
+	private File configDirectory;
+
 	/**
 	 * Get the name of the router factory that can be displayed to the user.
 	 * 
@@ -33,12 +37,51 @@ public abstract class AbstractRouterFactory {
 		if (locationUrl == null) {
 			logger.debug("System property " + LOCATION_URL_SYSTEM_PROPERTY
 					+ " not defined: discover routers automatically.");
+			final List<IRouter> knownRouters = findKnownRouters();
+			if (!knownRouters.isEmpty()) {
+				logger.debug("Using " + knownRouters.size()
+						+ " known routers without discovery");
+				return knownRouters;
+			}
 			return findRoutersInternal();
 		}
 		logger.info("Trying to connect using location url " + locationUrl);
 		return Arrays.asList(connect(locationUrl));
 	}
 
+	/**
+	 * Get the directory where the factory can store data between runs, e.g.
+	 * cached device descriptions.
+	 * 
+	 * @return the configuration directory or <code>null</code> if none was
+	 *         set.
+	 */
+	public File getConfigDirectory() {
+		return configDirectory;
+	}
+
+	/**
+	 * Set the directory where the factory can store data between runs.
+	 * 
+	 * @param configDirectory
+	 *            the configuration directory or <code>null</code> to store
+	 *            nothing.
+	 */
+	public void setConfigDirectory(final File configDirectory) {
+		this.configDirectory = configDirectory;
+	}
+
+	/**
+	 * Get the routers that are already known without searching the network,
+	 * e.g. because they advertised themselves recently. If this returns any
+	 * routers, {@link #findRoutersInternal()} is not called.
+	 * 
+	 * @return the known routers or an empty {@link List}.
+	 */
+	protected List<IRouter> findKnownRouters() {
+		return Collections.emptyList();
+	}
+
 	/**
 	 * Search for routers on the network.
 	 * 
@@ -60,6 +103,6 @@ public abstract class AbstractRouterFactory {
 	 * @throws RouterException
 	 *             if something goes wrong during connection.
 	 */
-	protected abstract IRouter connect(final String locationUrl)
+	public abstract IRouter connect(final String locationUrl)
 			throws RouterException;
 }
@@ -0,0 +1,267 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.util.NamedThreadFactory;
+import org.wetorrent.upnp.Deadline;
+
+/**
+ * Implements the {@link IAsyncRouter} for any {@link IRouter} by executing the
+ * blocking operations with an {@link Executor}. The number of operations that
+ * are sent to the router at the same time is limited by the executor, so the
+ * router implementation must be able to handle concurrent calls if the
+ * executor uses more than one thread.
+ * <p>
+ * A {@link Deadline} of the calling thread is carried to the thread executing
+ * the operation.
+ *
+ * @author chris
+ */
+public class AsyncRouterAdapter implements IAsyncRouter {
+
+	/**
+	 * The default number of threads used for executing the operations.
+	 */
+	public static final int DEFAULT_THREADS = 4;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final IRouter router;
+	private final Executor executor;
+	private final ExecutorService ownExecutor;
+
+	/**
+	 * Create a new adapter executing the operations with its own pool of
+	 * {@link #DEFAULT_THREADS} daemon threads.
+	 *
+	 * @param router
+	 *            the router to use.
+	 */
+	public AsyncRouterAdapter(final IRouter router) {
+		this(router, Executors.newFixedThreadPool(DEFAULT_THREADS,
+				new NamedThreadFactory("router-" + router.getName())), true);
+	}
+
+	/**
+	 * Create a new adapter executing the operations with the given executor.
+	 * The executor is not shut down by {@link #shutdown()}.
+	 *
+	 * @param router
+	 *            the router to use.
+	 * @param executor
+	 *            the executor for the operations.
+	 */
+	public AsyncRouterAdapter(final IRouter router, final Executor executor) {
+		this(router, executor, false);
+	}
+
+	private AsyncRouterAdapter(final IRouter router, final Executor executor,
+			final boolean ownExecutor) {
+		this.router = router;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor ? (ExecutorService) executor : null;
+	}
+
+	/**
+	 * Wait for the given operation to finish and return its result.
+	 *
+	 * @param future
+	 *            the future returned by an {@link IAsyncRouter}.
+	 * @return the result of the operation.
+	 * @throws RouterException
+	 *             if the operation failed, was cancelled or the current
+	 *             thread was interrupted.
+	 */
+	public static <T> T await(final Future<T> future) throws RouterException {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RouterException("Interrupted while waiting for router",
+					e);
+		} catch (final CancellationException e) {
+			throw new RouterException("Router operation was cancelled", e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RouterException) {
+				throw (RouterException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RouterException("Router operation failed", cause);
+		}
+	}
+
+	@Override
+	public IRouter getRouter() {
+		return router;
+	}
+
+	@Override
+	public Future<String> getExternalIPAddress(
+			final RouterCallback<String> callback) {
+		return submit(new Callable<String>() {
+			@Override
+			public String call() throws RouterException {
+				return router.getExternalIPAddress();
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<Collection<PortMapping>> getPortMappings(
+			final RouterCallback<Collection<PortMapping>> callback) {
+		return submit(new Callable<Collection<PortMapping>>() {
+			@Override
+			public Collection<PortMapping> call() throws RouterException {
+				return router.getPortMappings();
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<Void> logRouterInfo(final RouterCallback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws RouterException {
+				router.logRouterInfo();
+				return null;
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<Void> addPortMapping(final PortMapping mapping,
+			final RouterCallback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws RouterException {
+				router.addPortMapping(mapping);
+				return null;
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<Void> addPortMappings(final Collection<PortMapping> mappings,
+			final RouterCallback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws RouterException {
+				router.addPortMappings(mappings);
+				return null;
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<Void> removeMapping(final PortMapping mapping,
+			final RouterCallback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws RouterException {
+				router.removeMapping(mapping);
+				return null;
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<Void> removePortMapping(final Protocol protocol,
+			final String remoteHost, final int externalPort,
+			final RouterCallback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws RouterException {
+				router.removePortMapping(protocol, remoteHost, externalPort);
+				return null;
+			}
+		}, callback);
+	}
+
+	@Override
+	public void shutdown() {
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
+	}
+
+	private <T> Future<T> submit(final Callable<T> operation,
+			final RouterCallback<T> callback) {
+		// carry the deadline of the caller to the executing thread
+		final Deadline deadline = Deadline.current();
+		final Callable<T> operationWithDeadline = deadline == null ? operation
+				: new Callable<T>() {
+					@Override
+					@SuppressWarnings("try")
+					public T call() throws Exception {
+						try (Deadline.Scope scope = deadline.enter()) {
+							return operation.call();
+						}
+					}
+				};
+		final FutureTask<T> task = new FutureTask<T>(operationWithDeadline) {
+			@Override
+			protected void done() {
+				if (callback != null) {
+					notifyCallback(this, callback);
+				}
+			}
+		};
+		executor.execute(task);
+		return task;
+	}
+
+	private <T> void notifyCallback(final Future<T> future,
+			final RouterCallback<T> callback) {
+		final T result;
+		try {
+			result = future.get();
+		} catch (final InterruptedException e) {
+			// the future is already done
+			Thread.currentThread().interrupt();
+			return;
+		} catch (final CancellationException e) {
+			failure(callback, e);
+			return;
+		} catch (final ExecutionException e) {
+			failure(callback, e.getCause());
+			return;
+		}
+		try {
+			callback.onSuccess(result);
+		} catch (final RuntimeException e) {
+			logger.error("Callback for router " + router.getName()
+					+ " failed", e);
+		}
+	}
+
+	private <T> void failure(final RouterCallback<T> callback,
+			final Throwable cause) {
+		try {
+			callback.onFailure(cause);
+		} catch (final RuntimeException e) {
+			logger.error("Callback for router " + router.getName()
+					+ " failed", e);
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.PortMappingKey;
+import org.chris.portmapper.model.Protocol;
+
+/**
+ * Caches the port mappings of an {@link IRouter}. The mappings are fetched
+ * from the router on the first call of {@link #getPortMappings()} and are
+ * then returned from the cache until the time to live has passed or the cache
+ * is invalidated. Mappings added or removed with this router are applied to
+ * the cached mappings instead of fetching them again.
+ * <p>
+ * Changes made by other clients of the router are only seen after the time to
+ * live or after {@link #invalidate()}, or when the router reports them to a
+ * {@link RouterEventListener} added to this router.
+ *
+ * @author chris
+ */
+public class CachingRouter implements IRouter {
+
+	/**
+	 * The default time in milliseconds the mappings are cached.
+	 */
+	public static final long DEFAULT_TTL_MILLIS = 30000;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final IRouter router;
+	private final long ttlMillis;
+
+	private Map<PortMappingKey, PortMapping> mappings;
+	private long fetchedAtNanos;
+	/**
+	 * Incremented for every change of the cache, so that mappings fetched
+	 * concurrently with a change are not cached.
+	 */
+	private long generation;
+
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	/**
+	 * The listeners added to this router with the listeners added to the
+	 * wrapped router on their behalf.
+	 */
+	private final Map<RouterEventListener, RouterEventListener> eventListeners = new HashMap<>();
+
+	/**
+	 * Create a new caching router using the {@link #DEFAULT_TTL_MILLIS}.
+	 *
+	 * @param router
+	 *            the router to use.
+	 */
+	public CachingRouter(final IRouter router) {
+		this(router, DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * @param router
+	 *            the router to use.
+	 * @param ttlMillis
+	 *            the time in milliseconds the mappings are cached.
+	 */
+	public CachingRouter(final IRouter router, final long ttlMillis) {
+		this.router = router;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @return the router whose mappings are cached.
+	 */
+	public IRouter getRouter() {
+		return router;
+	}
+
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	/**
+	 * Discard the cached mappings, so that the next call of
+	 * {@link #getPortMappings()} fetches them from the router.
+	 */
+	public synchronized void invalidate() {
+		mappings = null;
+		generation++;
+	}
+
+	/**
+	 * Fetch the mappings from the router now and cache them.
+	 *
+	 * @return the mappings.
+	 * @throws RouterException
+	 *             if the mappings could not be fetched.
+	 */
+	public Collection<PortMapping> revalidate() throws RouterException {
+		invalidate();
+		return getPortMappings();
+	}
+
+	/**
+	 * @return <code>true</code> if the mappings are cached and the time to
+	 *         live has not passed.
+	 */
+	public synchronized boolean isCacheValid() {
+		return mappings != null
+				&& (System.nanoTime() - fetchedAtNanos) / 1000000L < ttlMillis;
+	}
+
+	/**
+	 * @return the number of calls of {@link #getPortMappings()} answered from
+	 *         the cache.
+	 */
+	public int getCacheHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of calls of {@link #getPortMappings()} that fetched
+	 *         the mappings from the router.
+	 */
+	public int getCacheMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public Collection<PortMapping> getPortMappings() throws RouterException {
+		final long fetchGeneration;
+		synchronized (this) {
+			if (isCacheValid()) {
+				hits.incrementAndGet();
+				return new ArrayList<>(mappings.values());
+			}
+			fetchGeneration = generation;
+		}
+		misses.incrementAndGet();
+
+		// do not block other callers while fetching
+		final long startNanos = System.nanoTime();
+		final Collection<PortMapping> fetchedMappings = router
+				.getPortMappings();
+		final Map<PortMappingKey, PortMapping> newMappings = new LinkedHashMap<>();
+		for (final PortMapping mapping : fetchedMappings) {
+			newMappings.put(PortMappingKey.of(mapping), mapping);
+		}
+
+		synchronized (this) {
+			if (generation == fetchGeneration) {
+				mappings = newMappings;
+				fetchedAtNanos = startNanos;
+				generation++;
+			} else {
+				logger.debug("Mappings changed while fetching, do not cache them");
+			}
+		}
+		return new ArrayList<>(newMappings.values());
+	}
+
+	@Override
+	public void addPortMapping(final PortMapping mapping)
+			throws RouterException {
+		try {
+			router.addPortMapping(mapping);
+		} catch (final RouterException e) {
+			invalidate();
+			throw e;
+		}
+		synchronized (this) {
+			if (mappings != null) {
+				mappings.put(PortMappingKey.of(mapping), mapping);
+			}
+			generation++;
+		}
+	}
+
+	@Override
+	public void addPortMappings(final Collection<PortMapping> mappingsToAdd)
+			throws RouterException {
+		try {
+			router.addPortMappings(mappingsToAdd);
+		} catch (final RouterException e) {
+			// some mappings may have been added
+			invalidate();
+			throw e;
+		}
+		synchronized (this) {
+			if (mappings != null) {
+				for (final PortMapping mapping : mappingsToAdd) {
+					mappings.put(PortMappingKey.of(mapping), mapping);
+				}
+			}
+			generation++;
+		}
+	}
+
+	@Override
+	public void removeMapping(final PortMapping mapping) throws RouterException {
+		try {
+			router.removeMapping(mapping);
+		} catch (final RouterException e) {
+			invalidate();
+			throw e;
+		}
+		removeCached(PortMappingKey.of(mapping));
+	}
+
+	@Override
+	public void removePortMapping(final Protocol protocol,
+			final String remoteHost, final int externalPort)
+			throws RouterException {
+		try {
+			router.removePortMapping(protocol, remoteHost, externalPort);
+		} catch (final RouterException e) {
+			invalidate();
+			throw e;
+		}
+		removeCached(new PortMappingKey(protocol, remoteHost, externalPort));
+	}
+
+	private synchronized void removeCached(final PortMappingKey key) {
+		if (mappings != null) {
+			mappings.remove(key);
+		}
+		generation++;
+	}
+
+	@Override
+	public void addRouterEventListener(final RouterEventListener listener) {
+		final RouterEventListener invalidatingListener = new RouterEventListener() {
+			@Override
+			public void portMappingsChanged(final IRouter changedRouter,
+					final int numberOfEntries) {
+				invalidate();
+				listener.portMappingsChanged(CachingRouter.this,
+						numberOfEntries);
+			}
+
+			@Override
+			public void externalIPAddressChanged(final IRouter changedRouter,
+					final String externalIPAddress) {
+				listener.externalIPAddressChanged(CachingRouter.this,
+						externalIPAddress);
+			}
+
+			@Override
+			public void connectionStatusChanged(final IRouter changedRouter,
+					final String connectionStatus) {
+				listener.connectionStatusChanged(CachingRouter.this,
+						connectionStatus);
+			}
+		};
+		synchronized (eventListeners) {
+			if (eventListeners.containsKey(listener)) {
+				return;
+			}
+			eventListeners.put(listener, invalidatingListener);
+		}
+		router.addRouterEventListener(invalidatingListener);
+	}
+
+	@Override
+	public void removeRouterEventListener(final RouterEventListener listener) {
+		final RouterEventListener invalidatingListener;
+		synchronized (eventListeners) {
+			invalidatingListener = eventListeners.remove(listener);
+		}
+		if (invalidatingListener != null) {
+			router.removeRouterEventListener(invalidatingListener);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return router.getName();
+	}
+
+	@Override
+	public String getLocalHostAddress() throws RouterException {
+		return router.getLocalHostAddress();
+	}
+
+	@Override
+	public String getExternalIPAddress() throws RouterException {
+		return router.getExternalIPAddress();
+	}
+
+	@Override
+	public String getInternalHostName() {
+		return router.getInternalHostName();
+	}
+
+	@Override
+	public int getInternalPort() throws RouterException {
+		return router.getInternalPort();
+	}
+
+	@Override
+	public void logRouterInfo() throws RouterException {
+		router.logRouterInfo();
+	}
+
+	@Override
+	public void disconnect() {
+		invalidate();
+		logger.debug("Mapping cache had " + hits.get() + " hits and "
+				+ misses.get() + " misses");
+		router.disconnect();
+	}
+
+	@Override
+	public String toString() {
+		return router.toString();
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.chris.portmapper.model.PortMappingKey;
+
+/**
+ * The outcome of an operation applied by a {@link RouterFanOut}: a matrix with
+ * one row per router and one column per mapping.
+ *
+ * @author chris
+ */
+public class FanOutResult {
+
+	public enum Outcome {
+		/**
+		 * The router executed the operation.
+		 */
+		SUCCEEDED,
+		/**
+		 * The router reported an error, see
+		 * {@link FanOutResult#getFailure(IRouter, PortMappingKey)}.
+		 */
+		FAILED,
+		/**
+		 * The operation was not finished before the deadline and was
+		 * cancelled. The router may or may not have executed it.
+		 */
+		TIMED_OUT
+	}
+
+	private final List<IRouter> routers;
+	private final List<PortMappingKey> mappings;
+	private final Map<IRouter, Map<PortMappingKey, Outcome>> outcomes;
+	private final Map<IRouter, Map<PortMappingKey, Throwable>> failures;
+
+	FanOutResult(final List<IRouter> routers,
+			final List<PortMappingKey> mappings,
+			final Map<IRouter, Map<PortMappingKey, Outcome>> outcomes,
+			final Map<IRouter, Map<PortMappingKey, Throwable>> failures) {
+		this.routers = Collections.unmodifiableList(routers);
+		this.mappings = Collections.unmodifiableList(mappings);
+		this.outcomes = outcomes;
+		this.failures = failures;
+	}
+
+	/**
+	 * @return the routers in the order of the rows.
+	 */
+	public List<IRouter> getRouters() {
+		return routers;
+	}
+
+	/**
+	 * @return the mappings in the order of the columns.
+	 */
+	public List<PortMappingKey> getMappings() {
+		return mappings;
+	}
+
+	public Outcome getOutcome(final IRouter router, final PortMappingKey mapping) {
+		return getRow(outcomes, router).get(mapping);
+	}
+
+	/**
+	 * @return the cause of the failure or <code>null</code> if the outcome is
+	 *         not {@link Outcome#FAILED}.
+	 */
+	public Throwable getFailure(final IRouter router,
+			final PortMappingKey mapping) {
+		return getRow(failures, router).get(mapping);
+	}
+
+	/**
+	 * @return the outcomes of the given router by mapping.
+	 */
+	public Map<PortMappingKey, Outcome> getOutcomes(final IRouter router) {
+		return Collections.unmodifiableMap(getRow(outcomes, router));
+	}
+
+	/**
+	 * @return the routers that executed the operation for all mappings.
+	 */
+	public List<IRouter> getSuccessfulRouters() {
+		final List<IRouter> successful = new ArrayList<>();
+		for (final IRouter router : routers) {
+			if (!outcomes.get(router).values().contains(Outcome.FAILED)
+					&& !outcomes.get(router).values()
+							.contains(Outcome.TIMED_OUT)) {
+				successful.add(router);
+			}
+		}
+		return successful;
+	}
+
+	public boolean isSuccessful() {
+		return getSuccessfulRouters().size() == routers.size();
+	}
+
+	private <V> Map<PortMappingKey, V> getRow(
+			final Map<IRouter, Map<PortMappingKey, V>> matrix,
+			final IRouter router) {
+		final Map<PortMappingKey, V> row = matrix.get(router);
+		if (row == null) {
+			throw new IllegalArgumentException("Unknown router "
+					+ router.getName());
+		}
+		return row;
+	}
+
+	/**
+	 * @return the matrix with one line per router and the failures below.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder b = new StringBuilder();
+		int nameWidth = "router".length();
+		for (final IRouter router : routers) {
+			nameWidth = Math.max(nameWidth, router.toString().length());
+		}
+		final String cellFormat = "  %-10s";
+		b.append(String.format("%-" + nameWidth + "s", "router"));
+		for (final PortMappingKey mapping : mappings) {
+			b.append(String.format(cellFormat, mapping.getProtocol() + "/"
+					+ mapping.getExternalPort()));
+		}
+		final Map<String, Throwable> failed = new LinkedHashMap<>();
+		for (final IRouter router : routers) {
+			b.append(String.format("%n%-" + nameWidth + "s", router));
+			for (final PortMappingKey mapping : mappings) {
+				b.append(String.format(cellFormat,
+						getOutcome(router, mapping)));
+				final Throwable failure = getFailure(router, mapping);
+				if (failure != null) {
+					failed.put(router + " " + mapping.getProtocol() + "/"
+							+ mapping.getExternalPort(), failure);
+				}
+			}
+		}
+		for (final Map.Entry<String, Throwable> failure : failed.entrySet()) {
+			b.append(String.format("%n%s: %s", failure.getKey(), failure
+					.getValue().getMessage()));
+		}
+		return b.toString();
+	}
+}
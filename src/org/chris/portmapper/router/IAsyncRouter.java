@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+import java.util.Collection;
+import java.util.concurrent.Future;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+
+/**
+ * The asynchronous companion of {@link IRouter}. All operations return
+ * immediately and are executed in the background. The result is available via
+ * the returned {@link Future} and is additionally passed to an optional
+ * {@link RouterCallback}. If an operation fails, {@link Future#get()} throws
+ * an {@link java.util.concurrent.ExecutionException} with the
+ * {@link RouterException} as cause.
+ *
+ * @author chris
+ */
+public interface IAsyncRouter {
+
+	/**
+	 * @return the router used for executing the operations.
+	 */
+	public IRouter getRouter();
+
+	/**
+	 * Get the external IP of the router.
+	 *
+	 * @param callback
+	 *            the callback to notify or <code>null</code>.
+	 * @return the future external IP of the router.
+	 */
+	public Future<String> getExternalIPAddress(RouterCallback<String> callback);
+
+	/**
+	 * Get all port mappings from the router.
+	 *
+	 * @param callback
+	 *            the callback to notify or <code>null</code>.
+	 * @return the future port mappings.
+	 */
+	public Future<Collection<PortMapping>> getPortMappings(
+			RouterCallback<Collection<PortMapping>> callback);
+
+	/**
+	 * Write information about the router to the log.
+	 *
+	 * @param callback
+	 *            the callback to notify or <code>null</code>.
+	 * @return a future completed when the information was written.
+	 */
+	public Future<Void> logRouterInfo(RouterCallback<Void> callback);
+
+	/**
+	 * Add the given port mapping to the router.
+	 *
+	 * @param mapping
+	 *            the port mapping to add.
+	 * @param callback
+	 *            the callback to notify or <code>null</code>.
+	 * @return a future completed when the port mapping was added.
+	 */
+	public Future<Void> addPortMapping(PortMapping mapping,
+			RouterCallback<Void> callback);
+
+	/**
+	 * Add the given port mappings to the router.
+	 *
+	 * @param mappings
+	 *            the port mappings to add.
+	 * @param callback
+	 *            the callback to notify or <code>null</code>.
+	 * @return a future completed when the port mappings were added.
+	 */
+	public Future<Void> addPortMappings(Collection<PortMapping> mappings,
+			RouterCallback<Void> callback);
+
+	/**
+	 * Remove the given port mapping from the router.
+	 *
+	 * @param mapping
+	 *            the port mapping to remove.
+	 * @param callback
+	 *            the callback to notify or <code>null</code>.
+	 * @return a future completed when the port mapping was removed.
+	 */
+	public Future<Void> removeMapping(PortMapping mapping,
+			RouterCallback<Void> callback);
+
+	/**
+	 * Remove the port mapping with the given data from the router.
+	 *
+	 * @param protocol
+	 * @param remoteHost
+	 * @param externalPort
+	 * @param callback
+	 *            the callback to notify or <code>null</code>.
+	 * @return a future completed when the port mapping was removed.
+	 */
+	public Future<Void> removePortMapping(Protocol protocol,
+			String remoteHost, int externalPort, RouterCallback<Void> callback);
+
+	/**
+	 * Stop accepting new operations. Operations already submitted are still
+	 * executed. The router is not disconnected.
+	 */
+	public void shutdown();
+}
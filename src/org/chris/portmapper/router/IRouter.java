@@ -106,6 +106,26 @@ public interface IRouter {
 	public abstract void removePortMapping(Protocol protocol,
 			String remoteHost, int externalPort) throws RouterException;
 
+	/**
+	 * Add a listener for changes of the router made by this or other hosts.
+	 * Routers that support UPnP eventing send the changes, other routers are
+	 * polled while at least one listener is registered.
+	 * 
+	 * @param listener
+	 *            the listener to add.
+	 */
+	public abstract void addRouterEventListener(RouterEventListener listener);
+
+	/**
+	 * Remove a listener added with
+	 * {@link #addRouterEventListener(RouterEventListener)}.
+	 * 
+	 * @param listener
+	 *            the listener to remove.
+	 */
+	public abstract void removeRouterEventListener(
+			RouterEventListener listener);
+
 	/**
 	 * Disconnect from the router.
 	 */
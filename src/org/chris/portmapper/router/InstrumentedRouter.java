@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+import java.util.Collection;
+
+import net.sbbi.upnp.messages.UPNPResponseException;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.wetorrent.upnp.ActionMetrics;
+
+/**
+ * Records the number of calls, the errors and the latencies of every method
+ * of an {@link IRouter} that talks to the router. Errors are counted by the
+ * UPnP error code of the router if it is known, see
+ * {@link ActionMetrics#getErrorCode(Throwable)}.
+ * <p>
+ * The metrics of the SOAP actions sent by the wrapped router, if the router
+ * records them, are available with {@link #getProtocolMetrics()}.
+ *
+ * @author chris
+ */
+public class InstrumentedRouter implements IRouter {
+
+	private final IRouter router;
+	private final ActionMetrics metrics = new ActionMetrics();
+
+	/**
+	 * @param router
+	 *            the router to instrument.
+	 */
+	public InstrumentedRouter(final IRouter router) {
+		this.router = router;
+	}
+
+	/**
+	 * @return the instrumented router.
+	 */
+	public IRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * @return the statistics of the {@link IRouter} methods by name.
+	 */
+	public ActionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the statistics of the SOAP actions sent by the wrapped router
+	 *         or <code>null</code> if the router does not record them.
+	 */
+	public ActionMetrics getProtocolMetrics() {
+		if (router instanceof AbstractRouter) {
+			return ((AbstractRouter) router).getProtocolMetrics();
+		}
+		return null;
+	}
+
+	@Override
+	public String getLocalHostAddress() throws RouterException {
+		final long start = System.nanoTime();
+		try {
+			final String address = router.getLocalHostAddress();
+			metrics.recordSuccess("getLocalHostAddress", start);
+			return address;
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError("getLocalHostAddress", start, getErrorCode(e));
+			throw e;
+		}
+	}
+
+	@Override
+	public String getExternalIPAddress() throws RouterException {
+		final long start = System.nanoTime();
+		try {
+			final String address = router.getExternalIPAddress();
+			metrics.recordSuccess("getExternalIPAddress", start);
+			return address;
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError("getExternalIPAddress", start, getErrorCode(e));
+			throw e;
+		}
+	}
+
+	@Override
+	public int getInternalPort() throws RouterException {
+		final long start = System.nanoTime();
+		try {
+			final int port = router.getInternalPort();
+			metrics.recordSuccess("getInternalPort", start);
+			return port;
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError("getInternalPort", start, getErrorCode(e));
+			throw e;
+		}
+	}
+
+	@Override
+	public Collection<PortMapping> getPortMappings() throws RouterException {
+		final long start = System.nanoTime();
+		try {
+			final Collection<PortMapping> mappings = router.getPortMappings();
+			metrics.recordSuccess("getPortMappings", start);
+			return mappings;
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError("getPortMappings", start, getErrorCode(e));
+			throw e;
+		}
+	}
+
+	@Override
+	public void logRouterInfo() throws RouterException {
+		final long start = System.nanoTime();
+		try {
+			router.logRouterInfo();
+			metrics.recordSuccess("logRouterInfo", start);
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError("logRouterInfo", start, getErrorCode(e));
+			throw e;
+		}
+	}
+
+	@Override
+	public void addPortMappings(final Collection<PortMapping> mappings)
+			throws RouterException {
+		final long start = System.nanoTime();
+		try {
+			router.addPortMappings(mappings);
+			metrics.recordSuccess("addPortMappings", start);
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError("addPortMappings", start, getErrorCode(e));
+			throw e;
+		}
+	}
+
+	@Override
+	public void addPortMapping(final PortMapping mapping)
+			throws RouterException {
+		final long start = System.nanoTime();
+		try {
+			router.addPortMapping(mapping);
+			metrics.recordSuccess("addPortMapping", start);
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError("addPortMapping", start, getErrorCode(e));
+			throw e;
+		}
+	}
+
+	@Override
+	public void removeMapping(final PortMapping mapping)
+			throws RouterException {
+		final long start = System.nanoTime();
+		try {
+			router.removeMapping(mapping);
+			metrics.recordSuccess("removeMapping", start);
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError("removeMapping", start, getErrorCode(e));
+			throw e;
+		}
+	}
+
+	@Override
+	public void removePortMapping(final Protocol protocol,
+			final String remoteHost, final int externalPort)
+			throws RouterException {
+		final long start = System.nanoTime();
+		try {
+			router.removePortMapping(protocol, remoteHost, externalPort);
+			metrics.recordSuccess("removePortMapping", start);
+		} catch (final RouterException | RuntimeException e) {
+			metrics.recordError("removePortMapping", start, getErrorCode(e));
+			throw e;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return router.getName();
+	}
+
+	@Override
+	public String getInternalHostName() {
+		return router.getInternalHostName();
+	}
+
+	@Override
+	public void addRouterEventListener(final RouterEventListener listener) {
+		router.addRouterEventListener(listener);
+	}
+
+	@Override
+	public void removeRouterEventListener(final RouterEventListener listener) {
+		router.removeRouterEventListener(listener);
+	}
+
+	@Override
+	public void disconnect() {
+		router.disconnect();
+	}
+
+	/**
+	 * Get the error code of a failed call: the UPnP error code returned by
+	 * SBBI or weupnp, else a description of the failure.
+	 */
+	public static String getErrorCode(final Exception failure) {
+		if (failure instanceof RuntimeException) {
+			return failure.getClass().getSimpleName();
+		}
+		for (Throwable cause = failure; cause != null; cause = cause
+				.getCause()) {
+			if (cause instanceof UPNPResponseException) {
+				return String.valueOf(((UPNPResponseException) cause)
+						.getDetailErrorCode());
+			}
+		}
+		return ActionMetrics.getErrorCode(failure);
+	}
+
+	@Override
+	public String toString() {
+		return router.toString();
+	}
+}
@@ -0,0 +1,419 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.PortMappingKey;
+import org.chris.portmapper.util.NamedThreadFactory;
+import org.chris.portmapper.util.TimingWheel;
+import org.wetorrent.upnp.LatencyTracker;
+
+/**
+ * Keeps port mappings with a finite lease alive by adding them again before
+ * the lease expires. Many routers refuse permanent mappings or forget them on
+ * reboot, a renewed lease survives both.
+ * <p>
+ * Renewals are scheduled on a {@link TimingWheel} between
+ * {@link #EARLIEST_RENEWAL} and {@link #LATEST_RENEWAL} of the lease, at a
+ * random point so that mappings added at the same time are not renewed in a
+ * burst. At most {@link #DEFAULT_MAX_CONCURRENT_RENEWALS} requests are sent to
+ * the router at the same time. A failed renewal is retried while the lease is
+ * still valid and afterwards every {@link #MAX_RETRY_DELAY_MILLIS}.
+ * <p>
+ * A renewal and the removal of its mapping do not overlap, so that a mapping
+ * is not added again after it was removed.
+ *
+ * @author chris
+ */
+public class LeaseRenewalScheduler implements LeaseRenewalSchedulerMXBean {
+
+	/**
+	 * The earliest renewal as a fraction of the lease duration.
+	 */
+	public static final double EARLIEST_RENEWAL = 0.6;
+
+	/**
+	 * The latest renewal as a fraction of the lease duration.
+	 */
+	public static final double LATEST_RENEWAL = 0.75;
+
+	public static final int DEFAULT_MAX_CONCURRENT_RENEWALS = 2;
+
+	/**
+	 * The shortest supported lease, shorter leases would be renewed almost
+	 * continuously.
+	 */
+	public static final int MIN_LEASE_SECONDS = 10;
+
+	public static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+	static final long TICK_MILLIS = 500;
+	private static final int WHEEL_SIZE = 512;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final IRouter router;
+	private final int leaseSeconds;
+	private final ExecutorService executor;
+	private final TimingWheel wheel;
+	private final Random random = new Random();
+
+	private final Map<PortMappingKey, Lease> leases = new ConcurrentHashMap<>();
+
+	private final AtomicLong renewals = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong expiredLeases = new AtomicLong();
+	private final LatencyTracker renewalLatency = new LatencyTracker();
+
+	public LeaseRenewalScheduler(final IRouter router, final int leaseSeconds) {
+		this(router, leaseSeconds, DEFAULT_MAX_CONCURRENT_RENEWALS);
+	}
+
+	/**
+	 * @param router
+	 *            the router to add the mappings to.
+	 * @param leaseSeconds
+	 *            the lease duration of the mappings in seconds.
+	 * @param maxConcurrentRenewals
+	 *            the maximum number of renewals sent to the router at the
+	 *            same time.
+	 */
+	public LeaseRenewalScheduler(final IRouter router, final int leaseSeconds,
+			final int maxConcurrentRenewals) {
+		this(router, leaseSeconds, Executors.newFixedThreadPool(
+				maxConcurrentRenewals, new NamedThreadFactory("lease-renewal")));
+	}
+
+	private LeaseRenewalScheduler(final IRouter router,
+			final int leaseSeconds, final ExecutorService executor) {
+		this(router, leaseSeconds, executor, new TimingWheel(TICK_MILLIS,
+				TimeUnit.MILLISECONDS, WHEEL_SIZE, executor,
+				new NamedThreadFactory("lease-wheel")));
+	}
+
+	/**
+	 * Create a scheduler using the given wheel, which must run its tasks
+	 * with the given executor. Used by tests to control the time.
+	 */
+	LeaseRenewalScheduler(final IRouter router, final int leaseSeconds,
+			final ExecutorService executor, final TimingWheel wheel) {
+		if (leaseSeconds < MIN_LEASE_SECONDS) {
+			executor.shutdownNow();
+			throw new IllegalArgumentException("Lease must be at least "
+					+ MIN_LEASE_SECONDS + " seconds but was " + leaseSeconds);
+		}
+		this.router = router;
+		this.leaseSeconds = leaseSeconds;
+		this.executor = executor;
+		this.wheel = wheel;
+	}
+
+	public void start() {
+		wheel.start();
+	}
+
+	/**
+	 * Stop renewing the mappings.
+	 *
+	 * @param removeMappings
+	 *            <code>true</code> to remove the mappings from the router,
+	 *            <code>false</code> to let their leases expire.
+	 */
+	public void stop(final boolean removeMappings) {
+		wheel.stop();
+		executor.shutdownNow();
+		for (final Lease lease : new ArrayList<>(leases.values())) {
+			if (!removeMappings) {
+				lease.cancel();
+				continue;
+			}
+			try {
+				lease.cancelAndRemove(lease.mapping);
+			} catch (final RouterException e) {
+				logger.warn("Could not remove mapping "
+						+ lease.mapping.getCompleteDescription(), e);
+			}
+		}
+		leases.clear();
+	}
+
+	/**
+	 * Add the given mapping with a finite lease and renew it until it is
+	 * removed.
+	 *
+	 * @param mapping
+	 *            the mapping to add.
+	 * @throws RouterException
+	 *             if the mapping could not be added, it is not renewed then.
+	 */
+	public void add(final PortMapping mapping) throws RouterException {
+		final PortMapping leasedMapping = mapping
+				.withLeaseDuration(leaseSeconds);
+		final long startNanos = nanoTime();
+		router.addPortMapping(leasedMapping);
+		final Lease lease = new Lease(leasedMapping, startNanos);
+		final Lease previous = leases.put(PortMappingKey.of(mapping), lease);
+		if (previous != null) {
+			previous.cancel();
+		}
+		scheduleRenewal(lease);
+		logger.info("Added mapping " + mapping.getCompleteDescription()
+				+ " with a lease of " + leaseSeconds + " seconds");
+	}
+
+	/**
+	 * Add the given mappings, see {@link #add(PortMapping)}.
+	 *
+	 * @return the mappings that could not be added.
+	 */
+	public List<PortMapping> addAll(final Collection<PortMapping> mappings) {
+		final List<PortMapping> failed = new ArrayList<>();
+		for (final PortMapping mapping : mappings) {
+			try {
+				add(mapping);
+			} catch (final RouterException e) {
+				logger.error("Could not add mapping "
+						+ mapping.getCompleteDescription(), e);
+				failed.add(mapping);
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Stop renewing the given mapping and remove it from the router.
+	 *
+	 * @param mapping
+	 *            the mapping to remove.
+	 * @throws RouterException
+	 *             if the mapping could not be removed.
+	 */
+	public void remove(final PortMapping mapping) throws RouterException {
+		final Lease lease = leases.remove(PortMappingKey.of(mapping));
+		if (lease != null) {
+			lease.cancelAndRemove(mapping);
+		} else {
+			router.removeMapping(mapping);
+		}
+	}
+
+	/**
+	 * @return the mappings that are currently renewed.
+	 */
+	public List<PortMapping> getMappings() {
+		final List<PortMapping> mappings = new ArrayList<>();
+		for (final Lease lease : leases.values()) {
+			mappings.add(lease.mapping);
+		}
+		return mappings;
+	}
+
+	@Override
+	public int getLeaseSeconds() {
+		return leaseSeconds;
+	}
+
+	@Override
+	public int getLeaseCount() {
+		return leases.size();
+	}
+
+	/**
+	 * @return the number of successful renewals.
+	 */
+	@Override
+	public long getRenewals() {
+		return renewals.get();
+	}
+
+	/**
+	 * @return the number of failed renewals.
+	 */
+	@Override
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return the number of leases that expired before they could be
+	 *         renewed.
+	 */
+	@Override
+	public long getExpiredLeases() {
+		return expiredLeases.get();
+	}
+
+	@Override
+	public long getRenewalLatencyP50Millis() {
+		return renewalLatency.getPercentileMillis(50);
+	}
+
+	@Override
+	public long getRenewalLatencyP99Millis() {
+		return renewalLatency.getPercentileMillis(99);
+	}
+
+	/**
+	 * @return the latencies of the latest successful renewals.
+	 */
+	public LatencyTracker getRenewalLatency() {
+		return renewalLatency;
+	}
+
+	/**
+	 * Get the delay until the renewal of a lease that was just granted. The
+	 * delay is chosen at random between {@link #EARLIEST_RENEWAL} and
+	 * {@link #LATEST_RENEWAL} of the lease to spread the renewals.
+	 *
+	 * @return the delay in milliseconds.
+	 */
+	long getRenewalDelayMillis() {
+		final long leaseMillis = leaseSeconds * 1000L;
+		final double fraction = EARLIEST_RENEWAL
+				+ (LATEST_RENEWAL - EARLIEST_RENEWAL) * random.nextDouble();
+		return (long) (leaseMillis * fraction);
+	}
+
+	/**
+	 * Get the delay until a failed renewal is retried: a quarter of the
+	 * remaining lease, so that several retries fit before it expires, but at
+	 * most {@link #MAX_RETRY_DELAY_MILLIS}.
+	 *
+	 * @param remainingMillis
+	 *            the time until the lease expires.
+	 * @return the delay in milliseconds.
+	 */
+	static long getRetryDelayMillis(final long remainingMillis) {
+		if (remainingMillis <= 0) {
+			return MAX_RETRY_DELAY_MILLIS;
+		}
+		return Math.max(TICK_MILLIS,
+				Math.min(MAX_RETRY_DELAY_MILLIS, remainingMillis / 4));
+	}
+
+	private void scheduleRenewal(final Lease lease) {
+		lease.schedule(getRenewalDelayMillis());
+	}
+
+	private void renew(final Lease lease) {
+		// a removal waits until the renewal is finished
+		synchronized (lease) {
+			if (!lease.cancelled) {
+				renewLocked(lease);
+			}
+		}
+	}
+
+	private void renewLocked(final Lease lease) {
+		final long startNanos = nanoTime();
+		try {
+			router.addPortMapping(lease.mapping);
+		} catch (final RouterException | RuntimeException e) {
+			failures.incrementAndGet();
+			final long remainingMillis = (lease.expiresAtNanos - nanoTime())
+					/ 1000000L;
+			if (remainingMillis <= 0 && !lease.expired) {
+				lease.expired = true;
+				expiredLeases.incrementAndGet();
+			}
+			final long retryDelayMillis = getRetryDelayMillis(remainingMillis);
+			logger.warn("Could not renew mapping "
+					+ lease.mapping.getCompleteDescription() + ", lease "
+					+ (remainingMillis > 0 ? "expires in " + remainingMillis
+							+ " ms" : "has expired") + ", retrying in "
+					+ retryDelayMillis + " ms: " + e.getMessage(), e);
+			lease.schedule(retryDelayMillis);
+			return;
+		}
+		final long latencyMillis = (nanoTime() - startNanos) / 1000000L;
+		renewalLatency.record(latencyMillis);
+		renewals.incrementAndGet();
+		lease.renewed(startNanos);
+		logger.debug("Renewed mapping "
+				+ lease.mapping.getCompleteDescription() + " in "
+				+ latencyMillis + " ms");
+		scheduleRenewal(lease);
+	}
+
+	/**
+	 * @return the current time in nanoseconds, overridden by tests.
+	 */
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public String toString() {
+		return "[LeaseRenewalScheduler: " + leases.size() + " leases of "
+				+ leaseSeconds + " s, renewals " + renewals.get()
+				+ ", failures " + failures.get() + ", expired "
+				+ expiredLeases.get() + ", latency " + renewalLatency + "]";
+	}
+
+	/**
+	 * The lease of a mapping and its pending renewal.
+	 */
+	private class Lease implements Runnable {
+
+		private final PortMapping mapping;
+		private volatile long expiresAtNanos;
+		private volatile boolean expired;
+		private volatile boolean cancelled;
+		private TimingWheel.Timeout timeout;
+
+		private Lease(final PortMapping mapping, final long grantedAtNanos) {
+			this.mapping = mapping;
+			renewed(grantedAtNanos);
+		}
+
+		private void renewed(final long grantedAtNanos) {
+			// measured from the request, the router may grant it later
+			expiresAtNanos = grantedAtNanos
+					+ TimeUnit.SECONDS.toNanos(leaseSeconds);
+			expired = false;
+		}
+
+		private synchronized void schedule(final long delayMillis) {
+			if (!cancelled) {
+				timeout = wheel.schedule(this, delayMillis,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private synchronized void cancel() {
+			cancelled = true;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+
+		/**
+		 * Cancel the renewals and remove the given mapping from the router
+		 * after a running renewal is finished.
+		 */
+		private synchronized void cancelAndRemove(
+				final PortMapping removedMapping) throws RouterException {
+			cancel();
+			router.removeMapping(removedMapping);
+		}
+
+		@Override
+		public void run() {
+			renew(this);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+/**
+ * The management interface of {@link LeaseRenewalScheduler}.
+ *
+ * @author chris
+ */
+public interface LeaseRenewalSchedulerMXBean {
+
+	public int getLeaseSeconds();
+
+	/**
+	 * @return the number of mappings that are currently renewed.
+	 */
+	public int getLeaseCount();
+
+	public long getRenewals();
+
+	public long getFailures();
+
+	public long getExpiredLeases();
+
+	/**
+	 * @return the median latency of the latest successful renewals or
+	 *         <code>-1</code> if there were no renewals yet.
+	 */
+	public long getRenewalLatencyP50Millis();
+
+	/**
+	 * @return the 99th percentile of the latency of the latest successful
+	 *         renewals or <code>-1</code> if there were no renewals yet.
+	 */
+	public long getRenewalLatencyP99Millis();
+}
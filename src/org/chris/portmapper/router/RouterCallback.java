@@ -0,0 +1,36 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+/**
+ * A callback notified when an operation of an {@link IAsyncRouter} is
+ * finished. The methods are called by the thread that executed the operation,
+ * so implementations that update the user interface must hand over the result
+ * to the event dispatch thread.
+ *
+ * @param <T>
+ *            the type of the result of the operation.
+ * @author chris
+ */
+public interface RouterCallback<T> {
+
+	/**
+	 * Called when the operation completed successfully.
+	 *
+	 * @param result
+	 *            the result of the operation, <code>null</code> for operations
+	 *            without result.
+	 */
+	public void onSuccess(T result);
+
+	/**
+	 * Called when the operation failed or was cancelled.
+	 *
+	 * @param cause
+	 *            the {@link RouterException} or runtime exception thrown by
+	 *            the router or a
+	 *            {@link java.util.concurrent.CancellationException}.
+	 */
+	public void onFailure(Throwable cause);
+}
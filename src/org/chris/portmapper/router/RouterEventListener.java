@@ -0,0 +1,46 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+/**
+ * Is informed about changes of a router made by this or any other host. See
+ * {@link IRouter#addRouterEventListener(RouterEventListener)}.
+ *
+ * @author chris
+ */
+public interface RouterEventListener {
+
+	/**
+	 * The port mappings of the router have changed.
+	 *
+	 * @param router
+	 *            the router.
+	 * @param numberOfEntries
+	 *            the new number of port mappings or <code>-1</code> if
+	 *            unknown.
+	 */
+	public void portMappingsChanged(IRouter router, int numberOfEntries);
+
+	/**
+	 * The external IP address of the router has changed.
+	 *
+	 * @param router
+	 *            the router.
+	 * @param externalIPAddress
+	 *            the new external IP address.
+	 */
+	public void externalIPAddressChanged(IRouter router,
+			String externalIPAddress);
+
+	/**
+	 * The connection status of the router has changed. Only reported by
+	 * routers that send events.
+	 *
+	 * @param router
+	 *            the router.
+	 * @param connectionStatus
+	 *            the new connection status, e.g. <code>Connected</code>.
+	 */
+	public void connectionStatusChanged(IRouter router, String connectionStatus);
+}
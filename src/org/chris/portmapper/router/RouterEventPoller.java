@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.util.NamedThreadFactory;
+
+/**
+ * Detects changes of a router that does not send events by fetching the port
+ * mappings and the external IP address periodically. The first poll only
+ * records the current state, changes are reported from the second poll on.
+ *
+ * @author chris
+ */
+class RouterEventPoller {
+
+	/**
+	 * The system property for the polling interval in milliseconds.
+	 */
+	static final String INTERVAL_MILLIS_SYSTEM_PROPERTY = "portmapper.events.pollMillis";
+	static final long DEFAULT_INTERVAL_MILLIS = 30000;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final AbstractRouter router;
+	private final long intervalMillis;
+	private ScheduledExecutorService executor;
+
+	private Set<String> lastMappings;
+	private String lastExternalIPAddress;
+
+	RouterEventPoller(final AbstractRouter router) {
+		this(router, getIntervalMillis());
+	}
+
+	RouterEventPoller(final AbstractRouter router, final long intervalMillis) {
+		this.router = router;
+		this.intervalMillis = intervalMillis;
+	}
+
+	synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		logger.debug("Polling router " + router.getName() + " every "
+				+ intervalMillis + " ms");
+		executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+				"router-poller"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	void poll() {
+		try {
+			final Set<String> mappings = new HashSet<>();
+			for (final PortMapping mapping : router.getPortMappings()) {
+				mappings.add(mapping.getCompleteDescription());
+			}
+			if (lastMappings != null && !lastMappings.equals(mappings)) {
+				router.firePortMappingsChanged(mappings.size());
+			}
+			lastMappings = mappings;
+		} catch (final RouterException | RuntimeException e) {
+			logger.debug("Could not poll port mappings of router "
+					+ router.getName(), e);
+		}
+		try {
+			final String externalIPAddress = router.getExternalIPAddress();
+			if (lastExternalIPAddress != null && externalIPAddress != null
+					&& !lastExternalIPAddress.equals(externalIPAddress)) {
+				router.fireExternalIPAddressChanged(externalIPAddress);
+			}
+			if (externalIPAddress != null) {
+				lastExternalIPAddress = externalIPAddress;
+			}
+		} catch (final RouterException | RuntimeException e) {
+			logger.debug("Could not poll external IP address of router "
+					+ router.getName(), e);
+		}
+	}
+
+	private static long getIntervalMillis() {
+		final String value = System.getProperty(INTERVAL_MILLIS_SYSTEM_PROPERTY);
+		if (value == null) {
+			return DEFAULT_INTERVAL_MILLIS;
+		}
+		try {
+			final long intervalMillis = Long.parseLong(value.trim());
+			if (intervalMillis > 0) {
+				return intervalMillis;
+			}
+		} catch (final NumberFormatException e) {
+			// use default
+		}
+		LogFactory.getLog(RouterEventPoller.class).warn(
+				"Invalid value '" + value + "' for system property "
+						+ INTERVAL_MILLIS_SYSTEM_PROPERTY + ", using "
+						+ DEFAULT_INTERVAL_MILLIS);
+		return DEFAULT_INTERVAL_MILLIS;
+	}
+}
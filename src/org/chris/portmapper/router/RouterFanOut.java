@@ -0,0 +1,343 @@
+/**
+ *
+ */
+package org.chris.portmapper.router;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.PortMappingKey;
+import org.chris.portmapper.model.PortMappingPreset;
+import org.chris.portmapper.model.SinglePortMapping;
+import org.chris.portmapper.router.FanOutResult.Outcome;
+import org.chris.portmapper.util.NamedThreadFactory;
+import org.wetorrent.upnp.Deadline;
+
+/**
+ * Applies the same operation to several routers at the same time, e.g. to
+ * the redundant gateways of a site. Each router gets its own pool of
+ * threads, so that a slow router does not delay the others, and the number
+ * of requests sent to a single router at the same time is limited.
+ * <p>
+ * All operations share an overall deadline. It is carried to the threads
+ * sending the requests, see {@link Deadline}. Operations that are not
+ * finished at the deadline are cancelled and reported as
+ * {@link Outcome#TIMED_OUT}.
+ *
+ * @author chris
+ */
+public class RouterFanOut {
+
+	/**
+	 * The default number of requests sent to one router at the same time.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_ROUTER = AsyncRouterAdapter.DEFAULT_THREADS;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final List<IRouter> routers;
+	private final int maxConcurrentRequestsPerRouter;
+
+	public RouterFanOut(final List<IRouter> routers) {
+		this(routers, DEFAULT_MAX_CONCURRENT_REQUESTS_PER_ROUTER);
+	}
+
+	/**
+	 * @param routers
+	 *            the routers to change.
+	 * @param maxConcurrentRequestsPerRouter
+	 *            the maximum number of requests sent to one router at the
+	 *            same time.
+	 */
+	public RouterFanOut(final List<IRouter> routers,
+			final int maxConcurrentRequestsPerRouter) {
+		if (routers.isEmpty()) {
+			throw new IllegalArgumentException("Need at least one router");
+		}
+		if (maxConcurrentRequestsPerRouter < 1) {
+			throw new IllegalArgumentException(
+					"Need at least one concurrent request but got "
+							+ maxConcurrentRequestsPerRouter);
+		}
+		this.routers = new ArrayList<>(routers);
+		this.maxConcurrentRequestsPerRouter = maxConcurrentRequestsPerRouter;
+	}
+
+	public List<IRouter> getRouters() {
+		return routers;
+	}
+
+	/**
+	 * Add the given mappings to all routers.
+	 *
+	 * @param mappings
+	 *            the mappings to add.
+	 * @param timeout
+	 *            the time until the deadline of the whole operation.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return the outcome for every router and mapping.
+	 */
+	public FanOutResult addPortMappings(final Collection<PortMapping> mappings,
+			final long timeout, final TimeUnit unit) {
+		final List<PortMapping> list = new ArrayList<>(mappings);
+		return execute("add", getKeys(list), new MappingSource() {
+			@Override
+			public List<PortMapping> getPortMappings(final IRouter router) {
+				return list;
+			}
+		}, timeout, unit);
+	}
+
+	/**
+	 * Add the mappings of the given preset to all routers. If the preset uses
+	 * the local host as internal client, the address of the local host is
+	 * determined for every router, as it may differ between the networks of
+	 * the routers.
+	 *
+	 * @param preset
+	 *            the preset to add.
+	 * @param timeout
+	 *            the time until the deadline of the whole operation.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return the outcome for every router and mapping.
+	 */
+	public FanOutResult addPreset(final PortMappingPreset preset,
+			final long timeout, final TimeUnit unit) {
+		return execute("add preset " + preset, getKeys(preset),
+				new MappingSource() {
+					@Override
+					public List<PortMapping> getPortMappings(
+							final IRouter router) throws RouterException {
+						return preset.getPortMappings(preset
+								.useLocalhostAsInternalClient() ? router
+								.getLocalHostAddress() : null);
+					}
+				}, timeout, unit);
+	}
+
+	/**
+	 * Remove the given mappings from all routers.
+	 *
+	 * @param mappings
+	 *            the mappings to remove, only protocol, remote host and
+	 *            external port are used.
+	 * @param timeout
+	 *            the time until the deadline of the whole operation.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return the outcome for every router and mapping.
+	 */
+	public FanOutResult removePortMappings(
+			final Collection<PortMapping> mappings, final long timeout,
+			final TimeUnit unit) {
+		return execute("remove", getKeys(new ArrayList<>(mappings)), null,
+				timeout, unit);
+	}
+
+	/**
+	 * Remove the mappings of the given preset from all routers.
+	 *
+	 * @param preset
+	 *            the preset to remove.
+	 * @param timeout
+	 *            the time until the deadline of the whole operation.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return the outcome for every router and mapping.
+	 */
+	public FanOutResult removePreset(final PortMappingPreset preset,
+			final long timeout, final TimeUnit unit) {
+		return execute("remove preset " + preset, getKeys(preset), null,
+				timeout, unit);
+	}
+
+	/**
+	 * @param source
+	 *            the mappings to add or <code>null</code> to remove the
+	 *            mappings with the given keys.
+	 */
+	private FanOutResult execute(final String operation,
+			final List<PortMappingKey> keys, final MappingSource source,
+			final long timeout, final TimeUnit unit) {
+		logger.info("Applying " + operation + " of " + keys.size()
+				+ " mappings to " + routers.size() + " routers");
+		final Deadline deadline = Deadline.after(timeout, unit);
+		final Map<IRouter, ConcurrentMap<PortMappingKey, Outcome>> outcomes = new LinkedHashMap<>();
+		final Map<IRouter, ConcurrentMap<PortMappingKey, Throwable>> failures = new LinkedHashMap<>();
+		for (final IRouter router : routers) {
+			outcomes.put(router, new ConcurrentHashMap<PortMappingKey, Outcome>());
+			failures.put(router,
+					new ConcurrentHashMap<PortMappingKey, Throwable>());
+		}
+
+		final ExecutorService coordinators = Executors.newFixedThreadPool(
+				routers.size(), new NamedThreadFactory("fan-out"));
+		try {
+			final List<Future<?>> rows = new ArrayList<>();
+			for (final IRouter router : routers) {
+				rows.add(coordinators.submit(new Runnable() {
+					@Override
+					public void run() {
+						executeRow(router, keys, source, deadline,
+								outcomes.get(router), failures.get(router));
+					}
+				}));
+			}
+			for (final Future<?> row : rows) {
+				try {
+					row.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+				} catch (final TimeoutException | CancellationException e) {
+					row.cancel(true);
+				} catch (final ExecutionException e) {
+					logger.error("Fan-out to a router failed", e.getCause());
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		} finally {
+			coordinators.shutdownNow();
+		}
+
+		// operations of rows that did not finish in time
+		for (final IRouter router : routers) {
+			for (final PortMappingKey key : keys) {
+				outcomes.get(router).putIfAbsent(key, Outcome.TIMED_OUT);
+			}
+		}
+		final FanOutResult result = new FanOutResult(new ArrayList<>(routers),
+				keys, copy(outcomes), copy(failures));
+		logger.info("Applied " + operation + " to "
+				+ result.getSuccessfulRouters().size() + " of "
+				+ routers.size() + " routers:\n" + result);
+		return result;
+	}
+
+	/**
+	 * Execute the operation for one router. The outcomes are only set if
+	 * they are not yet set, so that an outcome does not change after the
+	 * result was created at the deadline.
+	 */
+	@SuppressWarnings("try")
+	private void executeRow(final IRouter router,
+			final List<PortMappingKey> keys, final MappingSource source,
+			final Deadline deadline,
+			final ConcurrentMap<PortMappingKey, Outcome> outcomes,
+			final Map<PortMappingKey, Throwable> failures) {
+		final ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(maxConcurrentRequestsPerRouter, Math.max(1,
+						keys.size())), new NamedThreadFactory("fan-out-"
+						+ router.getName()));
+		final AsyncRouterAdapter asyncRouter = new AsyncRouterAdapter(router,
+				executor);
+		try {
+			final Map<PortMappingKey, Future<Void>> operations = new LinkedHashMap<>();
+			try (Deadline.Scope scope = deadline.enter()) {
+				if (source != null) {
+					for (final PortMapping mapping : source
+							.getPortMappings(router)) {
+						operations.put(PortMappingKey.of(mapping),
+								asyncRouter.addPortMapping(mapping, null));
+					}
+				} else {
+					for (final PortMappingKey key : keys) {
+						operations.put(key, asyncRouter.removePortMapping(
+								key.getProtocol(), key.getRemoteHost(),
+								key.getExternalPort(), null));
+					}
+				}
+			} catch (final RouterException | RuntimeException e) {
+				logger.warn("Could not get mappings for router "
+						+ router.getName() + ": " + e.getMessage(), e);
+				for (final PortMappingKey key : keys) {
+					fail(key, e, outcomes, failures);
+				}
+				return;
+			}
+			for (final Map.Entry<PortMappingKey, Future<Void>> operation : operations
+					.entrySet()) {
+				final PortMappingKey key = operation.getKey();
+				try {
+					operation.getValue().get(deadline.remainingMillis(),
+							TimeUnit.MILLISECONDS);
+					outcomes.putIfAbsent(key, Outcome.SUCCEEDED);
+				} catch (final TimeoutException | CancellationException e) {
+					operation.getValue().cancel(true);
+					outcomes.putIfAbsent(key, Outcome.TIMED_OUT);
+				} catch (final ExecutionException e) {
+					logger.warn("Could not change mapping " + key
+							+ " of router " + router.getName() + ": "
+							+ e.getCause().getMessage());
+					fail(key, e.getCause(), outcomes, failures);
+				} catch (final InterruptedException e) {
+					// cancelled at the deadline
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void fail(final PortMappingKey key, final Throwable cause,
+			final ConcurrentMap<PortMappingKey, Outcome> outcomes,
+			final Map<PortMappingKey, Throwable> failures) {
+		if (outcomes.putIfAbsent(key, Outcome.FAILED) == null) {
+			failures.put(key, cause);
+		}
+	}
+
+	private static <V> Map<IRouter, Map<PortMappingKey, V>> copy(
+			final Map<IRouter, ConcurrentMap<PortMappingKey, V>> matrix) {
+		final Map<IRouter, Map<PortMappingKey, V>> copy = new LinkedHashMap<>();
+		for (final Map.Entry<IRouter, ConcurrentMap<PortMappingKey, V>> row : matrix
+				.entrySet()) {
+			copy.put(row.getKey(), new LinkedHashMap<>(row.getValue()));
+		}
+		return copy;
+	}
+
+	private static List<PortMappingKey> getKeys(
+			final List<PortMapping> mappings) {
+		final List<PortMappingKey> keys = new ArrayList<>();
+		for (final PortMapping mapping : mappings) {
+			keys.add(PortMappingKey.of(mapping));
+		}
+		return keys;
+	}
+
+	private static List<PortMappingKey> getKeys(final PortMappingPreset preset) {
+		final List<PortMappingKey> keys = new ArrayList<>();
+		for (final SinglePortMapping port : preset.getPorts()) {
+			keys.add(new PortMappingKey(port.getProtocol(), preset
+					.getRemoteHost(), port.getExternalPort()));
+		}
+		return keys;
+	}
+
+	/**
+	 * Provides the mappings for a router.
+	 */
+	private interface MappingSource {
+		List<PortMapping> getPortMappings(IRouter router)
+				throws RouterException;
+	}
+}
@@ -1,5 +1,6 @@
 package org.chris.portmapper.router.dummy;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 
@@ -34,13 +35,14 @@ public class DummyRouter extends AbstractRouter {
 	}
 
 	@Override
-	public void addPortMapping(final PortMapping mapping) {
+	public synchronized void addPortMapping(final PortMapping mapping) {
 		logger.debug("Adding mapping " + mapping);
 		mappings.add(mapping);
 	}
 
 	@Override
-	public void addPortMappings(final Collection<PortMapping> mappingsToAdd) {
+	public synchronized void addPortMappings(
+			final Collection<PortMapping> mappingsToAdd) {
 		logger.debug("Adding mappings " + mappingsToAdd);
 		this.mappings.addAll(mappingsToAdd);
 	}
@@ -48,6 +50,7 @@ public class DummyRouter extends AbstractRouter {
 	@Override
 	public void disconnect() {
 		logger.debug("Disconnect");
+		disconnectEvents();
 	}
 
 	@Override
@@ -72,7 +75,9 @@ public class DummyRouter extends AbstractRouter {
 		} catch (final InterruptedException e) {
 			// ignore
 		}
-		return mappings;
+		synchronized (this) {
+			return new ArrayList<>(mappings);
+		}
 	}
 
 	@Override
@@ -81,7 +86,7 @@ public class DummyRouter extends AbstractRouter {
 	}
 
 	@Override
-	public void removeMapping(final PortMapping mapping) {
+	public synchronized void removeMapping(final PortMapping mapping) {
 		mappings.remove(mapping);
 	}
 
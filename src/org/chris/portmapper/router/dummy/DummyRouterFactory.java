@@ -50,7 +50,7 @@ public class DummyRouterFactory extends AbstractRouterFactory {
 	 * @see org.chris.portmapper.router.IRouterFactory#connect(java.lang.String)
 	 */
 	@Override
-	protected IRouter connect(final String locationUrl) throws RouterException {
+	public IRouter connect(final String locationUrl) throws RouterException {
 		return new DummyRouter("DummyRouter @ " + locationUrl);
 	}
 }
@@ -1,8 +1,15 @@
 package org.chris.portmapper.router.sbbi;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sbbi.upnp.impls.InternetGatewayDevice;
 import net.sbbi.upnp.messages.ActionResponse;
@@ -12,15 +19,23 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.chris.portmapper.model.PortMapping;
 import org.chris.portmapper.router.RouterException;
+import org.chris.portmapper.util.NamedThreadFactory;
 
 /**
  * This class fetches all {@link PortMapping} from an
- * {@link InternetGatewayDevice}.
+ * {@link InternetGatewayDevice}. The entries are requested speculatively
+ * with up to {@link #DEFAULT_PREFETCH_WINDOW} requests in flight, but they
+ * are processed strictly in index order.
  * 
  * @author chris
  */
 class PortMappingExtractor {
 
+	/**
+	 * The default number of entries requested concurrently.
+	 */
+	static final int DEFAULT_PREFETCH_WINDOW = 4;
+
 	private final Log logger;
 	private final InternetGatewayDevice router;
 	private final Collection<PortMapping> mappings;
@@ -34,16 +49,33 @@ class PortMappingExtractor {
 	 */
 	private final int maxNumPortMappings;
 
+	/**
+	 * The number of entries that are requested concurrently.
+	 */
+	private final int prefetchWindow;
+
 	PortMappingExtractor(final InternetGatewayDevice router,
 			final int maxNumPortMappings) {
-		this(router, maxNumPortMappings, LogFactory
+		this(router, maxNumPortMappings, DEFAULT_PREFETCH_WINDOW, LogFactory
 				.getLog(PortMappingExtractor.class));
 	}
 
 	PortMappingExtractor(final InternetGatewayDevice router,
 			final int maxNumPortMappings, final Log logger) {
+		this(router, maxNumPortMappings, DEFAULT_PREFETCH_WINDOW, logger);
+	}
+
+	PortMappingExtractor(final InternetGatewayDevice router,
+			final int maxNumPortMappings, final int prefetchWindow,
+			final Log logger) {
+		if (prefetchWindow < 1) {
+			throw new IllegalArgumentException(
+					"Prefetch window must be at least 1 but was "
+							+ prefetchWindow);
+		}
 		this.router = router;
 		this.maxNumPortMappings = maxNumPortMappings;
+		this.prefetchWindow = prefetchWindow;
 		this.logger = logger;
 		this.mappings = new LinkedList<>();
 		this.moreEntries = true;
@@ -53,6 +85,10 @@ class PortMappingExtractor {
 
 	public Collection<PortMapping> getPortMappings() throws RouterException {
 
+		final ExecutorService executor = Executors.newFixedThreadPool(
+				prefetchWindow, new NamedThreadFactory("sbbi-fetch"));
+		final Deque<Future<ActionResponse>> pendingResponses = new ArrayDeque<>(
+				prefetchWindow);
 		try {
 
 			/*
@@ -63,16 +99,29 @@ class PortMappingExtractor {
 			 * returned.
 			 * 
 			 * In order to speed this up, we will do the same here, but stop,
-			 * when the first exception is thrown.
+			 * when the first exception is thrown. The next entries are
+			 * already requested while waiting for the current one, the
+			 * outstanding requests are cancelled when the end of the table
+			 * is reached.
 			 */
 
+			int nextRequestedMappingNumber = 0;
 			while (morePortMappingsAvailable()) {
+				while (nextRequestedMappingNumber < maxNumPortMappings
+						&& nextRequestedMappingNumber < currentMappingNumber
+								+ prefetchWindow) {
+					pendingResponses.add(executor
+							.submit(new GetEntryTask(
+									nextRequestedMappingNumber)));
+					nextRequestedMappingNumber++;
+				}
+
 				logger.debug("Getting port mapping with entry number "
 						+ currentMappingNumber + "...");
 
 				try {
-					final ActionResponse response = router
-							.getGenericPortMappingEntry(currentMappingNumber);
+					final ActionResponse response = getResponse(pendingResponses
+							.poll());
 					addResponse(response);
 				} catch (final UPNPResponseException e) {
 					handleUPNPResponseException(e);
@@ -86,6 +135,11 @@ class PortMappingExtractor {
 		} catch (final IOException e) {
 			throw new RouterException("Could not get NAT mappings: "
 					+ e.getMessage(), e);
+		} finally {
+			for (final Future<ActionResponse> pendingResponse : pendingResponses) {
+				pendingResponse.cancel(true);
+			}
+			executor.shutdownNow();
 		}
 
 		logger.info("Found " + mappings.size() + " mappings, "
@@ -93,6 +147,36 @@ class PortMappingExtractor {
 		return mappings;
 	}
 
+	/**
+	 * Wait for the given response and unwrap the exceptions thrown by the
+	 * router.
+	 */
+	private ActionResponse getResponse(final Future<ActionResponse> response)
+			throws IOException, UPNPResponseException, RouterException {
+		try {
+			return response.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RouterException(
+					"Interrupted while getting port mapping with entry number "
+							+ currentMappingNumber, e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof UPNPResponseException) {
+				throw (UPNPResponseException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RouterException(
+					"Could not get port mapping with entry number "
+							+ currentMappingNumber, cause);
+		}
+	}
+
 	/**
 	 * Check, if the max number of entries is reached and print a warning
 	 * message.
@@ -199,4 +283,17 @@ class PortMappingExtractor {
 		}
 	}
 
+	private class GetEntryTask implements Callable<ActionResponse> {
+		private final int mappingNumber;
+
+		private GetEntryTask(final int mappingNumber) {
+			this.mappingNumber = mappingNumber;
+		}
+
+		@Override
+		public ActionResponse call() throws IOException,
+				UPNPResponseException {
+			return router.getGenericPortMappingEntry(mappingNumber);
+		}
+	}
 }
@@ -14,8 +14,6 @@ import net.sbbi.upnp.messages.UPNPResponseException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.chris.portmapper.PortMapperApp;
-import org.chris.portmapper.Settings;
 import org.chris.portmapper.model.PortMapping;
 import org.chris.portmapper.model.Protocol;
 import org.chris.portmapper.router.AbstractRouter;
@@ -45,6 +43,8 @@ public class SBBIRouter extends AbstractRouter {
 	 */
 	private final static int MAX_NUM_PORTMAPPINGS = 500;
 
+	private volatile boolean useEntityEncoding = true;
+
 	SBBIRouter(final InternetGatewayDevice router) {
 		super(router.getIGDRootDevice().getModelName());
 		this.router = router;
@@ -176,9 +176,24 @@ public class SBBIRouter extends AbstractRouter {
 		}
 	}
 
+	/**
+	 * Some routers show descriptions with special characters only if they are
+	 * encoded as HTML entities, others show the entities literally.
+	 * 
+	 * @param useEntityEncoding
+	 *            <code>true</code> (the default) to encode the descriptions
+	 *            of added mappings as HTML entities.
+	 */
+	public void setUseEntityEncoding(final boolean useEntityEncoding) {
+		this.useEntityEncoding = useEntityEncoding;
+	}
+
+	public boolean isUseEntityEncoding() {
+		return useEntityEncoding;
+	}
+
 	private String encodeIfNecessary(final String description) {
-		final Settings settings = PortMapperApp.getInstance().getSettings();
-		if (settings == null || settings.isUseEntityEncoding()) {
+		if (useEntityEncoding) {
 			return EncodingUtilities.htmlEntityEncode(description);
 		}
 		return description;
@@ -199,7 +214,8 @@ public class SBBIRouter extends AbstractRouter {
 		logger.info("Adding port mapping " + mapping.getCompleteDescription());
 		addPortMapping(mapping.getDescription(), mapping.getProtocol(),
 				mapping.getRemoteHost(), mapping.getExternalPort(),
-				mapping.getInternalClient(), mapping.getInternalPort(), 0);
+				mapping.getInternalClient(), mapping.getInternalPort(),
+				(int) Math.max(0, mapping.getLeaseDuration()));
 	}
 
 	@Override
@@ -225,7 +241,7 @@ public class SBBIRouter extends AbstractRouter {
 
 	@Override
 	public void disconnect() {
-		// Nothing to do right now.
+		disconnectEvents();
 	}
 
 	public long getUpTime() {
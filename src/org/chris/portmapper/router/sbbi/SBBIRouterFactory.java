@@ -4,10 +4,13 @@
 package org.chris.portmapper.router.sbbi;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import net.sbbi.upnp.devices.UPNPRootDevice;
 import net.sbbi.upnp.impls.InternetGatewayDevice;
 
 import org.chris.portmapper.router.AbstractRouterFactory;
@@ -25,6 +28,34 @@ public class SBBIRouterFactory extends AbstractRouterFactory {
 	 */
 	private final static int DISCOVERY_TIMEOUT = 5000;
 
+	/**
+	 * The validity in seconds of a device description loaded from a location
+	 * url, as a search reply would announce it.
+	 */
+	private final static int LOCATION_MAX_AGE_SECONDS = 1800;
+
+	/**
+	 * The connect and read timeout in milliseconds for the HTTP requests of
+	 * the SBBI library, used if no other timeout is configured.
+	 */
+	private final static String DEFAULT_HTTP_TIMEOUT = "10000";
+
+	static {
+		// The SBBI library uses HttpURLConnection without timeouts, so a
+		// router that does not answer would block the caller forever.
+		setPropertyIfAbsent("sun.net.client.defaultConnectTimeout",
+				DEFAULT_HTTP_TIMEOUT);
+		setPropertyIfAbsent("sun.net.client.defaultReadTimeout",
+				DEFAULT_HTTP_TIMEOUT);
+	}
+
+	private static void setPropertyIfAbsent(final String key,
+			final String value) {
+		if (System.getProperty(key) == null) {
+			System.setProperty(key, value);
+		}
+	}
+
 	@Override
 	protected List<IRouter> findRoutersInternal() throws RouterException {
 
@@ -59,8 +90,21 @@ public class SBBIRouterFactory extends AbstractRouterFactory {
 	}
 
 	@Override
-	protected IRouter connect(final String locationUrl) throws RouterException {
-		throw new UnsupportedOperationException(
-				"Direct connection is not implemented for SBBI library.");
+	public IRouter connect(final String locationUrl) throws RouterException {
+		final InternetGatewayDevice device;
+		try {
+			final UPNPRootDevice rootDevice = new UPNPRootDevice(new URL(
+					locationUrl), String.valueOf(LOCATION_MAX_AGE_SECONDS));
+			device = new InternetGatewayDevice(rootDevice);
+		} catch (final MalformedURLException e) {
+			throw new RouterException("Invalid location url " + locationUrl,
+					e);
+		} catch (final IllegalStateException
+				| UnsupportedOperationException e) {
+			throw new RouterException(
+					"Could not load description of device for location url "
+							+ locationUrl + " : " + e.getMessage(), e);
+		}
+		return new SBBIRouter(device);
 	}
 }
@@ -3,14 +3,24 @@
  */
 package org.chris.portmapper.router.weupnp;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -19,7 +29,12 @@ import org.chris.portmapper.model.Protocol;
 import org.chris.portmapper.router.AbstractRouter;
 import org.chris.portmapper.router.IRouter;
 import org.chris.portmapper.router.RouterException;
+import org.chris.portmapper.util.NamedThreadFactory;
+import org.wetorrent.upnp.ActionMetrics;
+import org.wetorrent.upnp.Deadline;
 import org.wetorrent.upnp.GatewayDevice;
+import org.wetorrent.upnp.GatewayEventListener;
+import org.wetorrent.upnp.GatewayEventSubscription;
 import org.wetorrent.upnp.PortMappingEntry;
 import org.wetorrent.upnp.WeUPnPException;
 
@@ -33,7 +48,38 @@ import org.wetorrent.upnp.WeUPnPException;
 public class WeUPnPRouter extends AbstractRouter {
 
 	private final Log logger = LogFactory.getLog(this.getClass());
+	/**
+	 * The default number of concurrent requests used for getting the port
+	 * mappings.
+	 */
+	private static final int DEFAULT_FETCH_WINDOW = 4;
+	/**
+	 * The time in seconds after which an idle thread for getting the port
+	 * mappings is stopped.
+	 */
+	private static final long FETCH_THREAD_KEEP_ALIVE_SECONDS = 30;
+	/**
+	 * The error codes of <code>GetGenericPortMappingEntry</code> for an index
+	 * after the end of the mapping table.
+	 */
+	private static final String ERROR_SPECIFIED_ARRAY_INDEX_INVALID = "713";
+	private static final String ERROR_NO_SUCH_ENTRY_IN_ARRAY = "714";
+	/**
+	 * The maximum number of port mappings to get, so that a wrong number of
+	 * entries or a router that never reports the end of its table does not
+	 * make the operation run forever.
+	 */
+	static final int MAX_NUM_PORTMAPPINGS = 500;
+	/**
+	 * The default time in milliseconds after which an operation is aborted.
+	 */
+	public static final long DEFAULT_OPERATION_TIMEOUT_MILLIS = 60000;
+
 	private final GatewayDevice device;
+	private final ThreadPoolExecutor fetchExecutor;
+	private int fetchWindow;
+	private volatile long operationTimeoutMillis = DEFAULT_OPERATION_TIMEOUT_MILLIS;
+	private GatewayEventSubscription eventSubscription;
 
 	/**
 	 * @param device
@@ -41,36 +87,91 @@ public class WeUPnPRouter extends AbstractRouter {
 	WeUPnPRouter(final GatewayDevice device) {
 		super(device.getFriendlyName());
 		this.device = device;
+		this.fetchExecutor = new ThreadPoolExecutor(DEFAULT_FETCH_WINDOW,
+				DEFAULT_FETCH_WINDOW, FETCH_THREAD_KEEP_ALIVE_SECONDS,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamedThreadFactory("weupnp-fetch"));
+		fetchExecutor.allowCoreThreadTimeOut(true);
+		setFetchWindow(DEFAULT_FETCH_WINDOW);
 	}
 
 	@Override
+	@SuppressWarnings("try")
 	public void addPortMapping(final PortMapping mapping)
 			throws RouterException {
-		try {
-			device.addPortMapping(mapping.getExternalPort(),
-					mapping.getInternalPort(), mapping.getInternalClient(),
-					mapping.getProtocol().getName(), mapping.getDescription());
+		try (Deadline.Scope scope = enterOperationDeadline()) {
+			final boolean added = device.addPortMapping(
+					mapping.getExternalPort(), mapping.getInternalPort(),
+					mapping.getInternalClient(), mapping.getProtocol()
+							.getName(), mapping.getDescription(),
+					(int) Math.max(0, mapping.getLeaseDuration()));
+			if (!added) {
+				throw new RouterException("Router did not add port mapping "
+						+ mapping.getCompleteDescription());
+			}
 		} catch (final WeUPnPException e) {
 			throw new RouterException("Could not add portmapping", e);
 		}
 	}
 
 	@Override
+	@SuppressWarnings("try")
 	public void addPortMappings(final Collection<PortMapping> mappings)
 			throws RouterException {
-		for (final PortMapping mapping : mappings) {
-			this.addPortMapping(mapping);
+		try (Deadline.Scope scope = enterOperationDeadline()) {
+			for (final PortMapping mapping : mappings) {
+				this.addPortMapping(mapping);
+			}
 		}
 	}
 
 	@Override
 	public void disconnect() {
-		// noting to do right now
+		disconnectEvents();
+		logger.debug("Closing connections to router: "
+				+ device.getConnectionStats());
+		device.closeConnections();
 	}
 
 	@Override
-	public String getExternalIPAddress() throws RouterException {
+	public ActionMetrics getProtocolMetrics() {
+		return device.getActionMetrics();
+	}
+
+	/**
+	 * Subscribe to the events of the router, poll it if it does not support
+	 * eventing.
+	 */
+	@Override
+	protected void startEvents() {
+		final GatewayEventSubscription subscription = new GatewayEventSubscription(
+				device, new EventAdapter());
 		try {
+			subscription.start();
+		} catch (final WeUPnPException e) {
+			logger.info("Router " + getName() + " does not send events ("
+					+ e.getMessage() + "), polling for changes");
+			super.startEvents();
+			return;
+		}
+		logger.debug("Subscribed to events of router " + getName()
+				+ " with callback " + subscription.getCallbackURL());
+		eventSubscription = subscription;
+	}
+
+	@Override
+	protected void stopEvents() {
+		if (eventSubscription != null) {
+			eventSubscription.stop();
+			eventSubscription = null;
+		}
+		super.stopEvents();
+	}
+
+	@Override
+	@SuppressWarnings("try")
+	public String getExternalIPAddress() throws RouterException {
+		try (Deadline.Scope scope = enterOperationDeadline()) {
 			return device.getExternalIPAddress();
 		} catch (final WeUPnPException e) {
 			throw new RouterException("Could not get external IP address", e);
@@ -112,17 +213,169 @@ public class WeUPnPRouter extends AbstractRouter {
 	}
 
 	@Override
+	@SuppressWarnings("try")
 	public Collection<PortMapping> getPortMappings() throws RouterException {
-		final Collection<PortMapping> mappings = new LinkedList<>();
+		try (Deadline.Scope scope = enterOperationDeadline()) {
+			return getPortMappingsInternal();
+		}
+	}
+
+	private Collection<PortMapping> getPortMappingsInternal()
+			throws RouterException {
+		Collection<PortMapping> mappings = null;
+		if (device.isIGDv2()) {
+			mappings = getListOfPortMappings();
+		}
+		if (mappings == null && fetchWindow > 1) {
+			mappings = getPortMappingsConcurrently();
+		} else if (mappings == null) {
+			mappings = new LinkedList<>();
+			getPortMappingsSequentially(mappings, 0);
+		}
+		logger.debug("Connection statistics: " + device.getConnectionStats());
+		return mappings;
+	}
+
+	/**
+	 * Get the TCP and UDP port mappings with the IGD v2 action
+	 * <code>GetListOfPortMappings</code>.
+	 * 
+	 * @return the port mappings or <code>null</code> if the router does not
+	 *         support the action.
+	 */
+	private Collection<PortMapping> getListOfPortMappings() {
+		final Collection<PortMapping> mappings = new ArrayList<>();
+		try {
+			for (final Protocol protocol : Protocol.values()) {
+				for (final PortMappingEntry entry : device
+						.getListOfPortMappings(protocol.getName())) {
+					mappings.add(createPortMapping(entry));
+				}
+			}
+		} catch (final WeUPnPException e) {
+			logger.debug("Could not get list of port mappings ("
+					+ e.getMessage() + "), get mappings by index");
+			return null;
+		}
+		logger.debug("Got " + mappings.size()
+				+ " port mappings with GetListOfPortMappings");
+		return mappings;
+	}
+
+	/**
+	 * Get the number of port mappings from the router and fetch the entries
+	 * with up to {@link #getFetchWindow()} requests in flight. Falls back to
+	 * {@link #getPortMappingsSequentially(Collection, int)} if the router does
+	 * not support action <code>GetPortMappingNumberOfEntries</code> or returns
+	 * a negative number. At most {@link #MAX_NUM_PORTMAPPINGS} entries are
+	 * fetched.
+	 * <p>
+	 * As the number of entries is known, an error for an index before the
+	 * end of the table is only accepted if it says that the index does not
+	 * exist, i.e. the table shrank while getting the entries. Any other error
+	 * fails the operation instead of returning an incomplete table.
+	 */
+	private Collection<PortMapping> getPortMappingsConcurrently()
+			throws RouterException {
+		final Collection<PortMapping> mappings = new ArrayList<>();
+		final int reportedEntries;
+		try {
+			reportedEntries = device.getPortMappingNumberOfEntries();
+		} catch (final WeUPnPException e) {
+			checkDeadline(e);
+			logger.debug("Could not get number of port mappings ("
+					+ e.getMessage() + "), get mappings one by one");
+			getPortMappingsSequentially(mappings, 0);
+			return mappings;
+		}
+		if (reportedEntries < 0) {
+			logger.debug("Router reported invalid number of port mappings "
+					+ reportedEntries + ", get mappings one by one");
+			getPortMappingsSequentially(mappings, 0);
+			return mappings;
+		}
+		final int numberOfEntries = Math.min(reportedEntries,
+				MAX_NUM_PORTMAPPINGS);
+		final int window = fetchWindow;
+		logger.debug("Router has " + reportedEntries
+				+ " port mappings, fetch " + numberOfEntries + " with "
+				+ window + " concurrent requests");
+
+		// the requests are submitted as the window advances
+		final Deque<Future<PortMappingEntry>> entries = new ArrayDeque<>(
+				window);
+		final Deadline deadline = Deadline.current();
+		try {
+			int nextIndex = 0;
+			for (int index = 0; index < numberOfEntries; index++) {
+				while (nextIndex < numberOfEntries && entries.size() < window) {
+					entries.add(fetchExecutor.submit(new GetEntryTask(
+							nextIndex++, deadline)));
+				}
+				final PortMappingEntry entry;
+				try {
+					entry = entries.removeFirst().get();
+				} catch (final ExecutionException e) {
+					checkDeadline(e.getCause());
+					if (!isEndOfTable(e.getCause())) {
+						throw new RouterException("Could not get port mapping "
+								+ index + " of " + numberOfEntries,
+								e.getCause());
+					}
+					logger.debug("Port mapping " + index + " of "
+							+ numberOfEntries
+							+ " does not exist any more, stop getting more"
+							+ " mappings");
+					return mappings;
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RouterException(
+							"Interrupted while getting port mappings", e);
+				}
+				mappings.add(createPortMapping(entry));
+			}
+		} finally {
+			// do not send requests that are not needed any more
+			for (final Future<PortMappingEntry> entry : entries) {
+				entry.cancel(true);
+			}
+		}
+
+		// The number of entries may be outdated or wrong, so check if there
+		// are more entries.
+		getPortMappingsSequentially(mappings, numberOfEntries);
+		return mappings;
+	}
+
+	/**
+	 * Get port mappings one by one starting at the given index until the
+	 * router returns an error. Routers use different errors for the end of
+	 * the table, but a request that got no response at all fails the
+	 * operation. Stops at index {@link #MAX_NUM_PORTMAPPINGS}.
+	 */
+	private void getPortMappingsSequentially(
+			final Collection<PortMapping> mappings, final int startIndex)
+			throws RouterException {
 		boolean morePortMappings = true;
-		int index = 0;
+		int index = startIndex;
 		while (morePortMappings) {
+			if (index >= MAX_NUM_PORTMAPPINGS) {
+				logger.warn("Reached max number of port mappings to get ("
+						+ MAX_NUM_PORTMAPPINGS
+						+ "), perhaps not all port mappings were retrieved");
+				return;
+			}
 			PortMappingEntry entry = null;
 			try {
 				logger.debug("Getting port mapping " + index + "...");
 				entry = device.getGenericPortMappingEntry(index);
 				logger.debug("Got port mapping " + index + ": " + entry);
 			} catch (final WeUPnPException e) {
+				checkDeadline(e);
+				if (e.getCause() instanceof IOException) {
+					throw new RouterException("Could not get port mapping "
+							+ index, e);
+				}
 				morePortMappings = false;
 				logger.debug("Got an exception with message '" + e.getMessage()
 						+ "' for index " + index
@@ -130,19 +383,172 @@ public class WeUPnPRouter extends AbstractRouter {
 			}
 
 			if (entry != null) {
-				final Protocol protocol = entry.getProtocol().equalsIgnoreCase(
-						"TCP") ? Protocol.TCP : Protocol.UDP;
-				final PortMapping m = new PortMapping(protocol,
-						entry.getRemoteHost(), entry.getExternalPort(),
-						entry.getInternalClient(), entry.getInternalPort(),
-						entry.getPortMappingDescription());
-				mappings.add(m);
+				mappings.add(createPortMapping(entry));
 			} else {
 				logger.debug("Got null port mapping for index " + index);
 			}
 			index++;
 		}
-		return mappings;
+	}
+
+	private static boolean isEndOfTable(final Throwable cause) {
+		if (!(cause instanceof WeUPnPException)) {
+			return false;
+		}
+		final String errorCode = ((WeUPnPException) cause).getErrorCode();
+		return ERROR_SPECIFIED_ARRAY_INDEX_INVALID.equals(errorCode)
+				|| ERROR_NO_SUCH_ENTRY_IN_ARRAY.equals(errorCode);
+	}
+
+	/**
+	 * An error for an index usually marks the end of the mapping table,
+	 * unless the operation ran out of time.
+	 */
+	private void checkDeadline(final Throwable cause) throws RouterException {
+		final Deadline deadline = Deadline.current();
+		if (deadline != null && deadline.isExpired()) {
+			throw new RouterException("Timeout while getting port mappings",
+					cause);
+		}
+	}
+
+	private PortMapping createPortMapping(final PortMappingEntry entry) {
+		final Protocol protocol = entry.getProtocol().equalsIgnoreCase("TCP") ? Protocol.TCP
+				: Protocol.UDP;
+		return new PortMapping(protocol, entry.getRemoteHost(),
+				entry.getExternalPort(), entry.getInternalClient(),
+				entry.getInternalPort(), entry.getPortMappingDescription());
+	}
+
+	/**
+	 * Get the maximum number of concurrent requests used for getting the port
+	 * mappings.
+	 * 
+	 * @return the maximum number of concurrent requests used for getting the
+	 *         port mappings.
+	 */
+	public int getFetchWindow() {
+		return fetchWindow;
+	}
+
+	/**
+	 * Set the maximum number of concurrent requests used for getting the port
+	 * mappings. A value of 1 gets the mappings one by one without asking the
+	 * router for the number of mappings first.
+	 * 
+	 * @param fetchWindow
+	 *            the maximum number of concurrent requests, must be at least
+	 *            1.
+	 */
+	public void setFetchWindow(final int fetchWindow) {
+		if (fetchWindow < 1) {
+			throw new IllegalArgumentException(
+					"Fetch window must be at least 1 but was " + fetchWindow);
+		}
+		// keep the core size below the maximum size while changing them
+		if (fetchWindow > fetchExecutor.getMaximumPoolSize()) {
+			fetchExecutor.setMaximumPoolSize(fetchWindow);
+			fetchExecutor.setCorePoolSize(fetchWindow);
+		} else {
+			fetchExecutor.setCorePoolSize(fetchWindow);
+			fetchExecutor.setMaximumPoolSize(fetchWindow);
+		}
+		this.fetchWindow = fetchWindow;
+		if (device.getConnectionPool().getMaxConnectionsPerRoute() < fetchWindow) {
+			device.getConnectionPool().setMaxConnectionsPerRoute(fetchWindow);
+		}
+	}
+
+	/**
+	 * Get the time after which an operation like getting all port mappings is
+	 * aborted.
+	 * 
+	 * @return the timeout in milliseconds.
+	 */
+	public long getOperationTimeoutMillis() {
+		return operationTimeoutMillis;
+	}
+
+	/**
+	 * Set the time after which an operation like getting all port mappings is
+	 * aborted. A {@link Deadline} set by the caller is kept if it is earlier.
+	 * 
+	 * @param operationTimeoutMillis
+	 *            the timeout in milliseconds.
+	 */
+	public void setOperationTimeoutMillis(final long operationTimeoutMillis) {
+		this.operationTimeoutMillis = operationTimeoutMillis;
+	}
+
+	private Deadline.Scope enterOperationDeadline() {
+		return Deadline.within(operationTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private class GetEntryTask implements Callable<PortMappingEntry> {
+		private final int index;
+		private final Deadline deadline;
+
+		private GetEntryTask(final int index, final Deadline deadline) {
+			this.index = index;
+			this.deadline = deadline;
+		}
+
+		@Override
+		@SuppressWarnings("try")
+		public PortMappingEntry call() throws WeUPnPException {
+			// the deadline of the operation applies to the worker threads
+			try (Deadline.Scope scope = deadline.enter()) {
+				logger.debug("Getting port mapping " + index + "...");
+				final PortMappingEntry entry = device
+						.getGenericPortMappingEntry(index);
+				logger.debug("Got port mapping " + index + ": " + entry);
+				return entry;
+			}
+		}
+	}
+
+	/**
+	 * Converts the state variables sent by the router to router events.
+	 */
+	private class EventAdapter implements GatewayEventListener {
+
+		@Override
+		public void eventReceived(final GatewayDevice eventDevice,
+				final long sequence, final Map<String, String> variables) {
+			// the initial event only contains the current state
+			if (sequence == 0) {
+				return;
+			}
+			final String numberOfEntries = variables
+					.get("PortMappingNumberOfEntries");
+			if (numberOfEntries != null) {
+				firePortMappingsChanged(parseNumberOfEntries(numberOfEntries));
+			}
+			final String externalIPAddress = variables.get("ExternalIPAddress");
+			if (externalIPAddress != null) {
+				fireExternalIPAddressChanged(externalIPAddress);
+			}
+			final String connectionStatus = variables.get("ConnectionStatus");
+			if (connectionStatus != null) {
+				fireConnectionStatusChanged(connectionStatus);
+			}
+		}
+
+		private int parseNumberOfEntries(final String value) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (final NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		@Override
+		public void subscriptionLost(final GatewayDevice eventDevice,
+				final WeUPnPException cause) {
+			logger.warn("Lost event subscription for router " + getName()
+					+ ", polling for changes");
+			startPolling();
+		}
 	}
 
 	@Override
@@ -161,6 +567,8 @@ public class WeUPnPRouter extends AbstractRouter {
 
 		logger.info("def loc " + device.getLocation());
 		logger.info("device type " + device.getDeviceType());
+		logger.info("connections " + device.getConnectionStats());
+		logger.info("latency " + device.getLatencyTracker());
 	}
 
 	@Override
@@ -170,10 +578,11 @@ public class WeUPnPRouter extends AbstractRouter {
 	}
 
 	@Override
+	@SuppressWarnings("try")
 	public void removePortMapping(final Protocol protocol,
 			final String remoteHost, final int externalPort)
 			throws RouterException {
-		try {
+		try (Deadline.Scope scope = enterOperationDeadline()) {
 			device.deletePortMapping(externalPort, protocol.getName());
 		} catch (final WeUPnPException e) {
 			throw new RouterException("Could not delete port mapping", e);
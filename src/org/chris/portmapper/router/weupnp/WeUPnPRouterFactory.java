@@ -3,20 +3,35 @@
  */
 package org.chris.portmapper.router.weupnp;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.chris.portmapper.router.AbstractRouterFactory;
 import org.chris.portmapper.router.IRouter;
 import org.chris.portmapper.router.RouterException;
+import org.chris.portmapper.util.NamedThreadFactory;
+import org.wetorrent.upnp.Deadline;
 import org.wetorrent.upnp.GatewayDevice;
+import org.wetorrent.upnp.GatewayDeviceCache;
 import org.wetorrent.upnp.GatewayDiscover;
+import org.wetorrent.upnp.GatewayRegistry;
+import org.wetorrent.upnp.SsdpNotifyListener;
 import org.wetorrent.upnp.WeUPnPException;
 
 /**
@@ -28,9 +43,59 @@ public class WeUPnPRouterFactory extends AbstractRouterFactory {
 
 	private final GatewayDiscover discover = new GatewayDiscover();
 
+	/**
+	 * The devices found by discovery and, while the listener is running,
+	 * advertised by notifications.
+	 */
+	private final GatewayRegistry registry = new GatewayRegistry();
+	private SsdpNotifyListener notifyListener;
+
+	/**
+	 * The name of the file in the configuration directory where the device
+	 * descriptions are cached.
+	 */
+	private static final String DEVICE_CACHE_FILENAME = "weupnp-devices.properties";
+
+	/**
+	 * The time in milliseconds the cached devices have for answering the
+	 * probe before discovery is started.
+	 */
+	private static final long CACHE_PROBE_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * The system property for the time in milliseconds discovery waits for
+	 * further replies after the first connected gateway was found. A negative
+	 * value waits until no more replies arrive.
+	 */
+	private static final String DISCOVERY_GRACE_MILLIS_SYSTEM_PROPERTY = "portmapper.discovery.graceMillis";
+	private static final long DEFAULT_DISCOVERY_GRACE_MILLIS = 250;
+
+	/**
+	 * The system property for starting the SSDP notification listener with
+	 * the first search for routers.
+	 */
+	private static final String SSDP_LISTEN_SYSTEM_PROPERTY = "portmapper.ssdp.listen";
+
+	/**
+	 * The system property for the address <code>host:port</code> the search
+	 * is sent to instead of multicasting it, e.g. a simulated device.
+	 */
+	private static final String DISCOVERY_ADDRESS_SYSTEM_PROPERTY = "portmapper.discovery.address";
+
 	@Override
 	protected List<IRouter> findRoutersInternal() throws RouterException {
+		final GatewayDeviceCache cache = getConfigDirectory() != null ? new GatewayDeviceCache(
+				new File(getConfigDirectory(), DEVICE_CACHE_FILENAME)) : null;
+		if (cache != null) {
+			final List<IRouter> cachedRouters = findCachedRouters(cache);
+			if (!cachedRouters.isEmpty()) {
+				return cachedRouters;
+			}
+		}
+
 		logger.debug("Searching for gateway devices...");
+		discover.setGraceMillis(getDiscoveryGraceMillis());
+		discover.setSearchAddress(getDiscoveryAddress());
 		final Map<InetAddress, GatewayDevice> devices;
 		try {
 			devices = discover.discover();
@@ -39,6 +104,7 @@ public class WeUPnPRouterFactory extends AbstractRouterFactory {
 					"Could not discover a valid gateway device: "
 							+ e.getMessage(), e);
 		}
+		logger.info("Discovery finished: " + discover.getLastDiscoveryStats());
 
 		if (devices == null || devices.size() == 0) {
 			return Collections.emptyList();
@@ -47,6 +113,165 @@ public class WeUPnPRouterFactory extends AbstractRouterFactory {
 		final List<IRouter> routers = new ArrayList<>(devices.size());
 		for (final GatewayDevice device : devices.values()) {
 			routers.add(new WeUPnPRouter(device));
+			registry.register(device);
+		}
+		if (cache != null) {
+			try {
+				cache.store(devices.values());
+			} catch (final IOException e) {
+				logger.warn("Could not store device cache " + cache.getFile(),
+						e);
+			}
+		}
+		return routers;
+	}
+
+	private long getDiscoveryGraceMillis() {
+		final String value = System
+				.getProperty(DISCOVERY_GRACE_MILLIS_SYSTEM_PROPERTY);
+		if (value == null) {
+			return DEFAULT_DISCOVERY_GRACE_MILLIS;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (final NumberFormatException e) {
+			logger.warn("Invalid value '" + value + "' for system property "
+					+ DISCOVERY_GRACE_MILLIS_SYSTEM_PROPERTY + ", using "
+					+ DEFAULT_DISCOVERY_GRACE_MILLIS);
+			return DEFAULT_DISCOVERY_GRACE_MILLIS;
+		}
+	}
+
+	private InetSocketAddress getDiscoveryAddress() {
+		final String value = System
+				.getProperty(DISCOVERY_ADDRESS_SYSTEM_PROPERTY);
+		if (value == null) {
+			return null;
+		}
+		final int colon = value.lastIndexOf(':');
+		try {
+			return new InetSocketAddress(value.substring(0, colon).trim(),
+					Integer.parseInt(value.substring(colon + 1).trim()));
+		} catch (final RuntimeException e) {
+			logger.warn("Invalid value '" + value + "' for system property "
+					+ DISCOVERY_ADDRESS_SYSTEM_PROPERTY
+					+ ", multicasting the search");
+			return null;
+		}
+	}
+
+	/**
+	 * Use the registered devices while the notification listener keeps the
+	 * registry up to date.
+	 */
+	@Override
+	protected List<IRouter> findKnownRouters() {
+		if (Boolean.getBoolean(SSDP_LISTEN_SYSTEM_PROPERTY)) {
+			try {
+				startNotifyListener();
+			} catch (final RouterException e) {
+				logger.warn("Could not start SSDP notification listener", e);
+			}
+		}
+		if (!isNotifyListenerRunning()) {
+			return Collections.emptyList();
+		}
+		final List<IRouter> routers = new ArrayList<>();
+		for (final GatewayDevice device : registry.getDevices()) {
+			routers.add(new WeUPnPRouter(device));
+		}
+		return routers;
+	}
+
+	/**
+	 * Start listening for SSDP notifications of gateway devices in the
+	 * background, so that routers can be found without discovery.
+	 * 
+	 * @throws RouterException
+	 *             if the listener could not be started.
+	 */
+	public synchronized void startNotifyListener() throws RouterException {
+		if (notifyListener == null) {
+			notifyListener = new SsdpNotifyListener(registry);
+		}
+		try {
+			notifyListener.start();
+		} catch (final WeUPnPException e) {
+			throw new RouterException(
+					"Could not listen for SSDP notifications: "
+							+ e.getMessage(), e);
+		}
+	}
+
+	public synchronized void stopNotifyListener() {
+		if (notifyListener != null) {
+			notifyListener.stop();
+		}
+	}
+
+	public synchronized boolean isNotifyListenerRunning() {
+		return notifyListener != null && notifyListener.isRunning();
+	}
+
+	public GatewayRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Use the cached devices that answer a <code>GetStatusInfo</code> request
+	 * at their control URL. All devices are probed at the same time and share
+	 * one deadline, so that unavailable devices delay the start of discovery
+	 * only once.
+	 */
+	private List<IRouter> findCachedRouters(final GatewayDeviceCache cache) {
+		final List<GatewayDevice> devices = cache.load();
+		final List<IRouter> routers = new ArrayList<>();
+		if (devices.isEmpty()) {
+			return routers;
+		}
+		final Deadline deadline = Deadline.after(CACHE_PROBE_TIMEOUT_MILLIS,
+				TimeUnit.MILLISECONDS);
+		final ExecutorService executor = Executors.newFixedThreadPool(
+				devices.size(), new NamedThreadFactory("weupnp-probe"));
+		try {
+			final List<Future<String>> probes = new ArrayList<>();
+			for (final GatewayDevice device : devices) {
+				probes.add(executor.submit(new Callable<String>() {
+					@Override
+					@SuppressWarnings("try")
+					public String call() throws WeUPnPException {
+						try (Deadline.Scope scope = deadline.enter()) {
+							return device.getConnectionStatus();
+						}
+					}
+				}));
+			}
+			for (int i = 0; i < devices.size(); i++) {
+				final GatewayDevice device = devices.get(i);
+				try {
+					final String status = probes.get(i).get(
+							deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+					logger.debug("Cached device " + device.getFriendlyName()
+							+ " at " + device.getControlURL() + " has status "
+							+ status);
+					routers.add(new WeUPnPRouter(device));
+				} catch (final ExecutionException | TimeoutException e) {
+					logger.debug("Cached device " + device.getFriendlyName()
+							+ " at " + device.getControlURL()
+							+ " did not answer: "
+							+ (e.getCause() != null ? e.getCause() : e));
+					probes.get(i).cancel(true);
+					device.closeConnections();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		if (routers.isEmpty()) {
+			logger.debug("No cached device available, start discovery");
 		}
 		return routers;
 	}
@@ -77,7 +302,7 @@ public class WeUPnPRouterFactory extends AbstractRouterFactory {
 	 * @see org.chris.portmapper.router.IRouterFactory#connect(java.lang.String)
 	 */
 	@Override
-	protected IRouter connect(final String locationUrl) throws RouterException {
+	public IRouter connect(final String locationUrl) throws RouterException {
 
 		final GatewayDevice device = new GatewayDevice();
 		device.setLocation(locationUrl);
@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package org.chris.portmapper.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Determines the configuration directory for the graphical user interface and
+ * the command line: the directory given with system property
+ * {@link #CONFIG_DIR_PROPERTY_NAME}, directory <code>PortMapperConf</code> in
+ * the current directory for the portable app or else the default directory in
+ * the home directory of the user. This does not use the application
+ * framework, so that the command line does not need to start it.
+ *
+ * @author chris
+ */
+public class ConfigDirectory {
+
+	/**
+	 * The name of the system property which will be used as the directory
+	 * where all configuration files will be stored.
+	 */
+	public static final String CONFIG_DIR_PROPERTY_NAME = "portmapper.config.dir";
+
+	/**
+	 * The name of the configuration directory of the portable app.
+	 */
+	public static final String PORTABLE_APP_CONFIG_DIR = "PortMapperConf";
+
+	private static final String APPLICATION_ID = "PortMapper";
+
+	/**
+	 * The directory below the application data directory on Windows. This is
+	 * where the application framework stored the settings before the
+	 * directory was chosen here, so it is kept for finding existing settings.
+	 */
+	private static final String WINDOWS_VENDOR_DIR = "UnknownApplicationVendor";
+
+	private static final Log logger = LogFactory.getLog(ConfigDirectory.class);
+
+	private ConfigDirectory() {
+		// only static methods
+	}
+
+	/**
+	 * Get the configuration directory. The default directory may not exist
+	 * yet.
+	 *
+	 * @return the configuration directory.
+	 * @throws IOException
+	 *             if the directory given by the system property is not a
+	 *             readable and writable directory.
+	 */
+	public static File getDirectory() throws IOException {
+		final String customConfigurationDir = System
+				.getProperty(CONFIG_DIR_PROPERTY_NAME);
+		if (customConfigurationDir != null) {
+			final File dir = new File(customConfigurationDir);
+			if (!dir.isDirectory()) {
+				throw new IOException("Custom configuration directory '"
+						+ customConfigurationDir + "' is not a directory.");
+			}
+			if (!dir.canRead() || !dir.canWrite()) {
+				throw new IOException(
+						"Can not read or write to custom configuration directory '"
+								+ customConfigurationDir + "'.");
+			}
+			logger.debug("Using custom configuration directory '"
+					+ dir.getAbsolutePath() + "'.");
+			return dir;
+		}
+
+		final File portableAppConfigDir = new File(PORTABLE_APP_CONFIG_DIR);
+		if (portableAppConfigDir.isDirectory()
+				&& portableAppConfigDir.canRead()
+				&& portableAppConfigDir.canWrite()) {
+			logger.debug("Found portable app configuration directory '"
+					+ portableAppConfigDir.getAbsolutePath() + "'.");
+			return portableAppConfigDir;
+		}
+		return getDefaultDirectory();
+	}
+
+	/**
+	 * @return the default directory for the operating system given by the
+	 *         system property <code>os.name</code>.
+	 */
+	static File getDefaultDirectory() {
+		final String userHome = System.getProperty("user.home");
+		final String osName = System.getProperty("os.name", "").toLowerCase(
+				Locale.ENGLISH);
+		if (osName.startsWith("windows")) {
+			final String appData = System.getenv("APPDATA");
+			final File appDataDir = appData != null ? new File(appData)
+					: new File(userHome, "Application Data");
+			return new File(new File(appDataDir, WINDOWS_VENDOR_DIR),
+					APPLICATION_ID);
+		}
+		if (osName.startsWith("mac os x")) {
+			return new File(userHome, "Library/Application Support/"
+					+ APPLICATION_ID);
+		}
+		return new File(userHome, "." + APPLICATION_ID);
+	}
+}
@@ -0,0 +1,32 @@
+/**
+ *
+ */
+package org.chris.portmapper.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} creating daemon threads with the given name prefix
+ * and a running number, so that worker threads do not prevent the JVM from
+ * exiting and can be identified in thread dumps.
+ *
+ * @author chris
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	private final String namePrefix;
+	private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+	public NamedThreadFactory(final String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	@Override
+	public Thread newThread(final Runnable runnable) {
+		final Thread thread = new Thread(runnable, namePrefix + "-"
+				+ threadNumber.getAndIncrement());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
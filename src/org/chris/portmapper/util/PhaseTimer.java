@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package org.chris.portmapper.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the duration of consecutive phases, e.g. of the startup of the
+ * command line interface. A phase starts when the previous phase ends, the
+ * first phase when the timer is created.
+ *
+ * @author chris
+ */
+public class PhaseTimer {
+
+	private final long createdAtMillis = System.currentTimeMillis();
+	private final long createdAtNanos = System.nanoTime();
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+	private long phaseStartNanos = createdAtNanos;
+
+	/**
+	 * End the current phase.
+	 *
+	 * @param name
+	 *            the name of the phase, the durations of phases with the same
+	 *            name are added.
+	 */
+	public synchronized void phase(final String name) {
+		final long now = System.nanoTime();
+		final Long previous = phases.get(name);
+		phases.put(name, (previous != null ? previous : 0)
+				+ (now - phaseStartNanos));
+		phaseStartNanos = now;
+	}
+
+	/**
+	 * @return the durations of the phases in milliseconds in the order they
+	 *         were ended.
+	 */
+	public synchronized Map<String, Long> getPhases() {
+		final Map<String, Long> millis = new LinkedHashMap<>();
+		for (final Map.Entry<String, Long> phase : phases.entrySet()) {
+			millis.put(phase.getKey(), phase.getValue() / 1000000L);
+		}
+		return millis;
+	}
+
+	/**
+	 * @return the milliseconds between the start of the JVM and the creation
+	 *         of this timer.
+	 */
+	public long getJvmStartupMillis() {
+		return createdAtMillis
+				- ManagementFactory.getRuntimeMXBean().getStartTime();
+	}
+
+	/**
+	 * @return a report with one line per phase, starting with the startup of
+	 *         the JVM.
+	 */
+	@Override
+	public synchronized String toString() {
+		final StringBuilder b = new StringBuilder();
+		b.append(String.format("%-20s %6d ms%n", "jvm", getJvmStartupMillis()));
+		for (final Map.Entry<String, Long> phase : getPhases().entrySet()) {
+			b.append(String.format("%-20s %6d ms%n", phase.getKey(),
+					phase.getValue()));
+		}
+		b.append(String.format("%-20s %6d ms", "total", getJvmStartupMillis()
+				+ (phaseStartNanos - createdAtNanos) / 1000000L));
+		return b.toString();
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ *
+ */
+package org.chris.portmapper.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A hashed timing wheel for a large number of timeouts with a coarse
+ * resolution. The wheel is divided into buckets of one tick each; a timeout is
+ * put into the bucket of its deadline and a single thread visits one bucket
+ * per tick. Scheduling and cancelling takes constant time, independent of the
+ * number of pending timeouts.
+ * <p>
+ * Expired tasks are handed to an {@link Executor}, so that a slow task does
+ * not delay the wheel.
+ *
+ * @author chris
+ */
+public class TimingWheel {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final long tickNanos;
+	private final List<Set<Timeout>> wheel;
+	private final Executor executor;
+	private final ThreadFactory threadFactory;
+
+	private final long startNanos;
+	/**
+	 * The number of ticks processed since {@link #startNanos}.
+	 */
+	private long tick;
+	private Thread worker;
+	private volatile boolean running;
+
+	/**
+	 * @param tickDuration
+	 *            the resolution of the wheel.
+	 * @param unit
+	 *            the unit of the tick duration.
+	 * @param wheelSize
+	 *            the number of buckets. Timeouts further away than one
+	 *            rotation stay in their bucket for several rotations.
+	 * @param executor
+	 *            the executor running the expired tasks.
+	 * @param threadFactory
+	 *            the factory for the thread advancing the wheel.
+	 */
+	public TimingWheel(final long tickDuration, final TimeUnit unit,
+			final int wheelSize, final Executor executor,
+			final ThreadFactory threadFactory) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("Invalid tick duration "
+					+ tickDuration);
+		}
+		if (wheelSize < 1) {
+			throw new IllegalArgumentException("Invalid wheel size "
+					+ wheelSize);
+		}
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheel = new ArrayList<>(wheelSize);
+		for (int i = 0; i < wheelSize; i++) {
+			wheel.add(new LinkedHashSet<Timeout>());
+		}
+		this.executor = executor;
+		this.threadFactory = threadFactory;
+		this.startNanos = nanoTime();
+	}
+
+	/**
+	 * Start the thread advancing the wheel. Timeouts scheduled before are
+	 * measured from the creation of the wheel.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		worker = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				runWheel();
+			}
+		});
+		worker.start();
+	}
+
+	/**
+	 * Stop the wheel. Pending timeouts are not run.
+	 *
+	 * @return the timeouts that were still pending.
+	 */
+	public List<Timeout> stop() {
+		final Thread stoppedWorker;
+		final List<Timeout> pending = new ArrayList<>();
+		synchronized (this) {
+			running = false;
+			stoppedWorker = worker;
+			worker = null;
+			for (final Set<Timeout> bucket : wheel) {
+				pending.addAll(bucket);
+				bucket.clear();
+			}
+		}
+		if (stoppedWorker != null) {
+			stoppedWorker.interrupt();
+		}
+		return pending;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Run the given task once after the given delay. The task runs at the
+	 * first tick after the delay has passed.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param delay
+	 *            the delay.
+	 * @param unit
+	 *            the unit of the delay.
+	 * @return the timeout to cancel the task.
+	 */
+	public synchronized Timeout schedule(final Runnable task,
+			final long delay, final TimeUnit unit) {
+		final long elapsedNanos = nanoTime() - startNanos
+				+ Math.max(0, unit.toNanos(delay));
+		long deadlineTick = (elapsedNanos + tickNanos - 1) / tickNanos;
+		if (deadlineTick <= tick) {
+			deadlineTick = tick + 1;
+		}
+		final Timeout timeout = new Timeout(task, deadlineTick);
+		bucket(deadlineTick).add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return the number of pending timeouts.
+	 */
+	public synchronized int getPendingCount() {
+		int count = 0;
+		for (final Set<Timeout> bucket : wheel) {
+			count += bucket.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Advance the wheel by one tick and run the expired tasks. Called by the
+	 * worker thread once per tick.
+	 *
+	 * @return the number of expired tasks.
+	 */
+	int advance() {
+		final List<Timeout> expired = new ArrayList<>();
+		synchronized (this) {
+			tick++;
+			final Iterator<Timeout> iterator = bucket(tick).iterator();
+			while (iterator.hasNext()) {
+				final Timeout timeout = iterator.next();
+				if (timeout.deadlineTick <= tick) {
+					iterator.remove();
+					timeout.expired = true;
+					expired.add(timeout);
+				}
+			}
+		}
+		for (final Timeout timeout : expired) {
+			try {
+				executor.execute(timeout.task);
+			} catch (final RuntimeException e) {
+				logger.error("Could not run expired task " + timeout.task, e);
+			}
+		}
+		return expired.size();
+	}
+
+	private Set<Timeout> bucket(final long forTick) {
+		return wheel.get((int) (forTick % wheel.size()));
+	}
+
+	private void runWheel() {
+		while (running) {
+			final long nextTickNanos;
+			synchronized (this) {
+				nextTickNanos = startNanos + (tick + 1) * tickNanos;
+			}
+			final long sleepNanos = nextTickNanos - nanoTime();
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (final InterruptedException e) {
+					// stop() interrupts the worker
+					continue;
+				}
+			}
+			if (running) {
+				advance();
+			}
+		}
+		logger.debug("Timing wheel stopped at tick " + tick);
+	}
+
+	/**
+	 * @return the current time in nanoseconds, overridden by tests.
+	 */
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public class Timeout {
+
+		private final Runnable task;
+		private final long deadlineTick;
+		private boolean expired;
+
+		private Timeout(final Runnable task, final long deadlineTick) {
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+
+		public Runnable getTask() {
+			return task;
+		}
+
+		/**
+		 * Cancel the task if it has not run yet.
+		 *
+		 * @return <code>true</code> if the task was cancelled,
+		 *         <code>false</code> if it already expired.
+		 */
+		public boolean cancel() {
+			synchronized (TimingWheel.this) {
+				return bucket(deadlineTick).remove(this);
+			}
+		}
+
+		public boolean isExpired() {
+			synchronized (TimingWheel.this) {
+				return expired;
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * The {@link ActionStats} of all actions called on a device or router. The
+ * statistics of an action are created with its first call; a
+ * {@link Listener} is informed about new actions, e.g. to publish them.
+ *
+ * @author chris
+ */
+public class ActionMetrics {
+
+	/**
+	 * Is informed about actions called for the first time.
+	 */
+	public interface Listener {
+		public void actionAdded(ActionStats stats);
+	}
+
+	private final ConcurrentMap<String, ActionStats> actions = new ConcurrentHashMap<>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Get the statistics of the given action, create them if the action was
+	 * not called before.
+	 *
+	 * @param action
+	 *            the name of the action.
+	 * @return the statistics of the action.
+	 */
+	public ActionStats get(final String action) {
+		final ActionStats stats = actions.get(action);
+		if (stats != null) {
+			return stats;
+		}
+		final ActionStats newStats = new ActionStats(action);
+		final ActionStats existingStats = actions.putIfAbsent(action, newStats);
+		if (existingStats != null) {
+			return existingStats;
+		}
+		for (final Listener listener : listeners) {
+			listener.actionAdded(newStats);
+		}
+		return newStats;
+	}
+
+	/**
+	 * Record a successful call of the given action.
+	 *
+	 * @param action
+	 *            the name of the action.
+	 * @param startNanos
+	 *            the value of {@link System#nanoTime()} when the call started.
+	 */
+	public void recordSuccess(final String action, final long startNanos) {
+		get(action).recordSuccess(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Record a failed call of the given action.
+	 *
+	 * @param action
+	 *            the name of the action.
+	 * @param startNanos
+	 *            the value of {@link System#nanoTime()} when the call started.
+	 * @param errorCode
+	 *            the UPnP error code or a description of the failure.
+	 */
+	public void recordError(final String action, final long startNanos,
+			final String errorCode) {
+		get(action).recordError(errorCode, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return the statistics of all called actions by name.
+	 */
+	public Map<String, ActionStats> getActions() {
+		return new TreeMap<>(actions);
+	}
+
+	/**
+	 * Add a listener. The listener is informed about the actions that were
+	 * already called, too.
+	 *
+	 * @param listener
+	 *            the listener to add.
+	 */
+	public void addListener(final Listener listener) {
+		listeners.add(listener);
+		for (final ActionStats stats : getActions().values()) {
+			listener.actionAdded(stats);
+		}
+	}
+
+	public void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Discard the recorded calls of all actions.
+	 */
+	public void reset() {
+		for (final ActionStats stats : actions.values()) {
+			stats.reset();
+		}
+	}
+
+	/**
+	 * Get the error code used for the given failure: the UPnP error code of
+	 * the device if known, <code>http-</code> and the status code for an
+	 * unexpected HTTP status, <code>timeout</code>,
+	 * <code>invalid-response</code> or else <code>io</code>.
+	 *
+	 * @param failure
+	 *            the exception of the failed call.
+	 * @return the error code.
+	 */
+	public static String getErrorCode(final Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause
+				.getCause()) {
+			if (cause instanceof WeUPnPException
+					&& ((WeUPnPException) cause).getErrorCode() != null) {
+				return ((WeUPnPException) cause).getErrorCode();
+			}
+			if (cause instanceof HttpStatusException) {
+				return "http-" + ((HttpStatusException) cause).getStatusCode();
+			}
+			if (cause instanceof SocketTimeoutException
+					|| cause instanceof DeadlineExceededException) {
+				return "timeout";
+			}
+			if (cause instanceof XMLStreamException) {
+				return "invalid-response";
+			}
+		}
+		return "io";
+	}
+
+	@Override
+	public String toString() {
+		return "[ActionMetrics: " + getActions().values() + "]";
+	}
+}
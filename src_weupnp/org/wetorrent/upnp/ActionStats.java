@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The number of calls, the errors and the latencies of one action, e.g. the
+ * SOAP action <code>AddPortMapping</code>. Failed calls are included in the
+ * latencies, as slow failures like timeouts are often the reason to look at
+ * the latencies.
+ *
+ * @author chris
+ */
+public class ActionStats implements ActionStatsMXBean {
+
+	private final String action;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> errorsByCode = new ConcurrentHashMap<>();
+
+	public ActionStats(final String action) {
+		this.action = action;
+	}
+
+	/**
+	 * Record a successful call.
+	 *
+	 * @param latencyNanos
+	 *            the duration of the call in nanoseconds.
+	 */
+	public void recordSuccess(final long latencyNanos) {
+		calls.incrementAndGet();
+		latencies.record(latencyNanos / 1000L);
+	}
+
+	/**
+	 * Record a failed call.
+	 *
+	 * @param errorCode
+	 *            the UPnP error code or a short description of the failure,
+	 *            see {@link ActionMetrics#getErrorCode(Throwable)}.
+	 * @param latencyNanos
+	 *            the duration of the call in nanoseconds.
+	 */
+	public void recordError(final String errorCode, final long latencyNanos) {
+		calls.incrementAndGet();
+		errors.incrementAndGet();
+		latencies.record(latencyNanos / 1000L);
+		AtomicLong counter = errorsByCode.get(errorCode);
+		if (counter == null) {
+			final AtomicLong newCounter = new AtomicLong();
+			counter = errorsByCode.putIfAbsent(errorCode, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	@Override
+	public String getAction() {
+		return action;
+	}
+
+	@Override
+	public long getCalls() {
+		return calls.get();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.get();
+	}
+
+	@Override
+	public Map<String, Long> getErrorsByCode() {
+		final Map<String, Long> result = new TreeMap<>();
+		for (final Map.Entry<String, AtomicLong> entry : errorsByCode
+				.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	@Override
+	public double getLatencyMeanMillis() {
+		return latencies.getMeanMicros() / 1000.0;
+	}
+
+	@Override
+	public double getLatencyP50Millis() {
+		return latencies.getPercentileMicros(50) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyP90Millis() {
+		return latencies.getPercentileMicros(90) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyP99Millis() {
+		return latencies.getPercentileMicros(99) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyMaxMillis() {
+		return latencies.getMaxMicros() / 1000.0;
+	}
+
+	@Override
+	public void reset() {
+		calls.set(0);
+		errors.set(0);
+		errorsByCode.clear();
+		latencies.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "[ActionStats " + action + ": calls=" + getCalls()
+				+ ", errors=" + getErrorsByCode() + ", p50="
+				+ getLatencyP50Millis() + "ms, p90=" + getLatencyP90Millis()
+				+ "ms, p99=" + getLatencyP99Millis() + "ms, max="
+				+ getLatencyMaxMillis() + "ms]";
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link ActionStats}.
+ *
+ * @author chris
+ */
+public interface ActionStatsMXBean {
+
+	public String getAction();
+
+	public long getCalls();
+
+	public long getErrors();
+
+	/**
+	 * @return the number of errors by UPnP error code, e.g. <code>718</code>,
+	 *         or by failure, e.g. <code>timeout</code>.
+	 */
+	public Map<String, Long> getErrorsByCode();
+
+	public double getLatencyMeanMillis();
+
+	public double getLatencyP50Millis();
+
+	public double getLatencyP90Millis();
+
+	public double getLatencyP99Millis();
+
+	public double getLatencyMaxMillis();
+
+	/**
+	 * Discard all recorded calls.
+	 */
+	public void reset();
+}
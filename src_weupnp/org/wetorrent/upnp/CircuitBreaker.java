@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stops sending requests to a device after a number of consecutive failed
+ * requests, so that callers fail fast instead of waiting for the timeout of
+ * a device that does not answer. After a pause, one trial request is allowed.
+ * If it succeeds, requests are sent again; if it fails, the pause starts
+ * again.
+ *
+ * @author chris
+ */
+public class CircuitBreaker {
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_MILLIS = 10000;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private int consecutiveFailures;
+	private boolean open;
+	private long openedAtNanos;
+	private long trialStartedAtNanos;
+	private boolean trialInProgress;
+
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+	}
+
+	/**
+	 * @param failureThreshold
+	 *            the number of consecutive failures after which requests are
+	 *            stopped.
+	 * @param openMillis
+	 *            the pause in milliseconds before a trial request is allowed.
+	 */
+	public CircuitBreaker(final int failureThreshold, final long openMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Check if a request may be sent. Must be followed by
+	 * {@link #recordSuccess()} or {@link #recordFailure()} if it returns
+	 * <code>true</code>.
+	 *
+	 * @return <code>true</code> if the request may be sent.
+	 */
+	public synchronized boolean allowRequest() {
+		if (!open) {
+			return true;
+		}
+		final long now = System.nanoTime();
+		if (trialInProgress && millisSince(trialStartedAtNanos, now) < openMillis) {
+			return false;
+		}
+		if (millisSince(openedAtNanos, now) < openMillis) {
+			return false;
+		}
+		trialInProgress = true;
+		trialStartedAtNanos = now;
+		return true;
+	}
+
+	public synchronized void recordSuccess() {
+		if (open) {
+			logger.info("Device answered again, resume sending requests");
+		}
+		consecutiveFailures = 0;
+		open = false;
+		trialInProgress = false;
+	}
+
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		trialInProgress = false;
+		if (open || consecutiveFailures >= failureThreshold) {
+			if (!open) {
+				logger.warn("Got " + consecutiveFailures
+						+ " consecutive failures, stop sending requests for "
+						+ openMillis + "ms");
+			}
+			open = true;
+			openedAtNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if requests are currently stopped.
+	 */
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	private static long millisSince(final long startNanos, final long now) {
+		return (now - startNanos) / 1000000L;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "[CircuitBreaker: open=" + open + ", consecutiveFailures="
+				+ consecutiveFailures + "]";
+	}
+}
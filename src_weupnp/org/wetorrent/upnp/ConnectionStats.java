@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+/**
+ * An immutable snapshot of the statistics of a {@link HttpConnectionPool}.
+ *
+ * @author chris
+ */
+public class ConnectionStats {
+
+	private final long requests;
+	private final long connectionsOpened;
+	private final long connectionsReused;
+	private final long staleConnectionRetries;
+	private final boolean keepAliveActive;
+
+	ConnectionStats(final long requests, final long connectionsOpened,
+			final long connectionsReused, final long staleConnectionRetries,
+			final boolean keepAliveActive) {
+		this.requests = requests;
+		this.connectionsOpened = connectionsOpened;
+		this.connectionsReused = connectionsReused;
+		this.staleConnectionRetries = staleConnectionRetries;
+		this.keepAliveActive = keepAliveActive;
+	}
+
+	/**
+	 * @return the number of requests sent to the router.
+	 */
+	public long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return the number of TCP connections opened to the router.
+	 */
+	public long getConnectionsOpened() {
+		return connectionsOpened;
+	}
+
+	/**
+	 * @return the number of times an already open connection was used for a
+	 *         request, i.e. the number of saved TCP handshakes.
+	 */
+	public long getConnectionsReused() {
+		return connectionsReused;
+	}
+
+	/**
+	 * @return the number of requests that had to be repeated because the
+	 *         router closed a reused connection.
+	 */
+	public long getStaleConnectionRetries() {
+		return staleConnectionRetries;
+	}
+
+	/**
+	 * @return <code>false</code> if keep-alive was disabled for the router.
+	 */
+	public boolean isKeepAliveActive() {
+		return keepAliveActive;
+	}
+
+	@Override
+	public String toString() {
+		return "[ConnectionStats: requests=" + requests
+				+ ", connectionsOpened=" + connectionsOpened
+				+ ", connectionsReused=" + connectionsReused
+				+ ", staleConnectionRetries=" + staleConnectionRetries
+				+ ", keepAliveActive=" + keepAliveActive + "]";
+	}
+}
@@ -0,0 +1,19 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+/**
+ * The {@link Deadline} expired while waiting for a free connection of the
+ * {@link HttpConnectionPool}. The request was not sent, so the device did not
+ * fail.
+ *
+ * @author chris
+ */
+@SuppressWarnings("serial")
+class ConnectionWaitTimeoutException extends DeadlineExceededException {
+
+	ConnectionWaitTimeoutException(final String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time until which an operation must be finished. A deadline is
+ * entered for the current thread with {@link #enter()}; all requests to a
+ * device sent by the thread until the returned {@link Scope} is closed wait
+ * at most until the deadline:
+ *
+ * <pre>
+ * try (Deadline.Scope scope = Deadline.within(10, TimeUnit.SECONDS)) {
+ * 	device.getExternalIPAddress();
+ * }
+ * </pre>
+ *
+ * Entering a deadline never extends a deadline that is already active for the
+ * thread, the earlier deadline remains in effect. To carry a deadline to
+ * another thread, get it with {@link #current()} and enter it in the other
+ * thread.
+ *
+ * @author chris
+ */
+public final class Deadline {
+
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+	private final long expiresAtNanos;
+
+	private Deadline(final long expiresAtNanos) {
+		this.expiresAtNanos = expiresAtNanos;
+	}
+
+	/**
+	 * Create a deadline expiring after the given time from now.
+	 *
+	 * @param timeout
+	 *            the time until the deadline expires.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return the new deadline.
+	 */
+	public static Deadline after(final long timeout, final TimeUnit unit) {
+		return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	/**
+	 * Enter a deadline expiring after the given time from now for the
+	 * current thread.
+	 *
+	 * @param timeout
+	 *            the time until the deadline expires.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return the scope of the deadline that must be closed.
+	 * @see #enter()
+	 */
+	public static Scope within(final long timeout, final TimeUnit unit) {
+		return after(timeout, unit).enter();
+	}
+
+	/**
+	 * @return the deadline active for the current thread or <code>null</code>
+	 *         if the thread has no deadline.
+	 */
+	public static Deadline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Combine the given timeout with the deadline of the current thread.
+	 *
+	 * @param timeoutMillis
+	 *            the timeout in milliseconds, <code>0</code> means no
+	 *            timeout.
+	 * @return the given timeout or the time remaining until the deadline of
+	 *         the current thread if that is shorter. <code>0</code> if there
+	 *         is neither a timeout nor a deadline.
+	 * @throws DeadlineExceededException
+	 *             if the deadline of the current thread has expired.
+	 */
+	public static int timeoutMillis(final int timeoutMillis)
+			throws DeadlineExceededException {
+		final Deadline deadline = CURRENT.get();
+		if (deadline == null) {
+			return timeoutMillis;
+		}
+		final long remaining = deadline.remainingMillis();
+		if (remaining <= 0) {
+			throw new DeadlineExceededException("Deadline exceeded");
+		}
+		final int remainingMillis = (int) Math.min(remaining,
+				Integer.MAX_VALUE);
+		return timeoutMillis == 0 ? remainingMillis : Math.min(
+				timeoutMillis, remainingMillis);
+	}
+
+	/**
+	 * Make this deadline active for the current thread until the returned
+	 * scope is closed. If the thread already has an earlier deadline, the
+	 * earlier deadline stays active.
+	 *
+	 * @return the scope of the deadline that must be closed.
+	 */
+	public Scope enter() {
+		final Deadline previous = CURRENT.get();
+		if (previous == null || remainingNanos() < previous.remainingNanos()) {
+			CURRENT.set(this);
+		}
+		return new Scope(previous);
+	}
+
+	/**
+	 * @return <code>true</code> if the deadline has expired.
+	 */
+	public boolean isExpired() {
+		return remainingNanos() <= 0;
+	}
+
+	/**
+	 * @return the milliseconds until the deadline expires, rounded up, or
+	 *         <code>0</code> if it has expired.
+	 */
+	public long remainingMillis() {
+		final long remainingNanos = remainingNanos();
+		return remainingNanos <= 0 ? 0
+				: TimeUnit.NANOSECONDS.toMillis(remainingNanos + 999999L);
+	}
+
+	private long remainingNanos() {
+		return expiresAtNanos - System.nanoTime();
+	}
+
+	@Override
+	public String toString() {
+		return "[Deadline: remaining " + remainingMillis() + "ms]";
+	}
+
+	/**
+	 * The scope of a deadline entered for the current thread. Closing the
+	 * scope restores the deadline that was active before.
+	 */
+	public static final class Scope implements AutoCloseable {
+		private final Deadline previous;
+
+		private Scope(final Deadline previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (previous == null) {
+				CURRENT.remove();
+			} else {
+				CURRENT.set(previous);
+			}
+		}
+	}
+}
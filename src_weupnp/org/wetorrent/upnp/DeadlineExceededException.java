@@ -0,0 +1,21 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a request can not be sent or finished because the
+ * {@link Deadline} of the current thread has expired.
+ *
+ * @author chris
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DeadlineExceededException(final String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+/**
+ * The timing of a discovery run of {@link GatewayDiscover}. All times are
+ * measured from sending the search request.
+ *
+ * @author chris
+ */
+public class DiscoveryStats {
+
+	private final int replies;
+	private final int devices;
+	private final long firstReplyMillis;
+	private final long firstValidMillis;
+	private final long totalMillis;
+
+	public DiscoveryStats(final int replies, final int devices,
+			final long firstReplyMillis, final long firstValidMillis,
+			final long totalMillis) {
+		this.replies = replies;
+		this.devices = devices;
+		this.firstReplyMillis = firstReplyMillis;
+		this.firstValidMillis = firstValidMillis;
+		this.totalMillis = totalMillis;
+	}
+
+	/**
+	 * @return the number of received replies, including duplicates and invalid
+	 *         replies.
+	 */
+	public int getReplies() {
+		return replies;
+	}
+
+	/**
+	 * @return the number of returned devices.
+	 */
+	public int getDevices() {
+		return devices;
+	}
+
+	/**
+	 * @return the time in milliseconds until the first reply was received or
+	 *         <code>-1</code> if no reply was received.
+	 */
+	public long getFirstReplyMillis() {
+		return firstReplyMillis;
+	}
+
+	/**
+	 * @return the time in milliseconds until the first connected device was
+	 *         found or <code>-1</code> if no device was found.
+	 */
+	public long getFirstValidMillis() {
+		return firstValidMillis;
+	}
+
+	/**
+	 * @return the duration of the discovery in milliseconds.
+	 */
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "[DiscoveryStats: replies=" + replies + ", devices=" + devices
+				+ ", firstReply=" + firstReplyMillis + "ms, firstValid="
+				+ firstValidMillis + "ms, total=" + totalMillis + "ms]";
+	}
+}
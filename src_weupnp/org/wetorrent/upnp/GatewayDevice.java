@@ -25,18 +25,29 @@
 package org.wetorrent.upnp;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
 
 /**
  * 
@@ -44,8 +55,64 @@ import org.xml.sax.helpers.XMLReaderFactory;
  */
 public class GatewayDevice {
 
+	/**
+	 * The buffer for encoding the SOAP envelopes, reused for all requests of
+	 * a thread.
+	 */
+	private static final ThreadLocal<SoapEnvelopeEncoder.Buffer> ENVELOPE_BUFFER = new ThreadLocal<SoapEnvelopeEncoder.Buffer>() {
+		@Override
+		protected SoapEnvelopeEncoder.Buffer initialValue() {
+			return new SoapEnvelopeEncoder.Buffer();
+		}
+	};
+
+	/**
+	 * The connection service of an IGD v2.
+	 */
+	public static final String SERVICE_TYPE_WAN_IP_CONNECTION_2 = "urn:schemas-upnp-org:service:WANIPConnection:2";
+
+	private static final int MAX_PORT = 65535;
+
+	/**
+	 * The maximum number of port mappings requested with one
+	 * <code>GetListOfPortMappings</code> action.
+	 */
+	private static final int LIST_OF_PORT_MAPPINGS_SIZE = 1000;
+
+	/**
+	 * The error code returned by <code>GetListOfPortMappings</code> when
+	 * there are no port mappings in the requested range.
+	 */
+	private static final String ERROR_PORT_MAPPING_NOT_FOUND = "730";
+
+	/**
+	 * The error code some gateways return instead of
+	 * {@link #ERROR_PORT_MAPPING_NOT_FOUND}.
+	 */
+	private static final String ERROR_NO_SUCH_ENTRY_IN_ARRAY = "714";
+
+	/**
+	 * The number of times a failed idempotent action is repeated.
+	 */
+	private static final int MAX_RETRIES = 2;
+	private static final long RETRY_BASE_DELAY_MILLIS = 100;
+
+	/**
+	 * The connect and read timeout for loading the device description.
+	 */
+	private static final int DESCRIPTION_TIMEOUT_MILLIS = 10000;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
 	private String st;
 	private String location;
+	private String usn;
+	private String server;
+	/**
+	 * The time in seconds the advertisement of the device is valid, or -1 if
+	 * unknown.
+	 */
+	private int maxAge = -1;
 
 	private String serviceType;
 	private String serviceTypeCIF;
@@ -62,6 +129,7 @@ public class GatewayDevice {
 	private String deviceTypeCIF;
 
 	// description data
+	private String uDN;
 	private String friendlyName;
 	private String manufacturer;
 	private String modelDescription;
@@ -72,6 +140,15 @@ public class GatewayDevice {
 	 */
 	private InetAddress localAddress;
 
+	/**
+	 * The connections used for sending SOAP requests to this device.
+	 */
+	private final HttpConnectionPool connectionPool = new HttpConnectionPool();
+
+	private final LatencyTracker latencyTracker = new LatencyTracker();
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+	private final ActionMetrics actionMetrics = new ActionMetrics();
+
 	public InetAddress getLocalAddress() {
 		return localAddress;
 	}
@@ -102,6 +179,30 @@ public class GatewayDevice {
 		this.location = location;
 	}
 
+	public String getUSN() {
+		return usn;
+	}
+
+	public void setUSN(final String usn) {
+		this.usn = usn;
+	}
+
+	public String getServer() {
+		return server;
+	}
+
+	public void setServer(final String server) {
+		this.server = server;
+	}
+
+	public int getMaxAge() {
+		return maxAge;
+	}
+
+	public void setMaxAge(final int maxAge) {
+		this.maxAge = maxAge;
+	}
+
 	private String copyOrCatUrl(String dst, final String src) {
 		if (src == null) {
 			return dst;
@@ -124,9 +225,12 @@ public class GatewayDevice {
 		URLConnection urlConn;
 		try {
 			urlConn = new URL(getLocation()).openConnection();
+			urlConn.setConnectTimeout(Deadline
+					.timeoutMillis(DESCRIPTION_TIMEOUT_MILLIS));
+			urlConn.setReadTimeout(Deadline
+					.timeoutMillis(DESCRIPTION_TIMEOUT_MILLIS));
 
-			XMLReader parser;
-			parser = XMLReaderFactory.createXMLReader();
+			final XMLReader parser = XmlParsers.getXMLReader();
 			parser.setContentHandler(new GatewayDeviceHandler(this));
 			parser.parse(new InputSource(urlConn.getInputStream()));
 
@@ -144,6 +248,8 @@ public class GatewayDevice {
 			sCPDURL = copyOrCatUrl(ipConDescURL, sCPDURL);
 			controlURL = copyOrCatUrl(ipConDescURL, controlURL);
 			controlURLCIF = copyOrCatUrl(ipConDescURL, controlURLCIF);
+			eventSubURL = copyOrCatUrl(ipConDescURL, eventSubURL);
+			eventSubURLCIF = copyOrCatUrl(ipConDescURL, eventSubURLCIF);
 		} catch (final MalformedURLException e) {
 			throw new WeUPnPException("Could not load description", e);
 		} catch (final IOException e) {
@@ -153,6 +259,27 @@ public class GatewayDevice {
 		}
 	}
 
+	/**
+	 * Get the connection status of the device with action
+	 * <code>GetStatusInfo</code>. This is a cheap way to check that the
+	 * device answers at its control URL.
+	 * 
+	 * @return the connection status, e.g. <code>Connected</code>.
+	 * @throws WeUPnPException
+	 *             if the device did not answer or returned an error.
+	 */
+	public String getConnectionStatus() throws WeUPnPException {
+		final Map<String, String> nameValue = simpleUPnPcommand(controlURL,
+				serviceType, "GetStatusInfo", null);
+		final String connectionStatus = nameValue.get("NewConnectionStatus");
+		if (connectionStatus == null) {
+			throw new WeUPnPException("Got error code '"
+					+ nameValue.get("errorCode")
+					+ "' when getting status info", nameValue.get("errorCode"));
+		}
+		return connectionStatus;
+	}
+
 	public boolean isConnected() throws WeUPnPException {
 		final Map<String, String> nameValue = simpleUPnPcommand(controlURL,
 				serviceType, "GetStatusInfo", null);
@@ -164,68 +291,209 @@ public class GatewayDevice {
 	public Map<String, String> simpleUPnPcommand(final String url,
 			final String service, final String action,
 			final Map<String, String> args) throws WeUPnPException {
-		final StringBuffer soapBody = new StringBuffer();
-
-		soapBody.append("<?xml version=\"1.0\"?>\r\n"
-				+ "<SOAP-ENV:Envelope "
-				+ "xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" "
-				+ "SOAP-ENV:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
-				+ "<SOAP-ENV:Body>" + "<m:" + action + " xmlns:m=\"" + service
-				+ "\">");
-
-		if (args != null && args.size() > 0) {
-			for (final String key : args.keySet()) {
-				soapBody.append("<" + key + ">" + args.get(key) + "</" + key
-						+ ">");
+		final long start = System.nanoTime();
+		try {
+			final byte[] responseBody = sendCommand(url, service, action, args)
+					.getBody();
+			final Map<String, String> nameValue = SoapResponseReader.read(
+					responseBody, 0, responseBody.length);
+			final String errorCode = nameValue.get("errorCode");
+			if (errorCode != null) {
+				actionMetrics.recordError(action, start, errorCode);
+			} else {
+				actionMetrics.recordSuccess(action, start);
 			}
+			return nameValue;
+		} catch (final XMLStreamException e) {
+			actionMetrics.recordError(action, start,
+					ActionMetrics.getErrorCode(e));
+			throw new WeUPnPException("Could not send simple upnp command", e);
+		} catch (final IOException e) {
+			actionMetrics.recordError(action, start,
+					ActionMetrics.getErrorCode(e));
+			throw new WeUPnPException("Could not send simple upnp command", e);
+		}
+
+	}
 
+	/**
+	 * Send the given action to the device.
+	 * 
+	 * @return the response, the status code is either below 400 or 500 for
+	 *         a SOAP fault.
+	 * @throws IOException
+	 *             if the request failed or the device returned another error
+	 *             status.
+	 */
+	@SuppressWarnings("try")
+	private HttpConnectionPool.Response sendCommand(final String url,
+			final String service, final String action,
+			final Map<String, String> args) throws IOException {
+		final URL postUrl = new URL(url);
+
+		final Map<String, String> headers = new LinkedHashMap<>();
+		headers.put("Content-Type", "text/xml; charset=\"utf-8\"");
+		headers.put("SOAPAction", service + "#" + action);
+
+		final SoapEnvelopeEncoder.Buffer soapBody = ENVELOPE_BUFFER.get();
+		SoapEnvelopeEncoder.getEncoder(service, action).encode(args, soapBody);
+
+		final Deadline operationDeadline = Deadline.current();
+		int attempt = 0;
+		while (true) {
+			attempt++;
+			if (!circuitBreaker.allowRequest()) {
+				throw new IOException("Device at " + postUrl.getHost()
+						+ " failed repeatedly, not sending " + action);
+			}
+			final HttpConnectionPool.Response response;
+			final long start = System.nanoTime();
+			final int timeoutMillis = latencyTracker.getTimeoutMillis();
+			try (Deadline.Scope scope = Deadline.within(timeoutMillis,
+					TimeUnit.MILLISECONDS)) {
+				response = connectionPool.execute("POST", postUrl, headers,
+						soapBody.array(), soapBody.length());
+			} catch (final IOException e) {
+				// waiting for a connection of our own pool says nothing about
+				// the device, and the request was not sent
+				final boolean sent = !(e instanceof ConnectionWaitTimeoutException);
+				if (sent) {
+					circuitBreaker.recordFailure();
+					recordTimeout(e, start, timeoutMillis);
+				}
+				if (sent && !isIdempotent(action) || attempt > MAX_RETRIES
+						|| e instanceof InterruptedIOException
+						&& !(e instanceof SocketTimeoutException)
+						&& !(e instanceof DeadlineExceededException)) {
+					throw e;
+				}
+				final long delayMillis = getRetryDelayMillis(attempt);
+				if (operationDeadline != null
+						&& operationDeadline.remainingMillis() <= delayMillis) {
+					throw e;
+				}
+				logger.debug("Action " + action + " failed (" + e.getMessage()
+						+ "), retry in " + delayMillis + "ms");
+				sleep(delayMillis);
+				continue;
+			}
+			final int responseCode = response.getStatusCode();
+			// a SOAP fault is sent with status 500, without a body it is a
+			// plain server error
+			if (responseCode >= 400
+					&& (responseCode != HttpURLConnection.HTTP_INTERNAL_ERROR || response
+							.getBody().length == 0)) {
+				// a server error counts like a lost response, a client error
+				// says nothing about the health of the device
+				if (responseCode >= 500) {
+					circuitBreaker.recordFailure();
+				}
+				throw new HttpStatusException(
+						"Server returned HTTP response code: " + responseCode
+								+ " for URL: " + url, responseCode);
+			}
+			circuitBreaker.recordSuccess();
+			latencyTracker.record((System.nanoTime() - start) / 1000000L);
+			return response;
 		}
+	}
 
-		soapBody.append("</m:" + action + ">");
-		soapBody.append("</SOAP-ENV:Body></SOAP-ENV:Envelope>");
+	/**
+	 * Record a request that timed out with its timeout as latency, so that
+	 * the timeout of a device that became slower grows. A request cut short
+	 * by an earlier deadline of the operation is not recorded, as its latency
+	 * is unknown.
+	 */
+	private void recordTimeout(final IOException e, final long start,
+			final int timeoutMillis) {
+		if ((e instanceof SocketTimeoutException || e instanceof DeadlineExceededException)
+				&& (System.nanoTime() - start) / 1000000L >= timeoutMillis) {
+			latencyTracker.record(timeoutMillis);
+		}
+	}
 
-		HttpURLConnection conn = null;
-		try {
-			final URL postUrl = new URL(url);
-			conn = (HttpURLConnection) postUrl.openConnection();
+	/**
+	 * Only actions that do not change the state of the device are repeated
+	 * after a failure, because a request may have been executed even if the
+	 * response was lost.
+	 */
+	private static boolean isIdempotent(final String action) {
+		return action.startsWith("Get");
+	}
 
-			conn.setRequestMethod("POST");
-			conn.setDoOutput(true);
-			conn.setRequestProperty("Content-Type", "text/xml");
+	/**
+	 * @return an exponentially growing delay with full jitter, so that
+	 *         concurrent callers do not retry at the same time.
+	 */
+	private static long getRetryDelayMillis(final int attempt) {
+		final long maxDelay = RETRY_BASE_DELAY_MILLIS << (attempt - 1);
+		return 1 + ThreadLocalRandom.current().nextLong(maxDelay);
+	}
 
-			final String soapAction = service + "#" + action;
-			conn.setRequestProperty("SOAPAction", soapAction);
-			conn.setRequestProperty("Connection", "Close");
+	private static void sleep(final long millis) throws InterruptedIOException {
+		try {
+			Thread.sleep(millis);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry");
+		}
+	}
 
-			final byte[] soapBodyBytes = soapBody.toString().getBytes();
+	/**
+	 * Get the latencies of the requests to this device. The timeout of a
+	 * request is derived from the latencies.
+	 * 
+	 * @return the latencies of the requests to this device.
+	 */
+	public LatencyTracker getLatencyTracker() {
+		return latencyTracker;
+	}
 
-			conn.setRequestProperty("Content-Length",
-					Integer.toString(soapBodyBytes.length));
+	/**
+	 * Get the number of calls, the errors and the latencies of the SOAP
+	 * actions sent to this device.
+	 * 
+	 * @return the statistics of the actions by name.
+	 */
+	public ActionMetrics getActionMetrics() {
+		return actionMetrics;
+	}
 
-			conn.getOutputStream().write(soapBodyBytes);
+	/**
+	 * Get the circuit breaker that stops sending requests after repeated
+	 * failures.
+	 * 
+	 * @return the circuit breaker of this device.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
 
-			final XMLReader parser = XMLReaderFactory.createXMLReader();
-			final NameValueHandler nameValueHandler = new NameValueHandler();
-			parser.setContentHandler(nameValueHandler);
+	/**
+	 * Get the statistics of the connections used for the SOAP requests to
+	 * this device.
+	 * 
+	 * @return the statistics of the connections to this device.
+	 */
+	public ConnectionStats getConnectionStats() {
+		return connectionPool.getStats();
+	}
 
-			if (conn.getResponseCode() == HttpURLConnection.HTTP_INTERNAL_ERROR) {
-				parser.parse(new InputSource(conn.getErrorStream()));
-			} else {
-				parser.parse(new InputSource(conn.getInputStream()));
-			}
-			return nameValueHandler.getNameValue();
-		} catch (final MalformedURLException e) {
-			throw new WeUPnPException("Could not send simple upnp command", e);
-		} catch (final SAXException e) {
-			throw new WeUPnPException("Could not send simple upnp command", e);
-		} catch (final IOException e) {
-			throw new WeUPnPException("Could not send simple upnp command", e);
-		} finally {
-			if (conn != null) {
-				conn.disconnect();
-			}
-		}
+	/**
+	 * Get the pool of connections used for the SOAP requests to this device,
+	 * e.g. to configure the number of connections or to disable keep-alive.
+	 * 
+	 * @return the pool of connections used for this device.
+	 */
+	public HttpConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
 
+	/**
+	 * Close all idle connections to this device.
+	 */
+	public void closeConnections() {
+		connectionPool.close();
 	}
 
 	public String getExternalIPAddress() throws WeUPnPException {
@@ -238,7 +506,24 @@ public class GatewayDevice {
 			final int internalPort, final String internalClient,
 			final String protocol, final String description)
 			throws WeUPnPException {
-		final Map<String, String> args = new HashMap<>();
+		return addPortMapping(externalPort, internalPort, internalClient,
+				protocol, description, 0);
+	}
+
+	/**
+	 * Add a port mapping that the device removes after the given lease
+	 * duration unless it is added again.
+	 * 
+	 * @param leaseDuration
+	 *            the lease duration in seconds or <code>0</code> for a
+	 *            permanent mapping.
+	 * @return <code>true</code> if the mapping was added.
+	 */
+	public boolean addPortMapping(final int externalPort,
+			final int internalPort, final String internalClient,
+			final String protocol, final String description,
+			final int leaseDuration) throws WeUPnPException {
+		final Map<String, String> args = new LinkedHashMap<>();
 		args.put("NewRemoteHost", "");
 		args.put("NewExternalPort", Integer.toString(externalPort));
 		args.put("NewProtocol", protocol);
@@ -246,7 +531,7 @@ public class GatewayDevice {
 		args.put("NewInternalClient", internalClient);
 		args.put("NewEnabled", Integer.toString(1));
 		args.put("NewPortMappingDescription", description);
-		args.put("NewLeaseDuration", Integer.toString(0));
+		args.put("NewLeaseDuration", Integer.toString(leaseDuration));
 
 		final Map<String, String> nameValue = simpleUPnPcommand(controlURL,
 				serviceType, "AddPortMapping", args);
@@ -260,7 +545,7 @@ public class GatewayDevice {
 		portMappingEntry.setExternalPort(externalPort);
 		portMappingEntry.setProtocol(protocol);
 
-		final Map<String, String> args = new HashMap<>();
+		final Map<String, String> args = new LinkedHashMap<>();
 		args.put("NewRemoteHost", "");
 		args.put("NewExternalPort", Integer.toString(externalPort));
 		args.put("NewProtocol", protocol);
@@ -292,7 +577,7 @@ public class GatewayDevice {
 
 	public PortMappingEntry getGenericPortMappingEntry(final int index)
 			throws WeUPnPException {
-		final Map<String, String> args = new HashMap<>();
+		final Map<String, String> args = new LinkedHashMap<>();
 		args.put("NewPortMappingIndex", Integer.toString(index));
 
 		final Map<String, String> nameValue = simpleUPnPcommand(controlURL,
@@ -330,7 +615,8 @@ public class GatewayDevice {
 		if (nameValue.get("errorCode") != null) {
 			throw new WeUPnPException("Got error code '"
 					+ nameValue.get("errorCode")
-					+ "' when getting port mapping " + index);
+					+ "' when getting port mapping " + index,
+					nameValue.get("errorCode"));
 		}
 		return portMappingEntry;
 	}
@@ -344,6 +630,125 @@ public class GatewayDevice {
 		}
 	}
 
+	/**
+	 * Check if the connection service of this device is a
+	 * <code>WANIPConnection:2</code> of an IGD v2, supporting action
+	 * <code>GetListOfPortMappings</code>.
+	 * 
+	 * @return <code>true</code> if the device supports
+	 *         {@link #getListOfPortMappings(String)}.
+	 */
+	public boolean isIGDv2() {
+		return SERVICE_TYPE_WAN_IP_CONNECTION_2.equals(serviceType);
+	}
+
+	/**
+	 * Get all port mappings for the given protocol with the IGD v2 action
+	 * <code>GetListOfPortMappings</code>. Devices may limit the number of
+	 * mappings returned with one request, so the list is requested again
+	 * starting at the highest port received until the device returns no new
+	 * mappings. A port can have several mappings with different remote
+	 * hosts, so the highest port is requested again in case a page ended
+	 * within its mappings, and the mappings received twice are dropped. If a
+	 * page may end within the mappings of a single port, they can not be
+	 * listed completely and the listing fails.
+	 * 
+	 * @param protocol
+	 *            the protocol, <code>TCP</code> or <code>UDP</code>.
+	 * @return all port mappings for the given protocol.
+	 * @throws WeUPnPException
+	 *             if the device does not support the action, returned an
+	 *             invalid listing or has more mappings for a port than it
+	 *             returns with one request.
+	 */
+	public List<PortMappingEntry> getListOfPortMappings(final String protocol)
+			throws WeUPnPException {
+		final List<PortMappingEntry> entries = new ArrayList<>();
+		final Set<String> received = new HashSet<>();
+		int startPort = 1;
+		int largestPage = 0;
+		while (startPort <= MAX_PORT) {
+			final List<PortMappingEntry> page = getListOfPortMappings(
+					startPort, MAX_PORT, protocol, LIST_OF_PORT_MAPPINGS_SIZE);
+			int highestPort = startPort - 1;
+			int pageSize = 0;
+			boolean added = false;
+			for (final PortMappingEntry entry : page) {
+				if (entry.getExternalPort() < startPort) {
+					continue;
+				}
+				if (entry.getProtocol() == null) {
+					entry.setProtocol(protocol);
+				}
+				pageSize++;
+				highestPort = Math.max(highestPort, entry.getExternalPort());
+				if (received.add(entry.getExternalPort() + " "
+						+ entry.getRemoteHost())) {
+					entries.add(entry);
+					added = true;
+				}
+			}
+			if (highestPort < startPort) {
+				break;
+			}
+			if (!added && highestPort == startPort && pageSize >= largestPage) {
+				// the page may be full and end within the mappings of the port
+				throw new WeUPnPException("Could not list all " + protocol
+						+ " mappings of port " + startPort + " with pages of "
+						+ pageSize + " mappings");
+			}
+			largestPage = Math.max(largestPage, pageSize);
+			// without new mappings the highest port is complete
+			startPort = added ? highestPort : highestPort + 1;
+		}
+		return entries;
+	}
+
+	private List<PortMappingEntry> getListOfPortMappings(final int startPort,
+			final int endPort, final String protocol, final int numberOfPorts)
+			throws WeUPnPException {
+		final Map<String, String> args = new LinkedHashMap<>();
+		args.put("NewStartPort", Integer.toString(startPort));
+		args.put("NewEndPort", Integer.toString(endPort));
+		args.put("NewProtocol", protocol);
+		args.put("NewManage", "1");
+		args.put("NewNumberOfPorts", Integer.toString(numberOfPorts));
+
+		final String action = "GetListOfPortMappings";
+		final long start = System.nanoTime();
+		try {
+			final HttpConnectionPool.Response response = sendCommand(
+					controlURL, serviceType, action, args);
+			final byte[] body = response.getBody();
+			if (response.getStatusCode() == HttpURLConnection.HTTP_INTERNAL_ERROR) {
+				final String errorCode = SoapResponseReader.read(body, 0,
+						body.length).get("errorCode");
+				// the normal end of the listing
+				if (ERROR_PORT_MAPPING_NOT_FOUND.equals(errorCode)
+						|| ERROR_NO_SUCH_ENTRY_IN_ARRAY.equals(errorCode)) {
+					actionMetrics.recordSuccess(action, start);
+					return new ArrayList<>();
+				}
+				actionMetrics.recordError(action, start, String
+						.valueOf(errorCode));
+				throw new WeUPnPException("Got error code '" + errorCode
+						+ "' when getting list of port mappings", errorCode);
+			}
+			final List<PortMappingEntry> entries = PortListingReader.read(
+					body, 0, body.length);
+			actionMetrics.recordSuccess(action, start);
+			return entries;
+		} catch (final XMLStreamException e) {
+			actionMetrics.recordError(action, start,
+					ActionMetrics.getErrorCode(e));
+			throw new WeUPnPException("Could not get list of port mappings", e);
+		} catch (final IOException e) {
+			actionMetrics.recordError(action, start,
+					ActionMetrics.getErrorCode(e));
+			throw new WeUPnPException("Could not get list of port mappings", e);
+		}
+	}
+
 	public int getPortMappingNumberOfEntries() throws WeUPnPException {
 
 		final Map<String, String> nameValue = simpleUPnPcommand(controlURL,
@@ -360,15 +765,28 @@ public class GatewayDevice {
 		}
 	}
 
+	/**
+	 * Delete a port mapping.
+	 * 
+	 * @return <code>true</code> if the mapping was deleted.
+	 * @throws WeUPnPException
+	 *             if the device returned an error, e.g. because there is no
+	 *             such mapping.
+	 */
 	public boolean deletePortMapping(final int externalPort,
 			final String protocol) throws WeUPnPException {
-		final Map<String, String> args = new HashMap<>();
+		final Map<String, String> args = new LinkedHashMap<>();
 		args.put("NewRemoteHost", "");
 		args.put("NewExternalPort", Integer.toString(externalPort));
 		args.put("NewProtocol", protocol);
-		simpleUPnPcommand(controlURL, serviceType, "DeletePortMapping", args);
-		// TODO: check, if port mapping was deleted
-		// return nameValue.get("errorCode") == null;
+		final Map<String, String> nameValue = simpleUPnPcommand(controlURL,
+				serviceType, "DeletePortMapping", args);
+		final String errorCode = nameValue.get("errorCode");
+		if (errorCode != null) {
+			throw new WeUPnPException("Got error code '" + errorCode
+					+ "' when deleting port mapping " + protocol + "/"
+					+ externalPort, errorCode);
+		}
 		return true;
 	}
 
@@ -460,6 +878,19 @@ public class GatewayDevice {
 		this.uRLBase = uRLBase;
 	}
 
+	/**
+	 * @return the unique device name of the root device, e.g.
+	 *         <code>uuid:...</code>, or <code>null</code> if the description
+	 *         contains none.
+	 */
+	public String getUDN() {
+		return uDN;
+	}
+
+	public void setUDN(final String uDN) {
+		this.uDN = uDN;
+	}
+
 	public String getFriendlyName() {
 		return friendlyName;
 	}
@@ -0,0 +1,202 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stores the parsed descriptions of gateway devices in a properties file, so
+ * that a device can be used without discovery and without loading its
+ * description again. Devices are identified by their UDN or, if the
+ * description has none, by their location.
+ *
+ * @author chris
+ */
+public class GatewayDeviceCache {
+
+	private static final String PREFIX = "device.";
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final File file;
+
+	/**
+	 * @param file
+	 *            the properties file used for storing the devices.
+	 */
+	public GatewayDeviceCache(final File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Load the cached devices.
+	 *
+	 * @return the cached devices or an empty list if the cache does not exist
+	 *         or can not be read.
+	 */
+	public List<GatewayDevice> load() {
+		final List<GatewayDevice> devices = new ArrayList<>();
+		if (!file.isFile()) {
+			logger.debug("Device cache " + file + " does not exist");
+			return devices;
+		}
+		final Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			properties.load(in);
+		} catch (final IOException | IllegalArgumentException e) {
+			logger.warn("Could not read device cache " + file, e);
+			return devices;
+		}
+
+		for (int index = 0; properties.containsKey(PREFIX + index
+				+ ".location"); index++) {
+			final String prefix = PREFIX + index + ".";
+			final GatewayDevice device = new GatewayDevice();
+			device.setLocation(properties.getProperty(prefix + "location"));
+			device.setSt(properties.getProperty(prefix + "st"));
+			device.setUDN(properties.getProperty(prefix + "udn"));
+			device.setUSN(properties.getProperty(prefix + "usn"));
+			device.setServer(properties.getProperty(prefix + "server"));
+			device.setURLBase(properties.getProperty(prefix + "urlBase"));
+			device.setFriendlyName(properties.getProperty(prefix
+					+ "friendlyName"));
+			device.setManufacturer(properties.getProperty(prefix
+					+ "manufacturer"));
+			device.setModelDescription(properties.getProperty(prefix
+					+ "modelDescription"));
+			device.setPresentationURL(properties.getProperty(prefix
+					+ "presentationURL"));
+			device.setDeviceType(properties.getProperty(prefix + "deviceType"));
+			device.setDeviceTypeCIF(properties.getProperty(prefix
+					+ "deviceTypeCIF"));
+			device.setServiceType(properties.getProperty(prefix
+					+ "serviceType"));
+			device.setServiceTypeCIF(properties.getProperty(prefix
+					+ "serviceTypeCIF"));
+			device.setControlURL(properties.getProperty(prefix + "controlURL"));
+			device.setControlURLCIF(properties.getProperty(prefix
+					+ "controlURLCIF"));
+			device.setEventSubURL(properties.getProperty(prefix
+					+ "eventSubURL"));
+			device.setEventSubURLCIF(properties.getProperty(prefix
+					+ "eventSubURLCIF"));
+			device.setSCPDURL(properties.getProperty(prefix + "scpdURL"));
+			device.setSCPDURLCIF(properties.getProperty(prefix + "scpdURLCIF"));
+			final String localAddress = properties.getProperty(prefix
+					+ "localAddress");
+			if (localAddress != null) {
+				try {
+					// the address is stored as literal IP, so no lookup is
+					// done
+					device.setLocalAddress(InetAddress.getByName(localAddress));
+				} catch (final IOException e) {
+					logger.debug("Ignore invalid address " + localAddress, e);
+				}
+			}
+			if (device.getControlURL() != null
+					&& device.getServiceType() != null) {
+				devices.add(device);
+			}
+		}
+		logger.debug("Loaded " + devices.size() + " devices from cache "
+				+ file);
+		return devices;
+	}
+
+	/**
+	 * Replace the cached devices with the given devices. Devices without a
+	 * control URL are not stored.
+	 *
+	 * @param devices
+	 *            the devices to store.
+	 * @throws IOException
+	 *             if the cache could not be written.
+	 */
+	public void store(final Collection<GatewayDevice> devices)
+			throws IOException {
+		final Map<String, GatewayDevice> devicesById = new LinkedHashMap<>();
+		for (final GatewayDevice device : devices) {
+			if (device.getControlURL() != null
+					&& device.getServiceType() != null) {
+				devicesById.put(device.getUDN() != null ? device.getUDN()
+						: device.getLocation(), device);
+			}
+		}
+
+		final Properties properties = new Properties();
+		int index = 0;
+		for (final GatewayDevice device : devicesById.values()) {
+			final String prefix = PREFIX + index + ".";
+			put(properties, prefix + "location", device.getLocation());
+			put(properties, prefix + "st", device.getSt());
+			put(properties, prefix + "udn", device.getUDN());
+			put(properties, prefix + "usn", device.getUSN());
+			put(properties, prefix + "server", device.getServer());
+			put(properties, prefix + "urlBase", device.getURLBase());
+			put(properties, prefix + "friendlyName", device.getFriendlyName());
+			put(properties, prefix + "manufacturer", device.getManufacturer());
+			put(properties, prefix + "modelDescription",
+					device.getModelDescription());
+			put(properties, prefix + "presentationURL",
+					device.getPresentationURL());
+			put(properties, prefix + "deviceType", device.getDeviceType());
+			put(properties, prefix + "deviceTypeCIF", device.getDeviceTypeCIF());
+			put(properties, prefix + "serviceType", device.getServiceType());
+			put(properties, prefix + "serviceTypeCIF",
+					device.getServiceTypeCIF());
+			put(properties, prefix + "controlURL", device.getControlURL());
+			put(properties, prefix + "controlURLCIF", device.getControlURLCIF());
+			put(properties, prefix + "eventSubURL", device.getEventSubURL());
+			put(properties, prefix + "eventSubURLCIF",
+					device.getEventSubURLCIF());
+			put(properties, prefix + "scpdURL", device.getSCPDURL());
+			put(properties, prefix + "scpdURLCIF", device.getSCPDURLCIF());
+			if (device.getLocalAddress() != null) {
+				put(properties, prefix + "localAddress", device
+						.getLocalAddress().getHostAddress());
+			}
+			index++;
+		}
+
+		final File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory " + directory);
+		}
+		// write to a temporary file first, so that a concurrent reader never
+		// sees a partially written cache
+		final File tempFile = new File(directory, file.getName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tempFile.toPath())) {
+			properties.store(out, "Cached UPnP gateway device descriptions");
+		}
+		Files.move(tempFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		logger.debug("Stored " + index + " devices in cache " + file);
+	}
+
+	private static void put(final Properties properties, final String key,
+			final String value) {
+		if (value != null) {
+			properties.setProperty(key, value);
+		}
+	}
+}
@@ -60,6 +60,7 @@ public class GatewayDeviceHandler extends DefaultHandler {
 
 	private final GatewayDevice device;
 	private String currentElement;
+	private final StringBuilder text = new StringBuilder();
 	private short state = STATE_INITIALIZED;
 
 	/** Creates a new instance of GatewayDeviceHandler */
@@ -72,6 +73,7 @@ public class GatewayDeviceHandler extends DefaultHandler {
 			final String qName, final Attributes attributes)
 			throws SAXException {
 		currentElement = localName;
+		text.setLength(0);
 		if (state == STATE_INITIALIZED && "serviceList".equals(currentElement)) {
 			state = STATE_SERVICE_LIST;
 		}
@@ -80,7 +82,16 @@ public class GatewayDeviceHandler extends DefaultHandler {
 	@Override
 	public void endElement(final String uri, final String localName,
 			final String qName) {
+		// The parser may report the text of an element in several chunks, so
+		// it is accumulated and handled when the element ends.
+		if (localName.equals(currentElement)) {
+			final String value = text.toString().trim();
+			if (!value.isEmpty()) {
+				elementValue(localName, value);
+			}
+		}
 		currentElement = "";
+		text.setLength(0);
 		if (localName.equals("service")) {
 			if (device.getServiceTypeCIF() != null
 					&& device
@@ -89,8 +100,10 @@ public class GatewayDeviceHandler extends DefaultHandler {
 				state = STATE_WAN_COMMON_INTERFACE_CONFIG;
 			}
 			if (device.getServiceType() != null
-					&& device.getServiceType().equals(
-							"urn:schemas-upnp-org:service:WANIPConnection:1")) {
+					&& (device.getServiceType().equals(
+							"urn:schemas-upnp-org:service:WANIPConnection:1") || device
+							.getServiceType()
+							.equals(GatewayDevice.SERVICE_TYPE_WAN_IP_CONNECTION_2))) {
 				state = STATE_WAN_IP_CONNECTION;
 			}
 		}
@@ -98,12 +111,14 @@ public class GatewayDeviceHandler extends DefaultHandler {
 
 	@Override
 	public void characters(final char[] ch, final int start, final int length) {
-		final String value = new String(ch, start, length).trim();
-		if (currentElement != null && !currentElement.isEmpty()
-				&& !value.isEmpty()) {
-			logger.trace("Current element '" + currentElement + "' has value '"
-					+ value + "'");
+		if (currentElement != null && !currentElement.isEmpty()) {
+			text.append(ch, start, length);
 		}
+	}
+
+	private void elementValue(final String currentElement, final String value) {
+		logger.trace("Current element '" + currentElement + "' has value '"
+				+ value + "'");
 		if (currentElement.equals("URLBase")) {
 			device.setURLBase(value);
 		} else if (state == STATE_INITIALIZED || state == STATE_SERVICE_LIST) {
@@ -116,6 +131,9 @@ public class GatewayDeviceHandler extends DefaultHandler {
 					device.setModelDescription(value);
 				else if ("presentationURL".equals(currentElement))
 					device.setPresentationURL(value);
+				else if ("UDN".equals(currentElement)
+						&& device.getUDN() == null)
+					device.setUDN(value);
 			}
 			if (currentElement.equals("serviceType"))
 				device.setServiceTypeCIF(value);
@@ -24,145 +24,533 @@
 
 package org.wetorrent.upnp;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.BindException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 public class GatewayDiscover {
 
 	private static final int PORT = 1900;
 	private final String IP = "239.255.255.250";
 
-	private final Map<InetAddress, GatewayDevice> devices = new HashMap<>();
+	static final String[] SEARCH_TYPES = {
+			"urn:schemas-upnp-org:device:InternetGatewayDevice:1",
+			"urn:schemas-upnp-org:device:InternetGatewayDevice:2" };
+
+	/**
+	 * The default time in milliseconds to wait for a reply.
+	 */
+	public static final int DEFAULT_TIMEOUT_MILLIS = 3000;
+
+	private static final long POLL_INTERVAL_MILLIS = 20;
+
+	private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable, "weupnp-discover-"
+					+ threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private volatile int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+	private volatile long graceMillis = -1;
+	private volatile InetSocketAddress searchAddress;
+
+	private Map<InetAddress, GatewayDevice> devices = new HashMap<>();
+	private final Map<GatewayDevice, Boolean> connectionStatus = new ConcurrentHashMap<>();
+	private volatile DiscoveryStats lastDiscoveryStats;
 
 	public GatewayDiscover() {
 	}
 
+	/**
+	 * Search for gateway devices on all network interfaces that are up and
+	 * support multicast. The search is sent on all interfaces at the same time
+	 * and the replies from all interfaces are merged, so the duration does not
+	 * depend on the number of interfaces. If a device replies on several
+	 * interfaces, the first reply is used.
+	 * 
+	 * @return the found devices by their address.
+	 * @throws WeUPnPException
+	 *             if the search could not be sent on any interface.
+	 */
 	public Map<InetAddress, GatewayDevice> discover() throws WeUPnPException {
+		final Map<InetAddress, GatewayDevice> foundDevices = new LinkedHashMap<>();
+		connectionStatus.clear();
 
-		DatagramSocket ssdp = null;
-		try {
-			// try binding using the default port
-			ssdp = new DatagramSocket(PORT);
-		} catch (final BindException be) {
-			// could not bind to the default port
-		} catch (final SocketException e) {
+		final List<DatagramChannel> channels = openChannels();
+		try (Selector selector = Selector.open()) {
+			final long startNanos = System.nanoTime();
+			int sent = 0;
+			for (final DatagramChannel channel : channels) {
+				if (sendSearch(channel)) {
+					channel.register(selector, SelectionKey.OP_READ);
+					sent++;
+				}
+			}
+			if (sent == 0) {
+				throw new WeUPnPException(
+						"Could not send search on any network interface");
+			}
+			receiveReplies(selector, startNanos, foundDevices);
+		} catch (final IOException e) {
 			throw new WeUPnPException("Error discovering gateway devices", e);
+		} finally {
+			for (final DatagramChannel channel : channels) {
+				try {
+					channel.close();
+				} catch (final IOException e) {
+					// ignore
+				}
+			}
+		}
+		devices = foundDevices;
+		return devices;
+	}
+
+	/**
+	 * Open a channel for each IPv4 address of the network interfaces that are
+	 * up and support multicast. If there is no such interface, a single
+	 * channel using the default interface is opened.
+	 */
+	private List<DatagramChannel> openChannels() throws WeUPnPException {
+		final List<DatagramChannel> channels = new ArrayList<>();
+		final InetSocketAddress unicastAddress = searchAddress;
+		if (unicastAddress != null) {
+			try {
+				channels.add(openChannel(unicastAddress.getAddress()
+						.isLoopbackAddress() ? unicastAddress.getAddress()
+						: null));
+			} catch (final IOException e) {
+				throw new WeUPnPException("Error discovering gateway devices",
+						e);
+			}
+			return channels;
 		}
 		try {
-			if (null == ssdp) {
-				// let the JVM choose an available port
-				ssdp = new DatagramSocket();
+			final Enumeration<NetworkInterface> interfaces = NetworkInterface
+					.getNetworkInterfaces();
+			while (interfaces != null && interfaces.hasMoreElements()) {
+				final NetworkInterface networkInterface = interfaces
+						.nextElement();
+				if (!isEligible(networkInterface)) {
+					continue;
+				}
+				for (final InetAddress address : Collections
+						.list(networkInterface.getInetAddresses())) {
+					if (!(address instanceof Inet4Address)) {
+						continue;
+					}
+					try {
+						final DatagramChannel channel = openChannel(address);
+						channel.setOption(StandardSocketOptions.IP_MULTICAST_IF,
+								networkInterface);
+						channels.add(channel);
+					} catch (final IOException e) {
+						logger.debug("Could not open channel for address "
+								+ address + " of interface "
+								+ networkInterface.getName(), e);
+					}
+				}
+			}
+			if (channels.isEmpty()) {
+				logger.debug("No eligible network interface found, use default interface");
+				channels.add(openChannel(null));
+			}
+		} catch (final IOException e) {
+			for (final DatagramChannel channel : channels) {
+				try {
+					channel.close();
+				} catch (final IOException e1) {
+					// ignore
+				}
 			}
-		} catch (final SocketException e) {
 			throw new WeUPnPException("Error discovering gateway devices", e);
 		}
+		return channels;
+	}
 
-		final int port = ssdp.getLocalPort();
+	static boolean isEligible(final NetworkInterface networkInterface)
+			throws SocketException {
+		return networkInterface.isUp() && networkInterface.supportsMulticast()
+				&& !networkInterface.isLoopback();
+	}
 
-		final String searchMessage = "M-SEARCH * HTTP/1.1\r\n" + "HOST: " + IP
-				+ ":" + port + "\r\n" + "ST: "
-				+ "urn:schemas-upnp-org:device:InternetGatewayDevice:1"
-				+ "\r\n" + "MAN: \"ssdp:discover\"\r\n" + "MX: 2\r\n" + "\r\n";
+	/**
+	 * Open a non-blocking channel bound to the given address or to the
+	 * wildcard address if it is <code>null</code>.
+	 */
+	private static DatagramChannel openChannel(final InetAddress address)
+			throws IOException {
+		final DatagramChannel channel = DatagramChannel
+				.open(StandardProtocolFamily.INET);
 		try {
-			final byte[] searchMessageBytes = searchMessage.getBytes();
-			final DatagramPacket ssdpDiscoverPacket = new DatagramPacket(
-					searchMessageBytes, searchMessageBytes.length);
 			try {
-				ssdpDiscoverPacket.setAddress(InetAddress.getByName(IP));
-			} catch (final UnknownHostException e1) {
-				throw new WeUPnPException("Error resolving host with name "
-						+ IP, e1);
+				// try binding using the default port
+				channel.bind(new InetSocketAddress(address, PORT));
+			} catch (final BindException be) {
+				// let the system choose an available port
+				channel.bind(new InetSocketAddress(address, 0));
 			}
-			ssdpDiscoverPacket.setPort(PORT);
+			channel.configureBlocking(false);
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
 
-			ssdp.send(ssdpDiscoverPacket);
-			ssdp.setSoTimeout(3000);
+	/**
+	 * Send the search requests on the given channel.
+	 * 
+	 * @return <code>false</code> if sending failed, e.g. because the interface
+	 *         has no route to the multicast address.
+	 */
+	private boolean sendSearch(final DatagramChannel channel) {
+		final InetSocketAddress localAddress;
+		try {
+			localAddress = (InetSocketAddress) channel.getLocalAddress();
+			final InetSocketAddress target = searchAddress != null ? searchAddress
+					: new InetSocketAddress(InetAddress.getByName(IP), PORT);
+			// IGD v2 devices should also answer searches for v1, but some only
+			// answer searches for their own version.
+			for (final String searchType : SEARCH_TYPES) {
+				final String searchMessage = "M-SEARCH * HTTP/1.1\r\n"
+						+ "HOST: " + IP + ":" + localAddress.getPort()
+						+ "\r\n" + "ST: " + searchType + "\r\n"
+						+ "MAN: \"ssdp:discover\"\r\n" + "MX: 2\r\n"
+						+ "\r\n";
+				channel.send(ByteBuffer.wrap(searchMessage.getBytes()), target);
+			}
+		} catch (final IOException e) {
+			logger.debug("Could not send search on channel " + channel, e);
+			return false;
+		}
+		logger.debug("Sent search from " + localAddress);
+		return true;
+	}
 
-			boolean waitingPacket = true;
+	/**
+	 * Collect the replies to the search and load the descriptions of the
+	 * replying devices concurrently.
+	 */
+	private void receiveReplies(final Selector selector, final long startNanos,
+			final Map<InetAddress, GatewayDevice> foundDevices)
+			throws IOException {
+		final boolean earlyExit = graceMillis >= 0;
+		final AtomicLong firstValidNanos = new AtomicLong();
+		final Map<GatewayDevice, Future<?>> descriptionTasks = new LinkedHashMap<>();
+		final ExecutorService executor = Executors
+				.newCachedThreadPool(DAEMON_THREAD_FACTORY);
+		final ByteBuffer receiveBuffer = ByteBuffer.allocate(1536);
+		int replies = 0;
+		long firstReplyNanos = 0;
+		try {
+			long lastPacketNanos = startNanos;
+			while (true) {
+				final long now = System.nanoTime();
+				final long waitMillis;
+				if (earlyExit && firstValidNanos.get() != 0) {
+					waitMillis = graceMillis
+							- millisBetween(firstValidNanos.get(), now);
+				} else if (earlyExit) {
+					// wake up regularly to check if a device became valid
+					waitMillis = Math.min(POLL_INTERVAL_MILLIS, timeoutMillis
+							- millisBetween(lastPacketNanos, now));
+				} else {
+					waitMillis = timeoutMillis
+							- millisBetween(lastPacketNanos, now);
+				}
+				if (waitMillis <= 0) {
+					break;
+				}
+				if (selector.select(waitMillis) == 0) {
+					continue;
+				}
 
-			while (waitingPacket) {
-				final DatagramPacket receivePacket = new DatagramPacket(
-						new byte[1536], 1536);
-				try {
-					ssdp.receive(receivePacket);
-					final InetAddress localAddress = receivePacket.getAddress();
-					final byte[] receivedData = new byte[receivePacket
-							.getLength()];
-					System.arraycopy(receivePacket.getData(), 0, receivedData,
-							0, receivePacket.getLength());
-
-					final GatewayDevice d = parseMSearchReplay(receivedData);
-
-					d.setLocalAddress(localAddress);
-					devices.put(localAddress, d);
-				} catch (final SocketTimeoutException ste) {
-					waitingPacket = false;
+				final Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					final DatagramChannel channel = (DatagramChannel) keys
+							.next().channel();
+					keys.remove();
+					InetSocketAddress sender;
+					while ((sender = receive(channel, receiveBuffer)) != null) {
+						lastPacketNanos = System.nanoTime();
+						replies++;
+						if (firstReplyNanos == 0) {
+							firstReplyNanos = lastPacketNanos;
+						}
+						final GatewayDevice device = handleReply(
+								receiveBuffer, sender.getAddress(),
+								foundDevices);
+						if (device != null) {
+							descriptionTasks.put(device, executor
+									.submit(new DescriptionTask(device,
+											firstValidNanos)));
+						}
+					}
 				}
 			}
 
-			for (final GatewayDevice device : devices.values()) {
+			// without a valid device the grace period did not start, so the
+			// slow devices are the only candidates and are waited for
+			final boolean graceStarted = earlyExit && firstValidNanos.get() != 0;
+			for (final Map.Entry<GatewayDevice, Future<?>> task : descriptionTasks
+					.entrySet()) {
+				if (graceStarted && !task.getValue().isDone()) {
+					// answered too late
+					task.getValue().cancel(true);
+					foundDevices.remove(task.getKey().getLocalAddress());
+					continue;
+				}
 				try {
-					device.loadDescription();
-				} catch (final Exception e) {
+					task.getValue().get();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"Interrupted while loading device descriptions");
+				} catch (final ExecutionException e) {
 					// ignore
 				}
 			}
-		} catch (final IOException e) {
-			throw new WeUPnPException("Error discovering gateway devices", e);
 		} finally {
-			ssdp.close();
+			executor.shutdownNow();
 		}
-		return devices;
-	}
 
-	private GatewayDevice parseMSearchReplay(final byte[] reply)
-			throws WeUPnPException {
-
-		final GatewayDevice device = new GatewayDevice();
+		lastDiscoveryStats = new DiscoveryStats(replies, foundDevices.size(),
+				firstReplyNanos == 0 ? -1 : millisBetween(startNanos,
+						firstReplyNanos),
+				firstValidNanos.get() == 0 ? -1 : millisBetween(startNanos,
+						firstValidNanos.get()), millisBetween(startNanos,
+						System.nanoTime()));
+		logger.debug("Discovery finished: " + lastDiscoveryStats);
+	}
 
-		final BufferedReader br = new BufferedReader(new InputStreamReader(
-				new ByteArrayInputStream(reply)));
-		String line = null;
+	/**
+	 * Receive the next reply into the given buffer.
+	 * 
+	 * @return the sender of the reply or <code>null</code> if no reply is
+	 *         available or receiving failed.
+	 */
+	private InetSocketAddress receive(final DatagramChannel channel,
+			final ByteBuffer buffer) {
+		buffer.clear();
 		try {
-			line = br.readLine().trim();
+			final InetSocketAddress sender = (InetSocketAddress) channel
+					.receive(buffer);
+			buffer.flip();
+			return sender;
 		} catch (final IOException e) {
-			throw new WeUPnPException("Error reading search replay", e);
+			logger.debug("Error receiving reply on channel " + channel, e);
+			return null;
 		}
+	}
 
-		while (line != null && line.trim().length() > 0) {
+	/**
+	 * Parse a reply and add the device if it did not reply before.
+	 * 
+	 * @return the new device or <code>null</code> if the reply is invalid or
+	 *         the device is already known.
+	 */
+	private GatewayDevice handleReply(final ByteBuffer reply,
+			final InetAddress localAddress,
+			final Map<InetAddress, GatewayDevice> foundDevices) {
+		if (foundDevices.containsKey(localAddress)) {
+			// answer to the second search type or on another interface
+			return null;
+		}
+		final GatewayDevice d;
+		try {
+			d = parseMSearchReplay(reply);
+		} catch (final WeUPnPException e) {
+			logger.debug("Ignore invalid reply from " + localAddress, e);
+			return null;
+		}
 
-			if (!line.contains("HTTP/1.")) {
-				String key = line.substring(0, line.indexOf(':'));
-				String value = line.length() > key.length() + 1 ? line
-						.substring(key.length() + 1) : null;
+		d.setLocalAddress(localAddress);
+		foundDevices.put(localAddress, d);
+		return d;
+	}
 
-				key = key.trim();
-				if (value != null)
-					value = value.trim();
+	private static long millisBetween(final long startNanos,
+			final long endNanos) {
+		return (endNanos - startNanos) / 1000000L;
+	}
+
+	/**
+	 * Loads the description of a device and checks its connection status. A
+	 * connected device is valid and starts the grace period.
+	 */
+	private class DescriptionTask implements Runnable {
+		private final GatewayDevice device;
+		private final AtomicLong firstValidNanos;
 
-				if (key.compareToIgnoreCase("location") == 0)
-					device.setLocation(value);
-				else if (key.compareToIgnoreCase("st") == 0)
-					device.setSt(value);
+		private DescriptionTask(final GatewayDevice device,
+				final AtomicLong firstValidNanos) {
+			this.device = device;
+			this.firstValidNanos = firstValidNanos;
+		}
+
+		@Override
+		public void run() {
+			try {
+				device.loadDescription();
+			} catch (final WeUPnPException e) {
+				logger.debug("Could not load description from "
+						+ device.getLocation(), e);
+				return;
 			}
+			if (device.getControlURL() == null
+					|| device.getServiceType() == null) {
+				logger.debug("Device at " + device.getLocation()
+						+ " has no connection service");
+				return;
+			}
+			final boolean connected;
 			try {
-				line = br.readLine().trim();
-			} catch (final IOException ex) {
-				// ignore
+				connected = device.isConnected();
+			} catch (final WeUPnPException e) {
+				logger.debug("Could not get connection status of "
+						+ device.getLocation(), e);
+				return;
+			}
+			connectionStatus.put(device, connected);
+			if (connected) {
+				firstValidNanos.compareAndSet(0, System.nanoTime());
 			}
 		}
+	}
+
+	/**
+	 * Get the time to wait for further replies after the first device was
+	 * found.
+	 * 
+	 * @return the grace period in milliseconds or a negative value if
+	 *         discovery always waits for the timeout.
+	 */
+	public long getGraceMillis() {
+		return graceMillis;
+	}
+
+	/**
+	 * Set the time to wait for further replies after the description of the
+	 * first device was loaded. Devices whose description is not loaded when
+	 * the grace period ends are not returned. If no device is valid when the
+	 * replies stop, the grace period does not start and discovery waits for
+	 * all descriptions like without early exit. A negative value disables the
+	 * early exit, discovery then waits until no reply was received for
+	 * {@link #getTimeoutMillis()}.
+	 * 
+	 * @param graceMillis
+	 *            the grace period in milliseconds.
+	 */
+	public void setGraceMillis(final long graceMillis) {
+		this.graceMillis = graceMillis;
+	}
+
+	/**
+	 * @return the address the search is sent to instead of the multicast
+	 *         address or <code>null</code>.
+	 */
+	public InetSocketAddress getSearchAddress() {
+		return searchAddress;
+	}
+
+	/**
+	 * Send the search to a single address instead of multicasting it on all
+	 * network interfaces, e.g. to a device simulated on the loopback
+	 * interface.
+	 * 
+	 * @param searchAddress
+	 *            the address to send the search to or <code>null</code> to
+	 *            multicast it.
+	 */
+	public void setSearchAddress(final InetSocketAddress searchAddress) {
+		this.searchAddress = searchAddress;
+	}
+
+	/**
+	 * @return the time in milliseconds to wait for a reply.
+	 */
+	public int getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	public void setTimeoutMillis(final int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @return the statistics of the last discovery or <code>null</code> if
+	 *         {@link #discover()} was not called yet.
+	 */
+	public DiscoveryStats getLastDiscoveryStats() {
+		return lastDiscoveryStats;
+	}
+
+	/**
+	 * Create a device from the reply to a search request.
+	 * 
+	 * @param reply
+	 *            the buffer containing the reply, its position is not
+	 *            changed.
+	 * @return the device.
+	 * @throws WeUPnPException
+	 *             if the reply is not a response or contains no location.
+	 */
+	GatewayDevice parseMSearchReplay(final ByteBuffer reply)
+			throws WeUPnPException {
+		final SsdpMessage message = SsdpMessage.parse(reply);
+		if (!message.isResponse()) {
+			throw new WeUPnPException("Message is not a search response");
+		}
+		if (message.getLocation() == null) {
+			throw new WeUPnPException("Search response has no location");
+		}
 
+		final GatewayDevice device = new GatewayDevice();
+		device.setLocation(message.getLocation());
+		device.setSt(message.getSt());
+		device.setUSN(message.getUsn());
+		device.setServer(message.getServer());
+		device.setMaxAge(message.getMaxAge());
 		return device;
 	}
 
@@ -172,7 +560,9 @@ public class GatewayDiscover {
 			throw new WeUPnPException("Did not find any gateways");
 		}
 		for (final GatewayDevice device : devices.values()) {
-			if (device.isConnected())
+			// use the status checked during discovery if available
+			final Boolean connected = connectionStatus.get(device);
+			if (connected != null ? connected : device.isConnected())
 				return device;
 		}
 
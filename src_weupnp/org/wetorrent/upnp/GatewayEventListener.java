@@ -0,0 +1,42 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.util.Map;
+
+/**
+ * Receives the events of a {@link GatewayEventSubscription}.
+ *
+ * @author chris
+ */
+public interface GatewayEventListener {
+
+	/**
+	 * Called for every event sent by the device. The first event of a
+	 * subscription has sequence number <code>0</code> and contains the current
+	 * values of all evented state variables, later events only contain the
+	 * changed variables.
+	 *
+	 * @param device
+	 *            the device that sent the event.
+	 * @param sequence
+	 *            the sequence number of the event.
+	 * @param variables
+	 *            the state variables by name, e.g.
+	 *            <code>PortMappingNumberOfEntries</code>.
+	 */
+	public void eventReceived(GatewayDevice device, long sequence,
+			Map<String, String> variables);
+
+	/**
+	 * Called when the subscription could not be renewed and no new
+	 * subscription could be created. No more events are received.
+	 *
+	 * @param device
+	 *            the device.
+	 * @param cause
+	 *            the cause of the failure.
+	 */
+	public void subscriptionLost(GatewayDevice device, WeUPnPException cause);
+}
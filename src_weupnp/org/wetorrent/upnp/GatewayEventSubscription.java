@@ -0,0 +1,497 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A GENA event subscription for the WANIPConnection service of a device.
+ * Instead of polling the device for changes, the device sends the changed
+ * state variables, e.g. <code>PortMappingNumberOfEntries</code> or
+ * <code>ExternalIPAddress</code>, to a small HTTP server started by this
+ * subscription.
+ * <p>
+ * The subscription is renewed in the background after half of the timeout
+ * granted by the device. If the device has forgotten the subscription, a new
+ * one is created. If that fails too, the listener is informed with
+ * {@link GatewayEventListener#subscriptionLost(GatewayDevice, WeUPnPException)}.
+ *
+ * @author chris
+ */
+public class GatewayEventSubscription {
+
+	/**
+	 * The subscription timeout in seconds requested from the device.
+	 */
+	public static final int DEFAULT_TIMEOUT_SECONDS = 1800;
+
+	/**
+	 * The longest delay for retrying a failed renewal while the subscription
+	 * is still valid.
+	 */
+	private static final int MAX_RETRY_DELAY_SECONDS = 30;
+
+	private static final String CALLBACK_PATH = "/gena/event";
+	private static final String NT_EVENT = "upnp:event";
+	private static final String NTS_PROPCHANGE = "upnp:propchange";
+	private static final String TIMEOUT_PREFIX = "Second-";
+
+	private static final int HTTP_OK = 200;
+	private static final int HTTP_BAD_REQUEST = 400;
+	private static final int HTTP_BAD_METHOD = 405;
+	private static final int HTTP_PRECON_FAILED = 412;
+
+	private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable, "weupnp-gena");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final GatewayDevice device;
+	private final GatewayEventListener listener;
+	private final int timeoutSeconds;
+
+	private URL eventSubURL;
+	private String callbackURL;
+	private HttpServer server;
+	/**
+	 * Handles the events in the order they are received.
+	 */
+	private ExecutorService eventExecutor;
+	/**
+	 * Renews the subscription, separate from the events, so that a device
+	 * that sends an event before answering a request does not block.
+	 */
+	private ScheduledExecutorService renewalExecutor;
+	private ScheduledFuture<?> renewal;
+
+	/**
+	 * The subscription identifier or <code>null</code> while subscribing.
+	 */
+	private String sid;
+	private long expiresAtNanos;
+	private long expectedSequence;
+	private volatile boolean running;
+
+	public GatewayEventSubscription(final GatewayDevice device,
+			final GatewayEventListener listener) {
+		this(device, listener, DEFAULT_TIMEOUT_SECONDS);
+	}
+
+	/**
+	 * @param device
+	 *            the device to subscribe to.
+	 * @param listener
+	 *            the listener for the events.
+	 * @param timeoutSeconds
+	 *            the subscription timeout requested from the device.
+	 */
+	public GatewayEventSubscription(final GatewayDevice device,
+			final GatewayEventListener listener, final int timeoutSeconds) {
+		this.device = device;
+		this.listener = listener;
+		this.timeoutSeconds = timeoutSeconds;
+	}
+
+	/**
+	 * Start the callback server and subscribe to the events of the device.
+	 *
+	 * @throws WeUPnPException
+	 *             if the device does not support eventing or refused the
+	 *             subscription.
+	 */
+	public void start() throws WeUPnPException {
+		synchronized (this) {
+			if (running) {
+				return;
+			}
+			startServer();
+		}
+		// not synchronized, the first event may arrive before the response
+		try {
+			subscribe();
+		} catch (final WeUPnPException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	private void startServer() throws WeUPnPException {
+		if (device.getEventSubURL() == null) {
+			throw new WeUPnPException("Device " + device.getLocation()
+					+ " does not support eventing");
+		}
+		try {
+			eventSubURL = new URL(device.getEventSubURL());
+		} catch (final MalformedURLException e) {
+			throw new WeUPnPException("Invalid event subscription URL "
+					+ device.getEventSubURL(), e);
+		}
+
+		final InetAddress callbackAddress = getCallbackAddress(eventSubURL);
+		try {
+			server = HttpServer.create(new InetSocketAddress(callbackAddress,
+					0), 0);
+		} catch (final IOException e) {
+			throw new WeUPnPException("Could not start event callback server",
+					e);
+		}
+		eventExecutor = Executors.newSingleThreadExecutor(DAEMON_THREAD_FACTORY);
+		renewalExecutor = Executors
+				.newSingleThreadScheduledExecutor(DAEMON_THREAD_FACTORY);
+		server.setExecutor(eventExecutor);
+		server.createContext(CALLBACK_PATH, new NotifyHandler());
+		server.start();
+		callbackURL = "http://" + getHostLiteral(callbackAddress) + ":"
+				+ server.getAddress().getPort() + CALLBACK_PATH;
+
+		running = true;
+	}
+
+	/**
+	 * Cancel the subscription at the device and stop the callback server.
+	 */
+	public void stop() {
+		final String currentSid;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			if (renewal != null) {
+				renewal.cancel(false);
+			}
+			currentSid = sid;
+			sid = null;
+		}
+		if (currentSid != null) {
+			final Map<String, String> headers = new LinkedHashMap<>();
+			headers.put("SID", currentSid);
+			try {
+				final HttpConnectionPool.Response response = execute(
+						"UNSUBSCRIBE", headers);
+				logger.debug("Unsubscribed " + currentSid + " with status "
+						+ response.getStatusCode());
+			} catch (final WeUPnPException e) {
+				logger.debug("Could not unsubscribe " + currentSid, e);
+			}
+		}
+		server.stop(0);
+		eventExecutor.shutdownNow();
+		renewalExecutor.shutdownNow();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return the subscription identifier assigned by the device or
+	 *         <code>null</code> if not subscribed.
+	 */
+	public synchronized String getSid() {
+		return sid;
+	}
+
+	/**
+	 * @return the URL the device sends the events to.
+	 */
+	public String getCallbackURL() {
+		return callbackURL;
+	}
+
+	private void subscribe() throws WeUPnPException {
+		synchronized (this) {
+			sid = null;
+			expectedSequence = 0;
+		}
+		final Map<String, String> headers = new LinkedHashMap<>();
+		headers.put("CALLBACK", "<" + callbackURL + ">");
+		headers.put("NT", NT_EVENT);
+		headers.put("TIMEOUT", TIMEOUT_PREFIX + timeoutSeconds);
+		final HttpConnectionPool.Response response = execute("SUBSCRIBE",
+				headers);
+		if (response.getStatusCode() != HTTP_OK) {
+			throw new WeUPnPException("Device " + device.getLocation()
+					+ " refused subscription with HTTP status "
+					+ response.getStatusCode());
+		}
+		final String newSid = response.getHeader("SID");
+		if (newSid == null) {
+			throw new WeUPnPException("Device " + device.getLocation()
+					+ " did not send a subscription identifier");
+		}
+		synchronized (this) {
+			sid = newSid;
+		}
+		logger.debug("Subscribed to events of " + eventSubURL + " with "
+				+ newSid + ", callback " + callbackURL);
+		subscribed(response);
+	}
+
+	private void renew() throws WeUPnPException {
+		final Map<String, String> headers = new LinkedHashMap<>();
+		synchronized (this) {
+			if (sid == null) {
+				return;
+			}
+			headers.put("SID", sid);
+		}
+		headers.put("TIMEOUT", TIMEOUT_PREFIX + timeoutSeconds);
+		final HttpConnectionPool.Response response = execute("SUBSCRIBE",
+				headers);
+		if (response.getStatusCode() == HTTP_PRECON_FAILED) {
+			logger.debug("Device forgot subscription " + headers.get("SID")
+					+ ", subscribing again");
+			subscribe();
+		} else if (response.getStatusCode() != HTTP_OK) {
+			throw new WeUPnPException("Device " + device.getLocation()
+					+ " refused renewal with HTTP status "
+					+ response.getStatusCode());
+		} else {
+			subscribed(response);
+		}
+	}
+
+	/**
+	 * Schedule the renewal of a subscription that the device accepted.
+	 */
+	private synchronized void subscribed(
+			final HttpConnectionPool.Response response) {
+		final int grantedSeconds = parseTimeout(response.getHeader("TIMEOUT"),
+				timeoutSeconds);
+		if (grantedSeconds < 0) {
+			logger.debug("Subscription does not expire");
+			expiresAtNanos = Long.MAX_VALUE;
+			return;
+		}
+		expiresAtNanos = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(grantedSeconds);
+		scheduleRenewal(Math.max(1, grantedSeconds / 2));
+	}
+
+	private synchronized void scheduleRenewal(final long delaySeconds) {
+		if (!running) {
+			return;
+		}
+		renewal = renewalExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				renewOrGiveUp();
+			}
+		}, delaySeconds, TimeUnit.SECONDS);
+	}
+
+	private void renewOrGiveUp() {
+		if (!running) {
+			return;
+		}
+		try {
+			renew();
+			return;
+		} catch (final WeUPnPException e) {
+			final long remainingSeconds;
+			synchronized (this) {
+				remainingSeconds = TimeUnit.NANOSECONDS.toSeconds(expiresAtNanos
+						- System.nanoTime());
+			}
+			if (remainingSeconds > 1) {
+				final long retrySeconds = Math.min(MAX_RETRY_DELAY_SECONDS,
+						remainingSeconds / 2);
+				logger.warn("Could not renew subscription, retrying in "
+						+ retrySeconds + " s: " + e.getMessage());
+				scheduleRenewal(retrySeconds);
+				return;
+			}
+			logger.debug("Subscription expired, subscribing again", e);
+		}
+		try {
+			subscribe();
+		} catch (final WeUPnPException e) {
+			logger.warn("Lost event subscription of " + device.getLocation(),
+					e);
+			stop();
+			listener.subscriptionLost(device, e);
+		}
+	}
+
+	private HttpConnectionPool.Response execute(final String method,
+			final Map<String, String> headers) throws WeUPnPException {
+		try {
+			return device.getConnectionPool().execute(method, eventSubURL,
+					headers, null, 0);
+		} catch (final IOException e) {
+			throw new WeUPnPException("Could not send " + method + " to "
+					+ eventSubURL, e);
+		}
+	}
+
+	/**
+	 * Handle an event sent by the device.
+	 *
+	 * @return the HTTP status code of the response.
+	 */
+	int handleNotify(final String method, final String nt, final String nts,
+			final String notifySid, final String seq, final InputStream body) {
+		if (!"NOTIFY".equals(method)) {
+			return HTTP_BAD_METHOD;
+		}
+		if (!NT_EVENT.equals(nt) || !NTS_PROPCHANGE.equals(nts)) {
+			return HTTP_BAD_REQUEST;
+		}
+		final long sequence;
+		try {
+			sequence = Long.parseLong(seq);
+		} catch (final NumberFormatException e) {
+			return HTTP_BAD_REQUEST;
+		}
+		synchronized (this) {
+			// the first event may arrive before the response to SUBSCRIBE
+			if (sid != null && !sid.equals(notifySid)) {
+				logger.debug("Got event for unknown subscription " + notifySid);
+				return HTTP_PRECON_FAILED;
+			}
+			if (sequence != expectedSequence && sequence != 0) {
+				logger.debug("Missed events " + expectedSequence + " to "
+						+ (sequence - 1));
+			}
+			expectedSequence = sequence + 1;
+		}
+
+		final Map<String, String> variables;
+		try {
+			variables = parsePropertySet(body);
+		} catch (IOException | SAXException e) {
+			logger.debug("Could not parse event " + sequence, e);
+			return HTTP_BAD_REQUEST;
+		}
+		logger.debug("Got event " + sequence + ": " + variables);
+		try {
+			listener.eventReceived(device, sequence, variables);
+		} catch (final RuntimeException e) {
+			logger.error("Event listener failed for event " + sequence, e);
+		}
+		return HTTP_OK;
+	}
+
+	/**
+	 * Parse the state variables of an event. The variables are the only
+	 * elements without child elements in the
+	 * <code>e:propertyset/e:property</code> structure.
+	 */
+	static Map<String, String> parsePropertySet(final InputStream body)
+			throws IOException, SAXException {
+		final NameValueHandler handler = new NameValueHandler();
+		final XMLReader parser = XmlParsers.getXMLReader();
+		parser.setContentHandler(handler);
+		parser.parse(new InputSource(body));
+		return handler.getNameValue();
+	}
+
+	/**
+	 * Parse the timeout header of a subscription response, e.g.
+	 * <code>Second-1800</code>.
+	 *
+	 * @return the timeout in seconds, <code>-1</code> for
+	 *         <code>infinite</code> or the given default if the header is
+	 *         missing or invalid.
+	 */
+	static int parseTimeout(final String header, final int defaultSeconds) {
+		if (header == null) {
+			return defaultSeconds;
+		}
+		final String value = header.trim();
+		if (value.equalsIgnoreCase("infinite")
+				|| value.equalsIgnoreCase(TIMEOUT_PREFIX + "infinite")) {
+			return -1;
+		}
+		if (value.regionMatches(true, 0, TIMEOUT_PREFIX, 0,
+				TIMEOUT_PREFIX.length())) {
+			try {
+				return Integer.parseInt(value.substring(TIMEOUT_PREFIX
+						.length()));
+			} catch (final NumberFormatException e) {
+				// use default
+			}
+		}
+		return defaultSeconds;
+	}
+
+	/**
+	 * Get the local address the device can reach: the address of the route
+	 * to the device. The local address of the device is not used, as for
+	 * discovered devices it is the address the reply came from.
+	 */
+	private InetAddress getCallbackAddress(final URL url)
+			throws WeUPnPException {
+		final int port = url.getPort() != -1 ? url.getPort() : url
+				.getDefaultPort();
+		try (DatagramSocket socket = new DatagramSocket()) {
+			// connecting a datagram socket sends nothing
+			socket.connect(InetAddress.getByName(url.getHost()), port);
+			final InetAddress address = socket.getLocalAddress();
+			if (address == null || address.isAnyLocalAddress()) {
+				return InetAddress.getLocalHost();
+			}
+			return address;
+		} catch (final IOException e) {
+			throw new WeUPnPException("Could not find local address for "
+					+ url, e);
+		}
+	}
+
+	private static String getHostLiteral(final InetAddress address) {
+		if (address instanceof Inet6Address) {
+			return "[" + address.getHostAddress() + "]";
+		}
+		return address.getHostAddress();
+	}
+
+	private class NotifyHandler implements HttpHandler {
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				final int status = handleNotify(exchange.getRequestMethod(),
+						exchange.getRequestHeaders().getFirst("NT"), exchange
+								.getRequestHeaders().getFirst("NTS"), exchange
+								.getRequestHeaders().getFirst("SID"), exchange
+								.getRequestHeaders().getFirst("SEQ"),
+						exchange.getRequestBody());
+				exchange.sendResponseHeaders(status, -1);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
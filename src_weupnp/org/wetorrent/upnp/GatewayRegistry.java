@@ -0,0 +1,174 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the gateway devices that have advertised themselves, either in a
+ * reply to a search or with an <code>ssdp:alive</code> notification. A device
+ * is removed when it sends <code>ssdp:byebye</code> or when its
+ * advertisement expires after the <code>max-age</code> of its
+ * <code>CACHE-CONTROL</code> header.
+ * <p>
+ * Devices are identified by the UUID of their USN or, if they have none, by
+ * their location.
+ *
+ * @author chris
+ */
+public class GatewayRegistry {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+	/**
+	 * Get the identifier of a device.
+	 *
+	 * @param usn
+	 *            the USN of the device, e.g.
+	 *            <code>uuid:1234::urn:schemas-upnp-org:device:InternetGatewayDevice:1</code>
+	 *            .
+	 * @param location
+	 *            the location of the device description.
+	 * @return the UUID of the USN or the location if the USN is
+	 *         <code>null</code>.
+	 */
+	public static String getId(final String usn, final String location) {
+		if (usn == null) {
+			return location;
+		}
+		final int separator = usn.indexOf("::");
+		return separator < 0 ? usn : usn.substring(0, separator);
+	}
+
+	/**
+	 * Add a device with a loaded description or replace the device with the
+	 * same identifier. The device expires after its max age.
+	 *
+	 * @param device
+	 *            the device.
+	 * @return <code>false</code> if the device was not added because its max
+	 *         age is unknown.
+	 */
+	public synchronized boolean register(final GatewayDevice device) {
+		if (device.getMaxAge() < 0) {
+			logger.debug("Device " + device.getLocation()
+					+ " has no max age, do not register it");
+			return false;
+		}
+		final String id = getId(device.getUSN(), device.getLocation());
+		final Entry previous = entries.put(id, new Entry(device,
+				expiresAt(device.getMaxAge())));
+		if (previous == null) {
+			logger.info("Registered device " + device.getFriendlyName()
+					+ " at " + device.getLocation());
+		}
+		return true;
+	}
+
+	/**
+	 * Extend the advertisement of a registered device.
+	 *
+	 * @param id
+	 *            the identifier of the device.
+	 * @param location
+	 *            the location the device advertised.
+	 * @param maxAge
+	 *            the new max age in seconds or <code>-1</code> to keep the
+	 *            current expiry.
+	 * @return <code>true</code> if the device is registered with the same
+	 *         location, <code>false</code> if the description of the device
+	 *         must be loaded and the device must be registered.
+	 */
+	public synchronized boolean refresh(final String id, final String location,
+			final int maxAge) {
+		final Entry entry = entries.get(id);
+		if (entry == null || entry.isExpired(nanoTime()) || location == null
+				|| !location.equals(entry.device.getLocation())) {
+			return false;
+		}
+		if (maxAge >= 0) {
+			entry.expiresAtNanos = expiresAt(maxAge);
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a device, e.g. because it sent <code>ssdp:byebye</code>.
+	 *
+	 * @param id
+	 *            the identifier of the device.
+	 * @return the removed device or <code>null</code> if the device was not
+	 *         registered.
+	 */
+	public synchronized GatewayDevice remove(final String id) {
+		final Entry entry = entries.remove(id);
+		if (entry == null) {
+			return null;
+		}
+		logger.info("Removed device " + entry.device.getFriendlyName()
+				+ " at " + entry.device.getLocation());
+		return entry.device;
+	}
+
+	/**
+	 * Get the devices whose advertisement has not expired, in the order of
+	 * their registration. Expired devices are removed.
+	 *
+	 * @return the devices or an empty list.
+	 */
+	public synchronized List<GatewayDevice> getDevices() {
+		final long now = nanoTime();
+		final List<GatewayDevice> devices = new ArrayList<>(entries.size());
+		for (final Iterator<Entry> iterator = entries.values().iterator(); iterator
+				.hasNext();) {
+			final Entry entry = iterator.next();
+			if (entry.isExpired(now)) {
+				logger.debug("Advertisement of device "
+						+ entry.device.getLocation() + " expired");
+				iterator.remove();
+			} else {
+				devices.add(entry.device);
+			}
+		}
+		return devices;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	private long expiresAt(final int maxAgeSeconds) {
+		return nanoTime() + maxAgeSeconds * 1000000000L;
+	}
+
+	/**
+	 * @return the current time in nanoseconds, used for expiring devices.
+	 */
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	private static class Entry {
+		private final GatewayDevice device;
+		private long expiresAtNanos;
+
+		private Entry(final GatewayDevice device, final long expiresAtNanos) {
+			this.device = device;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+
+		private boolean isExpired(final long now) {
+			return now - expiresAtNanos >= 0;
+		}
+	}
+}
@@ -0,0 +1,758 @@
+package org.wetorrent.upnp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A small HTTP/1.1 client that keeps the connections to a router open between
+ * SOAP requests. Connections are pooled per host and port of the control URL,
+ * idle connections are closed after {@link #getIdleTimeoutMillis()} by a
+ * shared background thread and the
+ * number of connections opened to one router is limited by
+ * {@link #getMaxConnectionsPerRoute()}.
+ * <p>
+ * Only plain <code>http</code> URLs are supported, as routers do not offer
+ * anything else on their control URLs.
+ * <p>
+ * Some routers announce HTTP/1.1 but silently drop the connection after the
+ * first response. Idle connections are checked before they are reused and a
+ * request is only sent again on a new connection if writing it to the old one
+ * failed, as the router may already have executed a request it received
+ * completely. When reused
+ * connections fail {@link #MAX_STALE_CONNECTION_FAILURES} times in a row,
+ * keep-alive is disabled for that router and every request uses a fresh
+ * connection with <code>Connection: close</code>.
+ * <p>
+ * The configured connect and read timeouts are shortened to the
+ * {@link Deadline} of the calling thread, if it has one.
+ *
+ * @author chris
+ */
+public class HttpConnectionPool {
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 2;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * The number of consecutive failures on reused connections after which
+	 * keep-alive is disabled for a router.
+	 */
+	static final int MAX_STALE_CONNECTION_FAILURES = 3;
+
+	private static final int MAX_HEADER_LINE_LENGTH = 8192;
+
+	/**
+	 * Closes the expired idle connections of all pools. Its thread stops when
+	 * there are no idle connections.
+	 */
+	private static final ScheduledThreadPoolExecutor IDLE_EVICTOR = new ScheduledThreadPoolExecutor(
+			1, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable,
+							"weupnp-idle-evictor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	static {
+		IDLE_EVICTOR.setKeepAliveTime(1, TimeUnit.SECONDS);
+		IDLE_EVICTOR.allowCoreThreadTimeOut(true);
+		IDLE_EVICTOR.setRemoveOnCancelPolicy(true);
+	}
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final Map<String, Route> routes = new HashMap<>();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong connectionsOpened = new AtomicLong();
+	private final AtomicLong connectionsReused = new AtomicLong();
+	private final AtomicLong staleConnectionRetries = new AtomicLong();
+
+	private volatile int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private volatile boolean keepAliveEnabled = true;
+	private volatile int connectTimeoutMillis = 0;
+	private volatile int readTimeoutMillis = 0;
+
+	public HttpConnectionPool() {
+	}
+
+	/**
+	 * Send a request with the given method, headers and body to the given url
+	 * and read the complete response.
+	 *
+	 * @param method
+	 *            the HTTP method, e.g. <code>POST</code>.
+	 * @param url
+	 *            the url to send the request to.
+	 * @param headers
+	 *            additional request headers, may be <code>null</code>.
+	 * @param body
+	 *            the request body, may be <code>null</code>.
+	 * @param bodyLength
+	 *            the number of bytes of <code>body</code> to send.
+	 * @return the response
+	 * @throws IOException
+	 *             if the url does not use <code>http</code>, the request
+	 *             could not be sent or the response could not be read.
+	 */
+	public Response execute(final String method, final URL url,
+			final Map<String, String> headers, final byte[] body,
+			final int bodyLength) throws IOException {
+		if (!"http".equalsIgnoreCase(url.getProtocol())) {
+			throw new IOException("Protocol '" + url.getProtocol()
+					+ "' of url " + url + " is not supported, only http");
+		}
+		requests.incrementAndGet();
+		final Route route = getRoute(url);
+		route.acquirePermit();
+		try {
+			int attempt = 0;
+			while (true) {
+				attempt++;
+				final int timeoutMillis = Deadline
+						.timeoutMillis(readTimeoutMillis);
+				PooledConnection connection = pollLiveConnection(route);
+				final boolean reused = connection != null;
+				if (reused) {
+					connectionsReused.incrementAndGet();
+				} else {
+					connection = openConnection(route);
+				}
+
+				final boolean keepAlive = keepAliveEnabled
+						&& route.isKeepAliveSupported();
+				final Response response;
+				try {
+					connection.socket.setSoTimeout(timeoutMillis);
+					connection.writeRequest(method, url, headers, body,
+							bodyLength, keepAlive);
+					response = connection.readResponse(method);
+				} catch (final IOException e) {
+					connection.close();
+					// The router may already have executed a request it
+					// received, e.g. AddPortMapping, so only a request that
+					// could not be written completely can be sent again.
+					if (reused && !connection.isRequestWritten()
+							&& attempt <= MAX_STALE_CONNECTION_FAILURES) {
+						staleConnectionRetries.incrementAndGet();
+						route.staleConnectionFailed();
+						logger.debug("Reused connection to " + route
+								+ " failed (" + e.getMessage()
+								+ "), retry with a new connection");
+						continue;
+					}
+					throw e;
+				}
+
+				if (reused) {
+					route.reusedConnectionSucceeded();
+				}
+				if (keepAlive && response.isKeepAlive()) {
+					route.releaseConnection(connection);
+				} else {
+					connection.close();
+				}
+				return response;
+			}
+		} finally {
+			route.releasePermit();
+		}
+	}
+
+	/**
+	 * Get an idle connection of the given route that was not closed by the
+	 * router.
+	 *
+	 * @return an idle connection or <code>null</code> if there is none.
+	 */
+	private PooledConnection pollLiveConnection(final Route route) {
+		PooledConnection connection;
+		while ((connection = route.pollIdleConnection()) != null) {
+			if (!connection.isStale()) {
+				return connection;
+			}
+			connection.close();
+			staleConnectionRetries.incrementAndGet();
+			route.staleConnectionFailed();
+			logger.debug("Idle connection to " + route
+					+ " was closed by the router, use a new connection");
+		}
+		return null;
+	}
+
+	private PooledConnection openConnection(final Route route)
+			throws IOException {
+		final Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(route.host, route.port),
+					Deadline.timeoutMillis(connectTimeoutMillis));
+		} catch (final IOException e) {
+			socket.close();
+			throw e;
+		}
+		connectionsOpened.incrementAndGet();
+		logger.trace("Opened new connection to " + route);
+		return new PooledConnection(socket);
+	}
+
+	private synchronized Route getRoute(final URL url) {
+		final int port = url.getPort() != -1 ? url.getPort() : url
+				.getDefaultPort();
+		final String key = url.getHost().toLowerCase(Locale.ENGLISH) + ":"
+				+ port;
+		Route route = routes.get(key);
+		if (route == null) {
+			route = new Route(url.getHost(), port);
+			routes.put(key, route);
+		}
+		return route;
+	}
+
+	/**
+	 * Close all idle connections. Connections currently in use are closed
+	 * when their request is finished.
+	 */
+	public synchronized void close() {
+		for (final Route route : routes.values()) {
+			route.closeIdleConnections();
+		}
+	}
+
+	/**
+	 * Get a snapshot of the statistics of this pool.
+	 *
+	 * @return a snapshot of the statistics of this pool.
+	 */
+	public ConnectionStats getStats() {
+		boolean keepAliveDisabled = !keepAliveEnabled;
+		synchronized (this) {
+			for (final Route route : routes.values()) {
+				keepAliveDisabled |= !route.isKeepAliveSupported();
+			}
+		}
+		return new ConnectionStats(requests.get(), connectionsOpened.get(),
+				connectionsReused.get(), staleConnectionRetries.get(),
+				!keepAliveDisabled);
+	}
+
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	/**
+	 * Set the maximum number of connections opened to one router. Routes
+	 * created before calling this method keep their old limit.
+	 *
+	 * @param maxConnectionsPerRoute
+	 *            the maximum number of connections per router, must be at
+	 *            least 1.
+	 */
+	public void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+		if (maxConnectionsPerRoute < 1) {
+			throw new IllegalArgumentException(
+					"Max connections must be at least 1 but was "
+							+ maxConnectionsPerRoute);
+		}
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public void setIdleTimeoutMillis(final long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public boolean isKeepAliveEnabled() {
+		return keepAliveEnabled;
+	}
+
+	/**
+	 * Enable or disable keep-alive. When disabled, every request uses a new
+	 * connection that is closed after the response was read.
+	 *
+	 * @param keepAliveEnabled
+	 *            <code>true</code> to keep connections open.
+	 */
+	public void setKeepAliveEnabled(final boolean keepAliveEnabled) {
+		this.keepAliveEnabled = keepAliveEnabled;
+		if (!keepAliveEnabled) {
+			close();
+		}
+	}
+
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public void setConnectTimeoutMillis(final int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public int getReadTimeoutMillis() {
+		return readTimeoutMillis;
+	}
+
+	public void setReadTimeoutMillis(final int readTimeoutMillis) {
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	/**
+	 * The connections to one host and port.
+	 */
+	private class Route {
+		private final String host;
+		private final int port;
+		private final Semaphore permits;
+		private final Deque<PooledConnection> idleConnections = new ArrayDeque<>();
+		private int consecutiveStaleFailures = 0;
+		private boolean keepAliveSupported = true;
+		private boolean evictionScheduled;
+
+		private Route(final String host, final int port) {
+			this.host = host;
+			this.port = port;
+			this.permits = new Semaphore(maxConnectionsPerRoute, true);
+		}
+
+		private void acquirePermit() throws InterruptedIOException {
+			final Deadline deadline = Deadline.current();
+			try {
+				if (deadline == null) {
+					permits.acquire();
+				} else if (!permits.tryAcquire(deadline.remainingMillis(),
+						TimeUnit.MILLISECONDS)) {
+					throw new ConnectionWaitTimeoutException(
+							"Deadline exceeded while waiting for a connection to "
+									+ this);
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for a connection to " + this);
+			}
+		}
+
+		private void releasePermit() {
+			permits.release();
+		}
+
+		private synchronized PooledConnection pollIdleConnection() {
+			final long now = System.nanoTime();
+			PooledConnection connection;
+			while ((connection = idleConnections.pollLast()) != null) {
+				if (connection.isExpired(now, idleTimeoutMillis)) {
+					connection.close();
+				} else {
+					return connection;
+				}
+			}
+			return null;
+		}
+
+		private synchronized void releaseConnection(
+				final PooledConnection connection) {
+			if (!keepAliveSupported) {
+				connection.close();
+				return;
+			}
+			connection.markIdle();
+			idleConnections.addLast(connection);
+			scheduleEviction(idleTimeoutMillis);
+		}
+
+		private synchronized void scheduleEviction(final long delayMillis) {
+			if (evictionScheduled) {
+				return;
+			}
+			evictionScheduled = true;
+			IDLE_EVICTOR.schedule(new Runnable() {
+				@Override
+				public void run() {
+					evictExpiredConnections();
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Close the expired idle connections and check the others again when
+		 * the oldest of them expires.
+		 */
+		private synchronized void evictExpiredConnections() {
+			evictionScheduled = false;
+			final long now = System.nanoTime();
+			for (final Iterator<PooledConnection> iterator = idleConnections
+					.iterator(); iterator.hasNext();) {
+				final PooledConnection connection = iterator.next();
+				if (connection.isExpired(now, idleTimeoutMillis)) {
+					connection.close();
+					iterator.remove();
+					logger.trace("Closed idle connection to " + this);
+				}
+			}
+			// connections are added at the end, so the first is the oldest
+			final PooledConnection oldest = idleConnections.peekFirst();
+			if (oldest != null) {
+				scheduleEviction(oldest.getRemainingIdleMillis(now,
+						idleTimeoutMillis));
+			}
+		}
+
+		private synchronized void closeIdleConnections() {
+			PooledConnection connection;
+			while ((connection = idleConnections.poll()) != null) {
+				connection.close();
+			}
+		}
+
+		private synchronized void staleConnectionFailed() {
+			consecutiveStaleFailures++;
+			if (keepAliveSupported
+					&& consecutiveStaleFailures >= MAX_STALE_CONNECTION_FAILURES) {
+				logger.info("Router " + this
+						+ " does not handle keep-alive correctly, use a new connection for each request");
+				keepAliveSupported = false;
+				closeIdleConnections();
+			}
+		}
+
+		private synchronized void reusedConnectionSucceeded() {
+			consecutiveStaleFailures = 0;
+		}
+
+		private synchronized boolean isKeepAliveSupported() {
+			return keepAliveSupported;
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port;
+		}
+	}
+
+	/**
+	 * A single connection to a router.
+	 */
+	private static class PooledConnection {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private long idleSince;
+		private boolean requestWritten;
+
+		private PooledConnection(final Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = socket.getOutputStream();
+		}
+
+		private void writeRequest(final String method, final URL url,
+				final Map<String, String> headers, final byte[] body,
+				final int bodyLength, final boolean keepAlive)
+				throws IOException {
+			requestWritten = false;
+			final String path = url.getFile().isEmpty() ? "/" : url.getFile();
+			final StringBuilder head = new StringBuilder(256);
+			head.append(method).append(' ').append(path)
+					.append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(url.getHost());
+			if (url.getPort() != -1) {
+				head.append(':').append(url.getPort());
+			}
+			head.append("\r\n");
+			if (headers != null) {
+				for (final Map.Entry<String, String> header : headers
+						.entrySet()) {
+					head.append(header.getKey()).append(": ")
+							.append(header.getValue()).append("\r\n");
+				}
+			}
+			if (body != null) {
+				head.append("Content-Length: ").append(bodyLength)
+						.append("\r\n");
+			}
+			head.append("Connection: ")
+					.append(keepAlive ? "keep-alive" : "close").append("\r\n");
+			head.append("\r\n");
+
+			final byte[] headBytes = head.toString().getBytes(
+					StandardCharsets.ISO_8859_1);
+			out.write(headBytes);
+			if (body != null) {
+				out.write(body, 0, bodyLength);
+			}
+			out.flush();
+			// the router can not execute an incomplete request
+			requestWritten = true;
+		}
+
+		private Response readResponse(final String method) throws IOException {
+			String[] statusParts;
+			int statusCode;
+			Map<String, String> responseHeaders;
+			boolean firstLine = true;
+			// skip interim responses like 100 Continue
+			do {
+				final String statusLine = readLine(firstLine);
+				firstLine = false;
+				statusParts = statusLine.split(" ", 3);
+				if (statusParts.length < 2
+						|| !statusParts[0].startsWith("HTTP/")) {
+					throw new IOException("Got invalid status line '"
+							+ statusLine + "'");
+				}
+				try {
+					statusCode = Integer.parseInt(statusParts[1]);
+				} catch (final NumberFormatException e) {
+					throw new IOException("Got invalid status line '"
+							+ statusLine + "'", e);
+				}
+				if (statusCode == 101) {
+					throw new IOException("Got unexpected protocol switch '"
+							+ statusLine + "'");
+				}
+				responseHeaders = readHeaders();
+			} while (statusCode / 100 == 1);
+
+			final String connectionHeader = responseHeaders.get("connection");
+			boolean keepAlive;
+			if (connectionHeader != null) {
+				keepAlive = !connectionHeader.equalsIgnoreCase("close");
+			} else {
+				keepAlive = statusParts[0].equals("HTTP/1.1");
+			}
+
+			final byte[] responseBody;
+			final String transferEncoding = responseHeaders
+					.get("transfer-encoding");
+			final String contentLength = responseHeaders.get("content-length");
+			if (method.equals("HEAD") || statusCode == 204
+					|| statusCode == 304) {
+				responseBody = new byte[0];
+			} else if (transferEncoding != null
+					&& transferEncoding.equalsIgnoreCase("chunked")) {
+				responseBody = readChunkedBody();
+			} else if (contentLength != null) {
+				try {
+					responseBody = readFully(Integer.parseInt(contentLength));
+				} catch (final NumberFormatException e) {
+					throw new IOException("Got invalid content length '"
+							+ contentLength + "'", e);
+				}
+			} else {
+				// The body ends when the router closes the connection.
+				responseBody = readToEnd();
+				keepAlive = false;
+			}
+			return new Response(statusCode, responseHeaders, responseBody,
+					keepAlive);
+		}
+
+		private Map<String, String> readHeaders() throws IOException {
+			final Map<String, String> headers = new HashMap<>();
+			String line;
+			while (!(line = readLine(false)).isEmpty()) {
+				final int colon = line.indexOf(':');
+				if (colon > 0) {
+					headers.put(
+							line.substring(0, colon).trim()
+									.toLowerCase(Locale.ENGLISH),
+							line.substring(colon + 1).trim());
+				}
+			}
+			return headers;
+		}
+
+		private byte[] readChunkedBody() throws IOException {
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			while (true) {
+				String sizeLine = readLine(false);
+				final int extension = sizeLine.indexOf(';');
+				if (extension >= 0) {
+					sizeLine = sizeLine.substring(0, extension);
+				}
+				final int size;
+				try {
+					size = Integer.parseInt(sizeLine.trim(), 16);
+				} catch (final NumberFormatException e) {
+					throw new IOException("Got invalid chunk size '" + sizeLine
+							+ "'", e);
+				}
+				if (size == 0) {
+					// skip trailers
+					while (!readLine(false).isEmpty()) {
+						// ignore
+					}
+					return body.toByteArray();
+				}
+				body.write(readFully(size));
+				readLine(false);
+			}
+		}
+
+		private byte[] readFully(final int length) throws IOException {
+			final byte[] buffer = new byte[length];
+			int offset = 0;
+			while (offset < length) {
+				final int read = in.read(buffer, offset, length - offset);
+				if (read < 0) {
+					throw new EOFException("Connection closed after " + offset
+							+ " of " + length + " bytes");
+				}
+				offset += read;
+			}
+			return buffer;
+		}
+
+		private byte[] readToEnd() throws IOException {
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				body.write(buffer, 0, read);
+			}
+			return body.toByteArray();
+		}
+
+		private String readLine(final boolean firstLine) throws IOException {
+			final StringBuilder line = new StringBuilder(64);
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c < 0) {
+					if (firstLine && line.length() == 0) {
+						throw new EOFException(
+								"Connection closed by router before response");
+					}
+					throw new EOFException("Unexpected end of response");
+				}
+				if (line.length() >= MAX_HEADER_LINE_LENGTH) {
+					throw new IOException("Header line too long");
+				}
+				line.append((char) c);
+			}
+			final int length = line.length();
+			if (length > 0 && line.charAt(length - 1) == '\r') {
+				line.setLength(length - 1);
+			}
+			return line.toString();
+		}
+
+		private boolean isRequestWritten() {
+			return requestWritten;
+		}
+
+		/**
+		 * Check if the router closed this idle connection or sent data that
+		 * does not belong to a request. This waits at most one millisecond
+		 * for the connection.
+		 */
+		private boolean isStale() {
+			try {
+				if (in.available() > 0) {
+					return true;
+				}
+				socket.setSoTimeout(1);
+				// end of stream or unexpected data
+				in.read();
+				return true;
+			} catch (final SocketTimeoutException e) {
+				return false;
+			} catch (final IOException e) {
+				return true;
+			}
+		}
+
+		private void markIdle() {
+			idleSince = System.nanoTime();
+		}
+
+		private boolean isExpired(final long now, final long idleTimeoutMillis) {
+			return socket.isClosed()
+					|| getRemainingIdleMillis(now, idleTimeoutMillis) <= 0;
+		}
+
+		private long getRemainingIdleMillis(final long now,
+				final long idleTimeoutMillis) {
+			return idleTimeoutMillis - (now - idleSince) / 1000000L;
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * A HTTP response with the complete body.
+	 */
+	public static class Response {
+		private final int statusCode;
+		private final Map<String, String> headers;
+		private final byte[] body;
+		private final boolean keepAlive;
+
+		Response(final int statusCode, final Map<String, String> headers,
+				final byte[] body, final boolean keepAlive) {
+			this.statusCode = statusCode;
+			this.headers = headers;
+			this.body = body;
+			this.keepAlive = keepAlive;
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		/**
+		 * Get the value of the header with the given name.
+		 *
+		 * @param name
+		 *            the case insensitive name of the header.
+		 * @return the value of the header or <code>null</code>.
+		 */
+		public String getHeader(final String name) {
+			return headers.get(name.toLowerCase(Locale.ENGLISH));
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		boolean isKeepAlive() {
+			return keepAlive;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.IOException;
+
+/**
+ * The device answered with an unexpected HTTP status code.
+ *
+ * @author chris
+ */
+@SuppressWarnings("serial")
+class HttpStatusException extends IOException {
+
+	private final int statusCode;
+
+	HttpStatusException(final String message, final int statusCode) {
+		super(message);
+		this.statusCode = statusCode;
+	}
+
+	int getStatusCode() {
+		return statusCode;
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with a bounded relative error. Each power of two is
+ * divided into {@link #SUB_BUCKETS} buckets, so that a percentile is at most
+ * 12.5% above the real value, while recording needs no lock and a constant
+ * amount of memory, independent of the number of recorded values.
+ * <p>
+ * The histogram covers all recorded values since the last {@link #reset()},
+ * unless values are discarded again like {@link LatencyTracker} does for
+ * keeping only the latest requests.
+ *
+ * @author chris
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1)
+			* SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param latencyMicros
+	 *            the latency in microseconds, negative values are recorded as
+	 *            0.
+	 */
+	public void record(final long latencyMicros) {
+		final long value = Math.max(0, latencyMicros);
+		counts.incrementAndGet(getBucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMax;
+		while (value > (currentMax = max.get())) {
+			if (max.compareAndSet(currentMax, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Remove a latency that was recorded before. The largest latency is not
+	 * lowered, so percentiles are capped by the largest latency recorded
+	 * since the last {@link #reset()}.
+	 *
+	 * @param latencyMicros
+	 *            the latency in microseconds as given to {@link #record(long)}
+	 *            .
+	 */
+	void discard(final long latencyMicros) {
+		final long value = Math.max(0, latencyMicros);
+		counts.decrementAndGet(getBucket(value));
+		count.decrementAndGet();
+		sum.addAndGet(-value);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the largest recorded latency in microseconds or 0.
+	 */
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean latency in microseconds or 0.
+	 */
+	public double getMeanMicros() {
+		final long currentCount = count.get();
+		return currentCount == 0 ? 0 : (double) sum.get() / currentCount;
+	}
+
+	/**
+	 * Get the given percentile of the recorded latencies.
+	 *
+	 * @param percentile
+	 *            the percentile between 0 and 100.
+	 * @return the upper bound of the bucket containing the percentile in
+	 *         microseconds, at most the largest latency, or 0 if nothing was
+	 *         recorded.
+	 */
+	public long getPercentileMicros(final double percentile) {
+		long total = 0;
+		final long[] snapshot = new long[BUCKETS];
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			snapshot[bucket] = counts.get(bucket);
+			total += snapshot[bucket];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1,
+				(long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += snapshot[bucket];
+			if (seen >= rank) {
+				return Math.min(getUpperBound(bucket), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Discard all recorded latencies.
+	 */
+	public void reset() {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			counts.set(bucket, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Values below {@link #SUB_BUCKETS} have a bucket of their own, larger
+	 * values share a bucket with the values that have the same highest
+	 * {@link #SUB_BUCKET_BITS} + 1 bits.
+	 */
+	static int getBucket(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the largest value in the given bucket.
+	 */
+	static long getUpperBound(final int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		final long subBucket = bucket % SUB_BUCKETS;
+		final int shift = exponent - SUB_BUCKET_BITS;
+		final long lowerBound = (SUB_BUCKETS + subBucket) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "[LatencyHistogram: count=" + getCount() + ", p50="
+				+ getPercentileMicros(50) + "us, p99="
+				+ getPercentileMicros(99) + "us, max=" + getMaxMicros() + "us]";
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+/**
+ * Records the latencies of the latest requests to a device and derives a
+ * timeout from them. The timeout is a multiple of the 99th percentile, so
+ * that a fast router gets a short timeout and a slow router is not cut off.
+ * As long as there are too few samples, the default timeout is used.
+ * <p>
+ * The percentiles are taken from a {@link LatencyHistogram} of the latest
+ * samples, so they are at most 12.5% above the real value.
+ *
+ * @author chris
+ */
+public class LatencyTracker {
+
+	/**
+	 * The timeout used until enough latencies have been recorded.
+	 */
+	public static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+	public static final int MIN_TIMEOUT_MILLIS = 1000;
+	public static final int MAX_TIMEOUT_MILLIS = 30000;
+
+	private static final int SAMPLES = 128;
+	private static final int MIN_SAMPLES = 8;
+	private static final int TIMEOUT_FACTOR = 4;
+
+	private final long[] latencies = new long[SAMPLES];
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private int count;
+	private int next;
+
+	/**
+	 * Record the latency of a successful request or the timeout of a request
+	 * that timed out.
+	 *
+	 * @param latencyMillis
+	 *            the latency in milliseconds.
+	 */
+	public synchronized void record(final long latencyMillis) {
+		if (count < SAMPLES) {
+			count++;
+		} else {
+			histogram.discard(latencies[next] * 1000L);
+		}
+		latencies[next] = Math.max(0, latencyMillis);
+		histogram.record(latencies[next] * 1000L);
+		next = (next + 1) % SAMPLES;
+	}
+
+	/**
+	 * @return the number of recorded latencies, at most the number of kept
+	 *         samples.
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the given percentile of the recorded latencies.
+	 *
+	 * @param percentile
+	 *            the percentile between 0 and 100.
+	 * @return the latency in milliseconds or <code>-1</code> if no latency
+	 *         was recorded.
+	 */
+	public synchronized long getPercentileMillis(final double percentile) {
+		if (count == 0) {
+			return -1;
+		}
+		return histogram.getPercentileMicros(percentile) / 1000L;
+	}
+
+	/**
+	 * @return the timeout in milliseconds for the next request to the device.
+	 */
+	public int getTimeoutMillis() {
+		if (getCount() < MIN_SAMPLES) {
+			return DEFAULT_TIMEOUT_MILLIS;
+		}
+		final long timeout = getPercentileMillis(99) * TIMEOUT_FACTOR;
+		return (int) Math.max(MIN_TIMEOUT_MILLIS,
+				Math.min(MAX_TIMEOUT_MILLIS, timeout));
+	}
+
+	@Override
+	public String toString() {
+		return "[LatencyTracker: samples=" + getCount() + ", p50="
+				+ getPercentileMillis(50) + "ms, p99="
+				+ getPercentileMillis(99) + "ms, timeout="
+				+ getTimeoutMillis() + "ms]";
+	}
+}
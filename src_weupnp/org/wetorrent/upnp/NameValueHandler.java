@@ -39,16 +39,30 @@ public class NameValueHandler extends DefaultHandler {
 	}
 
 	private String currentElement;
+	private final StringBuilder text = new StringBuilder();
 
 	@Override
 	public void startElement(final String uri, final String localName,
 			final String qName, final Attributes attributes) {
 		currentElement = localName;
+		text.setLength(0);
+	}
+
+	@Override
+	public void endElement(final String uri, final String localName,
+			final String qName) {
+		// only elements without child elements have a value
+		if (currentElement != null) {
+			nameValue.put(currentElement, text.toString().trim());
+			currentElement = null;
+		}
 	}
 
 	@Override
 	public void characters(final char[] ch, final int start, final int length) {
-		nameValue.put(currentElement, new String(ch, start, length).trim());
+		if (currentElement != null) {
+			text.append(ch, start, length);
+		}
 	}
 
 	public Map<String, String> getNameValue() {
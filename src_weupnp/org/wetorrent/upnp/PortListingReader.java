@@ -0,0 +1,174 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the port mappings from the response of the IGD v2 action
+ * <code>GetListOfPortMappings</code>. The specification sends the list as an
+ * escaped XML document in the text of argument <code>NewPortListing</code>,
+ * but some devices embed the <code>PortMappingEntry</code> elements directly.
+ * Both variants are read in a single streaming pass.
+ *
+ * @author chris
+ */
+class PortListingReader {
+
+	private static final String PORT_LISTING = "NewPortListing";
+	private static final String PORT_MAPPING_ENTRY = "PortMappingEntry";
+
+	private PortListingReader() {
+		// only static methods
+	}
+
+	/**
+	 * Read the port mappings from the given SOAP response.
+	 *
+	 * @param body
+	 *            the array containing the response.
+	 * @param offset
+	 *            the offset of the response in the array.
+	 * @param length
+	 *            the length of the response.
+	 * @return the port mappings in the order of the response.
+	 * @throws XMLStreamException
+	 *             if the response or the embedded listing is not well-formed.
+	 */
+	static List<PortMappingEntry> read(final byte[] body, final int offset,
+			final int length) throws XMLStreamException {
+		final List<PortMappingEntry> entries = new ArrayList<>();
+		final XMLStreamReader reader = XmlParsers
+				.createStreamReader(new ByteArrayInputStream(body, offset,
+						length));
+		final StringBuilder listingText = new StringBuilder();
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT
+						&& PORT_LISTING.equals(reader.getLocalName())) {
+					readEntries(reader, entries, listingText);
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		final String listing = listingText.toString().trim();
+		if (entries.isEmpty() && !listing.isEmpty()) {
+			final XMLStreamReader listingReader = XmlParsers
+					.createStreamReader(new StringReader(listing));
+			try {
+				readEntries(listingReader, entries, null);
+			} finally {
+				listingReader.close();
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Read entries until the end of the current element or document.
+	 *
+	 * @param listingText
+	 *            collects text outside of entries, may be <code>null</code>.
+	 */
+	private static void readEntries(final XMLStreamReader reader,
+			final List<PortMappingEntry> entries,
+			final StringBuilder listingText) throws XMLStreamException {
+		final StringBuilder text = new StringBuilder(64);
+		PortMappingEntry entry = null;
+		String currentElement = null;
+		int depth = 0;
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				if (PORT_MAPPING_ENTRY.equals(reader.getLocalName())) {
+					entry = new PortMappingEntry();
+					entry.setExternalPort(-1);
+					entry.setInternalPort(-1);
+					currentElement = null;
+				} else {
+					currentElement = reader.getLocalName();
+					text.setLength(0);
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				if (currentElement != null) {
+					text.append(reader.getTextCharacters(),
+							reader.getTextStart(), reader.getTextLength());
+				} else if (entry == null && listingText != null) {
+					listingText.append(reader.getTextCharacters(),
+							reader.getTextStart(), reader.getTextLength());
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (depth == 0) {
+					// end of the enclosing element
+					return;
+				}
+				depth--;
+				if (PORT_MAPPING_ENTRY.equals(reader.getLocalName())) {
+					if (entry != null) {
+						entries.add(entry);
+					}
+					entry = null;
+				} else if (currentElement != null && entry != null) {
+					setValue(entry, currentElement, text.toString().trim());
+				}
+				currentElement = null;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private static void setValue(final PortMappingEntry entry,
+			final String element, final String value) {
+		switch (element) {
+		case "NewRemoteHost":
+			entry.setRemoteHost(value);
+			break;
+		case "NewExternalPort":
+			entry.setExternalPort(parsePort(value));
+			break;
+		case "NewProtocol":
+			entry.setProtocol(value);
+			break;
+		case "NewInternalPort":
+			entry.setInternalPort(parsePort(value));
+			break;
+		case "NewInternalClient":
+			entry.setInternalClient(value);
+			break;
+		case "NewEnabled":
+			entry.setEnabled(value);
+			break;
+		case "NewDescription":
+			entry.setPortMappingDescription(value);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static int parsePort(final String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+}
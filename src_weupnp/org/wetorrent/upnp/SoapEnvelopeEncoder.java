@@ -0,0 +1,270 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes the SOAP envelope for one action of a service. The fixed parts of
+ * the envelope are encoded only once per service and action, the arguments
+ * are written directly as UTF-8 into a reusable {@link Buffer} and escaped as
+ * XML character data.
+ * <p>
+ * Instances are immutable and can be shared between threads, a
+ * {@link Buffer} must only be used by one thread at a time.
+ *
+ * @author chris
+ */
+public class SoapEnvelopeEncoder {
+
+	private static final ConcurrentMap<String, SoapEnvelopeEncoder> ENCODERS = new ConcurrentHashMap<>();
+
+	private final byte[] prefix;
+	private final byte[] suffix;
+	/**
+	 * The encoded start and end tags of the arguments, an action has only a
+	 * few different arguments.
+	 */
+	private final ConcurrentMap<String, byte[][]> tags = new ConcurrentHashMap<>();
+
+	private SoapEnvelopeEncoder(final String service, final String action) {
+		final Buffer buffer = new Buffer(256);
+		buffer.writeAscii("<?xml version=\"1.0\"?>\r\n"
+				+ "<SOAP-ENV:Envelope "
+				+ "xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+				+ "SOAP-ENV:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+				+ "<SOAP-ENV:Body><m:");
+		buffer.writeEscaped(action);
+		buffer.writeAscii(" xmlns:m=\"");
+		buffer.writeEscaped(service);
+		buffer.writeAscii("\">");
+		this.prefix = buffer.toByteArray();
+
+		buffer.reset();
+		buffer.writeAscii("</m:");
+		buffer.writeEscaped(action);
+		buffer.writeAscii("></SOAP-ENV:Body></SOAP-ENV:Envelope>");
+		this.suffix = buffer.toByteArray();
+	}
+
+	/**
+	 * Get the encoder for the given service and action.
+	 *
+	 * @param service
+	 *            the service type, e.g.
+	 *            <code>urn:schemas-upnp-org:service:WANIPConnection:1</code>
+	 * @param action
+	 *            the name of the action, e.g. <code>AddPortMapping</code>
+	 * @return the encoder for the given service and action.
+	 */
+	public static SoapEnvelopeEncoder getEncoder(final String service,
+			final String action) {
+		final String key = service + "#" + action;
+		SoapEnvelopeEncoder encoder = ENCODERS.get(key);
+		if (encoder == null) {
+			encoder = new SoapEnvelopeEncoder(service, action);
+			final SoapEnvelopeEncoder existing = ENCODERS.putIfAbsent(key,
+					encoder);
+			if (existing != null) {
+				encoder = existing;
+			}
+		}
+		return encoder;
+	}
+
+	/**
+	 * Write the envelope with the given arguments to the buffer. The buffer
+	 * is reset before writing.
+	 *
+	 * @param args
+	 *            the arguments of the action in the order they are sent, may
+	 *            be <code>null</code>. <code>null</code> values are sent as
+	 *            empty elements.
+	 * @param buffer
+	 *            the buffer to write to.
+	 */
+	public void encode(final Map<String, String> args, final Buffer buffer) {
+		buffer.reset();
+		buffer.write(prefix);
+		if (args != null) {
+			for (final Map.Entry<String, String> arg : args.entrySet()) {
+				final byte[][] argTags = getTags(arg.getKey());
+				buffer.write(argTags[0]);
+				if (arg.getValue() != null) {
+					buffer.writeEscaped(arg.getValue());
+				}
+				buffer.write(argTags[1]);
+			}
+		}
+		buffer.write(suffix);
+	}
+
+	/**
+	 * @return the encoded start and end tag of the given argument.
+	 */
+	private byte[][] getTags(final String name) {
+		byte[][] argTags = tags.get(name);
+		if (argTags == null) {
+			final Buffer buffer = new Buffer(2 * name.length() + 8);
+			buffer.write('<');
+			buffer.writeEscaped(name);
+			buffer.write('>');
+			final byte[] start = buffer.toByteArray();
+			buffer.reset();
+			buffer.write('<');
+			buffer.write('/');
+			buffer.writeEscaped(name);
+			buffer.write('>');
+			argTags = new byte[][] { start, buffer.toByteArray() };
+			tags.putIfAbsent(name, argTags);
+		}
+		return argTags;
+	}
+
+	/**
+	 * A growable byte buffer that can be reused for several envelopes.
+	 */
+	public static class Buffer {
+		private static final boolean[] ESCAPED = new boolean[0x80];
+
+		static {
+			ESCAPED['&'] = true;
+			ESCAPED['<'] = true;
+			ESCAPED['>'] = true;
+			ESCAPED['"'] = true;
+			ESCAPED['\''] = true;
+		}
+
+		private byte[] bytes;
+		private int length;
+
+		public Buffer() {
+			this(1024);
+		}
+
+		public Buffer(final int initialCapacity) {
+			this.bytes = new byte[initialCapacity];
+		}
+
+		/**
+		 * @return the internal array, only the first {@link #length()} bytes
+		 *         are valid.
+		 */
+		public byte[] array() {
+			return bytes;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public void reset() {
+			length = 0;
+		}
+
+		public byte[] toByteArray() {
+			return Arrays.copyOf(bytes, length);
+		}
+
+		@Override
+		public String toString() {
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+
+		private void ensureCapacity(final int additional) {
+			if (length + additional > bytes.length) {
+				bytes = Arrays.copyOf(bytes,
+						Math.max(bytes.length * 2, length + additional));
+			}
+		}
+
+		private void write(final int b) {
+			ensureCapacity(1);
+			bytes[length++] = (byte) b;
+		}
+
+		private void write(final byte[] b) {
+			ensureCapacity(b.length);
+			System.arraycopy(b, 0, bytes, length, b.length);
+			length += b.length;
+		}
+
+		private void writeAscii(final String s) {
+			ensureCapacity(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				bytes[length++] = (byte) s.charAt(i);
+			}
+		}
+
+		/**
+		 * Write the given string as UTF-8 and replace the characters that are
+		 * not allowed in XML character data or attribute values with entity
+		 * references.
+		 */
+		private void writeEscaped(final String s) {
+			// Most strings are ASCII without special characters, copy them
+			// without checking the capacity for every character.
+			final int end = s.length();
+			ensureCapacity(end);
+			int i = 0;
+			for (; i < end; i++) {
+				final char c = s.charAt(i);
+				if (c >= 0x80 || ESCAPED[c]) {
+					break;
+				}
+				bytes[length++] = (byte) c;
+			}
+			for (; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				switch (c) {
+				case '&':
+					writeAscii("&amp;");
+					break;
+				case '<':
+					writeAscii("&lt;");
+					break;
+				case '>':
+					writeAscii("&gt;");
+					break;
+				case '"':
+					writeAscii("&quot;");
+					break;
+				case '\'':
+					writeAscii("&apos;");
+					break;
+				default:
+					if (c < 0x80) {
+						write(c);
+					} else if (c < 0x800) {
+						ensureCapacity(2);
+						bytes[length++] = (byte) (0xc0 | c >> 6);
+						bytes[length++] = (byte) (0x80 | c & 0x3f);
+					} else if (Character.isHighSurrogate(c)
+							&& i + 1 < s.length()
+							&& Character.isLowSurrogate(s.charAt(i + 1))) {
+						final int codePoint = Character.toCodePoint(c,
+								s.charAt(++i));
+						ensureCapacity(4);
+						bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+						bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+						bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+						bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+					} else if (Character.isSurrogate(c)) {
+						// unpaired surrogate: not encodable
+						write('?');
+					} else {
+						ensureCapacity(3);
+						bytes[length++] = (byte) (0xe0 | c >> 12);
+						bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+						bytes[length++] = (byte) (0x80 | c & 0x3f);
+					}
+				}
+			}
+		}
+	}
+}
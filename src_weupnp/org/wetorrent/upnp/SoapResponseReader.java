@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the flat result of a SOAP action. The text of every element without
+ * child elements is returned with the local name of the element as key, e.g.
+ * <code>NewExternalIPAddress</code> for an action response or
+ * <code>errorCode</code> and <code>errorDescription</code> for a UPnP fault.
+ * <p>
+ * The text of an element is accumulated, so values split into several
+ * chunks or containing entity references are returned completely. This class
+ * is thread-safe.
+ *
+ * @author chris
+ */
+public class SoapResponseReader {
+
+	private SoapResponseReader() {
+		// only static methods
+	}
+
+	/**
+	 * Read the given SOAP response.
+	 *
+	 * @param body
+	 *            the array containing the response.
+	 * @param offset
+	 *            the offset of the response in the array.
+	 * @param length
+	 *            the length of the response.
+	 * @return the text of all leaf elements by their local name.
+	 * @throws XMLStreamException
+	 *             if the response is not well-formed.
+	 */
+	public static Map<String, String> read(final byte[] body,
+			final int offset, final int length) throws XMLStreamException {
+		final Map<String, String> nameValue = new HashMap<>(8);
+		final XMLStreamReader reader = XmlParsers
+				.createStreamReader(new ByteArrayInputStream(body, offset,
+						length));
+		try {
+			final StringBuilder text = new StringBuilder(64);
+			String currentElement = null;
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					currentElement = reader.getLocalName();
+					text.setLength(0);
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (currentElement != null) {
+						text.append(reader.getTextCharacters(),
+								reader.getTextStart(), reader.getTextLength());
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					// only elements without child elements have a value
+					if (currentElement != null) {
+						nameValue.put(currentElement, text.toString().trim());
+						currentElement = null;
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return nameValue;
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The headers of an SSDP message that are used for finding gateway devices,
+ * either a response to a search or a notification. The message is scanned
+ * directly in the received buffer: headers that are not used are skipped
+ * without creating strings, so that the many messages of other devices on a
+ * busy network do not create garbage.
+ *
+ * @author chris
+ */
+class SsdpMessage {
+
+	private static final byte[] LOCATION = ascii("LOCATION");
+	private static final byte[] ST = ascii("ST");
+	private static final byte[] NT = ascii("NT");
+	private static final byte[] NTS = ascii("NTS");
+	private static final byte[] USN = ascii("USN");
+	private static final byte[] CACHE_CONTROL = ascii("CACHE-CONTROL");
+	private static final byte[] SERVER = ascii("SERVER");
+	private static final byte[] MAX_AGE = ascii("MAX-AGE");
+	private static final byte[] HTTP = ascii("HTTP/");
+
+	private boolean response;
+	private String location;
+	private String st;
+	private String nt;
+	private String nts;
+	private String usn;
+	private String server;
+	private int maxAge = -1;
+
+	private SsdpMessage() {
+	}
+
+	/**
+	 * Parse the message between the position and the limit of the given
+	 * buffer. The position of the buffer is not changed.
+	 *
+	 * @param buffer
+	 *            the buffer containing the message.
+	 * @return the parsed message.
+	 * @throws WeUPnPException
+	 *             if the buffer does not contain a start line.
+	 */
+	static SsdpMessage parse(final ByteBuffer buffer) throws WeUPnPException {
+		final int limit = buffer.limit();
+		int lineStart = buffer.position();
+		int lineEnd = lineEnd(buffer, lineStart, limit);
+		if (trimEnd(buffer, lineStart, lineEnd) == lineStart) {
+			throw new WeUPnPException("Message has no start line");
+		}
+
+		final SsdpMessage message = new SsdpMessage();
+		message.response = regionMatches(buffer, lineStart, lineEnd, HTTP);
+
+		while (lineEnd < limit) {
+			lineStart = lineEnd + 1;
+			lineEnd = lineEnd(buffer, lineStart, limit);
+			final int end = trimEnd(buffer, lineStart, lineEnd);
+			if (end == lineStart) {
+				// empty line ends the headers
+				break;
+			}
+			final int colon = indexOf(buffer, lineStart, end, (byte) ':');
+			if (colon < 0) {
+				// ignore invalid header line
+				continue;
+			}
+			final int nameEnd = trimEnd(buffer, lineStart, colon);
+			final int valueStart = trimStart(buffer, colon + 1, end);
+			message.header(buffer, trimStart(buffer, lineStart, nameEnd),
+					nameEnd, valueStart, end);
+		}
+		return message;
+	}
+
+	private void header(final ByteBuffer buffer, final int nameStart,
+			final int nameEnd, final int valueStart, final int valueEnd) {
+		if (equalsIgnoreCase(buffer, nameStart, nameEnd, LOCATION)) {
+			location = string(buffer, valueStart, valueEnd);
+		} else if (equalsIgnoreCase(buffer, nameStart, nameEnd, ST)) {
+			st = string(buffer, valueStart, valueEnd);
+		} else if (equalsIgnoreCase(buffer, nameStart, nameEnd, NT)) {
+			nt = string(buffer, valueStart, valueEnd);
+		} else if (equalsIgnoreCase(buffer, nameStart, nameEnd, NTS)) {
+			nts = string(buffer, valueStart, valueEnd);
+		} else if (equalsIgnoreCase(buffer, nameStart, nameEnd, USN)) {
+			usn = string(buffer, valueStart, valueEnd);
+		} else if (equalsIgnoreCase(buffer, nameStart, nameEnd, SERVER)) {
+			server = string(buffer, valueStart, valueEnd);
+		} else if (equalsIgnoreCase(buffer, nameStart, nameEnd, CACHE_CONTROL)) {
+			maxAge = parseMaxAge(buffer, valueStart, valueEnd);
+		}
+	}
+
+	/**
+	 * Parse the value of directive <code>max-age</code>, e.g.
+	 * <code>max-age = 1800</code>.
+	 *
+	 * @return the max age in seconds or <code>-1</code> if the value contains
+	 *         no valid max age.
+	 */
+	private static int parseMaxAge(final ByteBuffer buffer, final int start,
+			final int end) {
+		for (int i = start; i + MAX_AGE.length <= end; i++) {
+			if (!regionMatches(buffer, i, end, MAX_AGE)) {
+				continue;
+			}
+			int pos = trimStart(buffer, i + MAX_AGE.length, end);
+			if (pos >= end || buffer.get(pos) != '=') {
+				return -1;
+			}
+			pos = trimStart(buffer, pos + 1, end);
+			long value = 0;
+			final int digitsStart = pos;
+			while (pos < end && buffer.get(pos) >= '0' && buffer.get(pos) <= '9') {
+				value = value * 10 + buffer.get(pos) - '0';
+				if (value > Integer.MAX_VALUE) {
+					return -1;
+				}
+				pos++;
+			}
+			return pos == digitsStart ? -1 : (int) value;
+		}
+		return -1;
+	}
+
+	private static int lineEnd(final ByteBuffer buffer, final int start,
+			final int limit) {
+		final int newline = indexOf(buffer, start, limit, (byte) '\n');
+		return newline < 0 ? limit : newline;
+	}
+
+	private static int indexOf(final ByteBuffer buffer, final int start,
+			final int end, final byte b) {
+		for (int i = start; i < end; i++) {
+			if (buffer.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int trimStart(final ByteBuffer buffer, final int start,
+			final int end) {
+		int i = start;
+		while (i < end && isWhitespace(buffer.get(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int trimEnd(final ByteBuffer buffer, final int start,
+			final int end) {
+		int i = end;
+		while (i > start && isWhitespace(buffer.get(i - 1))) {
+			i--;
+		}
+		return i;
+	}
+
+	private static boolean isWhitespace(final byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private static boolean equalsIgnoreCase(final ByteBuffer buffer,
+			final int start, final int end, final byte[] upperCaseName) {
+		return end - start == upperCaseName.length
+				&& regionMatches(buffer, start, end, upperCaseName);
+	}
+
+	/**
+	 * Check if the region starts with the given upper case ASCII string,
+	 * ignoring case.
+	 */
+	private static boolean regionMatches(final ByteBuffer buffer,
+			final int start, final int end, final byte[] upperCase) {
+		if (end - start < upperCase.length) {
+			return false;
+		}
+		for (int i = 0; i < upperCase.length; i++) {
+			byte b = buffer.get(start + i);
+			if (b >= 'a' && b <= 'z') {
+				b -= 'a' - 'A';
+			}
+			if (b != upperCase[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String string(final ByteBuffer buffer, final int start,
+			final int end) {
+		if (start == end) {
+			return null;
+		}
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + start, end
+					- start, StandardCharsets.ISO_8859_1);
+		}
+		final byte[] value = new byte[end - start];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = buffer.get(start + i);
+		}
+		return new String(value, StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] ascii(final String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return <code>true</code> if the message is a response to a search,
+	 *         <code>false</code> if it is a request, e.g. a notification.
+	 */
+	boolean isResponse() {
+		return response;
+	}
+
+	String getLocation() {
+		return location;
+	}
+
+	String getSt() {
+		return st;
+	}
+
+	/**
+	 * @return the notification type of a <code>NOTIFY</code> request.
+	 */
+	String getNt() {
+		return nt;
+	}
+
+	/**
+	 * @return the notification sub type of a <code>NOTIFY</code> request, e.g.
+	 *         <code>ssdp:alive</code>.
+	 */
+	String getNts() {
+		return nts;
+	}
+
+	String getUsn() {
+		return usn;
+	}
+
+	String getServer() {
+		return server;
+	}
+
+	/**
+	 * @return the time in seconds the advertisement is valid or
+	 *         <code>-1</code> if the message has no valid max age.
+	 */
+	int getMaxAge() {
+		return maxAge;
+	}
+}
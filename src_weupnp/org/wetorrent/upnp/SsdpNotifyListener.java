@@ -0,0 +1,288 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Listens for the SSDP notifications of gateway devices in the background and
+ * keeps a {@link GatewayRegistry} up to date. When a new device sends
+ * <code>ssdp:alive</code>, its description is loaded on a separate thread and
+ * the device is registered. A device that sends <code>ssdp:byebye</code> is
+ * removed.
+ *
+ * @author chris
+ */
+public class SsdpNotifyListener {
+
+	private static final String MULTICAST_ADDRESS = "239.255.255.250";
+	private static final int PORT = 1900;
+
+	private static final String NTS_ALIVE = "ssdp:alive";
+	private static final String NTS_BYEBYE = "ssdp:byebye";
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final GatewayRegistry registry;
+
+	/**
+	 * The identifiers of the devices whose description is currently loaded.
+	 */
+	private final Set<String> loading = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private DatagramChannel channel;
+	private Thread listenerThread;
+	private ExecutorService descriptionLoader;
+
+	/**
+	 * @param registry
+	 *            the registry to update.
+	 */
+	public SsdpNotifyListener(final GatewayRegistry registry) {
+		this.registry = registry;
+	}
+
+	public GatewayRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Join the SSDP multicast group on all network interfaces that are up and
+	 * support multicast and start listening.
+	 *
+	 * @throws WeUPnPException
+	 *             if the multicast group could not be joined on any interface.
+	 */
+	public synchronized void start() throws WeUPnPException {
+		if (isRunning()) {
+			return;
+		}
+		final DatagramChannel newChannel = openChannel();
+		channel = newChannel;
+		descriptionLoader = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"weupnp-ssdp-loader");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		listenerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				listen(newChannel);
+			}
+		}, "weupnp-ssdp-listener");
+		listenerThread.setDaemon(true);
+		listenerThread.start();
+		logger.info("Listening for SSDP notifications on port " + PORT);
+	}
+
+	/**
+	 * Stop listening. The registry is not cleared.
+	 */
+	public synchronized void stop() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			// wakes up the listener thread
+			channel.close();
+		} catch (final IOException e) {
+			// ignore
+		}
+		descriptionLoader.shutdownNow();
+		try {
+			listenerThread.join(1000);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel = null;
+		listenerThread = null;
+		descriptionLoader = null;
+		logger.info("Stopped listening for SSDP notifications");
+	}
+
+	public synchronized boolean isRunning() {
+		return channel != null && channel.isOpen();
+	}
+
+	private DatagramChannel openChannel() throws WeUPnPException {
+		DatagramChannel newChannel = null;
+		try {
+			newChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+			// other UPnP programs on this host listen on the same port
+			newChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			newChannel.bind(new InetSocketAddress(PORT));
+			final InetAddress group = InetAddress.getByName(MULTICAST_ADDRESS);
+			int joined = 0;
+			for (final NetworkInterface networkInterface : Collections
+					.list(NetworkInterface.getNetworkInterfaces())) {
+				if (!GatewayDiscover.isEligible(networkInterface)) {
+					continue;
+				}
+				try {
+					newChannel.join(group, networkInterface);
+					joined++;
+				} catch (final IOException e) {
+					logger.debug("Could not join multicast group on interface "
+							+ networkInterface.getName(), e);
+				}
+			}
+			if (joined == 0) {
+				throw new WeUPnPException(
+						"Could not join multicast group on any network interface");
+			}
+			return newChannel;
+		} catch (final IOException e) {
+			close(newChannel);
+			throw new WeUPnPException("Error listening for SSDP notifications",
+					e);
+		} catch (final WeUPnPException e) {
+			close(newChannel);
+			throw e;
+		}
+	}
+
+	private static void close(final DatagramChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private void listen(final DatagramChannel listenChannel) {
+		final ByteBuffer buffer = ByteBuffer.allocate(1536);
+		while (listenChannel.isOpen()) {
+			final InetSocketAddress sender;
+			buffer.clear();
+			try {
+				sender = (InetSocketAddress) listenChannel.receive(buffer);
+			} catch (final ClosedChannelException e) {
+				break;
+			} catch (final IOException e) {
+				logger.warn("Error receiving SSDP notification", e);
+				continue;
+			}
+			buffer.flip();
+			try {
+				handleMessage(buffer, sender.getAddress());
+			} catch (final WeUPnPException e) {
+				logger.trace("Ignore invalid message from " + sender, e);
+			}
+		}
+	}
+
+	/**
+	 * Update the registry with the given message.
+	 *
+	 * @param buffer
+	 *            the buffer containing the message.
+	 * @param sender
+	 *            the address of the sender.
+	 * @throws WeUPnPException
+	 *             if the message is invalid.
+	 */
+	void handleMessage(final ByteBuffer buffer, final InetAddress sender)
+			throws WeUPnPException {
+		final SsdpMessage message = SsdpMessage.parse(buffer);
+		if (message.isResponse() || !isGatewayType(message.getNt())) {
+			// a reply to a search or a notification of another device
+			return;
+		}
+		final String id = GatewayRegistry.getId(message.getUsn(),
+				message.getLocation());
+		if (NTS_BYEBYE.equals(message.getNts())) {
+			registry.remove(id);
+		} else if (NTS_ALIVE.equals(message.getNts())) {
+			if (!registry.refresh(id, message.getLocation(),
+					message.getMaxAge())) {
+				loadDescription(id, message, sender);
+			}
+		}
+	}
+
+	private static boolean isGatewayType(final String notificationType) {
+		for (final String type : GatewayDiscover.SEARCH_TYPES) {
+			if (type.equals(notificationType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void loadDescription(final String id, final SsdpMessage message,
+			final InetAddress sender) {
+		if (message.getLocation() == null || message.getMaxAge() < 0
+				|| !loading.add(id)) {
+			return;
+		}
+		final GatewayDevice device = new GatewayDevice();
+		device.setLocation(message.getLocation());
+		device.setSt(message.getNt());
+		device.setUSN(message.getUsn());
+		device.setServer(message.getServer());
+		device.setMaxAge(message.getMaxAge());
+		device.setLocalAddress(sender);
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					device.loadDescription();
+					if (device.getControlURL() != null
+							&& device.getServiceType() != null) {
+						registry.register(device);
+					} else {
+						logger.debug("Device at " + device.getLocation()
+								+ " has no connection service");
+					}
+				} catch (final WeUPnPException e) {
+					logger.debug("Could not load description from "
+							+ device.getLocation(), e);
+				} finally {
+					loading.remove(id);
+				}
+			}
+		};
+		final ExecutorService executor;
+		synchronized (this) {
+			executor = descriptionLoader;
+		}
+		if (executor == null) {
+			// not started, e.g. in tests
+			task.run();
+		} else {
+			try {
+				executor.execute(task);
+			} catch (final RejectedExecutionException e) {
+				// stopped concurrently
+				loading.remove(id);
+			}
+		}
+	}
+}
@@ -10,11 +10,23 @@ package org.wetorrent.upnp;
 @SuppressWarnings("serial")
 public class WeUPnPException extends Exception {
 
+	private final String errorCode;
+
 	/**
 	 * @param message
 	 */
 	public WeUPnPException(String message) {
+		this(message, (String) null);
+	}
+
+	/**
+	 * @param message
+	 * @param errorCode
+	 *            the UPnP error code returned by the device.
+	 */
+	public WeUPnPException(String message, String errorCode) {
 		super(message);
+		this.errorCode = errorCode;
 	}
 
 	/**
@@ -23,6 +35,16 @@ public class WeUPnPException extends Exception {
 	 */
 	public WeUPnPException(String message, Throwable cause) {
 		super(message, cause);
+		this.errorCode = null;
+	}
+
+	/**
+	 * @return the UPnP error code returned by the device, e.g.
+	 *         <code>718</code>, or <code>null</code> if the failure has
+	 *         another cause.
+	 */
+	public String getErrorCode() {
+		return errorCode;
 	}
 
 }
@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package org.wetorrent.upnp;
+
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Provides the XML parsers used for device descriptions and SOAP responses.
+ * The factories are created only once per thread, so that the JAXP
+ * implementation lookup is not repeated for every response, and parsers are
+ * reused by the same thread.
+ *
+ * @author chris
+ */
+class XmlParsers {
+
+	private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			final XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+					Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(
+					XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+					Boolean.FALSE);
+			return factory;
+		}
+	};
+
+	private static final SAXParserFactory SAX_PARSER_FACTORY;
+
+	static {
+		SAX_PARSER_FACTORY = SAXParserFactory.newInstance();
+		SAX_PARSER_FACTORY.setNamespaceAware(true);
+	}
+
+	private static final ThreadLocal<XMLReader> XML_READER = new ThreadLocal<>();
+
+	private XmlParsers() {
+		// only static methods
+	}
+
+	/**
+	 * Create a new streaming reader for the given input.
+	 *
+	 * @param input
+	 *            the XML document.
+	 * @return a new streaming reader for the given input.
+	 * @throws XMLStreamException
+	 *             if the reader could not be created.
+	 */
+	static XMLStreamReader createStreamReader(final InputStream input)
+			throws XMLStreamException {
+		return INPUT_FACTORY.get().createXMLStreamReader(input);
+	}
+
+	/**
+	 * Create a new streaming reader for the given input.
+	 *
+	 * @param input
+	 *            the XML document.
+	 * @return a new streaming reader for the given input.
+	 * @throws XMLStreamException
+	 *             if the reader could not be created.
+	 */
+	static XMLStreamReader createStreamReader(final Reader input)
+			throws XMLStreamException {
+		return INPUT_FACTORY.get().createXMLStreamReader(input);
+	}
+
+	/**
+	 * Get the SAX parser of the current thread. The parser must not be used
+	 * recursively.
+	 *
+	 * @return the SAX parser of the current thread.
+	 * @throws SAXException
+	 *             if the parser could not be created.
+	 */
+	static XMLReader getXMLReader() throws SAXException {
+		XMLReader reader = XML_READER.get();
+		if (reader == null) {
+			try {
+				synchronized (SAX_PARSER_FACTORY) {
+					reader = SAX_PARSER_FACTORY.newSAXParser().getXMLReader();
+				}
+			} catch (final ParserConfigurationException e) {
+				throw new SAXException("Could not create SAX parser", e);
+			}
+			XML_READER.set(reader);
+		}
+		return reader;
+	}
+}
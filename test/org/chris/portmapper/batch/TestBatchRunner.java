@@ -0,0 +1,84 @@
+package org.chris.portmapper.batch;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.chris.portmapper.igd.IgdSimulator;
+import org.chris.portmapper.igd.Latency;
+import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.weupnp.WeUPnPRouterFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link BatchFile} and {@link BatchRunner} against an
+ * {@link IgdSimulator}.
+ *
+ * @author chris
+ */
+public class TestBatchRunner {
+
+	private final IgdSimulator simulator = new IgdSimulator();
+	private IRouter router;
+
+	@Before
+	public void setUp() throws Exception {
+		simulator.setSeed(42);
+		simulator.setLatency(IgdSimulator.ALL_ACTIONS, Latency.uniform(0, 5));
+		simulator.start();
+		router = new WeUPnPRouterFactory().connect(simulator.getLocationUrl());
+	}
+
+	@After
+	public void tearDown() {
+		router.disconnect();
+		simulator.stop();
+	}
+
+	@Test
+	public void operationsOnSameMappingKeepOrder() throws Exception {
+		final List<BatchResult> results = run("# provisioning\n"
+				+ "add TCP 8080 192.168.1.2 80 Web\n"
+				+ "add UDP 5353 192.168.1.2 5353\n"
+				+ "delete TCP 8080\n" + "\n" + "list\n"
+				+ "add TCP 8080 192.168.1.3 80 Web\n" + "status\n");
+
+		assertEquals(6, results.size());
+		for (final BatchResult result : results) {
+			assertTrue(result.toString(), result.isSuccessful());
+		}
+		assertEquals(2, results.get(0).getOperation().getLineNumber());
+		assertTrue(results.get(3).getDescription(), results.get(3)
+				.getDescription().startsWith("1 port forwardings"));
+		assertTrue(simulator.containsMapping("TCP", 8080));
+		assertTrue(simulator.containsMapping("UDP", 5353));
+		assertTrue(results.get(5).getDescription()
+				.endsWith(simulator.getExternalIPAddress()));
+	}
+
+	@Test
+	public void failedOperationDoesNotStopOthers() throws Exception {
+		final List<BatchResult> results = run("delete TCP 1234\n"
+				+ "add TCP 1234 192.168.1.2 1234\n" + "delete TCP 1234\n");
+
+		assertFalse(results.get(0).isSuccessful());
+		assertTrue(results.get(0).toString().startsWith("1\tFAILED\t"));
+		assertTrue(results.get(1).isSuccessful());
+		assertTrue(results.get(2).isSuccessful());
+		assertFalse(simulator.containsMapping("TCP", 1234));
+	}
+
+	@Test(expected = IOException.class)
+	public void invalidLineIsRejected() throws Exception {
+		run("add TCP 80 192.168.1.2 80\n" + "remove TCP 80\n");
+	}
+
+	private List<BatchResult> run(final String file) throws Exception {
+		return new BatchRunner(router, 4).run(BatchFile.read(new StringReader(
+				file), null));
+	}
+}
@@ -0,0 +1,261 @@
+package org.chris.portmapper.daemon;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.chris.portmapper.igd.IgdSimulator;
+import org.chris.portmapper.igd.Latency;
+import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.weupnp.WeUPnPRouterFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the API of the {@link ControlServer} against an {@link IgdSimulator}.
+ *
+ * @author chris
+ */
+public class TestControlServer {
+
+	private final IgdSimulator simulator = new IgdSimulator();
+	private IRouter router;
+	private ControlServer server;
+
+	private int status;
+	private String body;
+
+	@Before
+	public void setUp() throws Exception {
+		simulator.setSeed(42);
+		simulator.fill(2);
+		simulator.start();
+		router = new WeUPnPRouterFactory().connect(simulator.getLocationUrl());
+	}
+
+	@After
+	public void tearDown() {
+		if (server != null) {
+			server.stop();
+		}
+		router.disconnect();
+		simulator.stop();
+	}
+
+	@Test
+	public void mappingsAreManaged() throws Exception {
+		start(2, 8);
+		request("GET", "/mappings", null);
+		assertEquals(200, status);
+		assertEquals(2, count(body, "\"protocol\""));
+
+		request("POST", "/mappings",
+				"{\"protocol\": \"udp\", \"externalPort\": 5353,"
+				+ " \"internalClient\": \"192.168.1.5\","
+				+ " \"description\": \"Say \\\"hi\\\"\"}");
+		assertEquals(201, status);
+		assertTrue(body, body.contains("\"internalPort\":5353"));
+		assertTrue(body, body.contains("\"description\":\"Say \\\"hi\\\"\""));
+		assertTrue(simulator.containsMapping("UDP", 5353));
+
+		final int listRequests = simulator
+				.getRequestCount("GetGenericPortMappingEntry");
+		request("GET", "/mappings", null);
+		assertEquals(3, count(body, "\"protocol\""));
+		assertEquals("served from the cache", listRequests,
+				simulator.getRequestCount("GetGenericPortMappingEntry"));
+
+		request("DELETE", "/mappings/UDP/5353", null);
+		assertEquals(204, status);
+		assertFalse(simulator.containsMapping("UDP", 5353));
+
+		request("GET", "/external-ip", null);
+		assertEquals("{\"externalIPAddress\":\""
+				+ simulator.getExternalIPAddress() + "\"}", body);
+		request("GET", "/status", null);
+		assertEquals(200, status);
+		assertTrue(body, body.contains("\"mappings\":2"));
+	}
+
+	@Test
+	public void invalidRequestsAreRejected() throws Exception {
+		start(2, 8);
+		request("POST", "/mappings", "{\"protocol\": \"TCP\"}");
+		assertEquals(400, status);
+		request("POST", "/mappings", "not json");
+		assertEquals(400, status);
+		request("DELETE", "/mappings/SCTP/80", null);
+		assertEquals(400, status);
+		request("PUT", "/mappings", "{}");
+		assertEquals(405, status);
+		request("GET", "/unknown", null);
+		assertEquals(404, status);
+	}
+
+	@Test
+	public void postWithoutJsonContentTypeIsRejected() throws Exception {
+		start(2, 8);
+		final HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http", "127.0.0.1", server.getAddress().getPort(), "/mappings")
+				.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "text/plain");
+		connection.setDoOutput(true);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(("{\"protocol\": \"TCP\", \"externalPort\": 80,"
+					+ " \"internalClient\": \"192.168.1.5\"}")
+					.getBytes(StandardCharsets.UTF_8));
+		}
+		assertEquals(415, connection.getResponseCode());
+		assertFalse(simulator.containsMapping("TCP", 80));
+		assertEquals(0, simulator.getRequestCount("AddPortMapping"));
+	}
+
+	@Test
+	public void foreignHostIsRejected() throws Exception {
+		start(2, 8);
+		final int port = server.getAddress().getPort();
+		assertEquals(403, rawRequest("DELETE /mappings/TCP/80",
+				"attacker.example:" + port));
+		assertEquals(403, rawRequest("GET /mappings", "127.0.0.1:" + (port + 1)));
+		assertEquals(403, rawRequest("GET /mappings", null));
+		assertEquals(0, simulator.getRequestCount("DeletePortMapping"));
+
+		assertEquals(200, rawRequest("GET /mappings", "127.0.0.1:" + port));
+		assertEquals(200, rawRequest("GET /status", "LOCALHOST:" + port));
+		assertEquals(200, rawRequest("GET /external-ip", "[::1]:" + port));
+	}
+
+	@Test
+	public void routerErrorIsReported() throws Exception {
+		simulator.injectError("AddPortMapping", 718, 1);
+		start(2, 8);
+		request("POST", "/mappings",
+				"{\"protocol\": \"TCP\", \"externalPort\": 80,"
+				+ " \"internalClient\": \"192.168.1.5\"}");
+		assertEquals(502, status);
+		assertTrue(body, body.startsWith("{\"error\":"));
+	}
+
+	@Test
+	public void requestsBeyondQueueAreRejected() throws Exception {
+		simulator.setLatency("AddPortMapping", Latency.constant(300));
+		start(1, 1);
+		final ExecutorService clients = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Integer>> statuses = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				statuses.add(clients.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						return open("POST", "/mappings",
+								"{\"protocol\": \"TCP\", \"externalPort\": 80,"
+								+ " \"internalClient\": \"192.168.1.5\"}")
+								.getResponseCode();
+					}
+				}));
+			}
+			int rejected = 0;
+			for (final Future<Integer> future : statuses) {
+				if (future.get() == 503) {
+					rejected++;
+				}
+			}
+			assertTrue("rejected " + rejected, rejected > 0);
+		} finally {
+			clients.shutdownNow();
+		}
+	}
+
+	private void start(final int threads, final int queueSize)
+			throws IOException {
+		server = new ControlServer(router, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), threads, queueSize);
+		server.start();
+	}
+
+	private void request(final String method, final String path,
+			final String requestBody) throws IOException {
+		final HttpURLConnection connection = open(method, path, requestBody);
+		status = connection.getResponseCode();
+		final InputStream in = status < 400 ? connection.getInputStream()
+				: connection.getErrorStream();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (in != null) {
+			try {
+				final byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private HttpURLConnection open(final String method, final String path,
+			final String requestBody) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http", "127.0.0.1", server.getAddress().getPort(), path)
+				.openConnection();
+		connection.setRequestMethod(method);
+		if (requestBody != null) {
+			connection.setRequestProperty("Content-Type", "application/json");
+			connection.setDoOutput(true);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(requestBody.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * Send a request with the given <code>Host</code> header, which
+	 * {@link HttpURLConnection} does not allow to set.
+	 *
+	 * @return the status of the response.
+	 */
+	private int rawRequest(final String requestLine, final String host)
+			throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				server.getAddress().getPort())) {
+			final String request = requestLine + " HTTP/1.1\r\n"
+					+ (host != null ? "Host: " + host + "\r\n" : "")
+					+ "Connection: close\r\n\r\n";
+			socket.getOutputStream().write(
+					request.getBytes(StandardCharsets.US_ASCII));
+			final String statusLine = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), StandardCharsets.US_ASCII))
+					.readLine();
+			return Integer.parseInt(statusLine.split(" ")[1]);
+		}
+	}
+
+	private static int count(final String text, final String part) {
+		int count = 0;
+		for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,1162 @@
+package org.chris.portmapper.igd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.chris.portmapper.util.NamedThreadFactory;
+import org.wetorrent.upnp.SoapResponseReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An internet gateway device simulated on the loopback interface. It answers
+ * SSDP searches sent to {@link #getSsdpAddress()}, serves its device
+ * description at {@link #getLocationUrl()} and implements the
+ * <code>WANIPConnection</code> actions for port mappings over HTTP, so that
+ * the router implementations can be tested end-to-end without a physical
+ * router.
+ * <p>
+ * The simulator is configured before {@link #start()}: the number of
+ * mappings the table can hold, the latency of each action, errors injected
+ * with a given probability and quirks of real routers like closing every
+ * connection.
+ *
+ * @author chris
+ */
+public class IgdSimulator {
+
+	/**
+	 * The key of {@link #setLatency(String, Latency)} for answering SSDP
+	 * searches.
+	 */
+	public static final String SEARCH = "M-SEARCH";
+	/**
+	 * The key of {@link #setLatency(String, Latency)} for serving the device
+	 * and service descriptions.
+	 */
+	public static final String DESCRIPTION = "DESCRIPTION";
+	/**
+	 * The key of {@link #injectError(String, int, double)} and
+	 * {@link #setLatency(String, Latency)} for all actions.
+	 */
+	public static final String ALL_ACTIONS = "*";
+
+	public static final int ERROR_INVALID_ACTION = 401;
+	public static final int ERROR_INVALID_ARGS = 402;
+	public static final int ERROR_SPECIFIED_ARRAY_INDEX_INVALID = 713;
+	public static final int ERROR_NO_SUCH_ENTRY_IN_ARRAY = 714;
+	public static final int ERROR_CONFLICT_IN_MAPPING_ENTRY = 718;
+	public static final int ERROR_ONLY_PERMANENT_LEASES_SUPPORTED = 725;
+	public static final int ERROR_NO_PORT_MAPS_AVAILABLE = 728;
+	public static final int ERROR_PORT_MAPPING_NOT_FOUND = 730;
+
+	private static final Map<Integer, String> ERROR_DESCRIPTIONS = new HashMap<>();
+
+	static {
+		// the JDK server does not disable Nagle's algorithm by default, which
+		// delays every response by the delayed ACK of the client
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		ERROR_DESCRIPTIONS.put(ERROR_INVALID_ACTION, "Invalid Action");
+		ERROR_DESCRIPTIONS.put(ERROR_INVALID_ARGS, "Invalid Args");
+		ERROR_DESCRIPTIONS.put(501, "Action Failed");
+		ERROR_DESCRIPTIONS.put(ERROR_SPECIFIED_ARRAY_INDEX_INVALID,
+				"SpecifiedArrayIndexInvalid");
+		ERROR_DESCRIPTIONS.put(ERROR_NO_SUCH_ENTRY_IN_ARRAY,
+				"NoSuchEntryInArray");
+		ERROR_DESCRIPTIONS.put(ERROR_CONFLICT_IN_MAPPING_ENTRY,
+				"ConflictInMappingEntry");
+		ERROR_DESCRIPTIONS.put(ERROR_ONLY_PERMANENT_LEASES_SUPPORTED,
+				"OnlyPermanentLeasesSupported");
+		ERROR_DESCRIPTIONS.put(ERROR_NO_PORT_MAPS_AVAILABLE,
+				"NoPortMapsAvailable");
+		ERROR_DESCRIPTIONS.put(ERROR_PORT_MAPPING_NOT_FOUND,
+				"PortMappingNotFound");
+	}
+
+	private static final String DESCRIPTION_PATH = "/rootDesc.xml";
+	private static final String CONTROL_PATH = "/ctl/IPConn";
+	private static final String EVENT_PATH = "/evt/IPConn";
+	private static final String SCPD_PATH = "/WANIPCn.xml";
+	private static final String CIF_CONTROL_PATH = "/ctl/CmnIfCfg";
+	private static final String CIF_SCPD_PATH = "/WANCfg.xml";
+	private static final String L3F_CONTROL_PATH = "/ctl/L3F";
+	private static final String L3F_SCPD_PATH = "/L3F.xml";
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private String friendlyName = "IGD Simulator";
+	private String externalIPAddress = "203.0.113.1";
+	private int igdVersion = 1;
+	private int tableSize = 128;
+	private volatile int listPageSize;
+	private int httpThreads = 4;
+	private long seed = System.nanoTime();
+	private boolean closeConnections;
+	private boolean chunkedResponses;
+	private boolean onlyPermanentLeases;
+	private boolean numberOfEntriesSupported = true;
+	private volatile Integer reportedNumberOfEntries;
+	private volatile double dropProbability;
+	private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+	private final Map<String, List<Injection>> injections = new ConcurrentHashMap<>();
+
+	/**
+	 * The mappings by protocol, external port and remote host in the order
+	 * they were added.
+	 */
+	private final Map<String, Entry> mappings = new LinkedHashMap<>();
+	private final ConcurrentMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+	private final String udn = "uuid:" + UUID.randomUUID();
+	private Random random;
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private DatagramSocket ssdpSocket;
+	private Thread ssdpThread;
+
+	public String getFriendlyName() {
+		return friendlyName;
+	}
+
+	public void setFriendlyName(final String friendlyName) {
+		this.friendlyName = friendlyName;
+	}
+
+	public String getExternalIPAddress() {
+		return externalIPAddress;
+	}
+
+	public void setExternalIPAddress(final String externalIPAddress) {
+		this.externalIPAddress = externalIPAddress;
+	}
+
+	/**
+	 * @param igdVersion
+	 *            <code>1</code> or <code>2</code>; version 2 supports
+	 *            <code>GetListOfPortMappings</code>.
+	 */
+	public void setIgdVersion(final int igdVersion) {
+		if (igdVersion != 1 && igdVersion != 2) {
+			throw new IllegalArgumentException("Unsupported IGD version "
+					+ igdVersion);
+		}
+		this.igdVersion = igdVersion;
+	}
+
+	/**
+	 * @param tableSize
+	 *            the number of mappings the device can hold, adding more
+	 *            fails with error 728.
+	 */
+	public void setTableSize(final int tableSize) {
+		this.tableSize = tableSize;
+	}
+
+	/**
+	 * @param listPageSize
+	 *            the maximum number of mappings returned by one
+	 *            <code>GetListOfPortMappings</code>, regardless of the number
+	 *            requested, or <code>0</code> for no limit.
+	 */
+	public void setListPageSize(final int listPageSize) {
+		this.listPageSize = listPageSize;
+	}
+
+	/**
+	 * @param httpThreads
+	 *            the number of requests handled at the same time.
+	 */
+	public void setHttpThreads(final int httpThreads) {
+		this.httpThreads = httpThreads;
+	}
+
+	/**
+	 * @param seed
+	 *            the seed for latencies and injected errors.
+	 */
+	public void setSeed(final long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the latency of an action.
+	 *
+	 * @param action
+	 *            the action, {@link #ALL_ACTIONS}, {@link #SEARCH} or
+	 *            {@link #DESCRIPTION}.
+	 * @param latency
+	 *            the latency.
+	 */
+	public void setLatency(final String action, final Latency latency) {
+		latencies.put(action, latency);
+	}
+
+	/**
+	 * Let calls of an action fail with a UPnP error, e.g. 718.
+	 *
+	 * @param action
+	 *            the action or {@link #ALL_ACTIONS}.
+	 * @param errorCode
+	 *            the UPnP error code returned in a SOAP fault.
+	 * @param probability
+	 *            the probability of the error between 0 and 1.
+	 */
+	public void injectError(final String action, final int errorCode,
+			final double probability) {
+		addInjection(action, new Injection(errorCode, false, probability));
+	}
+
+	/**
+	 * Let calls of an action fail with an HTTP status code without a SOAP
+	 * fault, e.g. 500 or 503.
+	 *
+	 * @param action
+	 *            the action or {@link #ALL_ACTIONS}.
+	 * @param statusCode
+	 *            the HTTP status code.
+	 * @param probability
+	 *            the probability of the error between 0 and 1.
+	 */
+	public void injectHttpStatus(final String action, final int statusCode,
+			final double probability) {
+		addInjection(action, new Injection(statusCode, true, probability));
+	}
+
+	private void addInjection(final String action, final Injection injection) {
+		List<Injection> list = injections.get(action);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<>();
+			injections.put(action, list);
+		}
+		list.add(injection);
+	}
+
+	/**
+	 * @param dropProbability
+	 *            the probability between 0 and 1 that the connection is
+	 *            closed without an answer.
+	 */
+	public void setDropProbability(final double dropProbability) {
+		this.dropProbability = dropProbability;
+	}
+
+	/**
+	 * @param closeConnections
+	 *            <code>true</code> to close the connection after every
+	 *            response like many routers do.
+	 */
+	public void setCloseConnections(final boolean closeConnections) {
+		this.closeConnections = closeConnections;
+	}
+
+	/**
+	 * @param chunkedResponses
+	 *            <code>true</code> to send responses with chunked transfer
+	 *            encoding instead of a content length.
+	 */
+	public void setChunkedResponses(final boolean chunkedResponses) {
+		this.chunkedResponses = chunkedResponses;
+	}
+
+	/**
+	 * @param onlyPermanentLeases
+	 *            <code>true</code> to reject mappings with a finite lease with
+	 *            error 725.
+	 */
+	public void setOnlyPermanentLeases(final boolean onlyPermanentLeases) {
+		this.onlyPermanentLeases = onlyPermanentLeases;
+	}
+
+	/**
+	 * @param numberOfEntriesSupported
+	 *            <code>false</code> to answer the non-standard action
+	 *            <code>GetPortMappingNumberOfEntries</code> with error 401.
+	 */
+	public void setNumberOfEntriesSupported(
+			final boolean numberOfEntriesSupported) {
+		this.numberOfEntriesSupported = numberOfEntriesSupported;
+	}
+
+	/**
+	 * @param reportedNumberOfEntries
+	 *            the number of entries returned by
+	 *            <code>GetPortMappingNumberOfEntries</code> instead of the
+	 *            size of the table or <code>null</code> to return the size.
+	 */
+	public void setReportedNumberOfEntries(
+			final Integer reportedNumberOfEntries) {
+		this.reportedNumberOfEntries = reportedNumberOfEntries;
+	}
+
+	/**
+	 * Add a permanent mapping to the table.
+	 */
+	public void addMapping(final String protocol, final int externalPort,
+			final String internalClient, final int internalPort,
+			final String description) {
+		addMapping(protocol, "", externalPort, internalClient, internalPort,
+				description);
+	}
+
+	/**
+	 * Add a permanent mapping for the given remote host to the table.
+	 */
+	public void addMapping(final String protocol, final String remoteHost,
+			final int externalPort, final String internalClient,
+			final int internalPort, final String description) {
+		final Entry entry = new Entry(remoteHost, externalPort, protocol,
+				internalPort, internalClient, description, 0);
+		synchronized (mappings) {
+			mappings.put(entry.getKey(), entry);
+		}
+	}
+
+	/**
+	 * Fill the table with the given number of TCP mappings starting at
+	 * external port 10000.
+	 */
+	public void fill(final int count) {
+		for (int i = 0; i < count; i++) {
+			addMapping("TCP", 10000 + i, "192.168.1." + (2 + i % 250),
+					10000 + i, "Mapping " + i);
+		}
+	}
+
+	public int getMappingCount() {
+		synchronized (mappings) {
+			removeExpired();
+			return mappings.size();
+		}
+	}
+
+	public boolean containsMapping(final String protocol,
+			final int externalPort) {
+		synchronized (mappings) {
+			removeExpired();
+			return mappings.containsKey(getKey("", externalPort, protocol));
+		}
+	}
+
+	/**
+	 * @return the number of requests for the given action, including failed
+	 *         ones.
+	 */
+	public int getRequestCount(final String action) {
+		final AtomicInteger count = requestCounts.get(action);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return the number of requests by action.
+	 */
+	public Map<String, Integer> getRequestCounts() {
+		final Map<String, Integer> counts = new TreeMap<>();
+		for (final Map.Entry<String, AtomicInteger> entry : requestCounts
+				.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	/**
+	 * Start answering searches and requests on the loopback interface.
+	 *
+	 * @throws IOException
+	 *             if a socket could not be opened.
+	 */
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			return;
+		}
+		random = new Random(seed);
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		server = HttpServer.create(new InetSocketAddress(loopback, 0), 50);
+		executor = Executors.newFixedThreadPool(httpThreads,
+				new NamedThreadFactory("igd-simulator-http"));
+		server.setExecutor(executor);
+		server.createContext(DESCRIPTION_PATH, new DocumentHandler() {
+			@Override
+			String getDocument() {
+				return createDeviceDescription();
+			}
+		});
+		server.createContext(SCPD_PATH, new DocumentHandler() {
+			@Override
+			String getDocument() {
+				return createServiceDescription();
+			}
+		});
+		final DocumentHandler emptyServiceDescription = new DocumentHandler() {
+			@Override
+			String getDocument() {
+				return "<?xml version=\"1.0\"?>"
+						+ "<scpd xmlns=\"urn:schemas-upnp-org:service-1-0\">"
+						+ "<specVersion><major>1</major><minor>0</minor></specVersion>"
+						+ "<actionList/><serviceStateTable/></scpd>";
+			}
+		};
+		server.createContext(CIF_SCPD_PATH, emptyServiceDescription);
+		server.createContext(L3F_SCPD_PATH, emptyServiceDescription);
+		server.createContext(CONTROL_PATH, new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				handleControl(exchange);
+			}
+		});
+		server.createContext(EVENT_PATH, new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				readBody(exchange);
+				send(exchange, 501, null);
+			}
+		});
+		server.start();
+
+		ssdpSocket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		ssdpThread = new NamedThreadFactory("igd-simulator-ssdp")
+				.newThread(new Runnable() {
+					@Override
+					public void run() {
+						answerSearches();
+					}
+				});
+		ssdpThread.start();
+		logger.debug("Simulated IGD " + friendlyName + " started at "
+				+ getLocationUrl());
+	}
+
+	/**
+	 * Stop answering searches and requests.
+	 */
+	public synchronized void stop() {
+		if (server == null) {
+			return;
+		}
+		ssdpSocket.close();
+		try {
+			ssdpThread.join(1000);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		server.stop(0);
+		executor.shutdownNow();
+		server = null;
+		logger.debug("Simulated IGD " + friendlyName + " stopped: "
+				+ getRequestCounts());
+	}
+
+	/**
+	 * @return the URL of the device description.
+	 */
+	public synchronized String getLocationUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort()
+				+ DESCRIPTION_PATH;
+	}
+
+	/**
+	 * @return the address where SSDP searches are answered.
+	 */
+	public synchronized InetSocketAddress getSsdpAddress() {
+		return (InetSocketAddress) ssdpSocket.getLocalSocketAddress();
+	}
+
+	private String getDeviceType() {
+		return "urn:schemas-upnp-org:device:InternetGatewayDevice:"
+				+ igdVersion;
+	}
+
+	private String getServiceType() {
+		return "urn:schemas-upnp-org:service:WANIPConnection:" + igdVersion;
+	}
+
+	private void answerSearches() {
+		final byte[] buffer = new byte[1536];
+		while (!ssdpSocket.isClosed()) {
+			final DatagramPacket packet = new DatagramPacket(buffer,
+					buffer.length);
+			try {
+				ssdpSocket.receive(packet);
+			} catch (final SocketException e) {
+				// socket closed
+				return;
+			} catch (final IOException e) {
+				logger.debug("Could not receive search", e);
+				continue;
+			}
+			final String message = new String(packet.getData(), 0,
+					packet.getLength(), StandardCharsets.US_ASCII);
+			final String searchType = getSearchType(message);
+			if (searchType == null) {
+				continue;
+			}
+			count(SEARCH);
+			delay(SEARCH);
+			final String reply = "HTTP/1.1 200 OK\r\n"
+					+ "CACHE-CONTROL: max-age=1800\r\n" + "EXT:\r\n"
+					+ "LOCATION: " + getLocationUrl() + "\r\n"
+					+ "SERVER: Linux/3.4 UPnP/1.0 IgdSimulator/1.0\r\n"
+					+ "ST: " + searchType + "\r\n" + "USN: " + udn + "::"
+					+ searchType + "\r\n\r\n";
+			final byte[] replyBytes = reply.getBytes(StandardCharsets.US_ASCII);
+			try {
+				ssdpSocket.send(new DatagramPacket(replyBytes,
+						replyBytes.length, packet.getSocketAddress()));
+			} catch (final IOException e) {
+				logger.debug("Could not send search reply", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the search type of the given message if it is a search this
+	 *         device answers, else <code>null</code>.
+	 */
+	private String getSearchType(final String message) {
+		if (!message.startsWith("M-SEARCH")) {
+			return null;
+		}
+		for (final String line : message.split("\r\n")) {
+			final int colon = line.indexOf(':');
+			if (colon > 0
+					&& line.substring(0, colon).trim().equalsIgnoreCase("ST")) {
+				final String searchType = line.substring(colon + 1).trim();
+				if (searchType.equals("ssdp:all")
+						|| searchType.equals("upnp:rootdevice")
+						|| searchType.equals(getDeviceType())
+						|| igdVersion == 2
+						&& searchType
+								.equals("urn:schemas-upnp-org:device:InternetGatewayDevice:1")) {
+					return searchType;
+				}
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private void handleControl(final HttpExchange exchange) throws IOException {
+		final byte[] body = readBody(exchange);
+		final String soapAction = exchange.getRequestHeaders().getFirst(
+				"SOAPAction");
+		String action = "";
+		if (soapAction != null) {
+			final String unquoted = soapAction.replace("\"", "");
+			action = unquoted.substring(unquoted.indexOf('#') + 1);
+		}
+		count(action);
+		delay(action);
+		if (nextDouble() < dropProbability) {
+			logger.trace("Dropping connection for action " + action);
+			exchange.close();
+			return;
+		}
+		final Injection injection = getInjection(action);
+		if (injection != null) {
+			if (injection.http) {
+				send(exchange, injection.code, null);
+			} else {
+				sendFault(exchange, injection.code);
+			}
+			return;
+		}
+		final Map<String, String> args;
+		try {
+			args = SoapResponseReader.read(body, 0, body.length);
+		} catch (final XMLStreamException e) {
+			sendFault(exchange, ERROR_INVALID_ARGS);
+			return;
+		}
+		final Map<String, String> result = new LinkedHashMap<>();
+		final int errorCode;
+		try {
+			errorCode = execute(action, args, result);
+		} catch (final NumberFormatException | NullPointerException e) {
+			sendFault(exchange, ERROR_INVALID_ARGS);
+			return;
+		}
+		if (errorCode != 0) {
+			sendFault(exchange, errorCode);
+			return;
+		}
+		final StringBuilder response = new StringBuilder(512);
+		response.append("<?xml version=\"1.0\"?>\r\n<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" ")
+				.append("s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body>")
+				.append("<u:").append(action).append("Response xmlns:u=\"")
+				.append(getServiceType()).append("\">");
+		for (final Map.Entry<String, String> entry : result.entrySet()) {
+			response.append('<').append(entry.getKey()).append('>')
+					.append(escape(entry.getValue())).append("</")
+					.append(entry.getKey()).append('>');
+		}
+		response.append("</u:").append(action)
+				.append("Response></s:Body></s:Envelope>");
+		send(exchange, 200, response.toString());
+	}
+
+	/**
+	 * Execute an action.
+	 *
+	 * @return 0 or the UPnP error code.
+	 */
+	private int execute(final String action, final Map<String, String> args,
+			final Map<String, String> result) {
+		switch (action) {
+		case "GetExternalIPAddress":
+			result.put("NewExternalIPAddress", externalIPAddress);
+			return 0;
+		case "GetStatusInfo":
+			result.put("NewConnectionStatus", "Connected");
+			result.put("NewLastConnectionError", "ERROR_NONE");
+			result.put("NewUptime", "3600");
+			return 0;
+		case "GetPortMappingNumberOfEntries":
+			if (!numberOfEntriesSupported) {
+				return ERROR_INVALID_ACTION;
+			}
+			final Integer reported = reportedNumberOfEntries;
+			result.put("NewPortMappingNumberOfEntries",
+					Integer.toString(reported != null ? reported
+							: getMappingCount()));
+			return 0;
+		case "GetGenericPortMappingEntry":
+			return getGenericPortMappingEntry(
+					Integer.parseInt(args.get("NewPortMappingIndex")), result);
+		case "GetSpecificPortMappingEntry":
+			return getSpecificPortMappingEntry(args, result);
+		case "AddPortMapping":
+			return addPortMapping(args);
+		case "DeletePortMapping":
+			return deletePortMapping(args);
+		case "GetListOfPortMappings":
+			if (igdVersion < 2) {
+				return ERROR_INVALID_ACTION;
+			}
+			return getListOfPortMappings(args, result);
+		default:
+			return ERROR_INVALID_ACTION;
+		}
+	}
+
+	private int getGenericPortMappingEntry(final int index,
+			final Map<String, String> result) {
+		synchronized (mappings) {
+			removeExpired();
+			if (index < 0 || index >= mappings.size()) {
+				return ERROR_SPECIFIED_ARRAY_INDEX_INVALID;
+			}
+			final Entry entry = new ArrayList<>(mappings.values()).get(index);
+			result.put("NewRemoteHost", entry.remoteHost);
+			result.put("NewExternalPort", Integer.toString(entry.externalPort));
+			result.put("NewProtocol", entry.protocol);
+			entry.putTo(result);
+			return 0;
+		}
+	}
+
+	private int getSpecificPortMappingEntry(final Map<String, String> args,
+			final Map<String, String> result) {
+		synchronized (mappings) {
+			removeExpired();
+			final Entry entry = mappings.get(getKey(args));
+			if (entry == null) {
+				return ERROR_NO_SUCH_ENTRY_IN_ARRAY;
+			}
+			entry.putTo(result);
+			return 0;
+		}
+	}
+
+	private int addPortMapping(final Map<String, String> args) {
+		final String protocol = getProtocol(args);
+		if (protocol == null) {
+			return ERROR_INVALID_ARGS;
+		}
+		final String leaseString = args.get("NewLeaseDuration");
+		final long leaseDuration = leaseString == null
+				|| leaseString.isEmpty() ? 0 : Long.parseLong(leaseString);
+		if (leaseDuration != 0 && onlyPermanentLeases) {
+			return ERROR_ONLY_PERMANENT_LEASES_SUPPORTED;
+		}
+		final Entry entry = new Entry(getRemoteHost(args),
+				Integer.parseInt(args.get("NewExternalPort")), protocol,
+				Integer.parseInt(args.get("NewInternalPort")),
+				args.get("NewInternalClient"),
+				args.get("NewPortMappingDescription"), leaseDuration);
+		synchronized (mappings) {
+			removeExpired();
+			final Entry existing = mappings.get(entry.getKey());
+			if (existing != null
+					&& !existing.internalClient.equals(entry.internalClient)) {
+				return ERROR_CONFLICT_IN_MAPPING_ENTRY;
+			}
+			if (existing == null && mappings.size() >= tableSize) {
+				return ERROR_NO_PORT_MAPS_AVAILABLE;
+			}
+			mappings.put(entry.getKey(), entry);
+			return 0;
+		}
+	}
+
+	private int deletePortMapping(final Map<String, String> args) {
+		if (getProtocol(args) == null) {
+			return ERROR_INVALID_ARGS;
+		}
+		synchronized (mappings) {
+			removeExpired();
+			return mappings.remove(getKey(args)) == null ? ERROR_NO_SUCH_ENTRY_IN_ARRAY
+					: 0;
+		}
+	}
+
+	private int getListOfPortMappings(final Map<String, String> args,
+			final Map<String, String> result) {
+		final int startPort = Integer.parseInt(args.get("NewStartPort"));
+		final int endPort = Integer.parseInt(args.get("NewEndPort"));
+		final int numberOfPorts = Integer.parseInt(args
+				.get("NewNumberOfPorts"));
+		final String protocol = getProtocol(args);
+		// sorted by port and remote host
+		final TreeMap<String, Entry> entries = new TreeMap<>();
+		synchronized (mappings) {
+			removeExpired();
+			for (final Entry entry : mappings.values()) {
+				if (entry.protocol.equals(protocol)
+						&& entry.externalPort >= startPort
+						&& entry.externalPort <= endPort) {
+					entries.put(String.format("%05d %s", entry.externalPort,
+							entry.remoteHost), entry);
+				}
+			}
+		}
+		if (entries.isEmpty()) {
+			return ERROR_PORT_MAPPING_NOT_FOUND;
+		}
+		final StringBuilder listing = new StringBuilder(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+						+ "<p:PortMappingList xmlns:p=\"urn:schemas-upnp-org:gw:WANIPConnection\">");
+		final int pageSize = listPageSize;
+		int count = 0;
+		for (final Entry entry : entries.values()) {
+			if (numberOfPorts > 0 && count >= numberOfPorts
+					|| pageSize > 0 && count >= pageSize) {
+				break;
+			}
+			count++;
+			listing.append("<p:PortMappingEntry>")
+					.append("<p:NewRemoteHost>")
+					.append(escape(entry.remoteHost))
+					.append("</p:NewRemoteHost><p:NewExternalPort>")
+					.append(entry.externalPort)
+					.append("</p:NewExternalPort><p:NewProtocol>")
+					.append(entry.protocol)
+					.append("</p:NewProtocol><p:NewInternalPort>")
+					.append(entry.internalPort)
+					.append("</p:NewInternalPort><p:NewInternalClient>")
+					.append(escape(entry.internalClient))
+					.append("</p:NewInternalClient><p:NewEnabled>1</p:NewEnabled><p:NewDescription>")
+					.append(escape(entry.description))
+					.append("</p:NewDescription><p:NewLeaseTime>")
+					.append(entry.getRemainingLease())
+					.append("</p:NewLeaseTime></p:PortMappingEntry>");
+		}
+		listing.append("</p:PortMappingList>");
+		result.put("NewPortListing", listing.toString());
+		return 0;
+	}
+
+	private void removeExpired() {
+		final long now = System.nanoTime();
+		for (final Iterator<Entry> iterator = mappings.values().iterator(); iterator
+				.hasNext();) {
+			final Entry entry = iterator.next();
+			if (entry.expiresAtNanos != 0 && now - entry.expiresAtNanos >= 0) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static String getProtocol(final Map<String, String> args) {
+		final String protocol = args.get("NewProtocol");
+		if ("TCP".equalsIgnoreCase(protocol) || "UDP".equalsIgnoreCase(protocol)) {
+			return protocol.toUpperCase();
+		}
+		return null;
+	}
+
+	private static String getRemoteHost(final Map<String, String> args) {
+		final String remoteHost = args.get("NewRemoteHost");
+		return remoteHost == null ? "" : remoteHost;
+	}
+
+	private static String getKey(final Map<String, String> args) {
+		return getKey(getRemoteHost(args),
+				Integer.parseInt(args.get("NewExternalPort")),
+				getProtocol(args));
+	}
+
+	private static String getKey(final String remoteHost,
+			final int externalPort, final String protocol) {
+		return protocol + " " + externalPort + " " + remoteHost;
+	}
+
+	private Injection getInjection(final String action) {
+		for (final String key : new String[] { action, ALL_ACTIONS }) {
+			final List<Injection> list = injections.get(key);
+			if (list == null) {
+				continue;
+			}
+			for (final Injection injection : list) {
+				if (nextDouble() < injection.probability) {
+					return injection;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void count(final String action) {
+		AtomicInteger count = requestCounts.get(action);
+		if (count == null) {
+			final AtomicInteger newCount = new AtomicInteger();
+			count = requestCounts.putIfAbsent(action, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	private void delay(final String action) {
+		Latency latency = latencies.get(action);
+		if (latency == null) {
+			latency = latencies.get(ALL_ACTIONS);
+		}
+		if (latency == null) {
+			return;
+		}
+		final long millis;
+		synchronized (random) {
+			millis = latency.nextMillis(random);
+		}
+		if (millis > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(millis);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private double nextDouble() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+
+	private void sendFault(final HttpExchange exchange, final int errorCode)
+			throws IOException {
+		final String description = ERROR_DESCRIPTIONS.containsKey(errorCode) ? ERROR_DESCRIPTIONS
+				.get(errorCode) : "Error " + errorCode;
+		send(exchange,
+				500,
+				"<?xml version=\"1.0\"?>\r\n<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+						+ "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body><s:Fault>"
+						+ "<faultcode>s:Client</faultcode><faultstring>UPnPError</faultstring><detail>"
+						+ "<UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\"><errorCode>"
+						+ errorCode + "</errorCode><errorDescription>"
+						+ description
+						+ "</errorDescription></UPnPError></detail></s:Fault></s:Body></s:Envelope>");
+	}
+
+	private void send(final HttpExchange exchange, final int statusCode,
+			final String body) throws IOException {
+		if (closeConnections) {
+			exchange.getResponseHeaders().set("Connection", "close");
+		}
+		if (body == null) {
+			exchange.sendResponseHeaders(statusCode, -1);
+			exchange.close();
+			return;
+		}
+		final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/xml; charset=\"utf-8\"");
+		exchange.sendResponseHeaders(statusCode, chunkedResponses ? 0
+				: bytes.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(bytes);
+		}
+	}
+
+	private static byte[] readBody(final HttpExchange exchange)
+			throws IOException {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (InputStream input = exchange.getRequestBody()) {
+			final byte[] buffer = new byte[1024];
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+		}
+		return body.toByteArray();
+	}
+
+	private static String escape(final String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;");
+	}
+
+	private String createDeviceDescription() {
+		return "<?xml version=\"1.0\"?>\r\n"
+				+ "<root xmlns=\"urn:schemas-upnp-org:device-1-0\">"
+				+ "<specVersion><major>1</major><minor>0</minor></specVersion>"
+				+ "<device><deviceType>" + getDeviceType() + "</deviceType>"
+				+ "<friendlyName>" + escape(friendlyName) + "</friendlyName>"
+				+ "<manufacturer>upnp-portmapper</manufacturer>"
+				+ "<modelDescription>Simulated internet gateway device</modelDescription>"
+				+ "<modelName>" + escape(friendlyName) + "</modelName>"
+				+ "<UDN>" + udn + "</UDN>"
+				// like real gateways, the root device has a service before
+				// its embedded devices, so that parsers keep its name
+				+ "<serviceList><service>"
+				+ "<serviceType>urn:schemas-upnp-org:service:Layer3Forwarding:1</serviceType>"
+				+ "<serviceId>urn:upnp-org:serviceId:L3Forwarding1</serviceId>"
+				+ "<SCPDURL>" + L3F_SCPD_PATH + "</SCPDURL>"
+				+ "<controlURL>" + L3F_CONTROL_PATH + "</controlURL>"
+				+ "<eventSubURL></eventSubURL>"
+				+ "</service></serviceList>"
+				+ "<deviceList><device>"
+				+ "<deviceType>urn:schemas-upnp-org:device:WANDevice:" + igdVersion + "</deviceType>"
+				+ "<friendlyName>WANDevice</friendlyName>"
+				+ "<manufacturer>upnp-portmapper</manufacturer>"
+				+ "<modelName>WANDevice</modelName>"
+				+ "<UDN>" + udn + "-wan</UDN>"
+				+ "<serviceList><service>"
+				+ "<serviceType>urn:schemas-upnp-org:service:WANCommonInterfaceConfig:1</serviceType>"
+				+ "<serviceId>urn:upnp-org:serviceId:WANCommonIFC1</serviceId>"
+				+ "<SCPDURL>" + CIF_SCPD_PATH + "</SCPDURL>"
+				+ "<controlURL>" + CIF_CONTROL_PATH + "</controlURL>"
+				+ "<eventSubURL></eventSubURL>"
+				+ "</service></serviceList>"
+				+ "<deviceList><device>"
+				+ "<deviceType>urn:schemas-upnp-org:device:WANConnectionDevice:" + igdVersion + "</deviceType>"
+				+ "<friendlyName>WANConnectionDevice</friendlyName>"
+				+ "<manufacturer>upnp-portmapper</manufacturer>"
+				+ "<modelName>WANConnectionDevice</modelName>"
+				+ "<UDN>" + udn + "-conn</UDN>"
+				+ "<serviceList><service>"
+				+ "<serviceType>" + getServiceType() + "</serviceType>"
+				+ "<serviceId>urn:upnp-org:serviceId:WANIPConn1</serviceId>"
+				+ "<SCPDURL>" + SCPD_PATH + "</SCPDURL>"
+				+ "<controlURL>" + CONTROL_PATH + "</controlURL>"
+				+ "<eventSubURL>" + EVENT_PATH + "</eventSubURL>"
+				+ "</service></serviceList>"
+				+ "</device></deviceList>"
+				+ "</device></deviceList>"
+				+ "<presentationURL>http://127.0.0.1/</presentationURL>"
+				+ "</device></root>";
+	}
+
+	private String createServiceDescription() {
+		final String[][] entryArguments = {
+				{ "NewInternalPort", "InternalPort" },
+				{ "NewInternalClient", "InternalClient" },
+				{ "NewEnabled", "PortMappingEnabled" },
+				{ "NewPortMappingDescription", "PortMappingDescription" },
+				{ "NewLeaseDuration", "PortMappingLeaseDuration" } };
+		final String[][] keyArguments = { { "NewRemoteHost", "RemoteHost" },
+				{ "NewExternalPort", "ExternalPort" },
+				{ "NewProtocol", "PortMappingProtocol" } };
+		final StringBuilder scpd = new StringBuilder(
+				"<?xml version=\"1.0\"?>\r\n<scpd xmlns=\"urn:schemas-upnp-org:service-1-0\">"
+						+ "<specVersion><major>1</major><minor>0</minor></specVersion><actionList>");
+		appendAction(scpd, "GetExternalIPAddress", new String[0][],
+				new String[][] { { "NewExternalIPAddress", "ExternalIPAddress" } });
+		appendAction(scpd, "GetStatusInfo", new String[0][], new String[][] {
+				{ "NewConnectionStatus", "ConnectionStatus" },
+				{ "NewLastConnectionError", "LastConnectionError" },
+				{ "NewUptime", "Uptime" } });
+		appendAction(scpd, "GetGenericPortMappingEntry",
+				new String[][] { { "NewPortMappingIndex",
+						"PortMappingNumberOfEntries" } },
+				concat(keyArguments, entryArguments));
+		appendAction(scpd, "GetSpecificPortMappingEntry", keyArguments,
+				entryArguments);
+		appendAction(scpd, "AddPortMapping",
+				concat(keyArguments, entryArguments), new String[0][]);
+		appendAction(scpd, "DeletePortMapping", keyArguments, new String[0][]);
+		if (igdVersion == 2) {
+			appendAction(scpd, "GetListOfPortMappings", new String[][] {
+					{ "NewStartPort", "ExternalPort" },
+					{ "NewEndPort", "ExternalPort" },
+					{ "NewProtocol", "PortMappingProtocol" },
+					{ "NewManage", "PortMappingEnabled" },
+					{ "NewNumberOfPorts", "PortMappingNumberOfEntries" } },
+					new String[][] { { "NewPortListing", "A_ARG_TYPE_PortListing" } });
+		}
+		scpd.append("</actionList><serviceStateTable>");
+		final String[][] variables = { { "ExternalIPAddress", "string" },
+				{ "ConnectionStatus", "string" },
+				{ "LastConnectionError", "string" }, { "Uptime", "ui4" },
+				{ "PortMappingNumberOfEntries", "ui2" },
+				{ "RemoteHost", "string" }, { "ExternalPort", "ui2" },
+				{ "PortMappingProtocol", "string" }, { "InternalPort", "ui2" },
+				{ "InternalClient", "string" },
+				{ "PortMappingEnabled", "boolean" },
+				{ "PortMappingDescription", "string" },
+				{ "PortMappingLeaseDuration", "ui4" },
+				{ "A_ARG_TYPE_PortListing", "string" } };
+		for (final String[] variable : variables) {
+			scpd.append("<stateVariable sendEvents=\"no\"><name>")
+					.append(variable[0]).append("</name><dataType>")
+					.append(variable[1]).append("</dataType></stateVariable>");
+		}
+		scpd.append("</serviceStateTable></scpd>");
+		return scpd.toString();
+	}
+
+	private static void appendAction(final StringBuilder scpd,
+			final String name, final String[][] in, final String[][] out) {
+		scpd.append("<action><name>").append(name)
+				.append("</name><argumentList>");
+		appendArguments(scpd, in, "in");
+		appendArguments(scpd, out, "out");
+		scpd.append("</argumentList></action>");
+	}
+
+	private static void appendArguments(final StringBuilder scpd,
+			final String[][] arguments, final String direction) {
+		for (final String[] argument : arguments) {
+			scpd.append("<argument><name>").append(argument[0])
+					.append("</name><direction>").append(direction)
+					.append("</direction><relatedStateVariable>")
+					.append(argument[1])
+					.append("</relatedStateVariable></argument>");
+		}
+	}
+
+	private static String[][] concat(final String[][] first,
+			final String[][] second) {
+		final List<String[]> all = new ArrayList<>();
+		Collections.addAll(all, first);
+		Collections.addAll(all, second);
+		return all.toArray(new String[all.size()][]);
+	}
+
+	@Override
+	public String toString() {
+		return "[IgdSimulator " + friendlyName + ": "
+				+ (server != null ? getLocationUrl() : "stopped") + "]";
+	}
+
+	/**
+	 * Serves an XML document.
+	 */
+	private abstract class DocumentHandler implements HttpHandler {
+		abstract String getDocument();
+
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			readBody(exchange);
+			count(DESCRIPTION);
+			delay(DESCRIPTION);
+			send(exchange, 200, getDocument());
+		}
+	}
+
+	private static class Injection {
+		private final int code;
+		private final boolean http;
+		private final double probability;
+
+		Injection(final int code, final boolean http, final double probability) {
+			this.code = code;
+			this.http = http;
+			this.probability = probability;
+		}
+	}
+
+	private static class Entry {
+		private final String remoteHost;
+		private final int externalPort;
+		private final String protocol;
+		private final int internalPort;
+		private final String internalClient;
+		private final String description;
+		private final long leaseDuration;
+		private final long expiresAtNanos;
+
+		Entry(final String remoteHost, final int externalPort,
+				final String protocol, final int internalPort,
+				final String internalClient, final String description,
+				final long leaseDuration) {
+			this.remoteHost = remoteHost;
+			this.externalPort = externalPort;
+			this.protocol = protocol;
+			this.internalPort = internalPort;
+			this.internalClient = internalClient;
+			this.description = description == null ? "" : description;
+			this.leaseDuration = leaseDuration;
+			final long expiresAt = System.nanoTime()
+					+ TimeUnit.SECONDS.toNanos(leaseDuration);
+			this.expiresAtNanos = leaseDuration > 0 ? (expiresAt == 0 ? 1
+					: expiresAt) : 0;
+		}
+
+		String getKey() {
+			return IgdSimulator.getKey(remoteHost, externalPort, protocol);
+		}
+
+		long getRemainingLease() {
+			if (leaseDuration == 0) {
+				return 0;
+			}
+			return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(expiresAtNanos
+					- System.nanoTime()));
+		}
+
+		void putTo(final Map<String, String> result) {
+			result.put("NewInternalPort", Integer.toString(internalPort));
+			result.put("NewInternalClient", internalClient);
+			result.put("NewEnabled", "1");
+			result.put("NewPortMappingDescription", description);
+			result.put("NewLeaseDuration", Long.toString(getRemainingLease()));
+		}
+	}
+}
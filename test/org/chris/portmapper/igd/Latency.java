@@ -0,0 +1,114 @@
+package org.chris.portmapper.igd;
+
+import java.util.Random;
+
+/**
+ * A distribution of the time an {@link IgdSimulator} needs to answer an
+ * action.
+ *
+ * @author chris
+ */
+public abstract class Latency {
+
+	/**
+	 * @param random
+	 *            the source of randomness.
+	 * @return the next latency in milliseconds, not negative.
+	 */
+	public abstract long nextMillis(Random random);
+
+	/**
+	 * @return answer immediately.
+	 */
+	public static Latency none() {
+		return constant(0);
+	}
+
+	/**
+	 * @param millis
+	 *            the latency in milliseconds.
+	 * @return always the given latency.
+	 */
+	public static Latency constant(final long millis) {
+		return new Latency() {
+			@Override
+			public long nextMillis(final Random random) {
+				return millis;
+			}
+
+			@Override
+			public String toString() {
+				return millis + "ms";
+			}
+		};
+	}
+
+	/**
+	 * @param minMillis
+	 *            the smallest latency in milliseconds.
+	 * @param maxMillis
+	 *            the largest latency in milliseconds.
+	 * @return uniformly distributed latencies.
+	 */
+	public static Latency uniform(final long minMillis, final long maxMillis) {
+		return new Latency() {
+			@Override
+			public long nextMillis(final Random random) {
+				return minMillis
+						+ (long) (random.nextDouble() * (maxMillis - minMillis + 1));
+			}
+
+			@Override
+			public String toString() {
+				return minMillis + "-" + maxMillis + "ms";
+			}
+		};
+	}
+
+	/**
+	 * @param meanMillis
+	 *            the mean latency in milliseconds.
+	 * @param jitterMillis
+	 *            the standard deviation in milliseconds.
+	 * @return normally distributed latencies, negative values are returned as
+	 *         0.
+	 */
+	public static Latency normal(final long meanMillis, final long jitterMillis) {
+		return new Latency() {
+			@Override
+			public long nextMillis(final Random random) {
+				return Math.max(0, Math.round(meanMillis
+						+ random.nextGaussian() * jitterMillis));
+			}
+
+			@Override
+			public String toString() {
+				return meanMillis + "ms+-" + jitterMillis + "ms";
+			}
+		};
+	}
+
+	/**
+	 * @param medianMillis
+	 *            the median latency in milliseconds.
+	 * @param sigma
+	 *            the standard deviation of the logarithm, e.g. 0.5 for a
+	 *            moderately long tail.
+	 * @return log-normally distributed latencies with a long tail like those
+	 *         of real routers.
+	 */
+	public static Latency logNormal(final long medianMillis, final double sigma) {
+		return new Latency() {
+			@Override
+			public long nextMillis(final Random random) {
+				return Math.round(medianMillis
+						* Math.exp(random.nextGaussian() * sigma));
+			}
+
+			@Override
+			public String toString() {
+				return "median " + medianMillis + "ms, sigma " + sigma;
+			}
+		};
+	}
+}
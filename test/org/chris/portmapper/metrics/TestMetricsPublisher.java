@@ -0,0 +1,147 @@
+package org.chris.portmapper.metrics;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.router.AbstractRouter;
+import org.chris.portmapper.router.InstrumentedRouter;
+import org.chris.portmapper.router.LeaseRenewalScheduler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wetorrent.upnp.ActionMetrics;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MetricsPublisher} with a private MBean server.
+ *
+ * @author chris
+ */
+public class TestMetricsPublisher {
+
+	private static final String ROUTER_NAME = "FRITZ!Box 7490, \"home\"";
+
+	private final ActionMetrics protocolMetrics = new ActionMetrics();
+	private MBeanServer server;
+	private InstrumentedRouter router;
+	private MetricsPublisher publisher;
+
+	@Before
+	public void setUp() {
+		server = MBeanServerFactory.newMBeanServer();
+		final AbstractRouter routerMock = mock(AbstractRouter.class);
+		when(routerMock.getName()).thenReturn(ROUTER_NAME);
+		when(routerMock.getProtocolMetrics()).thenReturn(protocolMetrics);
+		router = new InstrumentedRouter(routerMock);
+		publisher = new MetricsPublisher(router, server);
+	}
+
+	@After
+	public void tearDown() {
+		publisher.unpublish();
+	}
+
+	@Test
+	public void calledActionsArePublished() throws Exception {
+		router.getMetrics().recordSuccess("getPortMappings", System.nanoTime());
+		publisher.publish();
+
+		final ObjectName name = getName(MetricsPublisher.TYPE_ROUTER_METHOD,
+				"getPortMappings");
+		assertTrue(server.isRegistered(name));
+		assertEquals(1L, server.getAttribute(name, "Calls"));
+		assertEquals("getPortMappings", server.getAttribute(name, "Action"));
+	}
+
+	@Test
+	public void laterActionsArePublished() throws Exception {
+		publisher.publish();
+		protocolMetrics.recordError("AddPortMapping", System.nanoTime(), "718");
+
+		final ObjectName name = getName(MetricsPublisher.TYPE_SOAP_ACTION,
+				"AddPortMapping");
+		assertTrue(server.isRegistered(name));
+		assertEquals(1L, server.getAttribute(name, "Errors"));
+	}
+
+	@Test
+	public void resetIsAvailableAsOperation() throws Exception {
+		protocolMetrics.recordSuccess("GetStatusInfo", System.nanoTime());
+		publisher.publish();
+
+		final ObjectName name = getName(MetricsPublisher.TYPE_SOAP_ACTION,
+				"GetStatusInfo");
+		server.invoke(name, "reset", null, null);
+		assertEquals(0, protocolMetrics.get("GetStatusInfo").getCalls());
+	}
+
+	@Test
+	public void unpublishRemovesAllBeans() throws Exception {
+		router.getMetrics().recordSuccess("getPortMappings", System.nanoTime());
+		publisher.publish();
+		publisher.publish();
+		protocolMetrics.recordSuccess("GetStatusInfo", System.nanoTime());
+		assertEquals(2, countBeans());
+
+		publisher.unpublish();
+		assertEquals(0, countBeans());
+		protocolMetrics.recordSuccess("DeletePortMapping", System.nanoTime());
+		assertEquals(0, countBeans());
+	}
+
+	@Test
+	public void leaseRenewalsArePublished() throws Exception {
+		final LeaseRenewalScheduler scheduler = new LeaseRenewalScheduler(
+				router, 3600);
+		try {
+			scheduler.add(new PortMapping(Protocol.TCP, null, 8080,
+					"192.168.1.5", 80, "http"));
+			publisher.publish(scheduler);
+			assertEquals(0, countBeans());
+
+			publisher.publish();
+			publisher.publish(scheduler);
+			final ObjectName name = new ObjectName(MetricsPublisher.DOMAIN
+					+ ":type=" + MetricsPublisher.TYPE_LEASE_RENEWAL
+					+ ",router=" + ObjectName.quote(ROUTER_NAME));
+			assertTrue(server.isRegistered(name));
+			assertEquals(1, server.getAttribute(name, "LeaseCount"));
+			assertEquals(3600, server.getAttribute(name, "LeaseSeconds"));
+			assertEquals(0L, server.getAttribute(name, "Renewals"));
+			assertEquals(-1L,
+					server.getAttribute(name, "RenewalLatencyP99Millis"));
+
+			publisher.unpublish();
+			assertFalse(server.isRegistered(name));
+		} finally {
+			scheduler.stop(false);
+		}
+	}
+
+	@Test
+	public void routerNameIsQuoted() throws Exception {
+		final ObjectName name = MetricsPublisher.getObjectName(
+				MetricsPublisher.TYPE_SOAP_ACTION, ROUTER_NAME,
+				"AddPortMapping");
+		assertEquals(MetricsPublisher.DOMAIN, name.getDomain());
+		assertEquals(ROUTER_NAME,
+				ObjectName.unquote(name.getKeyProperty("router")));
+		assertEquals("AddPortMapping",
+				ObjectName.unquote(name.getKeyProperty("action")));
+	}
+
+	private ObjectName getName(final String type, final String action)
+			throws Exception {
+		return MetricsPublisher.getObjectName(type, ROUTER_NAME, action);
+	}
+
+	private int countBeans() throws Exception {
+		return server.queryNames(new ObjectName(MetricsPublisher.DOMAIN + ":*"),
+				null).size();
+	}
+}
@@ -0,0 +1,130 @@
+package org.chris.portmapper.reconcile;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link ReconcilePlan} and {@link MappingFile}.
+ *
+ * @author chris
+ */
+public class TestReconcilePlan {
+
+	@Test
+	public void mappingsInPlaceNeedNoChanges() {
+		final List<PortMapping> desired = new ArrayList<>();
+		for (int port = 1000; port < 1500; port++) {
+			desired.add(mapping(Protocol.TCP, port, "192.168.1.2", "preset"));
+		}
+		final ReconcilePlan plan = ReconcilePlan.create(desired,
+				new ArrayList<>(desired));
+		assertTrue(plan.isEmpty());
+		assertEquals(500, plan.getUnchanged().size());
+	}
+
+	@Test
+	public void missingMappingIsAdded() {
+		final PortMapping http = mapping(Protocol.TCP, 80, "192.168.1.2",
+				"preset");
+		final PortMapping dns = mapping(Protocol.UDP, 80, "192.168.1.2",
+				"preset");
+		final ReconcilePlan plan = ReconcilePlan.create(
+				Arrays.asList(http, dns), Arrays.asList(http));
+		assertEquals(Arrays.asList(dns), plan.getToAdd());
+		assertTrue(plan.getToRemove().isEmpty());
+		assertEquals(Arrays.asList(http), plan.getUnchanged());
+	}
+
+	@Test
+	public void remoteHostNullAndEmptyAreEqual() {
+		final PortMapping desired = mapping(Protocol.TCP, 80, "192.168.1.2",
+				"preset");
+		final PortMapping current = new PortMapping(Protocol.TCP, "", 80,
+				"192.168.1.2", 80, "preset");
+		assertTrue(ReconcilePlan.create(Arrays.asList(desired),
+				Arrays.asList(current)).isEmpty());
+	}
+
+	@Test
+	public void changedDescriptionIsOverwritten() {
+		final PortMapping desired = mapping(Protocol.TCP, 80, "192.168.1.2",
+				"new");
+		final PortMapping current = mapping(Protocol.TCP, 80, "192.168.1.2",
+				"old");
+		final ReconcilePlan plan = ReconcilePlan.create(
+				Arrays.asList(desired), Arrays.asList(current));
+		assertEquals(Arrays.asList(desired), plan.getToAdd());
+		assertTrue(plan.getToRemove().isEmpty());
+	}
+
+	@Test
+	public void changedInternalClientIsRemovedAndAdded() {
+		final PortMapping desired = mapping(Protocol.TCP, 80, "192.168.1.3",
+				"preset");
+		final PortMapping current = mapping(Protocol.TCP, 80, "192.168.1.2",
+				"preset");
+		final ReconcilePlan plan = ReconcilePlan.create(
+				Arrays.asList(desired), Arrays.asList(current));
+		assertEquals(Arrays.asList(current), plan.getToRemove());
+		assertEquals(Arrays.asList(desired), plan.getToAdd());
+	}
+
+	@Test
+	public void onlyStaleMappingsOfSamePresetAreRemoved() {
+		final PortMapping http = mapping(Protocol.TCP, 80, "192.168.1.2",
+				"preset");
+		final PortMapping stale = mapping(Protocol.TCP, 81, "192.168.1.2",
+				"preset");
+		final PortMapping other = mapping(Protocol.TCP, 82, "192.168.1.2",
+				"other application");
+		final ReconcilePlan plan = ReconcilePlan.create(Arrays.asList(http),
+				Arrays.asList(http, stale, other));
+		assertEquals(Arrays.asList(stale), plan.getToRemove());
+		assertTrue(plan.getToAdd().isEmpty());
+	}
+
+	@Test
+	public void emptyDesiredRemovesNothing() {
+		final PortMapping http = mapping(Protocol.TCP, 80, "192.168.1.2",
+				"preset");
+		assertTrue(ReconcilePlan.create(Collections.<PortMapping> emptyList(),
+				Arrays.asList(http)).isEmpty());
+	}
+
+	@Test
+	public void readMappingFile() throws IOException {
+		final List<PortMapping> mappings = MappingFile.read(new StringReader(
+				"# comment\n" + "\n" + "tcp 80 192.168.1.2 8080 Web server\n"
+						+ "UDP 53 localhost 53\n"), "192.168.1.5");
+		assertEquals(2, mappings.size());
+		assertEquals(Protocol.TCP, mappings.get(0).getProtocol());
+		assertEquals(80, mappings.get(0).getExternalPort());
+		assertEquals(8080, mappings.get(0).getInternalPort());
+		assertEquals("Web server", mappings.get(0).getDescription());
+		assertEquals("192.168.1.5", mappings.get(1).getInternalClient());
+		assertEquals(MappingFile.DEFAULT_DESCRIPTION, mappings.get(1)
+				.getDescription());
+	}
+
+	@Test(expected = IOException.class)
+	public void readInvalidMappingFile() throws IOException {
+		MappingFile.read(new StringReader("TCP 80 192.168.1.2 70000\n"), null);
+	}
+
+	private static PortMapping mapping(final Protocol protocol,
+			final int port, final String internalClient,
+			final String description) {
+		return new PortMapping(protocol, null, port, internalClient, port,
+				description);
+	}
+}
@@ -0,0 +1,125 @@
+package org.chris.portmapper.router;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link AsyncRouterAdapter}.
+ *
+ * @author chris
+ */
+public class TestAsyncRouterAdapter {
+
+	@Mock
+	private IRouter routerMock;
+
+	private ExecutorService executor;
+	private AsyncRouterAdapter asyncRouter;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		executor = Executors.newFixedThreadPool(2);
+		asyncRouter = new AsyncRouterAdapter(routerMock, executor);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void resultPassedToFutureAndCallback() throws Exception {
+		when(routerMock.getExternalIPAddress()).thenReturn("1.2.3.4");
+		final RecordingCallback<String> callback = new RecordingCallback<>();
+
+		final Future<String> future = asyncRouter
+				.getExternalIPAddress(callback);
+
+		assertEquals("1.2.3.4", AsyncRouterAdapter.await(future));
+		callback.await();
+		assertEquals("1.2.3.4", callback.result.get());
+		assertNull(callback.cause.get());
+	}
+
+	@Test
+	public void routerExceptionPassedToFutureAndCallback() throws Exception {
+		final RouterException exception = new RouterException("failed");
+		final PortMapping mapping = new PortMapping(Protocol.TCP, null, 1,
+				"client", 1, "description");
+		doThrow(exception).when(routerMock).addPortMapping(mapping);
+		final RecordingCallback<Void> callback = new RecordingCallback<>();
+
+		final Future<Void> future = asyncRouter.addPortMapping(mapping,
+				callback);
+
+		try {
+			AsyncRouterAdapter.await(future);
+			fail("Expected exception");
+		} catch (final RouterException e) {
+			assertSame(exception, e);
+		}
+		callback.await();
+		assertSame(exception, callback.cause.get());
+	}
+
+	@Test(timeout = 10000)
+	public void operationsRunConcurrently() throws Exception {
+		final CountDownLatch bothStarted = new CountDownLatch(2);
+		final Answer<String> waitForOtherCall = new Answer<String>() {
+			@Override
+			public String answer(final InvocationOnMock invocation)
+					throws Throwable {
+				bothStarted.countDown();
+				bothStarted.await();
+				return "ip";
+			}
+		};
+		when(routerMock.getExternalIPAddress()).thenAnswer(waitForOtherCall);
+
+		final Future<String> first = asyncRouter.getExternalIPAddress(null);
+		final Future<String> second = asyncRouter.getExternalIPAddress(null);
+
+		assertEquals("ip", AsyncRouterAdapter.await(first));
+		assertEquals("ip", AsyncRouterAdapter.await(second));
+	}
+
+	private static class RecordingCallback<T> implements RouterCallback<T> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final AtomicReference<T> result = new AtomicReference<>();
+		private final AtomicReference<Throwable> cause = new AtomicReference<>();
+
+		@Override
+		public void onSuccess(final T value) {
+			result.set(value);
+			done.countDown();
+		}
+
+		@Override
+		public void onFailure(final Throwable throwable) {
+			cause.set(throwable);
+			done.countDown();
+		}
+
+		void await() throws InterruptedException {
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package org.chris.portmapper.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link CachingRouter}.
+ *
+ * @author chris
+ */
+public class TestCachingRouter {
+
+	private static final PortMapping HTTP = new PortMapping(Protocol.TCP,
+			null, 80, "192.168.1.2", 8080, "http");
+	private static final PortMapping HTTPS = new PortMapping(Protocol.TCP,
+			null, 443, "192.168.1.2", 443, "https");
+	private static final PortMapping DNS = new PortMapping(Protocol.UDP, "",
+			53, "192.168.1.3", 53, "dns");
+
+	@Mock
+	private IRouter routerMock;
+
+	private CachingRouter router;
+
+	@Before
+	public void setUp() throws RouterException {
+		MockitoAnnotations.initMocks(this);
+		when(routerMock.getPortMappings()).thenReturn(
+				new ArrayList<>(Arrays.asList(HTTP, HTTPS)));
+		router = new CachingRouter(routerMock, 60000);
+	}
+
+	@Test
+	public void mappingsAreCached() throws RouterException {
+		assertEquals(Arrays.asList(HTTP, HTTPS), router.getPortMappings());
+		assertEquals(Arrays.asList(HTTP, HTTPS), router.getPortMappings());
+		verify(routerMock, times(1)).getPortMappings();
+		assertEquals(1, router.getCacheHits());
+		assertEquals(1, router.getCacheMisses());
+	}
+
+	@Test
+	public void mappingsExpireAfterTtl() throws Exception {
+		router = new CachingRouter(routerMock, 0);
+		router.getPortMappings();
+		router.getPortMappings();
+		verify(routerMock, times(2)).getPortMappings();
+	}
+
+	@Test
+	public void returnedMappingsAreACopy() throws RouterException {
+		router.getPortMappings().clear();
+		assertEquals(2, router.getPortMappings().size());
+	}
+
+	@Test
+	public void addedMappingIsCached() throws RouterException {
+		router.getPortMappings();
+		router.addPortMapping(DNS);
+		verify(routerMock).addPortMapping(DNS);
+		assertEquals(Arrays.asList(HTTP, HTTPS, DNS), router.getPortMappings());
+		verify(routerMock, times(1)).getPortMappings();
+	}
+
+	@Test
+	public void addedMappingReplacesMappingWithSameKey() throws RouterException {
+		router.getPortMappings();
+		final PortMapping newHttp = new PortMapping(Protocol.TCP, "", 80,
+				"192.168.1.4", 80, "new http");
+		router.addPortMappings(Arrays.asList(newHttp));
+		assertEquals(Arrays.asList(newHttp, HTTPS), router.getPortMappings());
+	}
+
+	@Test
+	public void removedMappingIsRemovedFromCache() throws RouterException {
+		router.getPortMappings();
+		router.removeMapping(HTTP);
+		router.removePortMapping(Protocol.TCP, "", 443);
+		verify(routerMock).removeMapping(HTTP);
+		verify(routerMock).removePortMapping(Protocol.TCP, "", 443);
+		assertTrue(router.getPortMappings().isEmpty());
+		verify(routerMock, times(1)).getPortMappings();
+	}
+
+	@Test
+	public void failedChangeInvalidatesCache() throws RouterException {
+		router.getPortMappings();
+		doThrow(new RouterException("failed")).when(routerMock)
+				.addPortMappings(Arrays.asList(DNS));
+		try {
+			router.addPortMappings(Arrays.asList(DNS));
+			fail("Expected exception");
+		} catch (final RouterException e) {
+			// expected
+		}
+		assertFalse(router.isCacheValid());
+		router.getPortMappings();
+		verify(routerMock, times(2)).getPortMappings();
+	}
+
+	@Test
+	public void revalidateFetchesMappings() throws RouterException {
+		router.getPortMappings();
+		assertEquals(Arrays.asList(HTTP, HTTPS), router.revalidate());
+		verify(routerMock, times(2)).getPortMappings();
+		assertTrue(router.isCacheValid());
+	}
+
+	@Test
+	public void mappingsFetchedDuringChangeAreNotCached() throws Exception {
+		final CountDownLatch fetchStarted = new CountDownLatch(1);
+		final CountDownLatch changeDone = new CountDownLatch(1);
+		when(routerMock.getPortMappings()).thenAnswer(
+				new Answer<Collection<PortMapping>>() {
+					@Override
+					public Collection<PortMapping> answer(
+							final InvocationOnMock invocation)
+							throws InterruptedException {
+						fetchStarted.countDown();
+						changeDone.await(5, TimeUnit.SECONDS);
+						return Arrays.asList(HTTP, HTTPS);
+					}
+				});
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<Collection<PortMapping>> fetch = executor
+					.submit(new Callable<Collection<PortMapping>>() {
+						@Override
+						public Collection<PortMapping> call()
+								throws RouterException {
+							return router.getPortMappings();
+						}
+					});
+			assertTrue(fetchStarted.await(5, TimeUnit.SECONDS));
+			router.removeMapping(HTTP);
+			changeDone.countDown();
+			fetch.get(5, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+		assertFalse(router.isCacheValid());
+	}
+
+	@Test
+	public void disconnectInvalidatesCache() throws RouterException {
+		router.getPortMappings();
+		router.disconnect();
+		verify(routerMock).disconnect();
+		assertFalse(router.isCacheValid());
+	}
+}
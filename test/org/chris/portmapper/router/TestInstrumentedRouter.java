@@ -0,0 +1,133 @@
+package org.chris.portmapper.router;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.sbbi.upnp.messages.UPNPResponseException;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.wetorrent.upnp.ActionMetrics;
+import org.wetorrent.upnp.ActionStats;
+import org.wetorrent.upnp.WeUPnPException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link InstrumentedRouter}.
+ *
+ * @author chris
+ */
+public class TestInstrumentedRouter {
+
+	private static final PortMapping HTTP = new PortMapping(Protocol.TCP,
+			null, 80, "192.168.1.2", 8080, "http");
+
+	@Mock
+	private IRouter routerMock;
+
+	private InstrumentedRouter router;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		router = new InstrumentedRouter(routerMock);
+	}
+
+	@Test
+	public void successfulCallsAreRecorded() throws RouterException {
+		final Collection<PortMapping> mappings = Arrays.asList(HTTP);
+		when(routerMock.getPortMappings()).thenReturn(mappings);
+		when(routerMock.getExternalIPAddress()).thenReturn("203.0.113.7");
+
+		assertSame(mappings, router.getPortMappings());
+		assertSame(mappings, router.getPortMappings());
+		assertEquals("203.0.113.7", router.getExternalIPAddress());
+		router.addPortMapping(HTTP);
+		verify(routerMock).addPortMapping(HTTP);
+
+		final ActionStats stats = router.getMetrics().get("getPortMappings");
+		assertEquals(2, stats.getCalls());
+		assertEquals(0, stats.getErrors());
+		assertEquals(2, stats.getLatencies().getCount());
+		assertEquals(1, router.getMetrics().get("getExternalIPAddress")
+				.getCalls());
+		assertEquals(1, router.getMetrics().get("addPortMapping").getCalls());
+	}
+
+	@Test
+	public void upnpErrorCodeOfSbbiIsCounted() throws RouterException {
+		final RouterException failure = new RouterException("conflict",
+				new UPNPResponseException(718, "ConflictInMappingEntry"));
+		doThrow(failure).when(routerMock).addPortMapping(HTTP);
+
+		assertFailure(failure);
+		assertEquals(Long.valueOf(1), router.getMetrics().get("addPortMapping")
+				.getErrorsByCode().get("718"));
+	}
+
+	@Test
+	public void upnpErrorCodeOfWeUPnPIsCounted() throws RouterException {
+		final RouterException failure = new RouterException("conflict",
+				new WeUPnPException("conflict", "718"));
+		doThrow(failure).when(routerMock).addPortMapping(HTTP);
+
+		assertFailure(failure);
+		assertEquals(Long.valueOf(1), router.getMetrics().get("addPortMapping")
+				.getErrorsByCode().get("718"));
+	}
+
+	@Test
+	public void runtimeExceptionIsCountedByType() throws RouterException {
+		final IllegalStateException failure = new IllegalStateException();
+		doThrow(failure).when(routerMock).addPortMapping(HTTP);
+
+		try {
+			router.addPortMapping(HTTP);
+			fail("expected IllegalStateException");
+		} catch (final IllegalStateException e) {
+			assertSame(failure, e);
+		}
+		final ActionStats stats = router.getMetrics().get("addPortMapping");
+		assertEquals(1, stats.getErrors());
+		assertEquals(Long.valueOf(1),
+				stats.getErrorsByCode().get("IllegalStateException"));
+	}
+
+	@Test
+	public void protocolMetricsOfWrappedRouter() {
+		assertNull(router.getProtocolMetrics());
+
+		final ActionMetrics protocolMetrics = new ActionMetrics();
+		final AbstractRouter abstractRouter = mock(AbstractRouter.class);
+		when(abstractRouter.getProtocolMetrics()).thenReturn(protocolMetrics);
+		assertSame(protocolMetrics,
+				new InstrumentedRouter(abstractRouter).getProtocolMetrics());
+	}
+
+	@Test
+	public void callsWithoutRouterAccessAreNotRecorded() {
+		when(routerMock.getName()).thenReturn("router");
+		assertEquals("router", router.getName());
+		router.disconnect();
+		verify(routerMock).disconnect();
+		assertTrue(router.getMetrics().getActions().isEmpty());
+	}
+
+	private void assertFailure(final RouterException failure) {
+		try {
+			router.addPortMapping(HTTP);
+			fail("expected RouterException");
+		} catch (final RouterException e) {
+			assertSame(failure, e);
+		}
+		final ActionStats stats = router.getMetrics().get("addPortMapping");
+		assertEquals(1, stats.getCalls());
+		assertEquals(1, stats.getErrors());
+	}
+}
@@ -0,0 +1,346 @@
+package org.chris.portmapper.router;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.util.ManualTimingWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link LeaseRenewalScheduler}. The renewals run on a
+ * {@link ManualTimingWheel} in the thread of the test.
+ *
+ * @author chris
+ */
+public class TestLeaseRenewalScheduler {
+
+	private static final int LEASE_SECONDS = 100;
+	private static final PortMapping HTTP = new PortMapping(Protocol.TCP,
+			null, 8080, "192.168.1.5", 80, "http");
+	private static final PortMapping DNS = new PortMapping(Protocol.UDP,
+			null, 5353, "192.168.1.5", 53, "dns");
+
+	@Mock
+	private IRouter routerMock;
+
+	private final DirectExecutorService executor = new DirectExecutorService();
+	private final ManualTimingWheel wheel = new ManualTimingWheel(
+			LeaseRenewalScheduler.TICK_MILLIS, TimeUnit.MILLISECONDS, executor);
+	private LeaseRenewalScheduler scheduler;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		scheduler = new LeaseRenewalScheduler(routerMock, LEASE_SECONDS,
+				executor, wheel) {
+			@Override
+			protected long nanoTime() {
+				return TimeUnit.MILLISECONDS.toNanos(wheel.getElapsedMillis());
+			}
+		};
+		scheduler.start();
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.stop(false);
+	}
+
+	@Test
+	public void mappingIsAddedWithLease() throws RouterException {
+		scheduler.add(HTTP);
+		final ArgumentCaptor<PortMapping> added = ArgumentCaptor
+				.forClass(PortMapping.class);
+		verify(routerMock).addPortMapping(added.capture());
+		assertEquals(LEASE_SECONDS, added.getValue().getLeaseDuration());
+		assertEquals(HTTP.getExternalPort(), added.getValue().getExternalPort());
+		assertEquals(1, scheduler.getMappings().size());
+	}
+
+	@Test
+	public void renewalIsBetweenEarliestAndLatest() throws RouterException {
+		scheduler.add(HTTP);
+		final long renewalMillis = advanceUntilRenewals(1);
+		assertTrue("renewed after " + renewalMillis + " ms",
+				renewalMillis >= LEASE_SECONDS * 1000
+						* LeaseRenewalScheduler.EARLIEST_RENEWAL);
+		assertTrue("renewed after " + renewalMillis + " ms",
+				renewalMillis <= LEASE_SECONDS * 1000
+						* LeaseRenewalScheduler.LATEST_RENEWAL
+						+ LeaseRenewalScheduler.TICK_MILLIS);
+		verify(routerMock, times(2)).addPortMapping(any(PortMapping.class));
+		assertEquals(0, scheduler.getFailures());
+		assertEquals(1, scheduler.getRenewalLatency().getCount());
+	}
+
+	@Test
+	public void renewedLeaseIsRenewedAgain() throws RouterException {
+		scheduler.add(HTTP);
+		advanceUntilRenewals(3);
+		verify(routerMock, times(4)).addPortMapping(any(PortMapping.class));
+	}
+
+	@Test
+	public void delaysAreSpread() {
+		final long earliest = (long) (LEASE_SECONDS * 1000
+				* LeaseRenewalScheduler.EARLIEST_RENEWAL);
+		final long latest = (long) (LEASE_SECONDS * 1000
+				* LeaseRenewalScheduler.LATEST_RENEWAL);
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (int i = 0; i < 1000; i++) {
+			final long delay = scheduler.getRenewalDelayMillis();
+			assertTrue(delay >= earliest && delay <= latest);
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+		}
+		assertTrue(max - min > (latest - earliest) / 2);
+	}
+
+	@Test
+	public void failedRenewalIsRetriedWithBackoff() throws RouterException {
+		scheduler.add(HTTP);
+		doThrow(new RouterException("unreachable")).doNothing()
+				.when(routerMock).addPortMapping(any(PortMapping.class));
+		final long failureMillis = advanceUntilFailures(1);
+		assertEquals(0, scheduler.getRenewals());
+
+		// a quarter of the remaining lease
+		final long remainingMillis = LEASE_SECONDS * 1000 - failureMillis;
+		final long retryMillis = advanceUntilRenewals(1) - failureMillis;
+		assertEquals(remainingMillis / 4, retryMillis,
+				2 * LeaseRenewalScheduler.TICK_MILLIS);
+		assertEquals(1, scheduler.getFailures());
+		assertEquals(0, scheduler.getExpiredLeases());
+	}
+
+	@Test
+	public void expiredLeaseIsRetried() throws RouterException {
+		scheduler.add(HTTP);
+		doThrow(new RouterException("unreachable")).when(routerMock)
+				.addPortMapping(any(PortMapping.class));
+		wheel.advance(LEASE_SECONDS, TimeUnit.SECONDS);
+		assertEquals(1, scheduler.getExpiredLeases());
+		final long failures = scheduler.getFailures();
+
+		wheel.advance(LeaseRenewalScheduler.MAX_RETRY_DELAY_MILLIS,
+				TimeUnit.MILLISECONDS);
+		assertEquals(failures + 1, scheduler.getFailures());
+		assertEquals(1, scheduler.getExpiredLeases());
+		assertEquals(1, scheduler.getMappings().size());
+
+		doNothing().when(routerMock).addPortMapping(any(PortMapping.class));
+		advanceUntilRenewals(1);
+		assertEquals(1, scheduler.getExpiredLeases());
+	}
+
+	@Test
+	public void retryDelay() {
+		assertEquals(LeaseRenewalScheduler.MAX_RETRY_DELAY_MILLIS,
+				LeaseRenewalScheduler.getRetryDelayMillis(0));
+		assertEquals(LeaseRenewalScheduler.MAX_RETRY_DELAY_MILLIS,
+				LeaseRenewalScheduler.getRetryDelayMillis(-5000));
+		assertEquals(LeaseRenewalScheduler.MAX_RETRY_DELAY_MILLIS,
+				LeaseRenewalScheduler.getRetryDelayMillis(1000000));
+		assertEquals(10000, LeaseRenewalScheduler.getRetryDelayMillis(40000));
+		assertEquals(LeaseRenewalScheduler.TICK_MILLIS,
+				LeaseRenewalScheduler.getRetryDelayMillis(1000));
+	}
+
+	@Test
+	public void removedMappingIsNotRenewed() throws RouterException {
+		scheduler.add(HTTP);
+		scheduler.add(DNS);
+		scheduler.remove(HTTP);
+		verify(routerMock).removeMapping(HTTP);
+		assertEquals(1, wheel.getPendingCount());
+
+		wheel.advance(LEASE_SECONDS, TimeUnit.SECONDS);
+		final ArgumentCaptor<PortMapping> added = ArgumentCaptor
+				.forClass(PortMapping.class);
+		verify(routerMock, times(3)).addPortMapping(added.capture());
+		assertEquals(DNS.getExternalPort(), added.getValue().getExternalPort());
+		assertEquals(Collections.singletonList(DNS.getExternalPort()),
+				getExternalPorts(scheduler.getMappings()));
+	}
+
+	@Test
+	public void removalWaitsForRunningRenewal() throws Exception {
+		scheduler.add(HTTP);
+		final CountDownLatch renewing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation)
+					throws InterruptedException {
+				renewing.countDown();
+				release.await();
+				return null;
+			}
+		}).when(routerMock).addPortMapping(any(PortMapping.class));
+		final Thread wheelThread = new Thread("wheel") {
+			@Override
+			public void run() {
+				wheel.advance(LEASE_SECONDS, TimeUnit.SECONDS);
+			}
+		};
+		wheelThread.start();
+		assertTrue(renewing.await(5, TimeUnit.SECONDS));
+
+		final Thread removeThread = new Thread("remove") {
+			@Override
+			public void run() {
+				try {
+					scheduler.remove(HTTP);
+				} catch (final RouterException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		removeThread.start();
+		removeThread.join(200);
+		assertTrue("removal waits for the renewal", removeThread.isAlive());
+		verify(routerMock, never()).removeMapping(any(PortMapping.class));
+
+		release.countDown();
+		removeThread.join(5000);
+		wheelThread.join(5000);
+		final InOrder inOrder = inOrder(routerMock);
+		inOrder.verify(routerMock, times(2)).addPortMapping(
+				any(PortMapping.class));
+		inOrder.verify(routerMock).removeMapping(HTTP);
+		verifyNoMoreInteractions(routerMock);
+		assertEquals(0, wheel.getPendingCount());
+	}
+
+	@Test
+	public void addingAgainReplacesLease() throws RouterException {
+		scheduler.add(HTTP);
+		scheduler.add(HTTP);
+		assertEquals(1, wheel.getPendingCount());
+		assertEquals(1, scheduler.getMappings().size());
+		advanceUntilRenewals(1);
+		verify(routerMock, times(3)).addPortMapping(any(PortMapping.class));
+	}
+
+	@Test
+	public void failedAddIsNotRenewed() throws RouterException {
+		doThrow(new RouterException("conflict")).when(routerMock)
+				.addPortMapping(any(PortMapping.class));
+		assertEquals(Arrays.asList(HTTP), scheduler.addAll(Arrays.asList(HTTP)));
+		assertEquals(0, wheel.getPendingCount());
+		assertTrue(scheduler.getMappings().isEmpty());
+	}
+
+	@Test
+	public void stopRemovesMappingsIfRequested() throws RouterException {
+		scheduler.addAll(Arrays.asList(HTTP, DNS));
+		scheduler.stop(true);
+		verify(routerMock, times(2)).removeMapping(any(PortMapping.class));
+		assertEquals(0, wheel.getPendingCount());
+		assertTrue(scheduler.getMappings().isEmpty());
+	}
+
+	@Test
+	public void stopKeepsMappingsUntilLeaseExpires() throws RouterException {
+		scheduler.add(HTTP);
+		scheduler.stop(false);
+		verify(routerMock, never()).removeMapping(any(PortMapping.class));
+		assertEquals(0, wheel.getPendingCount());
+		assertTrue(executor.isShutdown());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shortLeaseIsRejected() {
+		new LeaseRenewalScheduler(routerMock,
+				LeaseRenewalScheduler.MIN_LEASE_SECONDS - 1);
+	}
+
+	/**
+	 * @return the time of the wheel when the scheduler had the given number
+	 *         of successful renewals.
+	 */
+	private long advanceUntilRenewals(final int renewals) {
+		while (scheduler.getRenewals() < renewals) {
+			assertTrue("no renewal within five leases",
+					wheel.getElapsedMillis() < 5 * LEASE_SECONDS * 1000);
+			wheel.advance(LeaseRenewalScheduler.TICK_MILLIS,
+					TimeUnit.MILLISECONDS);
+		}
+		return wheel.getElapsedMillis();
+	}
+
+	private long advanceUntilFailures(final int failures) {
+		while (scheduler.getFailures() < failures) {
+			assertTrue("no failure within five leases",
+					wheel.getElapsedMillis() < 5 * LEASE_SECONDS * 1000);
+			wheel.advance(LeaseRenewalScheduler.TICK_MILLIS,
+					TimeUnit.MILLISECONDS);
+		}
+		return wheel.getElapsedMillis();
+	}
+
+	private static List<Integer> getExternalPorts(
+			final List<PortMapping> mappings) {
+		final Integer[] ports = new Integer[mappings.size()];
+		for (int i = 0; i < ports.length; i++) {
+			ports[i] = mappings.get(i).getExternalPort();
+		}
+		return Arrays.asList(ports);
+	}
+
+	/**
+	 * Runs the renewals in the thread advancing the wheel.
+	 */
+	private static class DirectExecutorService extends AbstractExecutorService {
+		private volatile boolean shutdown;
+
+		@Override
+		public void execute(final Runnable command) {
+			command.run();
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+			return shutdown;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.chris.portmapper.router;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.chris.portmapper.igd.IgdSimulator;
+import org.chris.portmapper.igd.Latency;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.PortMappingKey;
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.router.FanOutResult.Outcome;
+import org.chris.portmapper.router.weupnp.WeUPnPRouterFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link RouterFanOut} against two {@link IgdSimulator}s.
+ *
+ * @author chris
+ */
+public class TestRouterFanOut {
+
+	private static final PortMapping HTTP = new PortMapping(Protocol.TCP,
+			null, 8080, "192.168.1.5", 80, "http");
+	private static final PortMapping DNS = new PortMapping(Protocol.UDP,
+			null, 5353, "192.168.1.5", 53, "dns");
+
+	private final IgdSimulator first = new IgdSimulator();
+	private final IgdSimulator second = new IgdSimulator();
+	private IRouter firstRouter;
+	private IRouter secondRouter;
+
+	@Before
+	public void setUp() throws Exception {
+		first.start();
+		second.start();
+		final WeUPnPRouterFactory factory = new WeUPnPRouterFactory();
+		firstRouter = factory.connect(first.getLocationUrl());
+		secondRouter = factory.connect(second.getLocationUrl());
+	}
+
+	@After
+	public void tearDown() {
+		firstRouter.disconnect();
+		secondRouter.disconnect();
+		first.stop();
+		second.stop();
+	}
+
+	@Test
+	public void mappingsAreAddedToAndRemovedFromAllRouters() {
+		final RouterFanOut fanOut = new RouterFanOut(Arrays.asList(
+				firstRouter, secondRouter), 2);
+		FanOutResult result = fanOut.addPortMappings(
+				Arrays.asList(HTTP, DNS), 10, TimeUnit.SECONDS);
+		assertTrue(result.toString(), result.isSuccessful());
+		assertEquals(2, result.getMappings().size());
+		assertTrue(first.containsMapping("TCP", 8080));
+		assertTrue(first.containsMapping("UDP", 5353));
+		assertTrue(second.containsMapping("TCP", 8080));
+		assertTrue(second.containsMapping("UDP", 5353));
+
+		result = fanOut.removePortMappings(Arrays.asList(HTTP), 10,
+				TimeUnit.SECONDS);
+		assertTrue(result.toString(), result.isSuccessful());
+		assertFalse(first.containsMapping("TCP", 8080));
+		assertFalse(second.containsMapping("TCP", 8080));
+		assertTrue(second.containsMapping("UDP", 5353));
+	}
+
+	@Test
+	public void failureOfOneRouterIsReported() {
+		second.injectError("AddPortMapping", 718, 1);
+		final FanOutResult result = new RouterFanOut(Arrays.asList(
+				firstRouter, secondRouter)).addPortMappings(
+				Arrays.asList(HTTP), 10, TimeUnit.SECONDS);
+		final PortMappingKey key = PortMappingKey.of(HTTP);
+		assertFalse(result.isSuccessful());
+		assertEquals(Arrays.asList(firstRouter), result.getSuccessfulRouters());
+		assertEquals(Outcome.SUCCEEDED, result.getOutcome(firstRouter, key));
+		assertEquals(Outcome.FAILED, result.getOutcome(secondRouter, key));
+		assertNotNull(result.getFailure(secondRouter, key));
+		assertNull(result.getFailure(firstRouter, key));
+		assertTrue(first.containsMapping("TCP", 8080));
+	}
+
+	@Test
+	public void slowRouterTimesOutWithoutDelayingOthers() {
+		second.setLatency("AddPortMapping", Latency.constant(2000));
+		final List<IRouter> routers = Arrays.asList(firstRouter, secondRouter);
+		final long start = System.currentTimeMillis();
+		final FanOutResult result = new RouterFanOut(routers).addPortMappings(
+				Arrays.asList(HTTP, DNS), 500, TimeUnit.MILLISECONDS);
+		final long duration = System.currentTimeMillis() - start;
+		assertTrue("took " + duration + " ms", duration < 1500);
+		assertEquals(Arrays.asList(firstRouter), result.getSuccessfulRouters());
+		assertEquals(Outcome.TIMED_OUT,
+				result.getOutcome(secondRouter, PortMappingKey.of(DNS)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void concurrencyMustBePositive() {
+		new RouterFanOut(Arrays.asList(firstRouter), 0);
+	}
+}
@@ -1,8 +1,12 @@
 package org.chris.portmapper.router.sbbi;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import net.sbbi.upnp.impls.InternetGatewayDevice;
 import net.sbbi.upnp.messages.ActionResponse;
@@ -15,6 +19,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
@@ -90,6 +96,52 @@ public class TestPortMappingExtractor {
 		assertNumMappingsFound(1, 0);
 	}
 
+	@Test
+	public void mappingsAfterEndOfTableIgnored() throws RouterException,
+			IOException, UPNPResponseException {
+		simulateMapping(0);
+		simulateUPNPException(1, 714);
+		simulateMapping(2);
+		simulateMapping(3);
+		assertEquals(1, portMappingExtractor.getPortMappings().size());
+		assertNoWarningOrErrorLogged();
+		assertNumMappingsFound(1, 0);
+	}
+
+	@Test(timeout = 10000)
+	public void outOfOrderCompletion() throws RouterException, IOException,
+			UPNPResponseException {
+		portMappingExtractor = new PortMappingExtractor(routerMock, 10, 3,
+				loggerMock);
+		final CountDownLatch laterEntriesDone = new CountDownLatch(2);
+		final ActionResponse firstResponse = createMappingResponse(100);
+		when(routerMock.getGenericPortMappingEntry(0)).thenAnswer(
+				new Answer<ActionResponse>() {
+					@Override
+					public ActionResponse answer(
+							final InvocationOnMock invocation)
+							throws InterruptedException {
+						// Entry 0 completes after entries 1 and 2.
+						laterEntriesDone.await(5, TimeUnit.SECONDS);
+						return firstResponse;
+					}
+				});
+		simulateMappingCountingDown(1, 101, laterEntriesDone);
+		simulateMappingCountingDown(2, 102, laterEntriesDone);
+		simulateUPNPException(3, 713);
+
+		final List<Integer> externalPorts = new ArrayList<>();
+		for (final PortMapping mapping : portMappingExtractor
+				.getPortMappings()) {
+			externalPorts.add(mapping.getExternalPort());
+		}
+
+		assertEquals(0, laterEntriesDone.getCount());
+		assertEquals(Arrays.asList(100, 101, 102), externalPorts);
+		assertNoWarningOrErrorLogged();
+		assertNumMappingsFound(3, 0);
+	}
+
 	private void assertNumMappingsFound(final int numFound, final int numNull) {
 		verify(loggerMock).info(
 				"Found " + numFound + " mappings, " + numNull
@@ -105,6 +157,27 @@ public class TestPortMappingExtractor {
 
 	private void simulateMapping(final int mappingEntry) throws IOException,
 			UPNPResponseException {
+		final ActionResponse response = createMappingResponse(2);
+		when(routerMock.getGenericPortMappingEntry(mappingEntry)).thenReturn(
+				response);
+	}
+
+	private void simulateMappingCountingDown(final int mappingEntry,
+			final int externalPort, final CountDownLatch latch)
+			throws IOException, UPNPResponseException {
+		final ActionResponse response = createMappingResponse(externalPort);
+		when(routerMock.getGenericPortMappingEntry(mappingEntry)).thenAnswer(
+				new Answer<ActionResponse>() {
+					@Override
+					public ActionResponse answer(
+							final InvocationOnMock invocation) {
+						latch.countDown();
+						return response;
+					}
+				});
+	}
+
+	private ActionResponse createMappingResponse(final int externalPort) {
 		final ActionResponse response = mock(ActionResponse.class);
 		when(response.getOutActionArgumentNames()).thenReturn(
 				new HashSet<Object>(Arrays.asList(
@@ -121,7 +194,7 @@ public class TestPortMappingExtractor {
 				.thenReturn("1");
 		when(
 				response.getOutActionArgumentValue(PortMapping.MAPPING_ENTRY_EXTERNAL_PORT))
-				.thenReturn("2");
+				.thenReturn(Integer.toString(externalPort));
 		when(
 				response.getOutActionArgumentValue(PortMapping.MAPPING_ENTRY_INTERNAL_CLIENT))
 				.thenReturn("internal");
@@ -140,8 +213,7 @@ public class TestPortMappingExtractor {
 		when(
 				response.getOutActionArgumentValue(PortMapping.MAPPING_ENTRY_REMOTE_HOST))
 				.thenReturn("remote");
-		when(routerMock.getGenericPortMappingEntry(mappingEntry)).thenReturn(
-				response);
+		return response;
 	}
 
 	private void simulateUPNPException(final int mappingEntry,
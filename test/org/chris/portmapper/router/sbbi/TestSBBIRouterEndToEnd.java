@@ -0,0 +1,99 @@
+package org.chris.portmapper.router.sbbi;
+
+import java.util.Collection;
+
+import org.chris.portmapper.igd.IgdSimulator;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.RouterException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link SBBIRouterFactory} and {@link SBBIRouter} against an
+ * {@link IgdSimulator}. The SBBI library only discovers devices with
+ * multicast, so the router is connected with its location url.
+ *
+ * @author chris
+ */
+public class TestSBBIRouterEndToEnd {
+
+	private final IgdSimulator simulator = new IgdSimulator();
+	private IRouter router;
+
+	@Before
+	public void setUp() throws Exception {
+		simulator.setSeed(42);
+		simulator.fill(3);
+		simulator.start();
+		System.setProperty("portmapper.locationUrl",
+				simulator.getLocationUrl());
+		router = new SBBIRouterFactory().findRouters().get(0);
+	}
+
+	@After
+	public void tearDown() {
+		if (router != null) {
+			router.disconnect();
+		}
+		simulator.stop();
+		System.clearProperty("portmapper.locationUrl");
+	}
+
+	@Test
+	public void routerHasNameAndExternalIPAddress() throws RouterException {
+		assertEquals(simulator.getFriendlyName(), router.getName());
+		assertEquals(simulator.getExternalIPAddress(),
+				router.getExternalIPAddress());
+	}
+
+	@Test
+	public void mappingsAreListedAndRemoved() throws RouterException {
+		final Collection<PortMapping> mappings = router.getPortMappings();
+		assertEquals(3, mappings.size());
+
+		router.removePortMapping(Protocol.TCP, null, 10001);
+		assertFalse(simulator.containsMapping("TCP", 10001));
+		assertEquals(2, router.getPortMappings().size());
+	}
+
+	/**
+	 * The SBBI library does not escape the arguments of an action, the
+	 * description is only transferred correctly with entity encoding.
+	 */
+	@Test
+	public void addedMappingKeepsDescription() throws RouterException {
+		assertTrue(((SBBIRouter) router).isUseEntityEncoding());
+		router.addPortMapping(new PortMapping(Protocol.UDP, null, 5353,
+				"192.168.1.5", 5353, "Service & more"));
+		assertTrue(simulator.containsMapping("UDP", 5353));
+		assertEquals("Service & more", getDescription(5353));
+	}
+
+	@Test
+	public void errorOfRouterIsReported() {
+		simulator.injectError("GetExternalIPAddress",
+				IgdSimulator.ERROR_INVALID_ACTION, 1);
+		try {
+			router.getExternalIPAddress();
+			fail("Expected RouterException");
+		} catch (final RouterException e) {
+			// expected
+		}
+	}
+
+	private String getDescription(final int externalPort)
+			throws RouterException {
+		for (final PortMapping mapping : router.getPortMappings()) {
+			if (mapping.getExternalPort() == externalPort) {
+				return mapping.getDescription();
+			}
+		}
+		fail("No mapping for port " + externalPort);
+		return null;
+	}
+}
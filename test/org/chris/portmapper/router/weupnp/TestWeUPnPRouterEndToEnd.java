@@ -0,0 +1,365 @@
+package org.chris.portmapper.router.weupnp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.chris.portmapper.igd.IgdSimulator;
+import org.chris.portmapper.igd.Latency;
+import org.chris.portmapper.model.PortMapping;
+import org.chris.portmapper.model.Protocol;
+import org.chris.portmapper.router.IRouter;
+import org.chris.portmapper.router.RouterException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wetorrent.upnp.ActionStats;
+import org.wetorrent.upnp.GatewayDevice;
+import org.wetorrent.upnp.GatewayDeviceCache;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link WeUPnPRouterFactory} and {@link WeUPnPRouter} against an
+ * {@link IgdSimulator}.
+ *
+ * @author chris
+ */
+public class TestWeUPnPRouterEndToEnd {
+
+	private static final String SERVICE_TYPE = "urn:schemas-upnp-org:service:WANIPConnection:1";
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final IgdSimulator simulator = new IgdSimulator();
+	private final List<IRouter> routers = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		simulator.setSeed(42);
+		simulator.fill(3);
+	}
+
+	@After
+	public void tearDown() {
+		for (final IRouter router : routers) {
+			router.disconnect();
+		}
+		simulator.stop();
+		System.clearProperty("portmapper.discovery.address");
+		System.clearProperty("portmapper.locationUrl");
+	}
+
+	@Test
+	public void discoveredRouterManagesMappings() throws Exception {
+		simulator.start();
+		System.setProperty("portmapper.discovery.address", "127.0.0.1:"
+				+ simulator.getSsdpAddress().getPort());
+		routers.addAll(new WeUPnPRouterFactory().findRouters());
+		assertEquals(1, routers.size());
+		final IRouter router = routers.get(0);
+
+		assertEquals(simulator.getFriendlyName(), router.getName());
+		assertEquals(simulator.getExternalIPAddress(),
+				router.getExternalIPAddress());
+		assertEquals(3, router.getPortMappings().size());
+
+		final PortMapping mapping = new PortMapping(Protocol.UDP, null, 5353,
+				"192.168.1.5", 5353, "Service & more");
+		router.addPortMapping(mapping);
+		assertTrue(simulator.containsMapping("UDP", 5353));
+		final Collection<PortMapping> mappings = router.getPortMappings();
+		assertEquals(4, mappings.size());
+		assertTrue(containsDescription(mappings, "Service & more"));
+
+		router.removeMapping(mapping);
+		assertFalse(simulator.containsMapping("UDP", 5353));
+	}
+
+	@Test
+	public void igdV2ListsMappingsWithOneAction() throws Exception {
+		simulator.setIgdVersion(2);
+		simulator.fill(20);
+		final IRouter router = connect();
+
+		assertEquals(20, router.getPortMappings().size());
+		assertTrue(simulator.getRequestCount("GetListOfPortMappings") > 0);
+		assertEquals(0, simulator.getRequestCount("GetGenericPortMappingEntry"));
+	}
+
+	@Test
+	public void igdV2ListsAllMappingsOfPortOnPageBoundary() throws Exception {
+		simulator.setIgdVersion(2);
+		simulator.setListPageSize(3);
+		// the first page ends within the mappings of port 10001
+		simulator.addMapping("TCP", "198.51.100.1", 10000, "192.168.1.5", 80,
+				"Other remote host");
+		simulator.addMapping("TCP", "198.51.100.1", 10001, "192.168.1.5", 80,
+				"Other remote host");
+		final IRouter router = connect();
+
+		assertEquals(5, router.getPortMappings().size());
+		assertEquals(0, simulator.getRequestCount("GetGenericPortMappingEntry"));
+		final ActionStats listStats = ((WeUPnPRouter) router)
+				.getProtocolMetrics().get("GetListOfPortMappings");
+		assertEquals("end of listing is no error", 0, listStats.getErrors());
+	}
+
+	@Test
+	public void igdV2FallsBackIfPortHasMoreMappingsThanPage()
+			throws Exception {
+		simulator.setIgdVersion(2);
+		simulator.setListPageSize(2);
+		for (final String remoteHost : new String[] { "198.51.100.1",
+				"198.51.100.2" }) {
+			simulator.addMapping("TCP", remoteHost, 10000, "192.168.1.5", 80,
+					"Other remote host");
+		}
+		final IRouter router = connect();
+
+		assertEquals(5, router.getPortMappings().size());
+		assertTrue(simulator.getRequestCount("GetGenericPortMappingEntry") > 0);
+	}
+
+	@Test
+	public void mappingsAreFetchedWithWindow() throws Exception {
+		simulator.fill(20);
+		simulator.setLatency("GetGenericPortMappingEntry",
+				Latency.uniform(0, 5));
+		final IRouter router = connect();
+
+		assertEquals(20, router.getPortMappings().size());
+		assertEquals(1,
+				simulator.getRequestCount("GetPortMappingNumberOfEntries"));
+		// one more request checks for entries added in the meantime
+		assertEquals(21,
+				simulator.getRequestCount("GetGenericPortMappingEntry"));
+	}
+
+	@Test
+	public void mappingsAreFetchedOneByOne() throws Exception {
+		simulator.fill(20);
+		final WeUPnPRouter router = (WeUPnPRouter) connect();
+		router.setFetchWindow(1);
+
+		assertEquals(20, router.getPortMappings().size());
+		assertEquals(0,
+				simulator.getRequestCount("GetPortMappingNumberOfEntries"));
+	}
+
+	@Test
+	public void negativeNumberOfEntriesFetchesOneByOne() throws Exception {
+		simulator.setReportedNumberOfEntries(-1);
+		final IRouter router = connect();
+
+		assertEquals(3, router.getPortMappings().size());
+		assertEquals(4,
+				simulator.getRequestCount("GetGenericPortMappingEntry"));
+	}
+
+	@Test
+	public void hugeNumberOfEntriesIsNotRequestedAtOnce() throws Exception {
+		simulator.setReportedNumberOfEntries(Integer.MAX_VALUE);
+		final WeUPnPRouter router = (WeUPnPRouter) connect();
+
+		assertEquals(3, router.getPortMappings().size());
+		// only the window after the end of the table was requested
+		final int requests = simulator
+				.getRequestCount("GetGenericPortMappingEntry");
+		assertTrue("requested " + requests + " entries",
+				requests <= 3 + router.getFetchWindow());
+	}
+
+	@Test
+	public void numberOfMappingsIsLimited() throws Exception {
+		simulator.setTableSize(WeUPnPRouter.MAX_NUM_PORTMAPPINGS + 10);
+		simulator.fill(WeUPnPRouter.MAX_NUM_PORTMAPPINGS + 7);
+		final IRouter router = connect();
+
+		assertEquals(WeUPnPRouter.MAX_NUM_PORTMAPPINGS,
+				router.getPortMappings().size());
+		assertEquals(WeUPnPRouter.MAX_NUM_PORTMAPPINGS,
+				simulator.getRequestCount("GetGenericPortMappingEntry"));
+	}
+
+	@Test
+	public void shrunkTableEndsListing() throws Exception {
+		simulator.injectError("GetGenericPortMappingEntry",
+				IgdSimulator.ERROR_SPECIFIED_ARRAY_INDEX_INVALID, 1);
+		final IRouter router = connect();
+
+		assertEquals(0, router.getPortMappings().size());
+	}
+
+	@Test(expected = RouterException.class)
+	public void errorBeforeEndOfTableIsReported() throws Exception {
+		simulator.injectError("GetGenericPortMappingEntry", 501, 1);
+		connect().getPortMappings();
+	}
+
+	@Test
+	public void quirksDoNotBreakListing() throws Exception {
+		simulator.setCloseConnections(true);
+		simulator.setChunkedResponses(true);
+		simulator.setNumberOfEntriesSupported(false);
+		simulator.setLatency(IgdSimulator.ALL_ACTIONS, Latency.uniform(0, 5));
+		final IRouter router = connect();
+
+		assertEquals(3, router.getPortMappings().size());
+	}
+
+	@Test
+	public void conflictingMappingIsRejected() throws Exception {
+		simulator.addMapping("TCP", 8080, "192.168.1.99", 80, "Other host");
+		final IRouter router = connect();
+		try {
+			router.addPortMapping(new PortMapping(Protocol.TCP, null, 8080,
+					"192.168.1.5", 80, "Web server"));
+			fail("Expected RouterException");
+		} catch (final RouterException e) {
+			// expected
+		}
+		assertEquals(1, simulator.getRequestCount("AddPortMapping"));
+	}
+
+	@Test
+	public void fullTableIsReported() throws Exception {
+		simulator.setTableSize(3);
+		final IRouter router = connect();
+		try {
+			router.addPortMapping(new PortMapping(Protocol.TCP, null, 8080,
+					"192.168.1.5", 80, "Web server"));
+			fail("Expected RouterException");
+		} catch (final RouterException e) {
+			// expected
+		}
+		assertEquals(3, simulator.getMappingCount());
+	}
+
+	@Test(expected = RouterException.class)
+	public void injectedHttpErrorIsReported() throws Exception {
+		simulator.injectHttpStatus("GetExternalIPAddress", 503, 1);
+		connect().getExternalIPAddress();
+	}
+
+	@Test
+	public void cachedRouterIsUsedWithoutDiscovery() throws Exception {
+		discover();
+		assertEquals(1, simulator.getRequestCount(IgdSimulator.SEARCH));
+		assertEquals(1, getCache().load().size());
+		final int probes = simulator.getRequestCount("GetStatusInfo");
+
+		discover();
+		assertEquals(1, simulator.getRequestCount(IgdSimulator.SEARCH));
+		assertEquals(probes + 1, simulator.getRequestCount("GetStatusInfo"));
+		assertEquals(simulator.getFriendlyName(), routers.get(1).getName());
+	}
+
+	@Test
+	public void staleCachedRouterIsSkipped() throws Exception {
+		discover();
+		final List<GatewayDevice> devices = new ArrayList<>(getCache().load());
+		try (ServerSocket closed = new ServerSocket(0, 1,
+				InetAddress.getByName("127.0.0.1"))) {
+			devices.add(0, createStaleDevice("uuid:stale", closed));
+		}
+		getCache().store(devices);
+
+		discover();
+		assertEquals(2, routers.size());
+		assertEquals(simulator.getFriendlyName(), routers.get(1).getName());
+		assertEquals(1, simulator.getRequestCount(IgdSimulator.SEARCH));
+	}
+
+	@Test
+	public void staleCacheStartsDiscovery() throws Exception {
+		simulator.start();
+		try (ServerSocket closed = new ServerSocket(0, 1,
+				InetAddress.getByName("127.0.0.1"))) {
+			getCache().store(
+					Arrays.asList(createStaleDevice("uuid:stale", closed)));
+		}
+
+		discover();
+		assertEquals(1, simulator.getRequestCount(IgdSimulator.SEARCH));
+		final List<GatewayDevice> cached = getCache().load();
+		assertEquals(1, cached.size());
+		assertEquals(simulator.getFriendlyName(), cached.get(0)
+				.getFriendlyName());
+	}
+
+	@Test
+	public void cachedRoutersAreProbedConcurrently() throws Exception {
+		simulator.start();
+		// accepts connections into the backlog but never answers
+		try (ServerSocket silent = new ServerSocket(0, 10,
+				InetAddress.getByName("127.0.0.1"))) {
+			getCache().store(
+					Arrays.asList(createStaleDevice("uuid:silent-1", silent),
+							createStaleDevice("uuid:silent-2", silent),
+							createStaleDevice("uuid:silent-3", silent)));
+			final long start = System.currentTimeMillis();
+			discover();
+			final long duration = System.currentTimeMillis() - start;
+			assertTrue("took " + duration + " ms", duration < 3500);
+		}
+		assertEquals(1, simulator.getRequestCount(IgdSimulator.SEARCH));
+	}
+
+	/**
+	 * Find the simulator with a factory that caches the devices.
+	 */
+	private void discover() throws IOException, RouterException {
+		simulator.start();
+		System.setProperty("portmapper.discovery.address", "127.0.0.1:"
+				+ simulator.getSsdpAddress().getPort());
+		final WeUPnPRouterFactory factory = new WeUPnPRouterFactory();
+		factory.setConfigDirectory(folder.getRoot());
+		final List<IRouter> found = factory.findRouters();
+		assertEquals(1, found.size());
+		routers.addAll(found);
+	}
+
+	private GatewayDeviceCache getCache() {
+		return new GatewayDeviceCache(new File(folder.getRoot(),
+				"weupnp-devices.properties"));
+	}
+
+	private static GatewayDevice createStaleDevice(final String udn,
+			final ServerSocket socket) {
+		final String base = "http://127.0.0.1:" + socket.getLocalPort();
+		final GatewayDevice device = new GatewayDevice();
+		device.setUDN(udn);
+		device.setLocation(base + "/" + udn + ".xml");
+		device.setServiceType(SERVICE_TYPE);
+		device.setControlURL(base + "/ctl");
+		return device;
+	}
+
+	private IRouter connect() throws IOException, RouterException {
+		simulator.start();
+		System.setProperty("portmapper.locationUrl",
+				simulator.getLocationUrl());
+		routers.addAll(new WeUPnPRouterFactory().findRouters());
+		assertEquals(1, routers.size());
+		return routers.get(0);
+	}
+
+	private static boolean containsDescription(
+			final Collection<PortMapping> mappings, final String description) {
+		for (final PortMapping mapping : mappings) {
+			if (description.equals(mapping.getDescription())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,57 @@
+package org.chris.portmapper.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link TimingWheel} whose time only passes when the test calls
+ * {@link #advance(long, TimeUnit)}. The worker thread is never started.
+ *
+ * @author chris
+ */
+public class ManualTimingWheel extends TimingWheel {
+
+	private final long tickNanos;
+	private long nanos;
+
+	public ManualTimingWheel(final long tickDuration, final TimeUnit unit,
+			final Executor executor) {
+		super(tickDuration, unit, 512, executor, new NamedThreadFactory(
+				"manual-wheel"));
+		this.tickNanos = unit.toNanos(tickDuration);
+	}
+
+	@Override
+	public synchronized void start() {
+		// time is advanced by the test
+	}
+
+	/**
+	 * Let the given time pass tick by tick and run the expired tasks.
+	 *
+	 * @return the number of expired tasks.
+	 */
+	public int advance(final long duration, final TimeUnit unit) {
+		int expired = 0;
+		for (long ticks = unit.toNanos(duration) / tickNanos; ticks > 0; ticks--) {
+			synchronized (this) {
+				nanos += tickNanos;
+			}
+			expired += advance();
+		}
+		return expired;
+	}
+
+	/**
+	 * @return the time that passed since the wheel was created in
+	 *         milliseconds.
+	 */
+	public synchronized long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	@Override
+	protected synchronized long nanoTime() {
+		return nanos;
+	}
+}
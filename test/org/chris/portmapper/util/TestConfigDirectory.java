@@ -0,0 +1,74 @@
+package org.chris.portmapper.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link ConfigDirectory}.
+ *
+ * @author chris
+ */
+public class TestConfigDirectory {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private String userHome;
+	private String osName;
+
+	@Before
+	public void setUp() {
+		userHome = System.getProperty("user.home");
+		osName = System.getProperty("os.name");
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty(ConfigDirectory.CONFIG_DIR_PROPERTY_NAME);
+		System.setProperty("user.home", userHome);
+		System.setProperty("os.name", osName);
+	}
+
+	@Test
+	public void customDirectoryIsUsed() throws IOException {
+		final File dir = folder.newFolder("custom");
+		System.setProperty(ConfigDirectory.CONFIG_DIR_PROPERTY_NAME,
+				dir.getPath());
+		assertEquals(dir, ConfigDirectory.getDirectory());
+	}
+
+	@Test(expected = IOException.class)
+	public void missingCustomDirectoryIsRejected() throws IOException {
+		System.setProperty(ConfigDirectory.CONFIG_DIR_PROPERTY_NAME, new File(
+				folder.getRoot(), "missing").getPath());
+		ConfigDirectory.getDirectory();
+	}
+
+	@Test(expected = IOException.class)
+	public void customFileIsRejected() throws IOException {
+		System.setProperty(ConfigDirectory.CONFIG_DIR_PROPERTY_NAME, folder
+				.newFile("settings.xml").getPath());
+		ConfigDirectory.getDirectory();
+	}
+
+	@Test
+	public void defaultDirectoryIsInUserHome() {
+		System.setProperty("user.home", folder.getRoot().getPath());
+		System.setProperty("os.name", "Linux");
+		assertEquals(new File(folder.getRoot(), ".PortMapper"),
+				ConfigDirectory.getDefaultDirectory());
+
+		System.setProperty("os.name", "Mac OS X");
+		assertEquals(new File(folder.getRoot(),
+				"Library/Application Support/PortMapper"),
+				ConfigDirectory.getDefaultDirectory());
+	}
+}
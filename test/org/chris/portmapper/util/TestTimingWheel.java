@@ -0,0 +1,124 @@
+package org.chris.portmapper.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link TimingWheel}. The wheel is advanced by the test with a
+ * fixed clock, the worker thread is not started.
+ *
+ * @author chris
+ */
+public class TestTimingWheel {
+
+	private static final int WHEEL_SIZE = 8;
+
+	private final List<String> executed = new ArrayList<>();
+	private TimingWheel wheel;
+
+	@Before
+	public void setUp() {
+		final Executor directExecutor = new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				command.run();
+			}
+		};
+		wheel = new TimingWheel(1, TimeUnit.SECONDS, WHEEL_SIZE,
+				directExecutor, new NamedThreadFactory("test-wheel")) {
+			@Override
+			protected long nanoTime() {
+				return 0;
+			}
+		};
+	}
+
+	@Test
+	public void taskRunsAtItsTick() {
+		wheel.schedule(task("a"), 3, TimeUnit.SECONDS);
+		assertEquals(0, wheel.advance());
+		assertEquals(0, wheel.advance());
+		assertEquals(1, wheel.advance());
+		assertEquals(1, executed.size());
+		assertEquals(0, wheel.getPendingCount());
+	}
+
+	@Test
+	public void taskBeyondOneRotationWaitsForItsRound() {
+		wheel.schedule(task("late"), WHEEL_SIZE + 2, TimeUnit.SECONDS);
+		wheel.schedule(task("early"), 2, TimeUnit.SECONDS);
+		advance(2);
+		assertEquals(1, executed.size());
+		assertEquals("early", executed.get(0));
+		advance(WHEEL_SIZE - 1);
+		assertEquals(1, executed.size());
+		advance(1);
+		assertEquals(2, executed.size());
+		assertEquals("late", executed.get(1));
+	}
+
+	@Test
+	public void delayIsRoundedUpToNextTick() {
+		wheel.schedule(task("a"), 1500, TimeUnit.MILLISECONDS);
+		advance(1);
+		assertTrue(executed.isEmpty());
+		advance(1);
+		assertEquals(1, executed.size());
+	}
+
+	@Test
+	public void zeroDelayRunsAtNextTick() {
+		wheel.schedule(task("a"), 0, TimeUnit.SECONDS);
+		advance(1);
+		assertEquals(1, executed.size());
+	}
+
+	@Test
+	public void cancelledTaskDoesNotRun() {
+		final TimingWheel.Timeout timeout = wheel.schedule(task("a"), 2,
+				TimeUnit.SECONDS);
+		assertTrue(timeout.cancel());
+		advance(WHEEL_SIZE * 2);
+		assertTrue(executed.isEmpty());
+		assertFalse(timeout.isExpired());
+	}
+
+	@Test
+	public void expiredTaskCannotBeCancelled() {
+		final TimingWheel.Timeout timeout = wheel.schedule(task("a"), 1,
+				TimeUnit.SECONDS);
+		advance(1);
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+	}
+
+	@Test
+	public void stopReturnsPendingTasks() {
+		wheel.schedule(task("a"), 1, TimeUnit.SECONDS);
+		wheel.schedule(task("b"), 20, TimeUnit.SECONDS);
+		assertEquals(2, wheel.stop().size());
+		assertEquals(0, wheel.getPendingCount());
+	}
+
+	private void advance(final int ticks) {
+		for (int i = 0; i < ticks; i++) {
+			wheel.advance();
+		}
+	}
+
+	private Runnable task(final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				executed.add(name);
+			}
+		};
+	}
+}
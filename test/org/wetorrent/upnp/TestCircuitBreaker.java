@@ -0,0 +1,71 @@
+package org.wetorrent.upnp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link CircuitBreaker}.
+ *
+ * @author chris
+ */
+public class TestCircuitBreaker {
+
+	private static final long OPEN_MILLIS = 50;
+
+	private CircuitBreaker circuitBreaker;
+
+	@Before
+	public void setUp() {
+		circuitBreaker = new CircuitBreaker(3, OPEN_MILLIS);
+	}
+
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordFailure();
+		assertTrue(circuitBreaker.allowRequest());
+		circuitBreaker.recordFailure();
+		assertTrue(circuitBreaker.isOpen());
+		assertFalse(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void successResetsFailures() {
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordSuccess();
+		circuitBreaker.recordFailure();
+		assertFalse(circuitBreaker.isOpen());
+		assertEquals(1, circuitBreaker.getConsecutiveFailures());
+	}
+
+	@Test
+	public void singleTrialAfterPause() throws InterruptedException {
+		openCircuit();
+		Thread.sleep(OPEN_MILLIS + 10);
+		assertTrue(circuitBreaker.allowRequest());
+		assertFalse(circuitBreaker.allowRequest());
+		circuitBreaker.recordSuccess();
+		assertFalse(circuitBreaker.isOpen());
+		assertTrue(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void failedTrialOpensAgain() throws InterruptedException {
+		openCircuit();
+		Thread.sleep(OPEN_MILLIS + 10);
+		assertTrue(circuitBreaker.allowRequest());
+		circuitBreaker.recordFailure();
+		assertTrue(circuitBreaker.isOpen());
+		assertFalse(circuitBreaker.allowRequest());
+	}
+
+	private void openCircuit() {
+		for (int i = 0; i < 3; i++) {
+			circuitBreaker.recordFailure();
+		}
+		assertTrue(circuitBreaker.isOpen());
+	}
+}
@@ -0,0 +1,65 @@
+package org.wetorrent.upnp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link Deadline}.
+ *
+ * @author chris
+ */
+@SuppressWarnings("try")
+public class TestDeadline {
+
+	@Test
+	public void noDeadline() throws DeadlineExceededException {
+		assertNull(Deadline.current());
+		assertEquals(500, Deadline.timeoutMillis(500));
+		assertEquals(0, Deadline.timeoutMillis(0));
+	}
+
+	@Test
+	public void scopeRestoresPreviousDeadline() {
+		final Deadline outer = Deadline.after(10, TimeUnit.SECONDS);
+		try (Deadline.Scope outerScope = outer.enter()) {
+			final Deadline inner = Deadline.after(1, TimeUnit.SECONDS);
+			try (Deadline.Scope innerScope = inner.enter()) {
+				assertSame(inner, Deadline.current());
+			}
+			assertSame(outer, Deadline.current());
+		}
+		assertNull(Deadline.current());
+	}
+
+	@Test
+	public void laterDeadlineDoesNotExtend() {
+		final Deadline outer = Deadline.after(1, TimeUnit.SECONDS);
+		try (Deadline.Scope outerScope = outer.enter()) {
+			try (Deadline.Scope innerScope = Deadline.within(10,
+					TimeUnit.SECONDS)) {
+				assertSame(outer, Deadline.current());
+			}
+		}
+	}
+
+	@Test
+	public void timeoutShortenedToDeadline() throws DeadlineExceededException {
+		try (Deadline.Scope scope = Deadline.within(1, TimeUnit.SECONDS)) {
+			final int timeout = Deadline.timeoutMillis(0);
+			assertTrue(timeout > 0 && timeout <= 1000);
+			assertEquals(100, Deadline.timeoutMillis(100));
+			assertTrue(Deadline.timeoutMillis(5000) <= 1000);
+		}
+	}
+
+	@Test(expected = DeadlineExceededException.class)
+	public void expiredDeadline() throws DeadlineExceededException {
+		try (Deadline.Scope scope = Deadline.within(-1, TimeUnit.SECONDS)) {
+			assertTrue(Deadline.current().isExpired());
+			Deadline.timeoutMillis(100);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package org.wetorrent.upnp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the timeouts and the circuit breaker of {@link GatewayDevice} against
+ * a local stand-in for the control URL of a gateway.
+ *
+ * @author chris
+ */
+public class TestGatewayDevice {
+
+	private static final String SERVICE_TYPE = "urn:schemas-upnp-org:service:WANIPConnection:1";
+	private static final String RESPONSE = "<?xml version=\"1.0\"?>"
+			+ "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+			+ "<s:Body><u:GetExternalIPAddressResponse xmlns:u=\""
+			+ SERVICE_TYPE + "\">"
+			+ "<NewExternalIPAddress>203.0.113.7</NewExternalIPAddress>"
+			+ "</u:GetExternalIPAddressResponse></s:Body></s:Envelope>";
+
+	private final AtomicInteger slowResponses = new AtomicInteger();
+	private volatile long slowLatencyMillis;
+	private volatile int errorStatus;
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private HttpServer standIn;
+	private ExecutorService standInExecutor;
+	private GatewayDevice device;
+
+	@Before
+	public void setUp() throws IOException {
+		standIn = HttpServer.create(new InetSocketAddress(
+				InetAddress.getByName("127.0.0.1"), 0), 0);
+		standInExecutor = Executors.newCachedThreadPool();
+		standIn.setExecutor(standInExecutor);
+		standIn.createContext("/ctl", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				try (InputStream in = exchange.getRequestBody()) {
+					while (in.read() != -1) {
+						// read the request
+					}
+				}
+				requests.incrementAndGet();
+				if (errorStatus != 0) {
+					exchange.sendResponseHeaders(errorStatus, -1);
+					exchange.close();
+					return;
+				}
+				if (slowResponses.getAndDecrement() > 0) {
+					try {
+						Thread.sleep(slowLatencyMillis);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				final byte[] body = RESPONSE.getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				} catch (final IOException e) {
+					// the client gave up
+				}
+			}
+		});
+		standIn.start();
+
+		device = new GatewayDevice();
+		device.setServiceType(SERVICE_TYPE);
+		device.setControlURL("http://127.0.0.1:"
+				+ standIn.getAddress().getPort() + "/ctl");
+	}
+
+	@After
+	public void tearDown() {
+		device.closeConnections();
+		standIn.stop(0);
+		standInExecutor.shutdownNow();
+	}
+
+	@Test
+	public void waitingForConnectionDoesNotOpenCircuit() throws Exception {
+		device.getConnectionPool().setMaxConnectionsPerRoute(1);
+		slowResponses.set(1);
+		slowLatencyMillis = 1000;
+		final ExecutorService callers = Executors.newFixedThreadPool(9);
+		try {
+			// holds the only connection without a deadline
+			final Future<String> slowRequest = callers
+					.submit(new Callable<String>() {
+						@Override
+						public String call() throws WeUPnPException {
+							return device.getExternalIPAddress();
+						}
+					});
+			Thread.sleep(100);
+			final List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				results.add(callers.submit(new Callable<Boolean>() {
+					@Override
+					@SuppressWarnings("try")
+					public Boolean call() {
+						try (Deadline.Scope scope = Deadline.within(200,
+								TimeUnit.MILLISECONDS)) {
+							device.getExternalIPAddress();
+							return true;
+						} catch (final WeUPnPException e) {
+							return false;
+						}
+					}
+				}));
+			}
+			for (final Future<Boolean> result : results) {
+				assertFalse(result.get());
+			}
+			assertEquals("203.0.113.7", slowRequest.get());
+		} finally {
+			callers.shutdownNow();
+		}
+		assertFalse(device.getCircuitBreaker().isOpen());
+		assertEquals(0, device.getCircuitBreaker().getConsecutiveFailures());
+	}
+
+	@Test
+	public void timeoutGrowsAfterTimedOutRequest() throws Exception {
+		for (int i = 0; i < 8; i++) {
+			assertEquals("203.0.113.7", device.getExternalIPAddress());
+		}
+		final LatencyTracker latencies = device.getLatencyTracker();
+		assertEquals(LatencyTracker.MIN_TIMEOUT_MILLIS,
+				latencies.getTimeoutMillis());
+
+		slowResponses.set(1);
+		slowLatencyMillis = LatencyTracker.MIN_TIMEOUT_MILLIS + 500;
+		// the first attempt times out, the retry gets a longer timeout
+		assertEquals("203.0.113.7", device.getExternalIPAddress());
+		assertTrue(latencies.toString(),
+				latencies.getTimeoutMillis() > LatencyTracker.MIN_TIMEOUT_MILLIS);
+		assertEquals(0, device.getCircuitBreaker().getConsecutiveFailures());
+	}
+
+	@Test
+	public void serverErrorsOpenCircuit() throws Exception {
+		errorStatus = 503;
+		for (int i = 0; i < CircuitBreaker.DEFAULT_FAILURE_THRESHOLD; i++) {
+			assertFails();
+		}
+		assertTrue(device.getCircuitBreaker().isOpen());
+		assertEquals(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, requests.get());
+
+		// no request is sent while the circuit is open
+		assertFails();
+		assertEquals(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, requests.get());
+	}
+
+	@Test
+	public void clientErrorIsNoSuccess() throws Exception {
+		errorStatus = 503;
+		assertFails();
+		errorStatus = 404;
+		assertFails();
+		assertEquals(1, device.getCircuitBreaker().getConsecutiveFailures());
+		assertEquals(0, device.getLatencyTracker().getCount());
+
+		errorStatus = 0;
+		assertEquals("203.0.113.7", device.getExternalIPAddress());
+		assertEquals(0, device.getCircuitBreaker().getConsecutiveFailures());
+		assertEquals(1, device.getLatencyTracker().getCount());
+	}
+
+	private void assertFails() {
+		try {
+			device.getExternalIPAddress();
+			fail("expected WeUPnPException");
+		} catch (final WeUPnPException e) {
+			// expected
+		}
+	}
+}
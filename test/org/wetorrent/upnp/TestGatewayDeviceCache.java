@@ -0,0 +1,171 @@
+package org.wetorrent.upnp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link GatewayDeviceCache}.
+ *
+ * @author chris
+ */
+public class TestGatewayDeviceCache {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private GatewayDeviceCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new GatewayDeviceCache(new File(folder.getRoot(),
+				"config/devices.properties"));
+	}
+
+	@Test
+	public void missingCacheIsEmpty() {
+		assertTrue(cache.load().isEmpty());
+	}
+
+	@Test
+	public void devicesSurviveRoundTrip() throws IOException {
+		final GatewayDevice device = createDevice("uuid:router-1",
+				"http://192.168.1.1:49000/ctl");
+		device.setSt("urn:schemas-upnp-org:device:InternetGatewayDevice:1");
+		device.setUSN("uuid:router-1::upnp:rootdevice");
+		device.setServer("Linux UPnP/1.0 Router/1.0");
+		device.setURLBase("http://192.168.1.1:49000/");
+		device.setFriendlyName("Router & more");
+		device.setManufacturer("Vendor");
+		device.setModelDescription("Gateway");
+		device.setPresentationURL("http://192.168.1.1/");
+		device.setDeviceType("urn:schemas-upnp-org:device:WANConnectionDevice:1");
+		device.setDeviceTypeCIF("urn:schemas-upnp-org:device:WANDevice:1");
+		device.setServiceTypeCIF("urn:schemas-upnp-org:service:WANCommonInterfaceConfig:1");
+		device.setControlURLCIF("http://192.168.1.1:49000/cif");
+		device.setEventSubURL("http://192.168.1.1:49000/evt");
+		device.setEventSubURLCIF("http://192.168.1.1:49000/evt-cif");
+		device.setSCPDURL("http://192.168.1.1:49000/scpd.xml");
+		device.setSCPDURLCIF("http://192.168.1.1:49000/scpd-cif.xml");
+		device.setLocalAddress(InetAddress.getByName("192.168.1.23"));
+		cache.store(Collections.singletonList(device));
+
+		final List<GatewayDevice> loaded = cache.load();
+		assertEquals(1, loaded.size());
+		final GatewayDevice copy = loaded.get(0);
+		assertEquals(device.getLocation(), copy.getLocation());
+		assertEquals(device.getSt(), copy.getSt());
+		assertEquals(device.getUDN(), copy.getUDN());
+		assertEquals(device.getUSN(), copy.getUSN());
+		assertEquals(device.getServer(), copy.getServer());
+		assertEquals(device.getURLBase(), copy.getURLBase());
+		assertEquals(device.getFriendlyName(), copy.getFriendlyName());
+		assertEquals(device.getManufacturer(), copy.getManufacturer());
+		assertEquals(device.getModelDescription(), copy.getModelDescription());
+		assertEquals(device.getPresentationURL(), copy.getPresentationURL());
+		assertEquals(device.getDeviceType(), copy.getDeviceType());
+		assertEquals(device.getDeviceTypeCIF(), copy.getDeviceTypeCIF());
+		assertEquals(device.getServiceType(), copy.getServiceType());
+		assertEquals(device.getServiceTypeCIF(), copy.getServiceTypeCIF());
+		assertEquals(device.getControlURL(), copy.getControlURL());
+		assertEquals(device.getControlURLCIF(), copy.getControlURLCIF());
+		assertEquals(device.getEventSubURL(), copy.getEventSubURL());
+		assertEquals(device.getEventSubURLCIF(), copy.getEventSubURLCIF());
+		assertEquals(device.getSCPDURL(), copy.getSCPDURL());
+		assertEquals(device.getSCPDURLCIF(), copy.getSCPDURLCIF());
+		assertEquals(device.getLocalAddress(), copy.getLocalAddress());
+		assertFalse(new File(cache.getFile().getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void storeReplacesCachedDevices() throws IOException {
+		cache.store(Arrays.asList(
+				createDevice("uuid:old", "http://192.168.1.1/ctl"),
+				createDevice("uuid:other", "http://192.168.2.1/ctl")));
+		cache.store(Collections.singletonList(createDevice("uuid:new",
+				"http://192.168.1.1/ctl")));
+
+		final List<GatewayDevice> loaded = cache.load();
+		assertEquals(1, loaded.size());
+		assertEquals("uuid:new", loaded.get(0).getUDN());
+	}
+
+	@Test
+	public void devicesAreStoredOncePerUdn() throws IOException {
+		final GatewayDevice withoutUdn = createDevice(null,
+				"http://192.168.3.1/ctl");
+		cache.store(Arrays.asList(
+				createDevice("uuid:router", "http://192.168.1.1/ctl"),
+				createDevice("uuid:router", "http://192.168.1.1/ctl2"),
+				withoutUdn));
+
+		final List<GatewayDevice> loaded = cache.load();
+		assertEquals(2, loaded.size());
+		assertEquals("http://192.168.1.1/ctl2", loaded.get(0).getControlURL());
+		assertEquals(withoutUdn.getLocation(), loaded.get(1).getLocation());
+	}
+
+	@Test
+	public void devicesWithoutControlUrlAreNotStored() throws IOException {
+		cache.store(Arrays.asList(createDevice("uuid:incomplete", null),
+				createDevice("uuid:router", "http://192.168.1.1/ctl")));
+
+		final List<GatewayDevice> loaded = cache.load();
+		assertEquals(1, loaded.size());
+		assertEquals("uuid:router", loaded.get(0).getUDN());
+	}
+
+	@Test
+	public void incompleteEntriesAreSkipped() throws IOException {
+		write("device.0.location=http://192.168.1.1/desc.xml\n"
+				+ "device.0.serviceType=urn:schemas-upnp-org:service:WANIPConnection:1\n"
+				+ "device.1.location=http://192.168.2.1/desc.xml\n"
+				+ "device.1.serviceType=urn:schemas-upnp-org:service:WANIPConnection:1\n"
+				+ "device.1.controlURL=http://192.168.2.1/ctl\n"
+				+ "device.1.localAddress=not an address\n");
+
+		final List<GatewayDevice> loaded = cache.load();
+		assertEquals(1, loaded.size());
+		assertEquals("http://192.168.2.1/ctl", loaded.get(0).getControlURL());
+		assertNull(loaded.get(0).getLocalAddress());
+	}
+
+	@Test
+	public void unreadableCacheIsEmpty() throws IOException {
+		// an invalid unicode escape makes loading fail
+		write("device.0.location=\\uZZZZ\n");
+		assertTrue(cache.load().isEmpty());
+	}
+
+	private void write(final String content) throws IOException {
+		cache.getFile().getParentFile().mkdirs();
+		try (OutputStream out = Files.newOutputStream(cache.getFile()
+				.toPath())) {
+			out.write(content.getBytes(StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	private static GatewayDevice createDevice(final String udn,
+			final String controlUrl) {
+		final GatewayDevice device = new GatewayDevice();
+		device.setUDN(udn);
+		device.setLocation("http://192.168.1.1:49000/desc-"
+				+ (udn != null ? udn : "none") + ".xml");
+		device.setServiceType("urn:schemas-upnp-org:service:WANIPConnection:1");
+		device.setControlURL(controlUrl);
+		return device;
+	}
+}
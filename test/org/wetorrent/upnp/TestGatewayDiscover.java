@@ -0,0 +1,351 @@
+package org.wetorrent.upnp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the grace window and the merging of replies of
+ * {@link GatewayDiscover} against two stand-in gateways on the loopback
+ * addresses <code>127.0.0.1</code> and <code>127.0.0.2</code>. The search is
+ * sent to a relay that lets both gateways reply from their own address.
+ *
+ * @author chris
+ */
+public class TestGatewayDiscover {
+
+	private static final String SERVICE_TYPE = "urn:schemas-upnp-org:service:WANIPConnection:1";
+	private static final int SEARCH_REPLIES = GatewayDiscover.SEARCH_TYPES.length;
+
+	private final ScheduledExecutorService replyExecutor = Executors
+			.newSingleThreadScheduledExecutor();
+	private StandInGateway first;
+	private StandInGateway second;
+	private DatagramSocket relaySocket;
+	private Thread relayThread;
+	private GatewayDiscover discover;
+
+	@Before
+	public void setUp() throws IOException {
+		first = new StandInGateway("127.0.0.1", "first");
+		second = new StandInGateway("127.0.0.2", "second");
+		relaySocket = new DatagramSocket(new InetSocketAddress(
+				InetAddress.getByName("127.0.0.1"), 0));
+		relayThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				relaySearches();
+			}
+		}, "ssdp-relay");
+		relayThread.setDaemon(true);
+		relayThread.start();
+
+		discover = new GatewayDiscover();
+		discover.setSearchAddress((InetSocketAddress) relaySocket
+				.getLocalSocketAddress());
+		discover.setTimeoutMillis(5000);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		relaySocket.close();
+		relayThread.join(1000);
+		replyExecutor.shutdownNow();
+		first.stop();
+		second.stop();
+	}
+
+	@Test
+	public void returnsAfterGraceWindow() throws Exception {
+		second.replyDelayMillis = -1;
+		discover.setGraceMillis(100);
+
+		final Map<InetAddress, GatewayDevice> devices = discover.discover();
+		assertEquals(1, devices.size());
+		assertEquals("first", devices.get(first.address).getFriendlyName());
+
+		final DiscoveryStats stats = discover.getLastDiscoveryStats();
+		assertTrue(stats.getFirstValidMillis() >= 0);
+		assertTrue(stats.getTotalMillis() >= stats.getFirstValidMillis() + 100);
+		assertTrue("took " + stats.getTotalMillis() + " ms",
+				stats.getTotalMillis() < 2000);
+	}
+
+	@Test
+	public void repliesWithinGraceWindowAreReturned() throws Exception {
+		second.replyDelayMillis = 50;
+		discover.setGraceMillis(1000);
+
+		final Map<InetAddress, GatewayDevice> devices = discover.discover();
+		assertEquals(2, devices.size());
+		assertTrue(discover.getLastDiscoveryStats().getTotalMillis() < 3000);
+	}
+
+	@Test
+	public void laterRepliesAreIgnored() throws Exception {
+		second.replyDelayMillis = 1500;
+		discover.setGraceMillis(100);
+
+		final Map<InetAddress, GatewayDevice> devices = discover.discover();
+		assertEquals(1, devices.size());
+		assertTrue(devices.containsKey(first.address));
+		final DiscoveryStats stats = discover.getLastDiscoveryStats();
+		assertEquals(SEARCH_REPLIES, stats.getReplies());
+		assertTrue("took " + stats.getTotalMillis() + " ms",
+				stats.getTotalMillis() < 1500);
+	}
+
+	@Test
+	public void slowDescriptionAfterGraceIsDropped() throws Exception {
+		second.descriptionDelayMillis = 1500;
+		discover.setGraceMillis(100);
+
+		final Map<InetAddress, GatewayDevice> devices = discover.discover();
+		assertEquals(1, devices.size());
+		assertTrue(devices.containsKey(first.address));
+		final DiscoveryStats stats = discover.getLastDiscoveryStats();
+		assertEquals(2 * SEARCH_REPLIES, stats.getReplies());
+		assertEquals(1, stats.getDevices());
+		assertTrue("took " + stats.getTotalMillis() + " ms",
+				stats.getTotalMillis() < 1500);
+	}
+
+	@Test
+	public void slowDescriptionIsWaitedForWithoutValidDevice()
+			throws Exception {
+		first.replyDelayMillis = -1;
+		second.descriptionDelayMillis = 800;
+		discover.setGraceMillis(100);
+		discover.setTimeoutMillis(300);
+
+		final Map<InetAddress, GatewayDevice> devices = discover.discover();
+		assertEquals(1, devices.size());
+		assertEquals("second", devices.get(second.address).getFriendlyName());
+		final DiscoveryStats stats = discover.getLastDiscoveryStats();
+		assertTrue(stats.getFirstValidMillis() >= 800);
+		assertSame(devices.get(second.address), discover.getValidGateway());
+	}
+
+	@Test
+	public void disconnectedDeviceDoesNotStartGraceWindow() throws Exception {
+		first.connectionStatus = "Disconnected";
+		second.replyDelayMillis = 500;
+		discover.setGraceMillis(100);
+
+		final Map<InetAddress, GatewayDevice> devices = discover.discover();
+		assertEquals(2, devices.size());
+		final DiscoveryStats stats = discover.getLastDiscoveryStats();
+		assertTrue(stats.getFirstValidMillis() >= 500);
+		assertSame(devices.get(second.address), discover.getValidGateway());
+	}
+
+	@Test
+	public void multipleRepliesAreMerged() throws Exception {
+		discover.setGraceMillis(-1);
+		discover.setTimeoutMillis(300);
+
+		final Map<InetAddress, GatewayDevice> devices = discover.discover();
+		assertEquals(2, devices.size());
+		assertEquals("first", devices.get(first.address).getFriendlyName());
+		assertEquals("second", devices.get(second.address).getFriendlyName());
+		assertEquals(first.getControlUrl(), devices.get(first.address)
+				.getControlURL());
+		assertEquals(SERVICE_TYPE, devices.get(second.address)
+				.getServiceType());
+
+		// every gateway answers the search for each IGD version
+		final DiscoveryStats stats = discover.getLastDiscoveryStats();
+		assertEquals(2 * SEARCH_REPLIES, stats.getReplies());
+		assertEquals(2, stats.getDevices());
+		assertTrue(stats.getTotalMillis() >= 300);
+	}
+
+	@Test
+	public void noReplyWaitsForTimeout() throws Exception {
+		first.replyDelayMillis = -1;
+		second.replyDelayMillis = -1;
+		discover.setGraceMillis(100);
+		discover.setTimeoutMillis(300);
+
+		assertTrue(discover.discover().isEmpty());
+		final DiscoveryStats stats = discover.getLastDiscoveryStats();
+		assertEquals(0, stats.getReplies());
+		assertEquals(-1, stats.getFirstReplyMillis());
+		assertTrue(stats.getTotalMillis() >= 300);
+	}
+
+	private void relaySearches() {
+		final byte[] buffer = new byte[1536];
+		while (!relaySocket.isClosed()) {
+			final DatagramPacket packet = new DatagramPacket(buffer,
+					buffer.length);
+			try {
+				relaySocket.receive(packet);
+			} catch (final IOException e) {
+				// socket closed
+				return;
+			}
+			final String search = new String(packet.getData(), 0,
+					packet.getLength(), StandardCharsets.US_ASCII);
+			final SocketAddress sender = packet.getSocketAddress();
+			for (final StandInGateway gateway : new StandInGateway[] { first,
+					second }) {
+				gateway.reply(search, sender);
+			}
+		}
+	}
+
+	/**
+	 * A gateway that answers searches from its own address and serves its
+	 * description and the connection status.
+	 */
+	private class StandInGateway {
+		private final InetAddress address;
+		private final String friendlyName;
+		private final HttpServer server;
+		private final ExecutorService serverExecutor = Executors
+				.newCachedThreadPool();
+		private final DatagramSocket socket;
+		/** A negative delay means that the gateway does not reply. */
+		private volatile long replyDelayMillis;
+		private volatile long descriptionDelayMillis;
+		private volatile String connectionStatus = "Connected";
+
+		private StandInGateway(final String address, final String friendlyName)
+				throws IOException {
+			this.address = InetAddress.getByName(address);
+			this.friendlyName = friendlyName;
+			socket = new DatagramSocket(new InetSocketAddress(this.address, 0));
+			server = HttpServer.create(new InetSocketAddress(this.address, 0),
+					0);
+			server.setExecutor(serverExecutor);
+			server.createContext("/desc", new HttpHandler() {
+				@Override
+				public void handle(final HttpExchange exchange)
+						throws IOException {
+					sleep(descriptionDelayMillis);
+					send(exchange, createDescription());
+				}
+			});
+			server.createContext("/ctl", new HttpHandler() {
+				@Override
+				public void handle(final HttpExchange exchange)
+						throws IOException {
+					try (InputStream in = exchange.getRequestBody()) {
+						while (in.read() != -1) {
+							// read the request
+						}
+					}
+					send(exchange, createStatusResponse());
+				}
+			});
+			server.start();
+		}
+
+		private void reply(final String search, final SocketAddress sender) {
+			final int start = search.indexOf("ST: ");
+			if (replyDelayMillis < 0 || start < 0) {
+				return;
+			}
+			final String searchType = search.substring(start + 4,
+					search.indexOf("\r\n", start));
+			final byte[] reply = ("HTTP/1.1 200 OK\r\n"
+					+ "CACHE-CONTROL: max-age=1800\r\n" + "EXT:\r\n"
+					+ "LOCATION: " + getBaseUrl() + "/desc\r\n"
+					+ "SERVER: Linux/3.4 UPnP/1.0 StandIn/1.0\r\n" + "ST: "
+					+ searchType + "\r\n" + "USN: uuid:" + friendlyName + "::"
+					+ searchType + "\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII);
+			replyExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						socket.send(new DatagramPacket(reply, reply.length,
+								sender));
+					} catch (final IOException e) {
+						// the test is over
+					}
+				}
+			}, replyDelayMillis, TimeUnit.MILLISECONDS);
+		}
+
+		private String getBaseUrl() {
+			return "http://" + address.getHostAddress() + ":"
+					+ server.getAddress().getPort();
+		}
+
+		private String getControlUrl() {
+			return getBaseUrl() + "/ctl";
+		}
+
+		private String createDescription() {
+			return "<?xml version=\"1.0\"?>"
+					+ "<root xmlns=\"urn:schemas-upnp-org:device-1-0\"><device>"
+					+ "<deviceType>urn:schemas-upnp-org:device:InternetGatewayDevice:1</deviceType>"
+					+ "<friendlyName>" + friendlyName + "</friendlyName>"
+					+ "<serviceList><service>"
+					+ "<serviceType>urn:schemas-upnp-org:service:WANCommonInterfaceConfig:1</serviceType>"
+					+ "<controlURL>/cif</controlURL>" + "</service><service>"
+					+ "<serviceType>" + SERVICE_TYPE + "</serviceType>"
+					+ "<controlURL>/ctl</controlURL>"
+					+ "</service></serviceList></device></root>";
+		}
+
+		private String createStatusResponse() {
+			return "<?xml version=\"1.0\"?>"
+					+ "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+					+ "<s:Body><u:GetStatusInfoResponse xmlns:u=\""
+					+ SERVICE_TYPE + "\">" + "<NewConnectionStatus>"
+					+ connectionStatus + "</NewConnectionStatus>"
+					+ "</u:GetStatusInfoResponse></s:Body></s:Envelope>";
+		}
+
+		private void stop() {
+			socket.close();
+			server.stop(0);
+			serverExecutor.shutdownNow();
+		}
+	}
+
+	private static void send(final HttpExchange exchange, final String body)
+			throws IOException {
+		final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/xml; charset=\"utf-8\"");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		} catch (final IOException e) {
+			// the client gave up
+		}
+	}
+
+	private static void sleep(final long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
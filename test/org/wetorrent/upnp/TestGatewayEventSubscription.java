@@ -0,0 +1,189 @@
+package org.wetorrent.upnp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link GatewayEventSubscription} against a local stand-in
+ * for the event subscription URL of a gateway.
+ *
+ * @author chris
+ */
+public class TestGatewayEventSubscription {
+
+	private static final String SID = "uuid:subscription-1";
+	private static final String PROPERTY_SET = "<?xml version=\"1.0\"?>"
+			+ "<e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">"
+			+ "<e:property><PortMappingNumberOfEntries>3</PortMappingNumberOfEntries></e:property>"
+			+ "<e:property><ExternalIPAddress>203.0.113.7</ExternalIPAddress></e:property>"
+			+ "</e:propertyset>";
+
+	private final List<String> requests = Collections
+			.synchronizedList(new ArrayList<String>());
+	private final BlockingQueue<Map<String, String>> events = new LinkedBlockingQueue<>();
+	private final HttpConnectionPool notifier = new HttpConnectionPool();
+
+	private HttpServer standIn;
+	private GatewayDevice device;
+	private GatewayEventSubscription subscription;
+	private volatile String callback;
+
+	@Before
+	public void setUp() throws IOException {
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		standIn = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+		standIn.createContext("/evt", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				final String sid = exchange.getRequestHeaders().getFirst("SID");
+				requests.add(exchange.getRequestMethod() + " " + sid);
+				if (exchange.getRequestMethod().equals("SUBSCRIBE")
+						&& sid == null) {
+					final String callbackHeader = exchange.getRequestHeaders()
+							.getFirst("CALLBACK");
+					callback = callbackHeader.substring(1,
+							callbackHeader.length() - 1);
+					exchange.getResponseHeaders().add("SID", SID);
+					exchange.getResponseHeaders().add("TIMEOUT", "Second-1800");
+				}
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		standIn.start();
+
+		device = new GatewayDevice();
+		device.setLocation("http://127.0.0.1/rootDesc.xml");
+		device.setEventSubURL("http://127.0.0.1:"
+				+ standIn.getAddress().getPort() + "/evt");
+		subscription = new GatewayEventSubscription(device,
+				new GatewayEventListener() {
+					@Override
+					public void eventReceived(final GatewayDevice eventDevice,
+							final long sequence,
+							final Map<String, String> variables) {
+						final Map<String, String> event = new LinkedHashMap<>(
+								variables);
+						event.put("SEQ", Long.toString(sequence));
+						events.add(event);
+					}
+
+					@Override
+					public void subscriptionLost(
+							final GatewayDevice eventDevice,
+							final WeUPnPException cause) {
+						fail("Subscription lost");
+					}
+				});
+	}
+
+	@After
+	public void tearDown() {
+		notifier.close();
+		subscription.stop();
+		device.closeConnections();
+		standIn.stop(0);
+	}
+
+	@Test
+	public void eventsAreDeliveredToListener() throws Exception {
+		subscription.start();
+		assertEquals(SID, subscription.getSid());
+		assertEquals(Collections.singletonList("SUBSCRIBE null"), requests);
+
+		assertEquals(200, notify(SID, 0));
+		assertEquals(200, notify(SID, 1));
+		final Map<String, String> initial = events.poll(5, TimeUnit.SECONDS);
+		assertEquals("0", initial.get("SEQ"));
+		final Map<String, String> change = events.poll(5, TimeUnit.SECONDS);
+		assertEquals("1", change.get("SEQ"));
+		assertEquals("3", change.get("PortMappingNumberOfEntries"));
+		assertEquals("203.0.113.7", change.get("ExternalIPAddress"));
+	}
+
+	@Test
+	public void callbackUsesRouteToDevice() throws Exception {
+		// discovery stores the address the reply was sent from
+		device.setLocalAddress(InetAddress.getByName("192.0.2.1"));
+		subscription.start();
+		assertTrue(callback, callback.startsWith("http://127.0.0.1:"));
+		assertEquals(200, notify(SID, 0));
+		assertNotNull(events.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void eventOfOtherSubscriptionIsRejected() throws Exception {
+		subscription.start();
+		assertEquals(412, notify("uuid:other", 1));
+		assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void stopUnsubscribes() throws Exception {
+		subscription.start();
+		subscription.stop();
+		assertFalse(subscription.isRunning());
+		assertEquals("UNSUBSCRIBE " + SID, requests.get(requests.size() - 1));
+	}
+
+	@Test(expected = WeUPnPException.class)
+	public void deviceWithoutEventSubURLIsRejected() throws WeUPnPException {
+		device.setEventSubURL(null);
+		subscription.start();
+	}
+
+	@Test
+	public void parseTimeout() {
+		assertEquals(1800,
+				GatewayEventSubscription.parseTimeout("Second-1800", 300));
+		assertEquals(-1,
+				GatewayEventSubscription.parseTimeout("Second-infinite", 300));
+		assertEquals(300, GatewayEventSubscription.parseTimeout(null, 300));
+		assertEquals(300,
+				GatewayEventSubscription.parseTimeout("Minute-5", 300));
+	}
+
+	@Test
+	public void parsePropertySet() throws Exception {
+		final Map<String, String> variables = GatewayEventSubscription
+				.parsePropertySet(new ByteArrayInputStream(PROPERTY_SET
+						.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(2, variables.size());
+		assertEquals("3", variables.get("PortMappingNumberOfEntries"));
+	}
+
+	private int notify(final String sid, final long sequence)
+			throws IOException {
+		final Map<String, String> headers = new LinkedHashMap<>();
+		headers.put("Content-Type", "text/xml; charset=\"utf-8\"");
+		headers.put("NT", "upnp:event");
+		headers.put("NTS", "upnp:propchange");
+		headers.put("SID", sid);
+		headers.put("SEQ", Long.toString(sequence));
+		final byte[] body = PROPERTY_SET.getBytes(StandardCharsets.UTF_8);
+		return notifier.execute("NOTIFY", new URL(callback), headers, body,
+				body.length).getStatusCode();
+	}
+}
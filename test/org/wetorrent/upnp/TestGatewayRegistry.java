@@ -0,0 +1,131 @@
+package org.wetorrent.upnp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link GatewayRegistry} and the handling of notifications
+ * by {@link SsdpNotifyListener}.
+ *
+ * @author chris
+ */
+public class TestGatewayRegistry {
+
+	private static final String USN = "uuid:1234::urn:schemas-upnp-org:device:InternetGatewayDevice:1";
+	private static final String LOCATION = "http://192.168.1.1:5000/rootDesc.xml";
+
+	private long now;
+	private GatewayRegistry registry;
+
+	@Before
+	public void setUp() {
+		now = 0;
+		registry = new GatewayRegistry() {
+			@Override
+			protected long nanoTime() {
+				return now;
+			}
+		};
+	}
+
+	@Test
+	public void getId() {
+		assertEquals("uuid:1234", GatewayRegistry.getId(USN, LOCATION));
+		assertEquals("uuid:1234", GatewayRegistry.getId("uuid:1234", LOCATION));
+		assertEquals(LOCATION, GatewayRegistry.getId(null, LOCATION));
+	}
+
+	@Test
+	public void deviceExpiresAfterMaxAge() {
+		final GatewayDevice device = device(1800);
+		assertTrue(registry.register(device));
+		now = 1799 * 1000000000L;
+		assertEquals(Arrays.asList(device), registry.getDevices());
+		now = 1800 * 1000000000L;
+		assertEquals(Collections.emptyList(), registry.getDevices());
+	}
+
+	@Test
+	public void deviceWithoutMaxAgeIsNotRegistered() {
+		assertFalse(registry.register(device(-1)));
+		assertTrue(registry.getDevices().isEmpty());
+	}
+
+	@Test
+	public void refreshExtendsExpiry() {
+		final GatewayDevice device = device(100);
+		registry.register(device);
+		now = 90 * 1000000000L;
+		assertTrue(registry.refresh("uuid:1234", LOCATION, 100));
+		now = 150 * 1000000000L;
+		assertEquals(Arrays.asList(device), registry.getDevices());
+	}
+
+	@Test
+	public void refreshWithOtherLocationFails() {
+		registry.register(device(100));
+		assertFalse(registry.refresh("uuid:1234",
+				"http://192.168.1.1:5001/rootDesc.xml", 100));
+		assertFalse(registry.refresh("uuid:5678", LOCATION, 100));
+	}
+
+	@Test
+	public void byebyeRemovesDevice() throws Exception {
+		registry.register(device(1800));
+		final SsdpNotifyListener listener = new SsdpNotifyListener(registry);
+		listener.handleMessage(notify("ssdp:byebye"),
+				InetAddress.getByName("192.168.1.1"));
+		assertTrue(registry.getDevices().isEmpty());
+	}
+
+	@Test
+	public void aliveRefreshesDevice() throws Exception {
+		final GatewayDevice device = device(100);
+		registry.register(device);
+		now = 90 * 1000000000L;
+		final SsdpNotifyListener listener = new SsdpNotifyListener(registry);
+		listener.handleMessage(notify("ssdp:alive"),
+				InetAddress.getByName("192.168.1.1"));
+		now = 1000 * 1000000000L;
+		assertEquals(Arrays.asList(device), registry.getDevices());
+	}
+
+	@Test
+	public void notificationOfOtherDeviceIsIgnored() throws Exception {
+		registry.register(device(1800));
+		final SsdpNotifyListener listener = new SsdpNotifyListener(registry);
+		listener.handleMessage(
+				ByteBuffer.wrap(("NOTIFY * HTTP/1.1\r\n"
+						+ "NT: urn:schemas-upnp-org:device:MediaServer:1\r\n"
+						+ "NTS: ssdp:byebye\r\n" + "USN: " + USN + "\r\n\r\n")
+						.getBytes(StandardCharsets.US_ASCII)), InetAddress
+						.getByName("192.168.1.1"));
+		assertEquals(1, registry.getDevices().size());
+	}
+
+	private static GatewayDevice device(final int maxAge) {
+		final GatewayDevice device = new GatewayDevice();
+		device.setLocation(LOCATION);
+		device.setUSN(USN);
+		device.setMaxAge(maxAge);
+		return device;
+	}
+
+	private static ByteBuffer notify(final String nts) {
+		return ByteBuffer.wrap(("NOTIFY * HTTP/1.1\r\n"
+				+ "HOST: 239.255.255.250:1900\r\n"
+				+ "CACHE-CONTROL: max-age=1800\r\n" + "LOCATION: " + LOCATION
+				+ "\r\n"
+				+ "NT: urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n"
+				+ "NTS: " + nts + "\r\n" + "USN: " + USN + "\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII));
+	}
+}
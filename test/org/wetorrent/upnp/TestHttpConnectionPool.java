@@ -0,0 +1,316 @@
+package org.wetorrent.upnp;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link HttpConnectionPool} against a local stand-in that
+ * sends scripted responses.
+ *
+ * @author chris
+ */
+public class TestHttpConnectionPool {
+
+	private static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+
+	private final BlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+	private final List<String> requests = Collections
+			.synchronizedList(new ArrayList<String>());
+	private final AtomicInteger connections = new AtomicInteger();
+	private final HttpConnectionPool pool = new HttpConnectionPool();
+
+	private ServerSocket standIn;
+	private Thread acceptor;
+	private volatile CountDownLatch closed = new CountDownLatch(1);
+	private URL url;
+
+	@Before
+	public void setUp() throws IOException {
+		standIn = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = standIn.accept();
+						connections.incrementAndGet();
+						final Thread handler = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						}, "stand-in-connection");
+						handler.setDaemon(true);
+						handler.start();
+					}
+				} catch (final IOException e) {
+					// stand-in stopped
+				}
+			}
+		}, "stand-in-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		pool.setReadTimeoutMillis(5000);
+		url = new URL("http://127.0.0.1:" + standIn.getLocalPort() + "/ctl");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.close();
+		standIn.close();
+		acceptor.join(1000);
+	}
+
+	@Test
+	public void connectionIsReused() throws IOException {
+		for (int i = 0; i < 3; i++) {
+			replies.add(new Reply(OK, false));
+			assertEquals("ok", post());
+		}
+		final ConnectionStats stats = pool.getStats();
+		assertEquals(3, stats.getRequests());
+		assertEquals(1, stats.getConnectionsOpened());
+		assertEquals(2, stats.getConnectionsReused());
+		assertTrue(stats.isKeepAliveActive());
+		assertEquals(1, connections.get());
+	}
+
+	@Test
+	public void chunkedResponseIsRead() throws IOException {
+		replies.add(new Reply("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n"
+				+ "\r\n5;name=value\r\nhello\r\n6\r\n world\r\n0\r\n"
+				+ "X-Trailer: ignored\r\n\r\n", false));
+		replies.add(new Reply(OK, false));
+		assertEquals("hello world", post());
+		// the trailer was consumed, so the connection can be reused
+		assertEquals("ok", post());
+		assertEquals(1, pool.getStats().getConnectionsOpened());
+	}
+
+	@Test
+	public void connectionCloseIsHonoured() throws IOException {
+		replies.add(new Reply("HTTP/1.1 200 OK\r\nConnection: close\r\n"
+				+ "Content-Length: 2\r\n\r\nok", true));
+		replies.add(new Reply(OK, false));
+		assertEquals("ok", post());
+		assertEquals("ok", post());
+		final ConnectionStats stats = pool.getStats();
+		assertEquals(2, stats.getConnectionsOpened());
+		assertEquals(0, stats.getConnectionsReused());
+		assertEquals(0, stats.getStaleConnectionRetries());
+	}
+
+	@Test
+	public void bodyWithoutLengthEndsWithConnection() throws IOException {
+		replies.add(new Reply("HTTP/1.0 200 OK\r\n\r\nuntil closed", true));
+		replies.add(new Reply(OK, false));
+		assertEquals("until closed", post());
+		assertEquals("ok", post());
+		assertEquals(2, pool.getStats().getConnectionsOpened());
+	}
+
+	@Test
+	public void staleConnectionIsReplaced() throws Exception {
+		// announces keep-alive but closes the connection anyway
+		replies.add(new Reply(OK, true));
+		replies.add(new Reply(OK, false));
+		assertEquals("ok", post());
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		assertEquals("ok", post());
+		final ConnectionStats stats = pool.getStats();
+		assertEquals(2, stats.getConnectionsOpened());
+		assertEquals(1, stats.getStaleConnectionRetries());
+		assertEquals(2, requests.size());
+	}
+
+	@Test
+	public void keepAliveIsDisabledForRouterDroppingConnections()
+			throws Exception {
+		for (int i = 0; i <= HttpConnectionPool.MAX_STALE_CONNECTION_FAILURES; i++) {
+			closed = new CountDownLatch(1);
+			replies.add(new Reply(OK, true));
+			assertEquals("ok", post());
+			assertTrue(closed.await(5, TimeUnit.SECONDS));
+		}
+		assertFalse(pool.getStats().isKeepAliveActive());
+		replies.add(new Reply(OK, false));
+		assertEquals("ok", post());
+		assertTrue(requests.get(requests.size() - 1).contains(
+				"connection: close"));
+	}
+
+	@Test
+	public void idleConnectionIsClosedAfterTimeout() throws Exception {
+		pool.setIdleTimeoutMillis(200);
+		replies.add(new Reply(OK, false));
+		assertEquals("ok", post());
+		// the stand-in sees the pool close the connection without a request
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		assertEquals(1, requests.size());
+		replies.add(new Reply(OK, false));
+		assertEquals("ok", post());
+		assertEquals(2, pool.getStats().getConnectionsOpened());
+		assertEquals(0, pool.getStats().getStaleConnectionRetries());
+	}
+
+	@Test
+	public void requestWrittenToReusedConnectionIsNotSentAgain()
+			throws IOException {
+		replies.add(new Reply(OK, false));
+		assertEquals("ok", post());
+		// the router receives the request but drops the connection
+		replies.add(new Reply(null, true));
+		replies.add(new Reply(OK, false));
+		try {
+			post();
+			fail("expected IOException");
+		} catch (final IOException e) {
+			// expected
+		}
+		assertEquals(2, requests.size());
+	}
+
+	@Test
+	public void interimResponseIsSkipped() throws IOException {
+		replies.add(new Reply("HTTP/1.1 100 Continue\r\n\r\n"
+				+ "HTTP/1.1 102 Processing\r\nX-Progress: 1\r\n\r\n" + OK,
+				false));
+		replies.add(new Reply(OK, false));
+		final HttpConnectionPool.Response response = execute();
+		assertEquals(200, response.getStatusCode());
+		assertEquals("2", response.getHeader("Content-Length"));
+		assertNull(response.getHeader("X-Progress"));
+		assertEquals("ok", new String(response.getBody(),
+				StandardCharsets.US_ASCII));
+		assertEquals("ok", post());
+		assertEquals(1, pool.getStats().getConnectionsOpened());
+	}
+
+	@Test
+	public void httpsIsRejected() throws IOException {
+		try {
+			pool.execute("POST", new URL("https://127.0.0.1:"
+					+ standIn.getLocalPort() + "/ctl"), null, new byte[0], 0);
+			fail("expected IOException");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("https"));
+		}
+		assertEquals(0, connections.get());
+	}
+
+	private String post() throws IOException {
+		return new String(execute().getBody(), StandardCharsets.US_ASCII);
+	}
+
+	private HttpConnectionPool.Response execute() throws IOException {
+		final byte[] body = "<request/>".getBytes(StandardCharsets.US_ASCII);
+		return pool.execute("POST", url, null, body, body.length);
+	}
+
+	/**
+	 * Read requests from the given connection and answer each with the next
+	 * scripted reply.
+	 */
+	private void serve(final Socket socket) {
+		try (Socket connection = socket) {
+			final InputStream in = new BufferedInputStream(
+					connection.getInputStream());
+			final OutputStream out = connection.getOutputStream();
+			while (true) {
+				final String request = readRequest(in);
+				if (request == null) {
+					return;
+				}
+				requests.add(request);
+				final Reply reply = replies.poll(5, TimeUnit.SECONDS);
+				if (reply == null) {
+					return;
+				}
+				if (reply.response != null) {
+					out.write(reply.response
+							.getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+				}
+				if (reply.close) {
+					return;
+				}
+			}
+		} catch (final IOException e) {
+			// client closed the connection
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			closed.countDown();
+		}
+	}
+
+	/**
+	 * @return the lower case head of the request or <code>null</code> if the
+	 *         client closed the connection.
+	 */
+	private static String readRequest(final InputStream in) throws IOException {
+		final StringBuilder head = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0) {
+			head.append((char) c);
+			if (head.length() >= 4
+					&& head.substring(head.length() - 4).equals("\r\n\r\n")) {
+				break;
+			}
+		}
+		if (c < 0) {
+			return null;
+		}
+		final String request = head.toString().toLowerCase(Locale.ENGLISH);
+		final int start = request.indexOf("content-length:");
+		if (start >= 0) {
+			final int end = request.indexOf("\r\n", start);
+			final int length = Integer.parseInt(request.substring(
+					start + "content-length:".length(), end).trim());
+			for (int i = 0; i < length; i++) {
+				if (in.read() < 0) {
+					return null;
+				}
+			}
+		}
+		return request;
+	}
+
+	private static class Reply {
+		private final String response;
+		private final boolean close;
+
+		/**
+		 * @param response
+		 *            the raw response or <code>null</code> to send nothing.
+		 * @param close
+		 *            <code>true</code> to close the connection afterwards.
+		 */
+		private Reply(final String response, final boolean close) {
+			this.response = response;
+			this.close = close;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package org.wetorrent.upnp;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link LatencyHistogram} and {@link ActionMetrics}.
+ *
+ * @author chris
+ */
+public class TestLatencyHistogram {
+
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	@Test
+	public void emptyHistogram() {
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentileMicros(99));
+		assertEquals(0, histogram.getMeanMicros(), 0);
+	}
+
+	@Test
+	public void percentilesHaveBoundedError() {
+		for (long value = 1; value <= 1000; value++) {
+			histogram.record(value * 1000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMaxMicros());
+		assertEquals(500500, histogram.getMeanMicros(), 0.001);
+		assertWithin(500000, histogram.getPercentileMicros(50));
+		assertWithin(900000, histogram.getPercentileMicros(90));
+		assertWithin(990000, histogram.getPercentileMicros(99));
+		assertEquals(1000000, histogram.getPercentileMicros(100));
+	}
+
+	@Test
+	public void bucketsCoverAllValues() {
+		for (final long value : new long[] { 0, 7, 8, 9, 15, 16, 1023, 1024,
+				Long.MAX_VALUE }) {
+			final int bucket = LatencyHistogram.getBucket(value);
+			assertTrue(value <= LatencyHistogram.getUpperBound(bucket));
+			if (bucket > 0) {
+				assertTrue(value > LatencyHistogram.getUpperBound(bucket - 1));
+			}
+		}
+	}
+
+	@Test
+	public void reset() {
+		histogram.record(42);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMaxMicros());
+	}
+
+	@Test
+	public void discardedValuesAreRemoved() {
+		histogram.record(100);
+		histogram.record(5000);
+		histogram.discard(5000);
+		assertEquals(1, histogram.getCount());
+		assertEquals(100, histogram.getMeanMicros(), 0);
+		assertWithin(100, histogram.getPercentileMicros(100));
+	}
+
+	@Test
+	public void errorsAreCountedByCode() {
+		final ActionMetrics metrics = new ActionMetrics();
+		final List<String> added = new ArrayList<>();
+		metrics.addListener(new ActionMetrics.Listener() {
+			@Override
+			public void actionAdded(final ActionStats stats) {
+				added.add(stats.getAction());
+			}
+		});
+		final long start = System.nanoTime();
+		metrics.recordSuccess("AddPortMapping", start);
+		metrics.recordError("AddPortMapping", start, "718");
+		metrics.recordError("AddPortMapping", start, "718");
+		metrics.recordSuccess("GetExternalIPAddress", start);
+
+		final ActionStats stats = metrics.get("AddPortMapping");
+		assertEquals(3, stats.getCalls());
+		assertEquals(2, stats.getErrors());
+		assertEquals(Long.valueOf(2), stats.getErrorsByCode().get("718"));
+		assertEquals(3, stats.getLatencies().getCount());
+		assertEquals("[AddPortMapping, GetExternalIPAddress]", added.toString());
+	}
+
+	@Test
+	public void errorCodeOfFailure() {
+		assertEquals("718", ActionMetrics.getErrorCode(new WeUPnPException(
+				"conflict", "718")));
+		assertEquals("timeout", ActionMetrics.getErrorCode(new WeUPnPException(
+				"failed", new SocketTimeoutException())));
+		assertEquals("http-404", ActionMetrics.getErrorCode(new WeUPnPException(
+				"failed", new HttpStatusException("not found", 404))));
+		assertEquals("io", ActionMetrics.getErrorCode(new WeUPnPException(
+				"failed")));
+	}
+
+	private static void assertWithin(final long expected, final long actual) {
+		assertTrue("expected " + expected + " but was " + actual,
+				actual >= expected && actual <= expected * 1.125);
+	}
+}
@@ -0,0 +1,64 @@
+package org.wetorrent.upnp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link LatencyTracker}.
+ *
+ * @author chris
+ */
+public class TestLatencyTracker {
+
+	private final LatencyTracker tracker = new LatencyTracker();
+
+	@Test
+	public void defaultTimeoutUntilEnoughSamples() {
+		assertEquals(-1, tracker.getPercentileMillis(99));
+		for (int i = 0; i < 7; i++) {
+			tracker.record(10000);
+		}
+		assertEquals(LatencyTracker.DEFAULT_TIMEOUT_MILLIS,
+				tracker.getTimeoutMillis());
+		tracker.record(10000);
+		assertEquals(LatencyTracker.MAX_TIMEOUT_MILLIS,
+				tracker.getTimeoutMillis());
+	}
+
+	@Test
+	public void timeoutIsMultipleOfPercentile() {
+		for (int i = 0; i < 100; i++) {
+			tracker.record(i < 99 ? 1000 : 3000);
+		}
+		// percentiles are at most 12.5% above the real value
+		assertEquals(1000, tracker.getPercentileMillis(50), 1000 / 8);
+		assertEquals(1000, tracker.getPercentileMillis(99), 1000 / 8);
+		assertEquals(3000, tracker.getPercentileMillis(100));
+		assertEquals(4 * tracker.getPercentileMillis(99),
+				tracker.getTimeoutMillis());
+	}
+
+	@Test
+	public void timeoutIsAtLeastMinimum() {
+		for (int i = 0; i < 10; i++) {
+			tracker.record(1);
+		}
+		assertEquals(LatencyTracker.MIN_TIMEOUT_MILLIS,
+				tracker.getTimeoutMillis());
+	}
+
+	@Test
+	public void oldSamplesAreDiscarded() {
+		for (int i = 0; i < 128; i++) {
+			tracker.record(5000);
+		}
+		assertEquals(5000, tracker.getPercentileMillis(50));
+		for (int i = 0; i < 128; i++) {
+			tracker.record(300);
+		}
+		assertEquals(128, tracker.getCount());
+		assertEquals(300, tracker.getPercentileMillis(100), 300 / 8);
+		assertEquals(1200, tracker.getTimeoutMillis(), 1200 / 8);
+	}
+}
@@ -0,0 +1,93 @@
+package org.wetorrent.upnp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link PortListingReader}.
+ *
+ * @author chris
+ */
+public class TestPortListingReader {
+
+	private static final String PREFIX = "<?xml version=\"1.0\"?>\r\n"
+			+ "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+			+ "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+			+ "<s:Body><u:GetListOfPortMappingsResponse "
+			+ "xmlns:u=\"urn:schemas-upnp-org:service:WANIPConnection:2\">"
+			+ "<NewPortListing>";
+	private static final String SUFFIX = "</NewPortListing>"
+			+ "</u:GetListOfPortMappingsResponse></s:Body></s:Envelope>";
+
+	private static final String LISTING = "<?xml version=\"1.0\"?>\n"
+			+ "<p:PortMappingList xmlns:p=\"urn:schemas-upnp-org:gw:WANIPConnection\">\n"
+			+ "<p:PortMappingEntry>\n"
+			+ "<p:NewRemoteHost></p:NewRemoteHost>\n"
+			+ "<p:NewExternalPort>80</p:NewExternalPort>\n"
+			+ "<p:NewProtocol>TCP</p:NewProtocol>\n"
+			+ "<p:NewInternalPort>8080</p:NewInternalPort>\n"
+			+ "<p:NewInternalClient>192.168.1.2</p:NewInternalClient>\n"
+			+ "<p:NewEnabled>1</p:NewEnabled>\n"
+			+ "<p:NewDescription>web &amp; more</p:NewDescription>\n"
+			+ "<p:NewLeaseTime>0</p:NewLeaseTime>\n"
+			+ "</p:PortMappingEntry>\n"
+			+ "<p:PortMappingEntry>\n"
+			+ "<p:NewExternalPort>443</p:NewExternalPort>\n"
+			+ "<p:NewProtocol>TCP</p:NewProtocol>\n"
+			+ "<p:NewInternalPort>443</p:NewInternalPort>\n"
+			+ "<p:NewInternalClient>192.168.1.3</p:NewInternalClient>\n"
+			+ "<p:NewDescription>https</p:NewDescription>\n"
+			+ "</p:PortMappingEntry>\n" + "</p:PortMappingList>\n";
+
+	@Test
+	public void escapedListing() throws XMLStreamException {
+		final String escaped = LISTING.replace("&", "&amp;")
+				.replace("<", "&lt;").replace(">", "&gt;");
+		assertListing(read(escaped));
+	}
+
+	@Test
+	public void cdataListing() throws XMLStreamException {
+		assertListing(read("<![CDATA[" + LISTING + "]]>"));
+	}
+
+	@Test
+	public void embeddedListing() throws XMLStreamException {
+		assertListing(read(LISTING.substring(LISTING.indexOf("<p:"))));
+	}
+
+	@Test
+	public void emptyListing() throws XMLStreamException {
+		assertTrue(read("").isEmpty());
+	}
+
+	private static void assertListing(final List<PortMappingEntry> entries) {
+		assertEquals(2, entries.size());
+		final PortMappingEntry first = entries.get(0);
+		assertEquals("", first.getRemoteHost());
+		assertEquals(80, first.getExternalPort());
+		assertEquals("TCP", first.getProtocol());
+		assertEquals(8080, first.getInternalPort());
+		assertEquals("192.168.1.2", first.getInternalClient());
+		assertEquals("1", first.getEnabled());
+		assertEquals("web & more", first.getPortMappingDescription());
+		final PortMappingEntry second = entries.get(1);
+		assertNull(second.getRemoteHost());
+		assertEquals(443, second.getExternalPort());
+		assertEquals("192.168.1.3", second.getInternalClient());
+		assertEquals("https", second.getPortMappingDescription());
+	}
+
+	private static List<PortMappingEntry> read(final String listing)
+			throws XMLStreamException {
+		final byte[] bytes = (PREFIX + listing + SUFFIX)
+				.getBytes(StandardCharsets.UTF_8);
+		return PortListingReader.read(bytes, 0, bytes.length);
+	}
+}
@@ -0,0 +1,89 @@
+package org.wetorrent.upnp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SoapEnvelopeEncoder}.
+ * 
+ * @author chris
+ */
+public class TestSoapEnvelopeEncoder {
+
+	private static final String SERVICE = "urn:schemas-upnp-org:service:WANIPConnection:1";
+	private static final String PREFIX = "<?xml version=\"1.0\"?>\r\n"
+			+ "<SOAP-ENV:Envelope "
+			+ "xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+			+ "SOAP-ENV:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+			+ "<SOAP-ENV:Body>";
+	private static final String SUFFIX = "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+	private SoapEnvelopeEncoder.Buffer buffer;
+
+	@Before
+	public void setUp() {
+		buffer = new SoapEnvelopeEncoder.Buffer(16);
+	}
+
+	@Test
+	public void noArguments() {
+		SoapEnvelopeEncoder.getEncoder(SERVICE, "GetExternalIPAddress")
+				.encode(null, buffer);
+		assertEquals(PREFIX + "<m:GetExternalIPAddress xmlns:m=\"" + SERVICE
+				+ "\"></m:GetExternalIPAddress>" + SUFFIX, buffer.toString());
+	}
+
+	@Test
+	public void argumentsInOrder() {
+		final Map<String, String> args = new LinkedHashMap<>();
+		args.put("NewRemoteHost", "");
+		args.put("NewExternalPort", "8080");
+		args.put("NewProtocol", "TCP");
+		args.put("NewPortMappingDescription", null);
+		SoapEnvelopeEncoder.getEncoder(SERVICE, "DeletePortMapping").encode(
+				args, buffer);
+		assertEquals(PREFIX + "<m:DeletePortMapping xmlns:m=\"" + SERVICE
+				+ "\"><NewRemoteHost></NewRemoteHost>"
+				+ "<NewExternalPort>8080</NewExternalPort>"
+				+ "<NewProtocol>TCP</NewProtocol>"
+				+ "<NewPortMappingDescription></NewPortMappingDescription>"
+				+ "</m:DeletePortMapping>" + SUFFIX, buffer.toString());
+	}
+
+	@Test
+	public void escapeSpecialCharacters() {
+		final Map<String, String> args = new LinkedHashMap<>();
+		args.put("NewPortMappingDescription", "a<b>&\"c'");
+		SoapEnvelopeEncoder.getEncoder(SERVICE, "AddPortMapping").encode(args,
+				buffer);
+		assertTrue(buffer.toString().contains(
+				"<NewPortMappingDescription>a&lt;b&gt;&amp;&quot;c&apos;"
+						+ "</NewPortMappingDescription>"));
+	}
+
+	@Test
+	public void encodeUtf8() {
+		final String description = "Gr\u00fc\u00dfe \u20ac \ud83d\ude00";
+		final Map<String, String> args = new LinkedHashMap<>();
+		args.put("NewPortMappingDescription", description);
+		final SoapEnvelopeEncoder encoder = SoapEnvelopeEncoder.getEncoder(
+				SERVICE, "AddPortMapping");
+		encoder.encode(args, buffer);
+		final String expected = PREFIX + "<m:AddPortMapping xmlns:m=\""
+				+ SERVICE + "\"><NewPortMappingDescription>" + description
+				+ "</NewPortMappingDescription></m:AddPortMapping>" + SUFFIX;
+		assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8),
+				buffer.toByteArray());
+
+		// buffer is reset when reused
+		encoder.encode(null, buffer);
+		assertEquals(PREFIX + "<m:AddPortMapping xmlns:m=\"" + SERVICE
+				+ "\"></m:AddPortMapping>" + SUFFIX, buffer.toString());
+	}
+}
@@ -0,0 +1,79 @@
+package org.wetorrent.upnp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SoapResponseReader}.
+ *
+ * @author chris
+ */
+public class TestSoapResponseReader {
+
+	private static final String PREFIX = "<?xml version=\"1.0\"?>\r\n"
+			+ "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" "
+			+ "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">\r\n"
+			+ "<s:Body>\r\n";
+	private static final String SUFFIX = "</s:Body>\r\n</s:Envelope>\r\n";
+
+	@Test
+	public void actionResponse() throws XMLStreamException {
+		final Map<String, String> result = read("<u:GetSpecificPortMappingEntryResponse "
+				+ "xmlns:u=\"urn:schemas-upnp-org:service:WANIPConnection:1\">\r\n"
+				+ "<NewInternalPort>80</NewInternalPort>\r\n"
+				+ "<NewInternalClient> 192.168.1.2 </NewInternalClient>\r\n"
+				+ "<NewEnabled>1</NewEnabled>\r\n"
+				+ "<NewPortMappingDescription></NewPortMappingDescription>\r\n"
+				+ "</u:GetSpecificPortMappingEntryResponse>\r\n");
+		assertEquals("80", result.get("NewInternalPort"));
+		assertEquals("192.168.1.2", result.get("NewInternalClient"));
+		assertEquals("1", result.get("NewEnabled"));
+		assertEquals("", result.get("NewPortMappingDescription"));
+		assertFalse(result.containsKey("GetSpecificPortMappingEntryResponse"));
+		assertFalse(result.containsKey("Body"));
+	}
+
+	@Test
+	public void entityReferences() throws XMLStreamException {
+		final Map<String, String> result = read("<u:GetGenericPortMappingEntryResponse "
+				+ "xmlns:u=\"urn:schemas-upnp-org:service:WANIPConnection:1\">"
+				+ "<NewPortMappingDescription>a &amp; b &lt;c&gt;</NewPortMappingDescription>"
+				+ "<NewRemoteHost><![CDATA[x&y]]></NewRemoteHost>"
+				+ "</u:GetGenericPortMappingEntryResponse>");
+		assertEquals("a & b <c>", result.get("NewPortMappingDescription"));
+		assertEquals("x&y", result.get("NewRemoteHost"));
+	}
+
+	@Test
+	public void upnpError() throws XMLStreamException {
+		final Map<String, String> result = read("<s:Fault>"
+				+ "<faultcode>s:Client</faultcode>"
+				+ "<faultstring>UPnPError</faultstring>"
+				+ "<detail><UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\">"
+				+ "<errorCode>713</errorCode>"
+				+ "<errorDescription>SpecifiedArrayIndexInvalid</errorDescription>"
+				+ "</UPnPError></detail></s:Fault>");
+		assertEquals("713", result.get("errorCode"));
+		assertEquals("SpecifiedArrayIndexInvalid",
+				result.get("errorDescription"));
+		assertEquals("UPnPError", result.get("faultstring"));
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void malformedResponse() throws XMLStreamException {
+		read("<GetExternalIPAddressResponse>");
+	}
+
+	private static Map<String, String> read(final String body)
+			throws XMLStreamException {
+		final byte[] bytes = (PREFIX + body + SUFFIX)
+				.getBytes(StandardCharsets.UTF_8);
+		return SoapResponseReader.read(bytes, 0, bytes.length);
+	}
+}
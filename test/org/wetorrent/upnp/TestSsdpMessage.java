@@ -0,0 +1,132 @@
+package org.wetorrent.upnp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SsdpMessage}.
+ *
+ * @author chris
+ */
+public class TestSsdpMessage {
+
+	private static final String RESPONSE = "HTTP/1.1 200 OK\r\n"
+			+ "CACHE-CONTROL: max-age = 1800\r\n"
+			+ "EXT:\r\n"
+			+ "Location:  http://192.168.1.1:5000/rootDesc.xml \r\n"
+			+ "SERVER: Linux/3.4 UPnP/1.0 MiniUPnPd/1.8\r\n"
+			+ "st: urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n"
+			+ "USN: uuid:1234::urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n"
+			+ "\r\n";
+
+	@Test
+	public void parseResponse() throws WeUPnPException {
+		final SsdpMessage message = SsdpMessage.parse(buffer(RESPONSE));
+		assertTrue(message.isResponse());
+		assertEquals("http://192.168.1.1:5000/rootDesc.xml",
+				message.getLocation());
+		assertEquals("urn:schemas-upnp-org:device:InternetGatewayDevice:1",
+				message.getSt());
+		assertEquals(
+				"uuid:1234::urn:schemas-upnp-org:device:InternetGatewayDevice:1",
+				message.getUsn());
+		assertEquals("Linux/3.4 UPnP/1.0 MiniUPnPd/1.8", message.getServer());
+		assertEquals(1800, message.getMaxAge());
+	}
+
+	@Test
+	public void parseDoesNotChangePosition() throws WeUPnPException {
+		final ByteBuffer buffer = buffer(RESPONSE);
+		SsdpMessage.parse(buffer);
+		assertEquals(0, buffer.position());
+		assertEquals(RESPONSE.length(), buffer.limit());
+	}
+
+	@Test
+	public void parseRegionOfDirectBuffer() throws WeUPnPException {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(1536);
+		buffer.put("garbage".getBytes(StandardCharsets.US_ASCII));
+		buffer.put(RESPONSE.getBytes(StandardCharsets.US_ASCII));
+		buffer.flip();
+		buffer.position("garbage".length());
+		final SsdpMessage message = SsdpMessage.parse(buffer);
+		assertTrue(message.isResponse());
+		assertEquals("http://192.168.1.1:5000/rootDesc.xml",
+				message.getLocation());
+	}
+
+	@Test
+	public void parseTruncatedResponse() throws WeUPnPException {
+		final String truncated = RESPONSE.substring(0,
+				RESPONSE.indexOf("SERVER") + 3);
+		final SsdpMessage message = SsdpMessage.parse(buffer(truncated));
+		assertEquals("http://192.168.1.1:5000/rootDesc.xml",
+				message.getLocation());
+		assertNull(message.getServer());
+		assertNull(message.getSt());
+	}
+
+	@Test
+	public void parseLineFeedOnly() throws WeUPnPException {
+		final SsdpMessage message = SsdpMessage.parse(buffer(RESPONSE
+				.replace("\r\n", "\n")));
+		assertEquals("urn:schemas-upnp-org:device:InternetGatewayDevice:1",
+				message.getSt());
+		assertEquals(1800, message.getMaxAge());
+	}
+
+	@Test
+	public void parseNotify() throws WeUPnPException {
+		final SsdpMessage message = SsdpMessage.parse(buffer("NOTIFY * HTTP/1.1\r\n"
+				+ "HOST: 239.255.255.250:1900\r\n"
+				+ "CACHE-CONTROL: no-cache\r\n" + "\r\n"));
+		assertFalse(message.isResponse());
+		assertEquals(-1, message.getMaxAge());
+		assertNull(message.getLocation());
+	}
+
+	@Test
+	public void headersAfterEmptyLineAreIgnored() throws WeUPnPException {
+		final SsdpMessage message = SsdpMessage.parse(buffer("HTTP/1.1 200 OK\r\n"
+				+ "\r\n" + "LOCATION: http://192.168.1.1/\r\n"));
+		assertNull(message.getLocation());
+	}
+
+	@Test
+	public void invalidLinesAreIgnored() throws WeUPnPException {
+		final SsdpMessage message = SsdpMessage.parse(buffer("HTTP/1.1 200 OK\r\n"
+				+ "no colon\r\n" + ": no name\r\n"
+				+ "CACHE-CONTROL: max-age=\r\n"
+				+ "LOCATION: http://192.168.1.1/\r\n"));
+		assertEquals("http://192.168.1.1/", message.getLocation());
+		assertEquals(-1, message.getMaxAge());
+	}
+
+	@Test(expected = WeUPnPException.class)
+	public void emptyMessage() throws WeUPnPException {
+		SsdpMessage.parse(buffer("\r\n"));
+	}
+
+	@Test(expected = WeUPnPException.class)
+	public void searchReplyWithoutLocation() throws WeUPnPException {
+		new GatewayDiscover().parseMSearchReplay(buffer("HTTP/1.1 200 OK\r\n"
+				+ "ST: upnp:rootdevice\r\n"));
+	}
+
+	@Test
+	public void searchReply() throws WeUPnPException {
+		final GatewayDevice device = new GatewayDiscover()
+				.parseMSearchReplay(buffer(RESPONSE));
+		assertEquals("http://192.168.1.1:5000/rootDesc.xml",
+				device.getLocation());
+		assertEquals(1800, device.getMaxAge());
+	}
+
+	private static ByteBuffer buffer(final String message) {
+		return ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII));
+	}
+}